@@ -57,13 +57,22 @@ public final class Utils {
     static final int BD_ADDR_LEN = 6; // bytes
     static final int BD_UUID_LEN = 16; // bytes
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     public static String getAddressStringFromByte(byte[] address) {
         if (address == null || address.length != BD_ADDR_LEN) {
             return null;
         }
 
-        return String.format("%02X:%02X:%02X:%02X:%02X:%02X", address[0], address[1], address[2],
-                address[3], address[4], address[5]);
+        char[] chars = new char[BD_ADDR_LEN * 3 - 1];
+        for (int i = 0; i < BD_ADDR_LEN; i++) {
+            if (i > 0) {
+                chars[i * 3 - 1] = ':';
+            }
+            chars[i * 3] = HEX_DIGITS[(address[i] >> 4) & 0x0F];
+            chars[i * 3 + 1] = HEX_DIGITS[address[i] & 0x0F];
+        }
+        return new String(chars);
     }
 
     public static byte[] getByteAddress(BluetoothDevice device) {
@@ -77,7 +86,7 @@ public final class Utils {
 
         for (i = 0; i < address.length(); i++) {
             if (address.charAt(i) != ':') {
-                output[j] = (byte) Integer.parseInt(address.substring(i, i + 2), BD_UUID_LEN);
+                output[j] = (byte) ((hexDigit(address, i) << 4) | hexDigit(address, i + 1));
                 j++;
                 i++;
             }
@@ -86,6 +95,70 @@ public final class Utils {
         return output;
     }
 
+    /**
+     * Packs a Bluetooth address into the low 48 bits of a long, most significant byte first,
+     * so it can key primitive maps such as {@link android.util.LongSparseArray}.
+     * Unlike the String form this needs no allocation.
+     *
+     * @param address the 6 address bytes, as delivered by JNI callbacks
+     * @return the packed address, or -1 if |address| is not a valid address
+     */
+    public static long getLongFromAddress(byte[] address) {
+        if (address == null || address.length != BD_ADDR_LEN) {
+            return -1;
+        }
+        long packed = 0;
+        for (int i = 0; i < BD_ADDR_LEN; i++) {
+            packed = (packed << 8) | (address[i] & 0xFF);
+        }
+        return packed;
+    }
+
+    /**
+     * Packs a Bluetooth address string ("00:11:22:AA:BB:CC") into the low 48 bits of a long,
+     * yielding the same value as {@link #getLongFromAddress(byte[])} for the same address.
+     *
+     * @param address the address string, upper or lower case
+     * @return the packed address, or -1 if |address| is not a valid address
+     */
+    public static long getLongFromAddress(String address) {
+        if (address == null || address.length() != BD_ADDR_LEN * 3 - 1) {
+            return -1;
+        }
+        long packed = 0;
+        for (int i = 0; i < address.length(); i += 3) {
+            if (i > 0 && address.charAt(i - 1) != ':') {
+                return -1;
+            }
+            int high = hexValue(address.charAt(i));
+            int low = hexValue(address.charAt(i + 1));
+            if (high < 0 || low < 0) {
+                return -1;
+            }
+            packed = (packed << 8) | (high << 4) | low;
+        }
+        return packed;
+    }
+
+    private static int hexDigit(String address, int index) {
+        int digit = hexValue(address.charAt(index));
+        if (digit < 0) {
+            throw new NumberFormatException("Invalid address: " + address);
+        }
+        return digit;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
     public static int byteArrayToInt(byte[] valueBuf) {
         return byteArrayToInt(valueBuf, 0);
     }
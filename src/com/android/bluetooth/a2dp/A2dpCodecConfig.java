@@ -37,6 +37,11 @@ class A2dpCodecConfig {
     private static final boolean DBG = true;
     private static final String TAG = "A2dpCodecConfig";
 
+    // LDAC quality modes, carried in codecSpecific1 of the LDAC codec config
+    static final int LDAC_QUALITY_STANDARD = 1001;
+    static final int LDAC_QUALITY_MOBILE = 1002;
+    static final int LDAC_QUALITY_ADAPTIVE = 1003;
+
     private Context mContext;
     private A2dpNativeInterface mA2dpNativeInterface;
 
@@ -96,6 +101,29 @@ class A2dpCodecConfig {
         mA2dpNativeInterface.setCodecConfigPreference(device, codecConfigArray);
     }
 
+    /**
+     * Change the LDAC quality mode, i.e. the bitrate, keeping the other codec parameters.
+     *
+     * @param device the remote device
+     * @param codecStatus the current codec status of the device
+     * @param quality one of the LDAC_QUALITY_* values
+     */
+    void setLdacQuality(BluetoothDevice device, BluetoothCodecStatus codecStatus, int quality) {
+        BluetoothCodecConfig currentCodecConfig = codecStatus.getCodecConfig();
+        if (currentCodecConfig == null || currentCodecConfig.getCodecType()
+                != BluetoothCodecConfig.SOURCE_CODEC_TYPE_LDAC) {
+            Log.w(TAG, "setLdacQuality: current codec is not LDAC");
+            return;
+        }
+        BluetoothCodecConfig newCodecConfig = new BluetoothCodecConfig(
+                BluetoothCodecConfig.SOURCE_CODEC_TYPE_LDAC,
+                currentCodecConfig.getCodecPriority(), currentCodecConfig.getSampleRate(),
+                currentCodecConfig.getBitsPerSample(), currentCodecConfig.getChannelMode(),
+                quality, currentCodecConfig.getCodecSpecific2(),
+                currentCodecConfig.getCodecSpecific3(), currentCodecConfig.getCodecSpecific4());
+        setCodecConfigPreference(device, codecStatus, newCodecConfig);
+    }
+
     void enableOptionalCodecs(BluetoothDevice device, BluetoothCodecConfig currentCodecConfig) {
         if (currentCodecConfig != null && !currentCodecConfig.isMandatoryCodec()) {
             Log.i(TAG, "enableOptionalCodecs: already using optional codec "
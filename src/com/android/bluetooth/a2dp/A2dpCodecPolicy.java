@@ -0,0 +1,338 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.a2dp;
+
+import android.bluetooth.BluetoothCodecConfig;
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Link-aware A2DP codec selection.
+ *
+ * The stack reports no link statistics, so the policy works from the audio state and codec
+ * config callbacks. A stream that stops and restarts within a few seconds, without a codec
+ * reconfiguration in between, is counted as an interruption of the link. When interruptions
+ * pile up the codec steps down a quality ladder, and it steps back up once the stream has been
+ * uninterrupted for a while. The ladder is: optional codecs at the configured bitrate, LDAC
+ * standard quality, LDAC mobile quality, and finally the mandatory codec. The LDAC steps are
+ * only used when LDAC is the current codec.
+ *
+ * Flapping is avoided with hysteresis: several interruptions within a window to step down, a
+ * minimum dwell time after every switch, and an upgrade hold time that doubles with each
+ * downgrade in the recent switch history.
+ */
+class A2dpCodecPolicy {
+    private static final boolean DBG = true;
+    private static final String TAG = "A2dpCodecPolicy";
+
+    static final int LEVEL_FULL = 0;
+    static final int LEVEL_LDAC_STANDARD = 1;
+    static final int LEVEL_LDAC_MOBILE = 2;
+    static final int LEVEL_MANDATORY = 3;
+    static final int LEVEL_UNCHANGED = -1;
+
+    // A stream restarted within this time of stopping was interrupted
+    @VisibleForTesting
+    static final long RESTART_WINDOW_MS = 3000;
+    // Restarts this soon after a codec change are the reconfiguration, not the link
+    @VisibleForTesting
+    static final long RECONFIG_GRACE_MS = 5000;
+    @VisibleForTesting
+    static final int DOWNGRADE_INTERRUPTIONS = 3;
+    @VisibleForTesting
+    static final long INTERRUPTION_WINDOW_MS = 60000;
+    @VisibleForTesting
+    static final long MIN_DWELL_MS = 10000;
+    @VisibleForTesting
+    static final long UPGRADE_STABLE_MS = 5 * 60000;
+    private static final long MAX_UPGRADE_HOLD_MS = 60 * 60000;
+    private static final long SWITCH_HISTORY_MS = 2 * 60 * 60000;
+    @VisibleForTesting
+    static final int LOG_SIZE = 32;
+
+    private static final int EVENT_STARTED = 0;
+    private static final int EVENT_STOPPED = 1;
+    private static final int EVENT_CODEC_CHANGED = 2;
+
+    private final Map<BluetoothDevice, DeviceState> mDeviceStates = new HashMap<>();
+    private final LogEntry[] mLog = new LogEntry[LOG_SIZE];
+    private int mLogNext;
+
+    private static class DeviceState {
+        int mLevel = LEVEL_FULL;
+        long mLastSwitchMs;
+        long mLastCodecChangeMs;
+        long mLastStopMs;
+        boolean mStreaming;
+        long mStableSinceMs;
+        // Times of recent interruptions and downgrades, oldest first
+        final ArrayDeque<Long> mInterruptionTimesMs = new ArrayDeque<>();
+        final ArrayDeque<Long> mDowngradeTimesMs = new ArrayDeque<>();
+        // The codec config before the first downgrade, restored on recovery
+        BluetoothCodecConfig mSavedCodecConfig;
+    }
+
+    private static class LogEntry {
+        final long mTimestampMs;
+        final BluetoothDevice mDevice;
+        final int mEvent;
+        final int mCodecType;
+        final boolean mInterrupted;
+        final int mFromLevel;
+        final int mToLevel;
+
+        LogEntry(long timestampMs, BluetoothDevice device, int event, int codecType,
+                boolean interrupted, int fromLevel, int toLevel) {
+            mTimestampMs = timestampMs;
+            mDevice = device;
+            mEvent = event;
+            mCodecType = codecType;
+            mInterrupted = interrupted;
+            mFromLevel = fromLevel;
+            mToLevel = toLevel;
+        }
+    }
+
+    /**
+     * Process the start of a stream, and decide whether the codec should change.
+     *
+     * @param device the remote device
+     * @param codecType the current codec type of the device
+     * @param nowMs current time, in the elapsed realtime base
+     * @return the new codec level to apply, or {@link #LEVEL_UNCHANGED}
+     */
+    synchronized int onStreamStarted(BluetoothDevice device, int codecType, long nowMs) {
+        DeviceState state = getDeviceState(device, nowMs);
+        int fromLevel = state.mLevel;
+        if (state.mStreaming) {
+            return LEVEL_UNCHANGED;
+        }
+        state.mStreaming = true;
+
+        boolean interrupted = state.mLastStopMs > 0
+                && nowMs - state.mLastStopMs <= RESTART_WINDOW_MS
+                && nowMs - state.mLastCodecChangeMs > RECONFIG_GRACE_MS
+                && nowMs - state.mLastSwitchMs >= MIN_DWELL_MS;
+        if (interrupted) {
+            state.mInterruptionTimesMs.addLast(nowMs);
+            state.mStableSinceMs = nowMs;
+        }
+        expire(state.mInterruptionTimesMs, nowMs, INTERRUPTION_WINDOW_MS);
+        expire(state.mDowngradeTimesMs, nowMs, SWITCH_HISTORY_MS);
+
+        int toLevel = LEVEL_UNCHANGED;
+        if (nowMs - state.mLastSwitchMs >= MIN_DWELL_MS) {
+            if (state.mInterruptionTimesMs.size() >= DOWNGRADE_INTERRUPTIONS
+                    && fromLevel < LEVEL_MANDATORY) {
+                boolean isLdac = codecType == BluetoothCodecConfig.SOURCE_CODEC_TYPE_LDAC;
+                toLevel = (isLdac && fromLevel < LEVEL_LDAC_MOBILE) ? fromLevel + 1
+                        : LEVEL_MANDATORY;
+                state.mDowngradeTimesMs.addLast(nowMs);
+            } else if (fromLevel > LEVEL_FULL
+                    && nowMs - state.mStableSinceMs >= getUpgradeHoldMs(state)) {
+                // The mandatory codec goes back to the configured codec
+                toLevel = (fromLevel == LEVEL_MANDATORY) ? LEVEL_FULL : fromLevel - 1;
+            }
+        }
+        if (toLevel != LEVEL_UNCHANGED) {
+            state.mLevel = toLevel;
+            state.mLastSwitchMs = nowMs;
+            state.mStableSinceMs = nowMs;
+            // The new codec starts clean, it has to prove itself again
+            state.mInterruptionTimesMs.clear();
+            if (DBG) {
+                Log.d(TAG, "onStreamStarted(" + device + "): level " + levelToString(fromLevel)
+                        + " -> " + levelToString(toLevel));
+            }
+        }
+        addLogEntry(new LogEntry(System.currentTimeMillis(), device, EVENT_STARTED, codecType,
+                interrupted, fromLevel, toLevel));
+        return toLevel;
+    }
+
+    /**
+     * Process the end of a stream, stopped locally or suspended by the remote.
+     *
+     * @param device the remote device
+     * @param nowMs current time, in the elapsed realtime base
+     */
+    synchronized void onStreamStopped(BluetoothDevice device, long nowMs) {
+        DeviceState state = getDeviceState(device, nowMs);
+        if (!state.mStreaming) {
+            return;
+        }
+        state.mStreaming = false;
+        state.mLastStopMs = nowMs;
+        addLogEntry(new LogEntry(System.currentTimeMillis(), device, EVENT_STOPPED, -1, false,
+                state.mLevel, LEVEL_UNCHANGED));
+    }
+
+    /**
+     * Process a codec config change reported by the stack, whoever asked for it. The stream
+     * restart that follows is not held against the link.
+     *
+     * @param device the remote device
+     * @param codecType the new codec type of the device
+     * @param nowMs current time, in the elapsed realtime base
+     */
+    synchronized void onCodecChanged(BluetoothDevice device, int codecType, long nowMs) {
+        DeviceState state = getDeviceState(device, nowMs);
+        state.mLastCodecChangeMs = nowMs;
+        addLogEntry(new LogEntry(System.currentTimeMillis(), device, EVENT_CODEC_CHANGED,
+                codecType, false, state.mLevel, LEVEL_UNCHANGED));
+    }
+
+    private DeviceState getDeviceState(BluetoothDevice device, long nowMs) {
+        DeviceState state = mDeviceStates.get(device);
+        if (state == null) {
+            state = new DeviceState();
+            state.mLastSwitchMs = nowMs - MIN_DWELL_MS;
+            state.mLastCodecChangeMs = nowMs - RECONFIG_GRACE_MS - 1;
+            state.mStableSinceMs = nowMs;
+            mDeviceStates.put(device, state);
+        }
+        return state;
+    }
+
+    private static void expire(ArrayDeque<Long> timesMs, long nowMs, long maxAgeMs) {
+        while (!timesMs.isEmpty() && nowMs - timesMs.peekFirst() > maxAgeMs) {
+            timesMs.pollFirst();
+        }
+    }
+
+    private static long getUpgradeHoldMs(DeviceState state) {
+        int downgrades = state.mDowngradeTimesMs.size();
+        if (downgrades <= 1) {
+            return UPGRADE_STABLE_MS;
+        }
+        return Math.min(MAX_UPGRADE_HOLD_MS, UPGRADE_STABLE_MS << Math.min(downgrades - 1, 16));
+    }
+
+    /**
+     * Get the current codec level of a device.
+     *
+     * @param device the remote device
+     * @return the codec level, {@link #LEVEL_FULL} if nothing was reported for the device
+     */
+    synchronized int getLevel(BluetoothDevice device) {
+        DeviceState state = mDeviceStates.get(device);
+        return (state != null) ? state.mLevel : LEVEL_FULL;
+    }
+
+    /**
+     * Remember the codec config of a device before the policy first changes it.
+     *
+     * @param device the remote device
+     * @param codecConfig the codec config chosen by the user or the stack
+     */
+    synchronized void saveCodecConfig(BluetoothDevice device, BluetoothCodecConfig codecConfig) {
+        DeviceState state = mDeviceStates.get(device);
+        if (state != null && state.mSavedCodecConfig == null) {
+            state.mSavedCodecConfig = codecConfig;
+        }
+    }
+
+    /**
+     * Get the codec config of a device from before the policy changed it.
+     *
+     * @param device the remote device
+     * @return the saved codec config, or null if none was saved
+     */
+    synchronized BluetoothCodecConfig getSavedCodecConfig(BluetoothDevice device) {
+        DeviceState state = mDeviceStates.get(device);
+        return (state != null) ? state.mSavedCodecConfig : null;
+    }
+
+    /**
+     * Forget the state of a device, e.g. when it disconnects or the user changes its codec.
+     *
+     * @param device the remote device
+     */
+    synchronized void resetDevice(BluetoothDevice device) {
+        mDeviceStates.remove(device);
+    }
+
+    private void addLogEntry(LogEntry entry) {
+        mLog[mLogNext] = entry;
+        mLogNext = (mLogNext + 1) % LOG_SIZE;
+    }
+
+    @VisibleForTesting
+    static String levelToString(int level) {
+        switch (level) {
+            case LEVEL_FULL:
+                return "FULL";
+            case LEVEL_LDAC_STANDARD:
+                return "LDAC_STANDARD";
+            case LEVEL_LDAC_MOBILE:
+                return "LDAC_MOBILE";
+            case LEVEL_MANDATORY:
+                return "MANDATORY";
+            case LEVEL_UNCHANGED:
+                return "UNCHANGED";
+            default:
+                return Integer.toString(level);
+        }
+    }
+
+    private static String eventToString(int event) {
+        switch (event) {
+            case EVENT_STARTED:
+                return "STARTED";
+            case EVENT_STOPPED:
+                return "STOPPED";
+            case EVENT_CODEC_CHANGED:
+                return "CODEC_CHANGED";
+            default:
+                return Integer.toString(event);
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "A2dpCodecPolicy:");
+        for (Map.Entry<BluetoothDevice, DeviceState> entry : mDeviceStates.entrySet()) {
+            DeviceState state = entry.getValue();
+            ProfileService.println(sb, "  " + entry.getKey() + ": level="
+                    + levelToString(state.mLevel)
+                    + " recentInterruptions=" + state.mInterruptionTimesMs.size()
+                    + " recentDowngrades=" + state.mDowngradeTimesMs.size()
+                    + " savedCodecConfig=" + state.mSavedCodecConfig);
+        }
+        ProfileService.println(sb, "  Stream events and decisions:");
+        for (int i = 0; i < LOG_SIZE; i++) {
+            LogEntry entry = mLog[(mLogNext + i) % LOG_SIZE];
+            if (entry == null) {
+                continue;
+            }
+            ProfileService.println(sb, "    "
+                    + android.text.format.DateFormat.format("MM-dd HH:mm:ss", entry.mTimestampMs)
+                    + " " + entry.mDevice + " " + eventToString(entry.mEvent)
+                    + (entry.mCodecType >= 0 ? " codec=" + entry.mCodecType : "")
+                    + (entry.mInterrupted ? " interrupted" : "")
+                    + " level=" + levelToString(entry.mFromLevel)
+                    + (entry.mToLevel != LEVEL_UNCHANGED
+                            ? " -> " + levelToString(entry.mToLevel) : ""));
+        }
+    }
+}
@@ -49,7 +49,6 @@ import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ServiceFactory;
 import com.android.bluetooth.ba.BATService;
 import com.android.bluetooth.gatt.GattService;
-import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
@@ -92,9 +91,13 @@ public class A2dpService extends ProfileService {
     ServiceFactory mFactory = new ServiceFactory();
     private AudioManager mAudioManager;
     private A2dpCodecConfig mA2dpCodecConfig;
+    private final A2dpCodecPolicy mCodecPolicy = new A2dpCodecPolicy();
 
-    @GuardedBy("mStateMachines")
-    private BluetoothDevice mActiveDevice;
+    // Written under mStateMachines, volatile so binder queries can read it without locking
+    private volatile BluetoothDevice mActiveDevice;
+    // Registry of per-device state machines. Read-only queries look devices up here and read
+    // the state machines' published snapshots without locking; creating and removing state
+    // machines is serialized under mBtA2dpLock.
     private final ConcurrentMap<BluetoothDevice, A2dpStateMachine> mStateMachines =
             new ConcurrentHashMap<>();
     private static final int[] CONNECTING_CONNECTED_STATES = {
@@ -496,15 +499,13 @@ public class A2dpService extends ProfileService {
 
     public List<BluetoothDevice> getConnectedDevices() {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-        synchronized (mBtA2dpLock) {
-            List<BluetoothDevice> devices = new ArrayList<>();
-            for (A2dpStateMachine sm : mStateMachines.values()) {
-                if (sm.isConnected()) {
-                    devices.add(sm.getDevice());
-                }
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (A2dpStateMachine sm : mStateMachines.values()) {
+            if (sm.isConnected()) {
+                devices.add(sm.getDevice());
             }
-            return devices;
         }
+        return devices;
     }
     private boolean isConnectionAllowed(BluetoothDevice device, int tws_connected,
                                         int num_connected) {
@@ -676,30 +677,26 @@ public class A2dpService extends ProfileService {
         if (bondedDevices == null) {
             return devices;
         }
-        synchronized (mStateMachines) {
-            for (BluetoothDevice device : bondedDevices) {
-                synchronized (mVariableLock) {
-                    if (mAdapterService != null && !BluetoothUuid.isUuidPresent(mAdapterService.getRemoteUuids(device),
-                                                 BluetoothUuid.AudioSink)) {
-                        continue;
-                    }
-                }
-                int connectionState = BluetoothProfile.STATE_DISCONNECTED;
-                synchronized (mBtA2dpLock) {
-                    A2dpStateMachine sm = mStateMachines.get(device);
-                    if (sm != null) {
-                        connectionState = sm.getConnectionState();
-                    }
+        for (BluetoothDevice device : bondedDevices) {
+            synchronized (mVariableLock) {
+                if (mAdapterService != null && !BluetoothUuid.isUuidPresent(mAdapterService.getRemoteUuids(device),
+                                             BluetoothUuid.AudioSink)) {
+                    continue;
                 }
-                for (int state : states) {
-                    if (connectionState == state) {
-                        devices.add(device);
-                        break;
-                    }
+            }
+            int connectionState = BluetoothProfile.STATE_DISCONNECTED;
+            A2dpStateMachine sm = mStateMachines.get(device);
+            if (sm != null) {
+                connectionState = sm.getConnectionState();
+            }
+            for (int state : states) {
+                if (connectionState == state) {
+                    devices.add(device);
+                    break;
                 }
             }
-            return devices;
         }
+        return devices;
     }
 
     /**
@@ -710,23 +707,19 @@ public class A2dpService extends ProfileService {
     @VisibleForTesting
     List<BluetoothDevice> getDevices() {
         List<BluetoothDevice> devices = new ArrayList<>();
-        synchronized (mBtA2dpLock) {
-            for (A2dpStateMachine sm : mStateMachines.values()) {
-                devices.add(sm.getDevice());
-            }
-            return devices;
+        for (A2dpStateMachine sm : mStateMachines.values()) {
+            devices.add(sm.getDevice());
         }
+        return devices;
     }
 
     public int getConnectionState(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-        synchronized (mBtA2dpLock) {
-            A2dpStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return BluetoothProfile.STATE_DISCONNECTED;
-            }
-            return sm.getConnectionState();
+        A2dpStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return BluetoothProfile.STATE_DISCONNECTED;
         }
+        return sm.getConnectionState();
     }
 
     private void storeActiveDeviceVolume() {
@@ -1141,13 +1134,11 @@ public class A2dpService extends ProfileService {
         if (DBG) {
             Log.d(TAG, "isA2dpPlaying(" + device + ")");
         }
-        synchronized (mBtA2dpLock) {
-            A2dpStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return false;
-            }
-            return sm.isPlaying();
+        A2dpStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return false;
         }
+        return sm.isPlaying();
     }
 
     private BluetoothCodecStatus getTwsPlusCodecStatus(BluetoothCodecStatus mCodecStatus) {
@@ -1204,29 +1195,28 @@ public class A2dpService extends ProfileService {
         boolean isBAActive = false;
         BATService mBatService = BATService.getBATService();
         isBAActive = (mBatService != null) && (mBatService.isBATActive());
-        synchronized (mBtA2dpLock) {
-            if (device == null) {
-                device = mActiveDevice;
-            }
-            if (device == null) {
-                return null;
-            }
-            if(isBAActive) {
-                Log.d(TAG, "getBACodecStatus(" + device + ")");
-                return getBACodecStatus();
-            }
-            if (Objects.equals(device, mDummyDevice)) {
-                sm = mStateMachines.get(mActiveDevice);
-                if (sm != null) {
-                    return getTwsPlusCodecStatus(sm.getCodecStatus());
-                }
-            }
-            sm = mStateMachines.get(device);
+        BluetoothDevice activeDevice = mActiveDevice;
+        if (device == null) {
+            device = activeDevice;
+        }
+        if (device == null) {
+            return null;
+        }
+        if(isBAActive) {
+            Log.d(TAG, "getBACodecStatus(" + device + ")");
+            return getBACodecStatus();
+        }
+        if (Objects.equals(device, mDummyDevice) && activeDevice != null) {
+            sm = mStateMachines.get(activeDevice);
             if (sm != null) {
-                return sm.getCodecStatus();
+                return getTwsPlusCodecStatus(sm.getCodecStatus());
             }
-            return null;
         }
+        sm = mStateMachines.get(device);
+        if (sm != null) {
+            return sm.getCodecStatus();
+        }
+        return null;
     }
 
     /**
@@ -1288,6 +1278,7 @@ public class A2dpService extends ProfileService {
                 return;
             }
         }
+        mCodecPolicy.resetDevice(device);
         mA2dpCodecConfig.setCodecConfigPreference(device, codecStatus, codecConfig);
     }
 
@@ -1319,6 +1310,7 @@ public class A2dpService extends ProfileService {
             Log.e(TAG, "enableOptionalCodecs: Codec status is null");
             return;
         }
+        mCodecPolicy.resetDevice(device);
         mA2dpCodecConfig.enableOptionalCodecs(device, codecStatus.getCodecConfig());
     }
 
@@ -1350,6 +1342,7 @@ public class A2dpService extends ProfileService {
             Log.e(TAG, "disableOptionalCodecs: Codec status is null");
             return;
         }
+        mCodecPolicy.resetDevice(device);
         mA2dpCodecConfig.disableOptionalCodecs(device, codecStatus.getCodecConfig());
     }
 
@@ -1816,6 +1809,83 @@ public class A2dpService extends ProfileService {
         }
     }
 
+    /**
+     * The stream of a device started or stopped. Lets the codec policy step the codec down
+     * when the stream keeps getting interrupted, and back up once it is stable again.
+     * Devices whose user disabled optional codecs are left alone.
+     *
+     * @param device the remote device
+     * @param playing whether the device is now streaming
+     */
+    void streamStateChanged(BluetoothDevice device, boolean playing) {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (!playing) {
+            mCodecPolicy.onStreamStopped(device, nowMs);
+            return;
+        }
+        A2dpStateMachine sm = mStateMachines.get(device);
+        A2dpCodecConfig a2dpCodecConfig = mA2dpCodecConfig;
+        if (sm == null || a2dpCodecConfig == null) {
+            return;
+        }
+        BluetoothCodecStatus codecStatus = sm.getCodecStatus();
+        if (codecStatus == null || codecStatus.getCodecConfig() == null) {
+            return;
+        }
+        if (getSupportsOptionalCodecs(device) != BluetoothA2dp.OPTIONAL_CODECS_SUPPORTED
+                || getOptionalCodecsEnabled(device)
+                        == BluetoothA2dp.OPTIONAL_CODECS_PREF_DISABLED) {
+            return;
+        }
+        BluetoothCodecConfig codecConfig = codecStatus.getCodecConfig();
+        int fromLevel = mCodecPolicy.getLevel(device);
+        int level = mCodecPolicy.onStreamStarted(device, codecConfig.getCodecType(), nowMs);
+        if (level == A2dpCodecPolicy.LEVEL_UNCHANGED) {
+            return;
+        }
+        if (fromLevel == A2dpCodecPolicy.LEVEL_FULL) {
+            mCodecPolicy.saveCodecConfig(device, codecConfig);
+        }
+        switch (level) {
+            case A2dpCodecPolicy.LEVEL_FULL:
+                // Go back to the codec config from before the first downgrade
+                BluetoothCodecConfig savedCodecConfig = mCodecPolicy.getSavedCodecConfig(device);
+                if (codecConfig.isMandatoryCodec()) {
+                    a2dpCodecConfig.enableOptionalCodecs(device, codecConfig);
+                }
+                if (savedCodecConfig != null) {
+                    a2dpCodecConfig.setCodecConfigPreference(device, codecStatus,
+                            savedCodecConfig);
+                }
+                break;
+            case A2dpCodecPolicy.LEVEL_LDAC_STANDARD:
+                a2dpCodecConfig.setLdacQuality(device, codecStatus,
+                        A2dpCodecConfig.LDAC_QUALITY_STANDARD);
+                break;
+            case A2dpCodecPolicy.LEVEL_LDAC_MOBILE:
+                a2dpCodecConfig.setLdacQuality(device, codecStatus,
+                        A2dpCodecConfig.LDAC_QUALITY_MOBILE);
+                break;
+            case A2dpCodecPolicy.LEVEL_MANDATORY:
+                a2dpCodecConfig.disableOptionalCodecs(device, codecConfig);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * The stack changed the codec config of a device, so the stream restart that follows
+     * isn't taken for an interruption by the codec policy.
+     *
+     * @param device the remote device
+     * @param codecConfig the new codec config
+     */
+    void streamCodecChanged(BluetoothDevice device, BluetoothCodecConfig codecConfig) {
+        mCodecPolicy.onCodecChanged(device, codecConfig.getCodecType(),
+                SystemClock.elapsedRealtime());
+    }
+
     private void connectionStateChanged(BluetoothDevice device, int fromState, int toState) {
         if ((device == null) || (fromState == toState)) {
             return;
@@ -1827,6 +1897,7 @@ public class A2dpService extends ProfileService {
             int bondState = BluetoothDevice.BOND_NONE;
             // Check if the device is disconnected - if unbond, remove the state machine
             if (toState == BluetoothProfile.STATE_DISCONNECTED) {
+                mCodecPolicy.resetDevice(device);
                 synchronized (mVariableLock) {
                     if(mAdapterService != null)
                         bondState = mAdapterService.getBondState(device);
@@ -2082,6 +2153,7 @@ public class A2dpService extends ProfileService {
                 sm.dump(sb);
             }
         }
+        mCodecPolicy.dump(sb);
         synchronized(mBtAvrcpLock) {
             if (mAvrcp_ext != null) {
                 mAvrcp_ext.dump(sb);
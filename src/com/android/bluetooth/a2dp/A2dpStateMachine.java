@@ -67,6 +67,7 @@ import java.io.StringWriter;
 import java.util.Scanner;
 import android.os.SystemProperties;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.StateMachineProfiler;
 
 final class A2dpStateMachine extends StateMachine {
     private static final boolean DBG = true;
@@ -96,6 +97,12 @@ final class A2dpStateMachine extends StateMachine {
     private final BluetoothDevice mDevice;
     private boolean mIsPlaying = false;
     private BluetoothCodecStatus mCodecStatus;
+    // Published on every change of the fields above, read by binder queries without locking
+    private volatile DeviceSnapshot mSnapshot =
+            new DeviceSnapshot(BluetoothProfile.STATE_DISCONNECTED, false, null);
+
+    private final StateMachineProfiler mProfiler =
+            new StateMachineProfiler("a2dp", A2dpStateMachine::messageWhatToString);
 
     A2dpStateMachine(BluetoothDevice device, A2dpService a2dpService,
                      A2dpNativeInterface a2dpNativeInterface, Looper looper) {
@@ -134,6 +141,7 @@ final class A2dpStateMachine extends StateMachine {
             // Stop if auido is still playing
             log("doQuit: stopped playing " + mDevice);
             mIsPlaying = false;
+            publishSnapshot();
             mA2dpService.setAvrcpAudioState(BluetoothA2dp.STATE_NOT_PLAYING, mDevice);
             broadcastAudioState(BluetoothA2dp.STATE_NOT_PLAYING,
                                 BluetoothA2dp.STATE_PLAYING);
@@ -154,6 +162,7 @@ final class A2dpStateMachine extends StateMachine {
                     : messageWhatToString(currentMessage.what)));
             synchronized (this) {
                 mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+                publishSnapshot();
             }
             removeDeferredMessages(DISCONNECT);
 
@@ -162,6 +171,7 @@ final class A2dpStateMachine extends StateMachine {
                 if (mIsPlaying) {
                     Log.i(TAG, "Disconnected: stopped playing: " + mDevice);
                     mIsPlaying = false;
+                    publishSnapshot();
                     mA2dpService.setAvrcpAudioState(BluetoothA2dp.STATE_NOT_PLAYING, mDevice);
                     broadcastAudioState(BluetoothA2dp.STATE_NOT_PLAYING,
                                         BluetoothA2dp.STATE_PLAYING);
@@ -276,6 +286,7 @@ final class A2dpStateMachine extends StateMachine {
             sendMessageDelayed(CONNECT_TIMEOUT, sConnectTimeoutMs);
             synchronized (this) {
                 mConnectionState = BluetoothProfile.STATE_CONNECTING;
+                publishSnapshot();
             }
             broadcastConnectionState(mConnectionState, mLastConnectionState);
         }
@@ -374,6 +385,7 @@ final class A2dpStateMachine extends StateMachine {
             sendMessageDelayed(CONNECT_TIMEOUT, sConnectTimeoutMs);
             synchronized (this) {
                 mConnectionState = BluetoothProfile.STATE_DISCONNECTING;
+                publishSnapshot();
             }
             broadcastConnectionState(mConnectionState, mLastConnectionState);
         }
@@ -480,6 +492,7 @@ final class A2dpStateMachine extends StateMachine {
                     : messageWhatToString(currentMessage.what)));
             synchronized (this) {
                 mConnectionState = BluetoothProfile.STATE_CONNECTED;
+                publishSnapshot();
             }
             removeDeferredMessages(CONNECT);
 
@@ -579,6 +592,8 @@ final class A2dpStateMachine extends StateMachine {
                         if (!mIsPlaying) {
                             Log.i(TAG, "Connected: started playing: " + mDevice);
                             mIsPlaying = true;
+                            publishSnapshot();
+                            mA2dpService.streamStateChanged(mDevice, true);
                             mA2dpService.setAvrcpAudioState(BluetoothA2dp.STATE_PLAYING, mDevice);
                             broadcastAudioState(BluetoothA2dp.STATE_PLAYING,
                                                 BluetoothA2dp.STATE_NOT_PLAYING);
@@ -597,6 +612,8 @@ final class A2dpStateMachine extends StateMachine {
                         if (mIsPlaying) {
                             Log.i(TAG, "Connected: stopped playing: " + mDevice);
                             mIsPlaying = false;
+                            publishSnapshot();
+                            mA2dpService.streamStateChanged(mDevice, false);
                             mA2dpService.setAvrcpAudioState(BluetoothA2dp.STATE_NOT_PLAYING, mDevice);
                             broadcastAudioState(BluetoothA2dp.STATE_NOT_PLAYING,
                                                 BluetoothA2dp.STATE_PLAYING);
@@ -610,8 +627,27 @@ final class A2dpStateMachine extends StateMachine {
         }
     }
 
+    /**
+     * Immutable view of the connection, playing and codec state of the device.
+     */
+    static final class DeviceSnapshot {
+        final int mConnectionState;
+        final boolean mIsPlaying;
+        final BluetoothCodecStatus mCodecStatus;
+
+        DeviceSnapshot(int connectionState, boolean isPlaying, BluetoothCodecStatus codecStatus) {
+            mConnectionState = connectionState;
+            mIsPlaying = isPlaying;
+            mCodecStatus = codecStatus;
+        }
+    }
+
+    private synchronized void publishSnapshot() {
+        mSnapshot = new DeviceSnapshot(mConnectionState, mIsPlaying, mCodecStatus);
+    }
+
     int getConnectionState() {
-        return mConnectionState;
+        return mSnapshot.mConnectionState;
     }
 
     BluetoothDevice getDevice() {
@@ -619,21 +655,15 @@ final class A2dpStateMachine extends StateMachine {
     }
 
     boolean isConnected() {
-        synchronized (this) {
-            return (mConnectionState == BluetoothProfile.STATE_CONNECTED);
-        }
+        return mSnapshot.mConnectionState == BluetoothProfile.STATE_CONNECTED;
     }
 
     boolean isPlaying() {
-        synchronized (this) {
-            return mIsPlaying;
-        }
+        return mSnapshot.mIsPlaying;
     }
 
     BluetoothCodecStatus getCodecStatus() {
-        synchronized (this) {
-            return mCodecStatus;
-        }
+        return mSnapshot.mCodecStatus;
     }
 
     // NOTE: This event is processed in any state
@@ -663,6 +693,7 @@ final class A2dpStateMachine extends StateMachine {
                     adapterService.isTwsPlusDevice(mDevice)) {
                     Log.d(TAG,"TWSP device streaming,not calling reconfig");
                     mCodecStatus = newCodecStatus;
+                    publishSnapshot();
                     return;
                 }
                 mA2dpService.broadcastReconfigureA2dp();
@@ -675,6 +706,10 @@ final class A2dpStateMachine extends StateMachine {
                 prevCodecConfig = mCodecStatus.getCodecConfig();
             }
             mCodecStatus = newCodecStatus;
+            publishSnapshot();
+        }
+        if (prevCodecConfig != null && !prevCodecConfig.equals(newCodecStatus.getCodecConfig())) {
+            mA2dpService.streamCodecChanged(mDevice, newCodecStatus.getCodecConfig());
         }
         if (DBG) {
             Log.d(TAG, "A2DP Codec Config: " + prevCodecConfig + "->"
@@ -834,6 +869,16 @@ final class A2dpStateMachine extends StateMachine {
         return Integer.toString(state);
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        mProfiler.onPreHandleMessage(msg, getCurrentState());
+    }
+
+    @Override
+    protected void onPostHandleMessage(Message msg) {
+        mProfiler.onPostHandleMessage(msg);
+    }
+
     public void dump(StringBuilder sb) {
         ProfileService.println(sb, "mDevice: " + mDevice);
         ProfileService.println(sb, "  StateMachine: " + this.toString());
@@ -856,6 +901,7 @@ final class A2dpStateMachine extends StateMachine {
             ProfileService.println(sb, "    " + line);
         }
         scanner.close();
+        mProfiler.dump(sb);
     }
 
     @Override
@@ -24,10 +24,14 @@ import android.media.session.MediaSession;
 import android.media.session.MediaSession.QueueItem;
 import android.media.session.PlaybackState;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.btservice.MetricsLogger;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -46,6 +50,7 @@ public class AddressedMediaPlayer {
 
     private static final long SINGLE_QID = 1;
     private static final String UNKNOWN_TITLE = "(unknown)";
+    private static final String UNKNOWN_TITLE_ATTR = "<Unknown Title>";
 
     static private final String GPM_BUNDLE_METADATA_KEY =
             "com.google.android.music.mediasession.music_metadata";
@@ -56,8 +61,126 @@ public class AddressedMediaPlayer {
 
     private final List<MediaSession.QueueItem> mEmptyNowPlayingList;
 
+    // Attributes of mNowPlayingList, rebuilt when one of them or the UID counter changes
+    @Nullable private NowPlayingSnapshot mNowPlayingSnapshot;
+    private final MetricsLogger.LatencyHistogram mNowPlayingRspLatency =
+            MetricsLogger.registerLatencyHistogram("avrcp.now_playing_rsp_latency");
+
     private long mLastTrackIdSent;
 
+    /*
+     * Attributes of the now playing list, extracted once per queue change so that paged
+     * GetFolderItems requests only slice arrays instead of walking the media descriptions
+     * of every item again. The active item is not served from here, its attributes come from
+     * the live metadata of the controller, and neither is cover art, which is per device.
+     */
+    @VisibleForTesting
+    static final class NowPlayingSnapshot {
+        // Last attribute id extracted into the snapshot, ids start at ATTRID_TITLE
+        static final int MAX_CACHED_ATTR = AvrcpConstants.ATTRID_PLAY_TIME;
+
+        final List<MediaSession.QueueItem> mItems;
+        final short mUidCounter;
+        final long[] mQueueIds;
+        final byte[] mUids;
+        // Indexed by attribute id - 1, then by item index
+        final String[][] mAttrValues;
+
+        NowPlayingSnapshot(@NonNull List<MediaSession.QueueItem> items, short uidCounter) {
+            int size = items.size();
+            mItems = items;
+            mUidCounter = uidCounter;
+            mQueueIds = new long[size];
+            mUids = new byte[size * AvrcpConstants.UID_SIZE];
+            mAttrValues = new String[MAX_CACHED_ATTR][size];
+            ByteBuffer uids = ByteBuffer.wrap(mUids);
+            for (int i = 0; i < size; i++) {
+                MediaSession.QueueItem item = items.get(i);
+                mQueueIds[i] = item.getQueueId();
+                uids.putLong(mQueueIds[i]);
+                extractAttrValues(item, i);
+            }
+        }
+
+        static boolean isCached(int attr) {
+            return attr >= AvrcpConstants.ATTRID_TITLE && attr <= MAX_CACHED_ATTR;
+        }
+
+        /*
+         * Whether a snapshot of |items| would serve the same attributes as this one. Queue item
+         * equality only covers some of the description fields, so compare what is served from
+         * the snapshot instead: the queue ids, the titles (also used to find cover art) and the
+         * metadata in the extras.
+         */
+        boolean hasSameAttributes(@NonNull List<MediaSession.QueueItem> items) {
+            if (items == mItems) return true;
+            int size = items.size();
+            if (size != mItems.size()) return false;
+            for (int i = 0; i < size; i++) {
+                if (!sameAttributes(mItems.get(i), items.get(i))) return false;
+            }
+            return true;
+        }
+
+        private static boolean sameAttributes(MediaSession.QueueItem a, MediaSession.QueueItem b) {
+            if (a.getQueueId() != b.getQueueId()) return false;
+            MediaDescription descA = a.getDescription();
+            MediaDescription descB = b.getDescription();
+            if (descA == descB) return true;
+            if (descA == null || descB == null) return false;
+            if (!TextUtils.equals(descA.getTitle(), descB.getTitle())) return false;
+
+            MediaMetadata dataA = getGpmMetadata(descA);
+            MediaMetadata dataB = getGpmMetadata(descB);
+            if (dataA == dataB) return true;
+            if (dataA == null || dataB == null) return false;
+            return TextUtils.equals(dataA.getString(MediaMetadata.METADATA_KEY_ARTIST),
+                            dataB.getString(MediaMetadata.METADATA_KEY_ARTIST))
+                    && TextUtils.equals(dataA.getString(MediaMetadata.METADATA_KEY_ALBUM),
+                            dataB.getString(MediaMetadata.METADATA_KEY_ALBUM))
+                    && TextUtils.equals(dataA.getString(MediaMetadata.METADATA_KEY_GENRE),
+                            dataB.getString(MediaMetadata.METADATA_KEY_GENRE))
+                    && dataA.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER)
+                            == dataB.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER)
+                    && dataA.getLong(MediaMetadata.METADATA_KEY_NUM_TRACKS)
+                            == dataB.getLong(MediaMetadata.METADATA_KEY_NUM_TRACKS)
+                    && dataA.getLong(MediaMetadata.METADATA_KEY_DURATION)
+                            == dataB.getLong(MediaMetadata.METADATA_KEY_DURATION);
+        }
+
+        // TODO: This code can be removed when b/63117921 is resolved
+        @Nullable
+        private static MediaMetadata getGpmMetadata(@Nullable MediaDescription desc) {
+            Bundle extras = (desc != null) ? desc.getExtras() : null;
+            return (extras != null) ? (MediaMetadata) extras.get(GPM_BUNDLE_METADATA_KEY) : null;
+        }
+
+        // Same values getAttrValue gives for an item that is not the active one
+        private void extractAttrValues(MediaSession.QueueItem item, int index) {
+            MediaDescription desc = item.getDescription();
+            CharSequence title = (desc != null) ? desc.getTitle() : null;
+            mAttrValues[AvrcpConstants.ATTRID_TITLE - 1][index] =
+                    (title != null) ? title.toString() : UNKNOWN_TITLE_ATTR;
+
+            MediaMetadata data = getGpmMetadata(desc);
+            if (data == null) {
+                return;
+            }
+            mAttrValues[AvrcpConstants.ATTRID_ARTIST - 1][index] =
+                    data.getString(MediaMetadata.METADATA_KEY_ARTIST);
+            mAttrValues[AvrcpConstants.ATTRID_ALBUM - 1][index] =
+                    data.getString(MediaMetadata.METADATA_KEY_ALBUM);
+            mAttrValues[AvrcpConstants.ATTRID_TRACK_NUM - 1][index] =
+                    Long.toString(data.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER));
+            mAttrValues[AvrcpConstants.ATTRID_NUM_TRACKS - 1][index] =
+                    Long.toString(data.getLong(MediaMetadata.METADATA_KEY_NUM_TRACKS));
+            mAttrValues[AvrcpConstants.ATTRID_GENRE - 1][index] =
+                    data.getString(MediaMetadata.METADATA_KEY_GENRE);
+            mAttrValues[AvrcpConstants.ATTRID_PLAY_TIME - 1][index] =
+                    Long.toString(data.getLong(MediaMetadata.METADATA_KEY_DURATION));
+        }
+    }
+
     public AddressedMediaPlayer(AvrcpMediaRspInterface mediaInterface) {
         mEmptyNowPlayingList = new ArrayList<MediaSession.QueueItem>();
         mNowPlayingList = mEmptyNowPlayingList;
@@ -75,6 +198,7 @@ public class AddressedMediaPlayer {
             Log.v(TAG, "cleanup");
         }
         mNowPlayingList = mEmptyNowPlayingList;
+        mNowPlayingSnapshot = null;
         mMediaInterface = null;
         mLastTrackIdSent = MediaSession.QueueItem.UNKNOWN_ID;
     }
@@ -88,9 +212,16 @@ public class AddressedMediaPlayer {
             mMediaInterface.folderItemsRsp(bdaddr, AvrcpConstants.RSP_NO_AVBL_PLAY, null);
             return;
         }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
         List<MediaSession.QueueItem> items = updateNowPlayingList(mediaController);
-        getFolderItemsFilterAttr(bdaddr, reqObj, items, AvrcpConstants.BTRC_SCOPE_NOW_PLAYING,
+        NowPlayingSnapshot snapshot = mNowPlayingSnapshot;
+        if (snapshot == null || snapshot.mUidCounter != Avrcp.sUIDCounter) {
+            snapshot = new NowPlayingSnapshot(items, Avrcp.sUIDCounter);
+            mNowPlayingSnapshot = snapshot;
+        }
+        getFolderItemsFilterAttr(bdaddr, reqObj, snapshot, AvrcpConstants.BTRC_SCOPE_NOW_PLAYING,
                 reqObj.mStartItem, reqObj.mEndItem, mediaController);
+        mNowPlayingRspLatency.recordNanos(SystemClock.elapsedRealtimeNanos() - startNanos);
     }
 
     /* get item attributes for item in now playing list */
@@ -165,11 +296,21 @@ public class AddressedMediaPlayer {
         if (!items.equals(mNowPlayingList)) {
             sendNowPlayingListChanged();
         }
+        NowPlayingSnapshot snapshot = mNowPlayingSnapshot;
+        if (snapshot != null && !snapshot.hasSameAttributes(items)) {
+            mNowPlayingSnapshot = null;
+        }
         mNowPlayingList = items;
 
         return mNowPlayingList;
     }
 
+    @VisibleForTesting
+    @Nullable
+    NowPlayingSnapshot getNowPlayingSnapshot() {
+        return mNowPlayingSnapshot;
+    }
+
     private void sendNowPlayingListChanged() {
         if (mMediaInterface == null) {
             return;
@@ -302,128 +443,99 @@ public class AddressedMediaPlayer {
         mLastTrackIdSent = qid;
     }
 
-    /*
-     * helper method to check if startItem and endItem index is with range of
-     * MediaItem list. (Resultset containing all items in current path)
-     */
-    @Nullable
-    private List<MediaSession.QueueItem> getQueueSubset(@NonNull List<MediaSession.QueueItem> items,
-            long startItem, long endItem) {
-        if (endItem > items.size()) {
-            endItem = items.size() - 1;
-        }
-        if (startItem > Integer.MAX_VALUE) {
-            startItem = Integer.MAX_VALUE;
-        }
-        try {
-            List<MediaSession.QueueItem> selected =
-                    items.subList((int) startItem, (int) Math.min(items.size(), endItem + 1));
-            if (selected.isEmpty()) {
-                Log.i(TAG, "itemsSubList is empty.");
-                return null;
-            }
-            return selected;
-        } catch (IndexOutOfBoundsException ex) {
-            Log.i(TAG, "Range (" + startItem + ", " + endItem + ") invalid");
-        } catch (IllegalArgumentException ex) {
-            Log.i(TAG, "Range start " + startItem + " > size (" + items.size() + ")");
-        }
-        return null;
-    }
-
     /*
      * helper method to filter required attibutes before sending GetFolderItems
-     * response
+     * response. Items and attributes are sliced out of the now playing snapshot, only the
+     * active item and cover art are looked up per request.
      */
     private void getFolderItemsFilterAttr(byte[] bdaddr, AvrcpCmd.FolderItemsCmd folderItemsReqObj,
-            @NonNull List<MediaSession.QueueItem> items, byte scope, long startItem, long endItem,
+            @NonNull NowPlayingSnapshot snapshot, byte scope, long startItem, long endItem,
             @NonNull MediaController mediaController) {
         if (DEBUG) {
             Log.d(TAG,
                     "getFolderItemsFilterAttr: startItem =" + startItem + ", endItem = " + endItem);
         }
 
-        List<MediaSession.QueueItem> resultItems = getQueueSubset(items, startItem, endItem);
         /* check for index out of bound errors */
-        if (resultItems == null) {
-            Log.w(TAG, "getFolderItemsFilterAttr: resultItems is empty");
+        int size = snapshot.mQueueIds.length;
+        if (endItem > size) {
+            endItem = size - 1;
+        }
+        if (startItem < 0 || startItem >= Math.min(size, endItem + 1)) {
+            Log.w(TAG, "getFolderItemsFilterAttr: range (" + startItem + ", " + endItem
+                    + ") invalid for " + size + " items");
             mMediaInterface.folderItemsRsp(bdaddr, AvrcpConstants.RSP_INV_RANGE, null);
             return;
         }
+        int first = (int) startItem;
+        int count = (int) Math.min(size, endItem + 1) - first;
 
-        FolderItemsData folderDataNative = new FolderItemsData(resultItems.size());
+        FolderItemsData folderDataNative = new FolderItemsData(count);
+        System.arraycopy(snapshot.mUids, first * AvrcpConstants.UID_SIZE,
+                folderDataNative.mItemUid, 0, count * AvrcpConstants.UID_SIZE);
 
-        /* variables to accumulate attrs */
-        ArrayList<String> attrArray = new ArrayList<String>();
-        ArrayList<Integer> attrId = new ArrayList<Integer>();
+        /* ids of the requested attributes, attr id 0x00 is unused */
+        int[] requestedIds = null;
+        if (folderItemsReqObj.mNumAttr == AvrcpConstants.NUM_ATTR_ALL) {
+            requestedIds = new int[AvrcpConstants.MAX_NUM_ATTR];
+            for (int idx = 0; idx < requestedIds.length; idx++) {
+                requestedIds[idx] = idx + 1;
+            }
+        } else if (folderItemsReqObj.mNumAttr != AvrcpConstants.NUM_ATTR_NONE) {
+            requestedIds = Arrays.copyOf(folderItemsReqObj.mAttrIDs, folderItemsReqObj.mNumAttr);
+        }
 
-        for (int itemIndex = 0; itemIndex < resultItems.size(); itemIndex++) {
-            MediaSession.QueueItem item = resultItems.get(itemIndex);
-            // get the queue id
-            long qid = item.getQueueId();
-            byte[] uid = ByteBuffer.allocate(AvrcpConstants.UID_SIZE).putLong(qid).array();
+        /* accumulate attrs, at most every requested attribute of every item */
+        int numRequested = (requestedIds != null) ? requestedIds.length : 0;
+        int[] attrIds = new int[count * numRequested];
+        String[] attrValues = new String[count * numRequested];
+        int attrTotal = 0;
 
-            // get the array of uid from 2d to array 1D array
-            for (int idx = 0; idx < AvrcpConstants.UID_SIZE; idx++) {
-                folderDataNative.mItemUid[itemIndex * AvrcpConstants.UID_SIZE + idx] = uid[idx];
-            }
+        long activeQueueId = getActiveQueueItemId(mediaController);
+        for (int itemIndex = 0; itemIndex < count; itemIndex++) {
+            int snapshotIndex = first + itemIndex;
+            boolean isActive = snapshot.mQueueIds[snapshotIndex] == activeQueueId;
+            MediaSession.QueueItem item = snapshot.mItems.get(snapshotIndex);
 
             /* Set display name for current item */
-            folderDataNative.mDisplayNames[itemIndex] =
-                    getAttrValue(bdaddr, AvrcpConstants.ATTRID_TITLE, item, mediaController);
-
-            int maxAttributesRequested = 0;
-            boolean isAllAttribRequested = false;
-            /* check if remote requested for attributes */
-            if (folderItemsReqObj.mNumAttr != AvrcpConstants.NUM_ATTR_NONE) {
-                int attrCnt = 0;
-
-                /* add requested attr ids to a temp array */
-                if (folderItemsReqObj.mNumAttr == AvrcpConstants.NUM_ATTR_ALL) {
-                    isAllAttribRequested = true;
-                    maxAttributesRequested = AvrcpConstants.MAX_NUM_ATTR;
-                } else {
-                    /* get only the requested attribute ids from the request */
-                    maxAttributesRequested = folderItemsReqObj.mNumAttr;
+            folderDataNative.mDisplayNames[itemIndex] = isActive
+                    ? getAttrValue(bdaddr, AvrcpConstants.ATTRID_TITLE, item, mediaController)
+                    : snapshot.mAttrValues[AvrcpConstants.ATTRID_TITLE - 1][snapshotIndex];
+
+            /* lookup and copy values of attributes for ids requested above */
+            int attrCnt = 0;
+            for (int idx = 0; idx < numRequested; idx++) {
+                int attribId = requestedIds[idx];
+                if (attribId == AvrcpConstants.ATTRID_COVER_ART && mAvrcp == null) {
+                    continue;
                 }
-
-                /* lookup and copy values of attributes for ids requested above */
-                for (int idx = 0; idx < maxAttributesRequested; idx++) {
-                    /* check if media player provided requested attributes */
-                    String value = null;
-
-                    int attribId =
-                            isAllAttribRequested ? (idx + 1) : folderItemsReqObj.mAttrIDs[idx];
-                    value = getAttrValue(bdaddr, attribId, item, mediaController);
-                    if (value != null) {
-                        attrArray.add(value);
-                        attrId.add(attribId);
-                        attrCnt++;
-                    }
+                String value = (!isActive && NowPlayingSnapshot.isCached(attribId))
+                        ? snapshot.mAttrValues[attribId - 1][snapshotIndex]
+                        : getAttrValue(bdaddr, attribId, item, mediaController);
+                if (value != null) {
+                    attrIds[attrTotal] = attribId;
+                    attrValues[attrTotal] = value;
+                    attrTotal++;
+                    attrCnt++;
                 }
-                /* add num attr actually received from media player for a particular item */
-                folderDataNative.mAttributesNum[itemIndex] = attrCnt;
             }
+            /* add num attr actually received from media player for a particular item */
+            folderDataNative.mAttributesNum[itemIndex] = attrCnt;
         }
 
         /* copy filtered attr ids and attr values to response parameters */
-        if (folderItemsReqObj.mNumAttr != AvrcpConstants.NUM_ATTR_NONE) {
-            folderDataNative.mAttrIds = new int[attrId.size()];
-            for (int attrIndex = 0; attrIndex < attrId.size(); attrIndex++) {
-                folderDataNative.mAttrIds[attrIndex] = attrId.get(attrIndex);
-            }
-            folderDataNative.mAttrValues = attrArray.toArray(new String[attrArray.size()]);
+        if (requestedIds != null) {
+            folderDataNative.mAttrIds = Arrays.copyOf(attrIds, attrTotal);
+            folderDataNative.mAttrValues = Arrays.copyOf(attrValues, attrTotal);
         }
-        for (int attrIndex = 0; attrIndex < folderDataNative.mAttributesNum.length; attrIndex++) {
-            if (DEBUG) {
-                Log.d(TAG, "folderDataNative.mAttributesNum"
-                        + folderDataNative.mAttributesNum[attrIndex] + " attrIndex " + attrIndex);
-            }
+        if (DEBUG) {
+            Log.d(TAG, "getFolderItemsFilterAttr: " + count + " items, " + attrTotal
+                    + " attributes");
         }
 
         /* create rsp object and send response to remote device */
         FolderItemsRsp rspObj =
-                new FolderItemsRsp(AvrcpConstants.RSP_NO_ERROR, Avrcp.sUIDCounter, scope,
+                new FolderItemsRsp(AvrcpConstants.RSP_NO_ERROR, snapshot.mUidCounter, scope,
                         folderDataNative.mNumItems, folderDataNative.mFolderTypes,
                         folderDataNative.mPlayable, folderDataNative.mItemTypes,
                         folderDataNative.mItemUid, folderDataNative.mDisplayNames,
@@ -476,7 +588,7 @@ public class AddressedMediaPlayer {
                         attrValue = desc.getTitle().toString();
                     }
                     if (attrValue == null)
-                        attrValue = "<Unknown Title>";
+                        attrValue = UNKNOWN_TITLE_ATTR;
                     break;
 
                 case AvrcpConstants.ATTRID_ARTIST:
@@ -522,7 +634,7 @@ public class AddressedMediaPlayer {
             Log.w(TAG, "getAttrValue: attr id not found in result");
             /* checking if attribute is title, then it is mandatory and cannot send null */
             if (attr == AvrcpConstants.ATTRID_TITLE) {
-                attrValue = "<Unknown Title>";
+                attrValue = UNKNOWN_TITLE_ATTR;
             } else {
                 return null;
             }
@@ -636,6 +748,9 @@ public class AddressedMediaPlayer {
         ProfileService.println(sb, "AddressedPlayer info:");
         ProfileService.println(sb, "mLastTrackIdSent: " + mLastTrackIdSent);
         ProfileService.println(sb, "mNowPlayingList: " + mNowPlayingList.size() + " elements");
+        NowPlayingSnapshot snapshot = mNowPlayingSnapshot;
+        ProfileService.println(sb, "mNowPlayingSnapshot: " + (snapshot == null ? "none"
+                : snapshot.mQueueIds.length + " items, UID counter " + snapshot.mUidCounter));
         long currentQueueId = getActiveQueueItemId(mediaController);
         for (MediaSession.QueueItem item : mNowPlayingList) {
             long itemId = item.getQueueId();
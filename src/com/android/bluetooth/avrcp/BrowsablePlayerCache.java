@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Persistent results of browsable player discovery.
+ *
+ * Connecting to every MediaBrowserService on the device at start up is slow and binds to every
+ * media app, so the outcome for each service is stored here along with the version of its
+ * package. As long as the package isn't updated, the stored outcome is used instead of
+ * connecting. Players restored as browsable are revalidated by BrowsedPlayerWrapper the first
+ * time they are browsed.
+ *
+ * A refused connection may only mean that the app wasn't ready, so a service is only known as
+ * not browsable after several refusals in a row, and only for a limited time after the last
+ * one.
+ */
+class BrowsablePlayerCache {
+    private static final String TAG = "AvrcpBrowsablePlayerCache";
+    private static final boolean DEBUG = true;
+
+    private static final String PREFERENCE_FILE = "avrcp_browsable_players";
+    private static final String SEPARATOR = "\n";
+    private static final String NOT_BROWSABLE_SEPARATOR = ",";
+
+    // Refused connections in a row before a service is known as not browsable
+    @VisibleForTesting
+    static final int NOT_BROWSABLE_FAILURES = 3;
+    // Time after the last refused connection during which a service is known as not browsable
+    @VisibleForTesting
+    static final long NOT_BROWSABLE_TTL_MS = 24 * 60 * 60 * 1000L;
+
+    private final Context mContext;
+
+    static class Entry {
+        final boolean mBrowsable;
+        final String mRootId;
+
+        Entry(boolean browsable, String rootId) {
+            mBrowsable = browsable;
+            mRootId = rootId;
+        }
+    }
+
+    BrowsablePlayerCache(Context context) {
+        mContext = context;
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(PREFERENCE_FILE, Context.MODE_PRIVATE);
+    }
+
+    // Changes on any update or reinstall of the package, null if the package can't be found
+    private String getPackageVersion(String packageName) {
+        try {
+            PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            return info.getLongVersionCode() + ":" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "getPackageVersion: " + packageName + " not found");
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    // Get the stored fields of a service, or null if there are none for the installed version
+    // of the package. Stored as version, service class, browsable flag and root ID. The root ID
+    // goes last since it is the only part that could contain the separator. The flag of a
+    // service that refused the connection also holds the number of refusals and the time of the
+    // last one.
+    private String[] getFields(String packageName, String className) {
+        String value = getPreferences().getString(packageName, null);
+        if (value == null) return null;
+
+        String[] fields = value.split(SEPARATOR, 4);
+        String version = getPackageVersion(packageName);
+        if (fields.length != 4 || version == null || !version.equals(fields[0])
+                || !className.equals(fields[1])) {
+            if (DEBUG) Log.d(TAG, "getFields: Stale entry for " + packageName);
+            return null;
+        }
+        return fields;
+    }
+
+    // Parse the refusals and the time of the last one from a not browsable flag, or null
+    private static long[] parseFailures(String flag) {
+        String[] parts = flag.split(NOT_BROWSABLE_SEPARATOR);
+        if (parts.length != 3 || !"0".equals(parts[0])) return null;
+        try {
+            return new long[] {Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the stored discovery outcome of a service.
+     *
+     * @return the outcome, or null if there is none for the installed version of the package
+     *         or the service should be tried again
+     */
+    synchronized Entry get(String packageName, String className) {
+        String[] fields = getFields(packageName, className);
+        if (fields == null) return null;
+        if ("1".equals(fields[2])) return new Entry(true, fields[3]);
+
+        long[] failures = parseFailures(fields[2]);
+        if (failures == null || failures[0] < NOT_BROWSABLE_FAILURES) return null;
+        long sinceLastFailure = currentTimeMillis() - failures[1];
+        if (sinceLastFailure < 0 || sinceLastFailure >= NOT_BROWSABLE_TTL_MS) {
+            if (DEBUG) Log.d(TAG, "get: Retrying " + packageName + " after " + failures[0]
+                    + " refused connections");
+            return null;
+        }
+        return new Entry(false, "");
+    }
+
+    /**
+     * Store that a service is browsable, with the root it returned.
+     */
+    synchronized void putBrowsable(String packageName, String className, String rootId) {
+        put(packageName, className, "1", rootId);
+    }
+
+    /**
+     * Store that a service refused the connection. Once it refused NOT_BROWSABLE_FAILURES
+     * connections in a row, it isn't browsable for NOT_BROWSABLE_TTL_MS or until the package
+     * is updated.
+     */
+    synchronized void putNotBrowsable(String packageName, String className) {
+        long count = 1;
+        String[] fields = getFields(packageName, className);
+        long[] failures = (fields == null) ? null : parseFailures(fields[2]);
+        if (failures != null) count = failures[0] + 1;
+        if (DEBUG) Log.d(TAG, "putNotBrowsable: " + packageName + " refused " + count + " times");
+        put(packageName, className, "0" + NOT_BROWSABLE_SEPARATOR + count
+                + NOT_BROWSABLE_SEPARATOR + currentTimeMillis(), "");
+    }
+
+    private void put(String packageName, String className, String flag, String rootId) {
+        String version = getPackageVersion(packageName);
+        if (version == null) return;
+        getPreferences().edit()
+                .putString(packageName, version + SEPARATOR + className + SEPARATOR
+                        + flag + SEPARATOR + rootId)
+                .apply();
+    }
+
+    /**
+     * Forget the stored outcome of a package so that it is discovered again next time.
+     */
+    synchronized void remove(String packageName) {
+        if (DEBUG) Log.d(TAG, "remove: " + packageName);
+        getPreferences().edit().remove(packageName).apply();
+    }
+
+    /**
+     * Forget the stored outcome of every package that no longer has a browser service.
+     */
+    synchronized void retainAll(Set<String> packageNames) {
+        SharedPreferences.Editor editor = getPreferences().edit();
+        for (Map.Entry<String, ?> entry : getPreferences().getAll().entrySet()) {
+            if (!packageNames.contains(entry.getKey())) {
+                editor.remove(entry.getKey());
+            }
+        }
+        editor.apply();
+    }
+}
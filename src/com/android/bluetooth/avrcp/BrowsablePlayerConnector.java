@@ -21,6 +21,7 @@ import android.content.pm.ResolveInfo;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
@@ -40,6 +41,10 @@ import java.util.Set;
  * The main use of this class is to check whether a player can be browsed despite
  * using the MediaBrowserService. This way we do not have to do the same checks
  * when constructing BrowsedPlayerWrappers by hand.
+ *
+ * The outcome for each service is kept in a BrowsablePlayerCache, and services whose package
+ * hasn't changed since are not connected to again. Players restored from it are validated the
+ * first time they are browsed.
  */
 public class BrowsablePlayerConnector {
     private static final String TAG = "AvrcpBrowsablePlayerConnector";
@@ -49,11 +54,15 @@ public class BrowsablePlayerConnector {
     private static final int MSG_GET_FOLDER_ITEMS_CB = 0;
     private static final int MSG_CONNECT_CB = 1;
     private static final int MSG_TIMEOUT = 2;
+    private static final int MSG_ALL_CACHED = 3;
 
     private static BrowsablePlayerConnector sInjectConnector;
     private Handler mHandler;
     private Context mContext;
     private PlayerListCallback mCallback;
+    private BrowsablePlayerCache mDiscoveryCache;
+    private long mStartTimeMs;
+    private int mCachedResults;
 
     private List<BrowsedPlayerWrapper> mResults = new ArrayList<BrowsedPlayerWrapper>();
     private Set<BrowsedPlayerWrapper> mPendingPlayers = new HashSet<BrowsedPlayerWrapper>();
@@ -81,9 +90,30 @@ public class BrowsablePlayerConnector {
         }
 
         BrowsablePlayerConnector newWrapper = new BrowsablePlayerConnector(context, looper, cb);
+        newWrapper.mStartTimeMs = SystemClock.elapsedRealtime();
+        newWrapper.mDiscoveryCache = new BrowsablePlayerCache(context);
 
-        // Try to start connecting all the browsed player wrappers
+        // Try to start connecting all the browsed player wrappers that aren't known already
+        Set<String> packageNames = new HashSet<String>();
         for (ResolveInfo info : players) {
+            packageNames.add(info.serviceInfo.packageName);
+            BrowsablePlayerCache.Entry cached = newWrapper.mDiscoveryCache.get(
+                    info.serviceInfo.packageName, info.serviceInfo.name);
+            if (cached != null) {
+                if (DEBUG) {
+                    Log.d(TAG, "Using cached discovery result: package="
+                            + info.serviceInfo.packageName + " : browsable="
+                            + cached.mBrowsable);
+                }
+                if (cached.mBrowsable) {
+                    newWrapper.mResults.add(BrowsedPlayerWrapper.wrapCached(context,
+                            info.serviceInfo.packageName, info.serviceInfo.name,
+                            cached.mRootId, newWrapper.mDiscoveryCache));
+                    newWrapper.mCachedResults++;
+                }
+                continue;
+            }
+
             BrowsedPlayerWrapper player = BrowsedPlayerWrapper.wrap(
                             context,
                             info.serviceInfo.packageName,
@@ -103,8 +133,14 @@ public class BrowsablePlayerConnector {
             });
         }
 
-        Message msg = newWrapper.mHandler.obtainMessage(MSG_TIMEOUT);
-        newWrapper.mHandler.sendMessageDelayed(msg, CONNECT_TIMEOUT_MS);
+        newWrapper.mDiscoveryCache.retainAll(packageNames);
+
+        if (newWrapper.mPendingPlayers.isEmpty()) {
+            newWrapper.mHandler.sendEmptyMessage(MSG_ALL_CACHED);
+        } else {
+            Message msg = newWrapper.mHandler.obtainMessage(MSG_TIMEOUT);
+            newWrapper.mHandler.sendMessageDelayed(msg, CONNECT_TIMEOUT_MS);
+        }
         return newWrapper;
     }
 
@@ -126,6 +162,8 @@ public class BrowsablePlayerConnector {
                         Log.i(TAG, "Successfully added package to results: "
                                 + wrapper.getPackageName());
                         mResults.add(wrapper);
+                        mDiscoveryCache.putBrowsable(wrapper.getPackageName(),
+                                wrapper.getClassName(), wrapper.getRootId());
                     } break;
 
                     case MSG_CONNECT_CB: {
@@ -133,7 +171,12 @@ public class BrowsablePlayerConnector {
 
                         if (msg.arg1 != BrowsedPlayerWrapper.STATUS_SUCCESS) {
                             Log.i(TAG, wrapper.getPackageName() + " is not browsable");
-                            mPendingPlayers.remove(wrapper);
+                            // Only a refused connection is remembered, not a timeout or a
+                            // connection that only returned an empty root
+                            if (mPendingPlayers.remove(wrapper) && !wrapper.hasEmptyRoot()) {
+                                mDiscoveryCache.putNotBrowsable(wrapper.getPackageName(),
+                                        wrapper.getClassName());
+                            }
                             return;
                         }
 
@@ -166,11 +209,17 @@ public class BrowsablePlayerConnector {
                         Log.v(TAG, "Timed out waiting for players");
                         removePendingPlayers();
                     } break;
+
+                    case MSG_ALL_CACHED: {
+                        Log.v(TAG, "All players are known from the discovery cache");
+                    } break;
                 }
 
                 if (mPendingPlayers.size() == 0) {
                     Log.i(TAG, "Successfully connected to "
-                            + mResults.size() + " browsable players.");
+                            + mResults.size() + " browsable players (" + mCachedResults
+                            + " from cache) in "
+                            + (SystemClock.elapsedRealtime() - mStartTimeMs) + "ms.");
                     removeMessages(MSG_TIMEOUT);
                     mCallback.run(mResults);
                 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Cache of browsed folder contents for a single browsable player.
+ *
+ * Some carkits request each item of a folder individually, and going through the media browser
+ * subscription process for every one of them is very slow, so the folder contents are kept
+ * here. The cache is bounded by an estimate of the bytes it holds rather than by a number of
+ * folders, and evicts the least recently used folders when over budget.
+ *
+ * The native layer doesn't report which remote device requests a folder, so the folders are
+ * shared by all the connected devices.
+ */
+class BrowsedFolderCache {
+    private static final String TAG = "AvrcpBrowsedFolderCache";
+    private static final boolean DEBUG = true;
+
+    @VisibleForTesting
+    static final int DEFAULT_BYTE_BUDGET = 512 * 1024;
+    // Consecutive requests for the same folder that mean the remote walks it item by item
+    @VisibleForTesting
+    static final int WALK_REQUESTS = 3;
+
+    // Rough per object overhead of a ListItem and its Folder or Metadata, plus a cache entry
+    private static final int ITEM_OVERHEAD_BYTES = 96;
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final int mByteBudget;
+
+    // All folders by media ID, in access order
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+
+    // Last requested folder and how many times in a row it was requested
+    private String mLastMediaId;
+    private int mConsecutiveRequests;
+
+    private long mHits;
+    private long mMisses;
+    private long mPrefetches;
+    private long mPrefetchHits;
+    private long mEvictions;
+
+    private static final class Entry {
+        final List<ListItem> mItems;
+        final int mBytes;
+        // Loaded ahead of a request, cleared on the first hit
+        boolean mPrefetched;
+
+        Entry(List<ListItem> items, int bytes, boolean prefetched) {
+            mItems = items;
+            mBytes = bytes;
+            mPrefetched = prefetched;
+        }
+    }
+
+    BrowsedFolderCache() {
+        this(DEFAULT_BYTE_BUDGET);
+    }
+
+    @VisibleForTesting
+    BrowsedFolderCache(int byteBudget) {
+        mByteBudget = byteBudget;
+    }
+
+    /**
+     * Look up the contents of a folder, counting a hit or a miss.
+     *
+     * @param mediaId the folder media ID
+     * @return the cached contents, owned by the cache, or null
+     */
+    synchronized List<ListItem> get(String mediaId) {
+        if (mediaId.equals(mLastMediaId)) {
+            mConsecutiveRequests++;
+        } else {
+            mLastMediaId = mediaId;
+            mConsecutiveRequests = 1;
+        }
+
+        Entry entry = mEntries.get(mediaId);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        if (entry.mPrefetched) {
+            entry.mPrefetched = false;
+            mPrefetchHits++;
+        }
+        return entry.mItems;
+    }
+
+    /**
+     * Check whether a folder is cached without touching its recency or the statistics.
+     */
+    synchronized boolean contains(String mediaId) {
+        return mEntries.containsKey(mediaId);
+    }
+
+    /**
+     * @return whether the last requests walked the folder |mediaId| item by item
+     */
+    synchronized boolean isWalking(String mediaId) {
+        return mediaId.equals(mLastMediaId) && mConsecutiveRequests >= WALK_REQUESTS;
+    }
+
+    /**
+     * Store the contents of a folder, evicting others if the cache goes over budget.
+     *
+     * @param mediaId the folder media ID
+     * @param items the folder contents, owned by the cache afterwards
+     * @param prefetched whether the folder was loaded ahead of any request
+     */
+    synchronized void put(String mediaId, List<ListItem> items, boolean prefetched) {
+        Entry entry = new Entry(items, estimateBytes(mediaId, items), prefetched);
+        Entry old = mEntries.put(mediaId, entry);
+        if (old != null) mTotalBytes -= old.mBytes;
+        mTotalBytes += entry.mBytes;
+
+        // Never evict the folder being inserted
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mTotalBytes > mByteBudget && mEntries.size() > 1) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (DEBUG) Log.d(TAG, "evict: mediaId=" + eldest.getKey());
+            mTotalBytes -= eldest.getValue().mBytes;
+            it.remove();
+            mEvictions++;
+        }
+    }
+
+    @VisibleForTesting
+    static int estimateBytes(String mediaId, List<ListItem> items) {
+        int bytes = ENTRY_OVERHEAD_BYTES + stringBytes(mediaId);
+        for (ListItem item : items) {
+            bytes += ITEM_OVERHEAD_BYTES;
+            if (item.isFolder) {
+                bytes += stringBytes(item.folder.mediaId) + stringBytes(item.folder.title);
+            } else {
+                Metadata song = item.song;
+                bytes += stringBytes(song.mediaId) + stringBytes(song.title)
+                        + stringBytes(song.artist) + stringBytes(song.album)
+                        + stringBytes(song.trackNum) + stringBytes(song.numTracks)
+                        + stringBytes(song.genre) + stringBytes(song.duration);
+            }
+        }
+        return bytes;
+    }
+
+    private static int stringBytes(String s) {
+        return (s == null) ? 0 : 2 * s.length();
+    }
+
+    @VisibleForTesting
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Count a subscription made ahead of any request.
+     */
+    synchronized void onPrefetchStarted() {
+        mPrefetches++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        long lookups = mHits + mMisses;
+        sb.append("   Folder cache: " + mEntries.size() + " folders, " + mTotalBytes + "/"
+                + mByteBudget + " bytes, hit rate "
+                + (lookups == 0 ? 0 : mHits * 100 / lookups) + "% (" + mHits + "/" + lookups
+                + ")\n");
+        // Every hit is a connect/subscribe/unsubscribe/disconnect round trip that didn't happen
+        sb.append("   Subscriptions saved: " + mHits + ", prefetches: " + mPrefetches
+                + " (" + mPrefetchHits + " used), evictions: " + mEvictions + "\n");
+        sb.append("   Cached Media ID's: ");
+        for (String mediaId : mEntries.keySet()) {
+            sb.append("\"" + mediaId + "\", ");
+        }
+        sb.append("\n");
+        return sb.toString();
+    }
+}
@@ -22,9 +22,7 @@ import android.media.browse.MediaBrowser.MediaItem;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 
 /*
  * Helper class to create an abstraction layer for the MediaBrowser service that AVRCP can use.
@@ -60,33 +58,31 @@ class BrowsedPlayerWrapper {
     // As long as the service is alive those factories will have a valid context.
     private Context mContext;
     private String mPackageName;
+    private String mClassName;
     private ConnectionCallback mCallback;
 
+    // Set while the player is restored from the discovery cache and hasn't been connected to
+    // yet. The first connection confirms or drops the cached entry.
+    private BrowsablePlayerCache mUnvalidatedIn;
+
     // TODO(apanicke): We cache this because normally you can only grab the root
     // while connected. We shouldn't cache this since theres nothing in the framework documentation
     // that says this can't change between connections. Instead always treat empty string as root.
     private String mRoot = "";
+    private boolean mEmptyRoot;
 
-    // A linked hash map that keeps the contents of the last X browsed folders.
+    // Contents of the recently browsed folders.
     //
     // NOTE: This is needed since some carkits will repeatedly request each item in a folder
     // individually, incrementing the index of the requested item by one at a time. Going through
     // the subscription process for each individual item is incredibly slow so we cache the items
-    // in the folder in order to speed up the process. We still run the risk of one device pushing
-    // out a cached folder that another device was using, but this is highly unlikely since for
-    // this to happen you would need to be connected to two carkits at the same time.
-    //
-    // TODO (apanicke): Dynamically set the number of cached folders equal to the max number
-    // of connected devices because that is the maximum number of folders that can be browsed at
-    // a single time.
-    static final int NUM_CACHED_FOLDERS = 5;
-    LinkedHashMap<String, List<ListItem>> mCachedFolders =
-            new LinkedHashMap<String, List<ListItem>>(NUM_CACHED_FOLDERS) {
-                @Override
-                protected boolean removeEldestEntry(Map.Entry<String, List<ListItem>> eldest) {
-                    return size() > NUM_CACHED_FOLDERS;
-                }
-            };
+    // in the folder in order to speed up the process.
+    final BrowsedFolderCache mCachedFolders = new BrowsedFolderCache();
+
+    // Folder being loaded ahead of a request, and its subscription once connected. A request
+    // from the remote cancels it rather than waiting on a player that may never answer.
+    private String mPrefetchMediaId;
+    private BrowserSubscriptionCallback mPrefetchSubscription;
 
     // TODO (apanicke): Investigate if there is a way to create this just by passing in the
     // MediaBrowser. Right now there is no obvious way to create the browser then update the
@@ -94,6 +90,7 @@ class BrowsedPlayerWrapper {
     private BrowsedPlayerWrapper(Context context, String packageName, String className) {
         mContext = context;
         mPackageName = packageName;
+        mClassName = className;
 
         mWrappedBrowser = MediaBrowserFactory.make(
                 context,
@@ -109,11 +106,21 @@ class BrowsedPlayerWrapper {
         return wrapper;
     }
 
+    // Wrap a player that the discovery cache knows to be browsable, without connecting to it
+    static BrowsedPlayerWrapper wrapCached(Context context, String packageName, String className,
+            String rootId, BrowsablePlayerCache cache) {
+        BrowsedPlayerWrapper wrapper = wrap(context, packageName, className);
+        wrapper.mRoot = rootId;
+        wrapper.mUnvalidatedIn = cache;
+        return wrapper;
+    }
+
     void connect(ConnectionCallback cb) {
         if (cb == null) {
             Log.wtfStack(TAG, "connect: Trying to connect to " + mPackageName
                     + "with null callback");
         }
+        cancelPrefetch();
         if (mCallback != null) {
             Log.w(TAG, "connect: Already trying to connect to " + mPackageName);
             return;
@@ -137,10 +144,35 @@ class BrowsedPlayerWrapper {
         return mPackageName;
     }
 
+    public String getClassName() {
+        return mClassName;
+    }
+
     public String getRootId() {
         return mRoot;
     }
 
+    // Whether the last connection succeeded but the service returned no root to browse
+    boolean hasEmptyRoot() {
+        return mEmptyRoot;
+    }
+
+    boolean isValidated() {
+        return mUnvalidatedIn == null;
+    }
+
+    // Update the discovery cache with the outcome of the first connection to a cached player
+    private void validate(boolean browsable) {
+        if (mUnvalidatedIn == null) return;
+        Log.i(TAG, "validate: " + mPackageName + " browsable=" + browsable);
+        if (browsable) {
+            mUnvalidatedIn.putBrowsable(mPackageName, mClassName, mRoot);
+        } else {
+            mUnvalidatedIn.remove(mPackageName);
+        }
+        mUnvalidatedIn = null;
+    }
+
     public void playItem(String mediaId) {
         if (DEBUG) Log.d(TAG, "playItem: Play Item from media ID: " + mediaId);
         connect((int status, BrowsedPlayerWrapper wrapper) -> {
@@ -165,9 +197,13 @@ class BrowsedPlayerWrapper {
     // info for only one item. Add a lookup function that can handle getting info for a single
     // item.
     public boolean getFolderItems(String mediaId, BrowseCallback cb) {
-        if (mCachedFolders.containsKey(mediaId)) {
+        List<ListItem> cached = mCachedFolders.get(mediaId);
+        if (cached != null) {
             Log.i(TAG, "getFolderItems: Grabbing cached data for mediaId: " + mediaId);
-            cb.run(STATUS_SUCCESS, mediaId, Util.cloneList(mCachedFolders.get(mediaId)));
+            cb.run(STATUS_SUCCESS, mediaId, Util.cloneList(cached));
+            if (mCachedFolders.isWalking(mediaId)) {
+                prefetchNextFolder(cached);
+            }
             return true;
         }
 
@@ -175,6 +211,7 @@ class BrowsedPlayerWrapper {
             Log.wtfStack(TAG, "connect: Trying to connect to " + mPackageName
                     + "with null callback");
         }
+        cancelPrefetch();
         if (mCallback != null) {
             Log.w(TAG, "connect: Already trying to connect to " + mPackageName);
             return false;
@@ -195,6 +232,53 @@ class BrowsedPlayerWrapper {
         return true;
     }
 
+    // The remote is walking a folder one item per request, which usually goes on with the
+    // folders it contains. Load the first one that isn't cached yet while the browser is idle.
+    private void prefetchNextFolder(List<ListItem> items) {
+        if (mCallback != null || mPrefetchMediaId != null) return;
+
+        String nextMediaId = null;
+        for (ListItem item : items) {
+            if (item.isFolder && !mCachedFolders.contains(item.folder.mediaId)) {
+                nextMediaId = item.folder.mediaId;
+                break;
+            }
+        }
+        if (nextMediaId == null) return;
+
+        if (DEBUG) Log.d(TAG, "prefetchNextFolder: Prefetching mediaId: " + nextMediaId);
+        String mediaId = nextMediaId;
+        mPrefetchMediaId = mediaId;
+        mCachedFolders.onPrefetchStarted();
+        mCallback = (int status, BrowsedPlayerWrapper wrapper) -> {
+            if (status != STATUS_SUCCESS) {
+                disconnect();
+                onPrefetchDone();
+                return;
+            }
+            mPrefetchSubscription = new BrowserSubscriptionCallback(null);
+            mWrappedBrowser.subscribe(mediaId, mPrefetchSubscription);
+        };
+        mWrappedBrowser.connect();
+    }
+
+    private void onPrefetchDone() {
+        mPrefetchMediaId = null;
+        mPrefetchSubscription = null;
+    }
+
+    // Drop the prefetch in flight, if any, so that the browser is free for a remote request
+    private void cancelPrefetch() {
+        if (mPrefetchMediaId == null) return;
+        Log.i(TAG, "cancelPrefetch: Cancelling prefetch of mediaId: " + mPrefetchMediaId);
+        if (mPrefetchSubscription != null) {
+            mPrefetchSubscription.mCancelled = true;
+            mWrappedBrowser.unsubscribe(mPrefetchMediaId);
+        }
+        onPrefetchDone();
+        disconnect();
+    }
+
     // Internal function to call once the Browser is connected
     private boolean getFolderItemsInternal(String mediaId, BrowseCallback cb) {
         mWrappedBrowser.subscribe(mediaId, new BrowserSubscriptionCallback(cb));
@@ -207,10 +291,12 @@ class BrowsedPlayerWrapper {
             Log.i(TAG, "onConnected: " + mPackageName + " is connected");
             // Get the root while connected because we may need to use it when disconnected.
             mRoot = mWrappedBrowser.getRoot();
+            mEmptyRoot = mRoot == null || mRoot.isEmpty();
+            validate(!mEmptyRoot);
 
             if (mCallback == null) return;
 
-            if (mRoot == null || mRoot.isEmpty()) {
+            if (mEmptyRoot) {
                 mCallback.run(STATUS_CONN_ERROR, BrowsedPlayerWrapper.this);
                 return;
             }
@@ -223,8 +309,11 @@ class BrowsedPlayerWrapper {
         @Override
         public void onConnectionFailed() {
             Log.w(TAG, "onConnectionFailed: Connection Failed with " + mPackageName);
-            if (mCallback != null) mCallback.run(STATUS_CONN_ERROR, BrowsedPlayerWrapper.this);
+            mEmptyRoot = false;
+            validate(false);
+            ConnectionCallback callback = mCallback;
             mCallback = null;
+            if (callback != null) callback.run(STATUS_CONN_ERROR, BrowsedPlayerWrapper.this);
         }
 
         // TODO (apanicke): Add a check to list a player as unbrowsable if it suspends immediately
@@ -239,22 +328,27 @@ class BrowsedPlayerWrapper {
     /**
      * Subscription callback handler. Subscribe to a folder to get its contents. We generate a new
      * instance for this class for each subscribe call to make it easier to differentiate between
-     * the callers.
+     * the callers. Prefetches have no callback, they only fill the cache.
      */
     private class BrowserSubscriptionCallback extends MediaBrowser.SubscriptionCallback {
         BrowseCallback mCallback = null;
+        final boolean mPrefetch;
+        // Set when a remote request took the browser over from this prefetch
+        boolean mCancelled;
 
         BrowserSubscriptionCallback(BrowseCallback cb) {
             mCallback = cb;
+            mPrefetch = cb == null;
         }
 
         @Override
         public void onChildrenLoaded(String parentId, List<MediaItem> children) {
+            if (mCancelled) return;
             if (DEBUG) {
                 Log.d(TAG, "onChildrenLoaded: mediaId=" + parentId + " size= " + children.size());
             }
 
-            if (mCallback == null) {
+            if (mCallback == null && !mPrefetch) {
                 Log.w(TAG, "onChildrenLoaded: " + mPackageName
                         + " children loaded while callback is null");
             }
@@ -285,20 +379,28 @@ class BrowsedPlayerWrapper {
                 }
             }
 
-            mCachedFolders.put(parentId, return_list);
+            mCachedFolders.put(parentId, return_list, mPrefetch);
 
-            // Clone the list so that the callee can mutate it without affecting the cached data
-            mCallback.run(STATUS_SUCCESS, parentId, Util.cloneList(return_list));
-            mCallback = null;
+            if (mCallback != null) {
+                // Clone the list so that the callee can mutate it without affecting the cached
+                // data
+                mCallback.run(STATUS_SUCCESS, parentId, Util.cloneList(return_list));
+                mCallback = null;
+            }
             disconnect();
+            if (mPrefetch) onPrefetchDone();
         }
 
         /* mediaId is invalid */
         @Override
         public void onError(String id) {
+            if (mCancelled) return;
             Log.e(TAG, "BrowserSubscriptionCallback: Could not get folder items");
-            mCallback.run(STATUS_LOOKUP_ERROR, id, new ArrayList<ListItem>());
+            if (mCallback != null) {
+                mCallback.run(STATUS_LOOKUP_ERROR, id, new ArrayList<ListItem>());
+            }
             disconnect();
+            if (mPrefetch) onPrefetchDone();
         }
     }
 
@@ -306,11 +408,8 @@ class BrowsedPlayerWrapper {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Browsable Package Name: " + mPackageName + "\n");
-        sb.append("   Cached Media ID's: ");
-        for (String id : mCachedFolders.keySet()) {
-            sb.append("\"" + id + "\", ");
-        }
-        sb.append("\n");
+        if (!isValidated()) sb.append("   Restored from discovery cache, not validated yet\n");
+        sb.append(mCachedFolders.toString());
         return sb.toString();
     }
 }
@@ -20,6 +20,8 @@ import android.media.session.MediaSession;
 import android.os.Looper;
 import android.util.Log;
 
+import java.util.List;
+
 /**
  * Google Play Music hides some of the metadata behind a specific key in the Extras of the
  * MediaDescription in the MediaSession.QueueItem. This class exists to provide alternate
@@ -35,15 +37,17 @@ class GPMWrapper extends MediaPlayerWrapper {
 
     @Override
     boolean isMetadataSynced() {
-        if (getQueue() == null) {
+        List<MediaSession.QueueItem> queue = getQueue();
+        if (queue == null) {
             return false;
         }
 
         // Check if currentPlayingQueueId is in the queue
         MediaSession.QueueItem currItem = null;
-        for (MediaSession.QueueItem item : getQueue()) {
+        long activeQueueId = getActiveQueueID();
+        for (MediaSession.QueueItem item : queue) {
             // The item exists in the current queue
-            if (item.getQueueId() == getActiveQueueID()) {
+            if (item.getQueueId() == activeQueueId) {
                 currItem = item;
                 break;
             }
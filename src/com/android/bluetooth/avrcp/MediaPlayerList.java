@@ -173,6 +173,9 @@ public class MediaPlayerList {
 
                     mBrowsablePlayers.put(mMediaPlayerIds.get(wrapper.getPackageName()), wrapper);
 
+                    // Players restored from the discovery cache are connected to on first browse
+                    if (!wrapper.isValidated()) continue;
+
                     wrapper.getFolderItems(wrapper.getRootId(),
                             (int status, String mediaId, List<ListItem> results) -> {
                                 d("Got the contents for: " + mediaId + " : num results="
@@ -558,9 +561,11 @@ public class MediaPlayerList {
             return;
         }
 
-        // Always have items in the queue
+        // Always have items in the queue. Use a new list, the player keeps the one it sent to
+        // reuse it while its queue doesn't change.
         if (data.queue.size() == 0) {
             Log.i(TAG, "sendMediaUpdate: Creating a one item queue for a player with no queue");
+            data.queue = new ArrayList<Metadata>();
             data.queue.add(data.metadata);
         }
 
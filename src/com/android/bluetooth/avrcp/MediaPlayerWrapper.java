@@ -17,12 +17,15 @@
 package com.android.bluetooth.avrcp;
 
 import android.annotation.Nullable;
+import android.media.MediaDescription;
 import android.media.MediaMetadata;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
@@ -47,8 +50,16 @@ class MediaPlayerWrapper {
     private String mPackageName;
     private Looper mLooper;
 
+    // Last data sent to the registered callback
     private MediaData mCurrentData;
 
+    // The queue is tracked by the ids and descriptions of its items, and only converted to
+    // Metadata when a new version has to be sent. Every queue that differs from the previous one
+    // read from the controller gets a new version.
+    private List<MediaSession.QueueItem> mQueueItems;
+    private int mQueueVersion;
+    private int mSentQueueVersion;
+
     @GuardedBy("mCallbackLock")
     private MediaControllerListener mControllerCallbacks = null;
     private final Object mCallbackLock = new Object();
@@ -81,10 +92,7 @@ class MediaPlayerWrapper {
         mPackageName = controller.getPackageName();
         mLooper = looper;
 
-        mCurrentData = new MediaData(null, null, null);
-        mCurrentData.queue = Util.toMetadataList(getQueue());
-        mCurrentData.metadata = Util.toMetadata(getMetadata());
-        mCurrentData.state = getPlaybackState();
+        resetCurrentData();
     }
 
     void cleanup() {
@@ -166,13 +174,14 @@ class MediaPlayerWrapper {
      * Return whether the queue, metadata, and queueID are all in sync.
      */
     boolean isMetadataSynced() {
-        if (getQueue() != null && getActiveQueueID() != -1) {
+        List<MediaSession.QueueItem> queue = getQueue();
+        long activeQueueId = getActiveQueueID();
+        if (queue != null && activeQueueId != -1) {
             // Check if currentPlayingQueueId is in the current Queue
             MediaSession.QueueItem currItem = null;
 
-            for (MediaSession.QueueItem item : getQueue()) {
-                if (item.getQueueId()
-                        == getActiveQueueID()) { // The item exists in the current queue
+            for (MediaSession.QueueItem item : queue) {
+                if (item.getQueueId() == activeQueueId) { // The item exists in the current queue
                     currItem = item;
                     break;
                 }
@@ -210,10 +219,7 @@ class MediaPlayerWrapper {
 
         // Update the current data since it could have changed while we weren't registered for
         // updates
-        mCurrentData = new MediaData(
-                Util.toMetadata(getMetadata()),
-                getPlaybackState(),
-                Util.toMetadataList(getQueue()));
+        resetCurrentData();
 
         mControllerCallbacks = new MediaControllerListener(mMediaController, mLooper);
     }
@@ -247,28 +253,51 @@ class MediaPlayerWrapper {
         mControllerCallbacks.cleanup();
 
         // Update the current data since it could be different on the new controller for the player
-        mCurrentData = new MediaData(
-                Util.toMetadata(getMetadata()),
-                getPlaybackState(),
-                Util.toMetadataList(getQueue()));
+        resetCurrentData();
 
         mControllerCallbacks = new MediaControllerListener(mMediaController, mLooper);
         d("Controller for " + mPackageName + " was updated.");
     }
 
-    private void sendMediaUpdate() {
-        MediaData newData = new MediaData(
+    // Read everything from the controller again and consider it sent
+    private void resetCurrentData() {
+        updateQueue(getQueue());
+        mCurrentData = new MediaData(
                 Util.toMetadata(getMetadata()),
                 getPlaybackState(),
-                Util.toMetadataList(getQueue()));
+                Util.toMetadataList(mQueueItems));
+        mSentQueueVersion = mQueueVersion;
+    }
 
-        if (newData.equals(mCurrentData)) {
+    // Track |queue| as the current queue, returns whether it differs from the previous one
+    private boolean updateQueue(@Nullable List<MediaSession.QueueItem> queue) {
+        if (queueItemsEqual(queue, mQueueItems)) return false;
+        mQueueItems = queue;
+        mQueueVersion++;
+        return true;
+    }
+
+    private void sendMediaUpdate() {
+        updateQueue(getQueue());
+
+        // Diff each part against the last sent data. The queue is only converted when its
+        // version changed, otherwise the list that was already sent is reused.
+        Metadata metadata = Util.toMetadata(getMetadata());
+        PlaybackState state = getPlaybackState();
+        boolean metadataChanged = !Objects.equals(metadata, mCurrentData.metadata);
+        boolean stateChanged = !playstateEquals(state, mCurrentData.state);
+        boolean queueChanged = mQueueVersion != mSentQueueVersion;
+
+        if (!metadataChanged && !stateChanged && !queueChanged) {
             // This may happen if the controller is fully synced by the time the
             // first update is completed
             Log.v(TAG, "Trying to update with last sent metadata");
             return;
         }
 
+        MediaData newData = new MediaData(metadata, state,
+                queueChanged ? Util.toMetadataList(mQueueItems) : mCurrentData.queue);
+
         synchronized (mCallbackLock) {
             if (mRegisteredCallback == null) {
                 Log.e(TAG, mPackageName
@@ -281,6 +310,7 @@ class MediaPlayerWrapper {
         }
 
         mCurrentData = newData;
+        mSentQueueVersion = mQueueVersion;
     }
 
     class TimeoutHandler extends Handler {
@@ -380,7 +410,8 @@ class MediaPlayerWrapper {
             // TODO: Spotify needs a metadata update debouncer as it sometimes updates the metadata
             // twice in a row with the only difference being that the song duration is rounded to
             // the nearest second.
-            if (Objects.equals(metadata, mCurrentData.metadata)) {
+            if (metadata != null
+                    && Objects.equals(Util.toMetadata(metadata), mCurrentData.metadata)) {
                 Log.w(TAG, "onMetadataChanged(): " + mPackageName
                         + " tried to update with no new data");
                 return;
@@ -432,14 +463,15 @@ class MediaPlayerWrapper {
                 e("The callback queue isn't the current queue");
             }
 
-            List<Metadata> current_queue = Util.toMetadataList(queue);
-            if (current_queue.equals(mCurrentData.queue)) {
+            updateQueue(queue);
+            if (mQueueVersion == mSentQueueVersion) {
                 Log.w(TAG, "onQueueChanged(): " + mPackageName
                         + " tried to update with no new data");
                 return;
             }
 
             if (DEBUG) {
+                List<Metadata> current_queue = Util.toMetadataList(queue);
                 for (int i = 0; i < current_queue.size(); i++) {
                     Log.d(TAG, "  └ QueueItem(" + i + "): " + current_queue.get(i));
                 }
@@ -481,6 +513,82 @@ class MediaPlayerWrapper {
         return false;
     }
 
+    /**
+     * Checks whether two queues hold the same items, comparing queue ids and the descriptions
+     * that AVRCP uses without converting the items. Description extras can override the title
+     * and artist, and are new objects every time the queue crosses the binder, so only the extras
+     * keys that the conversion reads are compared. A null queue is the same as an empty one.
+     */
+    @VisibleForTesting
+    static boolean queueItemsEqual(@Nullable List<MediaSession.QueueItem> a,
+            @Nullable List<MediaSession.QueueItem> b) {
+        if (a == b) return true;
+        int size = (a == null) ? 0 : a.size();
+        if (size != ((b == null) ? 0 : b.size())) return false;
+
+        for (int i = 0; i < size; i++) {
+            MediaSession.QueueItem itemA = a.get(i);
+            MediaSession.QueueItem itemB = b.get(i);
+            if (itemA.getQueueId() != itemB.getQueueId()) return false;
+
+            MediaDescription descA = itemA.getDescription();
+            MediaDescription descB = itemB.getDescription();
+            if (descA == descB) continue;
+            if (descA == null || descB == null) return false;
+            if (!TextUtils.equals(descA.getMediaId(), descB.getMediaId())
+                    || !TextUtils.equals(descA.getTitle(), descB.getTitle())
+                    || !TextUtils.equals(descA.getSubtitle(), descB.getSubtitle())
+                    || !TextUtils.equals(descA.getDescription(), descB.getDescription())) {
+                return false;
+            }
+            if (!extrasEqual(descA.getExtras(), descB.getExtras())) return false;
+        }
+        return true;
+    }
+
+    // The extras keys that Util.descriptionToBundle() lets override the description
+    private static final String[] METADATA_STRING_KEYS = {
+            MediaMetadata.METADATA_KEY_TITLE,
+            MediaMetadata.METADATA_KEY_ARTIST,
+            MediaMetadata.METADATA_KEY_ALBUM,
+            MediaMetadata.METADATA_KEY_GENRE};
+    private static final String[] METADATA_LONG_KEYS = {
+            MediaMetadata.METADATA_KEY_TRACK_NUMBER,
+            MediaMetadata.METADATA_KEY_NUM_TRACKS,
+            MediaMetadata.METADATA_KEY_DURATION};
+
+    private static boolean extrasEqual(@Nullable Bundle a, @Nullable Bundle b) {
+        if (a == b) return true;
+        if (a == null) a = Bundle.EMPTY;
+        if (b == null) b = Bundle.EMPTY;
+
+        for (String key : METADATA_STRING_KEYS) {
+            if (!Objects.equals(a.get(key), b.get(key))) return false;
+        }
+        for (String key : METADATA_LONG_KEYS) {
+            if (!Objects.equals(a.get(key), b.get(key))) return false;
+        }
+
+        // GPM puts its own metadata in the extras of every item, which overrides the rest
+        Object gpmA = a.get(Util.GPM_KEY);
+        Object gpmB = b.get(Util.GPM_KEY);
+        if (gpmA == gpmB) return true;
+        if (!(gpmA instanceof MediaMetadata) || !(gpmB instanceof MediaMetadata)) return false;
+        return gpmMetadataEqual((MediaMetadata) gpmA, (MediaMetadata) gpmB);
+    }
+
+    private static boolean gpmMetadataEqual(MediaMetadata a, MediaMetadata b) {
+        for (String key : METADATA_STRING_KEYS) {
+            if (!TextUtils.equals(a.getString(key), b.getString(key))) return false;
+        }
+        for (String key : METADATA_LONG_KEYS) {
+            if (a.containsKey(key) != b.containsKey(key) || a.getLong(key) != b.getLong(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static void e(String message) {
         if (sTesting) {
             Log.wtfStack(TAG, message);
@@ -506,7 +614,8 @@ class MediaPlayerWrapper {
         sb.append("Current Data:\n");
         sb.append("  Song: " + mCurrentData.metadata + "\n");
         sb.append("  PlayState: " + mCurrentData.state + "\n");
-        sb.append("  Queue: size=" + mCurrentData.queue.size() + "\n");
+        sb.append("  Queue: size=" + mCurrentData.queue.size() + " version=" + mSentQueueVersion
+                + "\n");
         for (Metadata data : mCurrentData.queue) {
             sb.append("    " + data + "\n");
         }
@@ -32,7 +32,7 @@ class Util {
     public static String TAG = "AvrcpUtil";
     public static boolean DEBUG = false;
 
-    private static final String GPM_KEY = "com.google.android.music.mediasession.music_metadata";
+    static final String GPM_KEY = "com.google.android.music.mediasession.music_metadata";
 
     // TODO (apanicke): Remove this prefix later, for now it makes debugging easier.
     public static final String NOW_PLAYING_PREFIX = "NowPlayingId";
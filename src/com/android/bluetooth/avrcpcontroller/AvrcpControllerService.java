@@ -196,7 +196,20 @@ public class AvrcpControllerService extends ProfileService {
      * or null if a search must be performed.
      */
     public synchronized List<MediaItem> getContents(String parentMediaId) {
-        if (DBG) Log.d(TAG, "getContents(" + parentMediaId + ")");
+        return getContents(parentMediaId, 0);
+    }
+
+    /**
+     * Get the children of a node, counting those the client asked for as consumed so that the
+     * rest of the folder is only fetched ahead of them. Asking for all of them fetches the whole
+     * folder.
+     *
+     * @param requestedCount number of children from the first one that the client asked for,
+     *        or 0 if it asked for all of them
+     * @return the children, or null if those requested are still being fetched
+     */
+    public synchronized List<MediaItem> getContents(String parentMediaId, int requestedCount) {
+        if (DBG) Log.d(TAG, "getContents(" + parentMediaId + ", " + requestedCount + ")");
 
         BrowseTree.BrowseNode requestedNode = sBrowseTree.findBrowseNodeByID(parentMediaId);
         if (requestedNode == null) {
@@ -215,9 +228,12 @@ public class AvrcpControllerService extends ProfileService {
             if (DBG) Log.d(TAG, "Didn't find a node");
             return new ArrayList(0);
         } else {
+            requestedNode.setConsumedCount(requestedCount > 0
+                    ? requestedCount : BrowseTree.CONSUMED_ALL);
             if (!requestedNode.isCached()) {
                 if (DBG) Log.d(TAG, "node is not cached");
                 refreshContents(requestedNode);
+                if (requestedNode.getChildrenCount() < requestedCount) return null;
             }
             if (DBG) Log.d(TAG, "Returning contents");
             return requestedNode.getContents();
@@ -40,10 +40,13 @@ import com.android.bluetooth.Utils;
 import com.android.bluetooth.a2dpsink.A2dpSinkService;
 import com.android.bluetooth.btservice.MetricsLogger;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.btservice.StateMachineProfiler;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 /**
@@ -140,9 +143,21 @@ class AvrcpControllerStateMachine extends StateMachine {
 
     //Number of items to get in a single fetch
     static final int ITEM_PAGE_SIZE = 20;
+    // Number of items of a folder fetched ahead of what clients have loaded. The rest is fetched
+    // as they load more.
+    static final int READ_AHEAD_ITEMS = 3 * ITEM_PAGE_SIZE;
+    // Maximum number of folder requests waiting behind the one being fetched
+    static final int MAX_QUEUED_FOLDER_REQUESTS = 4;
     static final int CMD_TIMEOUT_MILLIS = 10000;
     static final int ABS_VOL_TIMEOUT_MILLIS = 1000; //1s
 
+    // IDs of the folders with a request queued, oldest first. A request whose ID is no longer
+    // here was cancelled.
+    private final LinkedHashSet<String> mQueuedFolderRequests = new LinkedHashSet<String>();
+
+    private final StateMachineProfiler mProfiler =
+            new StateMachineProfiler("avrcp_controller", null);
+
     AvrcpControllerStateMachine(BluetoothDevice device, AvrcpControllerService service) {
         super(TAG);
         setDbg(DBG);
@@ -220,6 +235,16 @@ class AvrcpControllerStateMachine extends StateMachine {
         sendMessage(DISCONNECT);
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        mProfiler.onPreHandleMessage(msg, getCurrentState());
+    }
+
+    @Override
+    protected void onPostHandleMessage(Message msg) {
+        mProfiler.onPostHandleMessage(msg);
+    }
+
     /**
      * Dump the current State Machine to the string builder.
      *
@@ -228,6 +253,8 @@ class AvrcpControllerStateMachine extends StateMachine {
     public void dump(StringBuilder sb) {
         ProfileService.println(sb, "mDevice: " + mDevice.getAddress() + "("
                 + mDevice.getName() + ") " + this.toString());
+        ProfileService.println(sb, "mBrowseTree: " + mBrowseTree.toString());
+        mProfiler.dump(sb);
     }
 
     @Override
@@ -270,14 +297,42 @@ class AvrcpControllerStateMachine extends StateMachine {
     }
 
     void requestContents(BrowseTree.BrowseNode node) {
+        String cancelledId = null;
+        synchronized (mQueuedFolderRequests) {
+            if (!mQueuedFolderRequests.add(node.getID())) {
+                logD("Already queued " + node);
+                return;
+            }
+            if (mQueuedFolderRequests.size() > MAX_QUEUED_FOLDER_REQUESTS) {
+                // The oldest request is for a folder the user has most likely left already
+                Iterator<String> oldest = mQueuedFolderRequests.iterator();
+                cancelledId = oldest.next();
+                logD("Cancelling request for " + cancelledId);
+                oldest.remove();
+            }
+        }
+        if (cancelledId != null) {
+            // Answer the clients waiting on the cancelled folder with what it has
+            BrowseTree.BrowseNode cancelledNode = mBrowseTree.findBrowseNodeByID(cancelledId);
+            if (cancelledNode != null) {
+                BluetoothMediaBrowserService.folderRequestDone(cancelledNode);
+            }
+        }
         sendMessage(MESSAGE_GET_FOLDER_ITEMS, node);
 
         logD("Fetching " + node);
     }
 
+    // Take the request for |node| off the queue, returns false if it was cancelled
+    private boolean dequeueFolderRequest(BrowseTree.BrowseNode node) {
+        synchronized (mQueuedFolderRequests) {
+            return mQueuedFolderRequests.remove(node.getID());
+        }
+    }
+
     void nowPlayingContentChanged() {
         mBrowseTree.mNowPlayingNode.setCached(false);
-        sendMessage(MESSAGE_GET_FOLDER_ITEMS, mBrowseTree.mNowPlayingNode);
+        requestContents(mBrowseTree.mNowPlayingNode);
     }
 
     protected class Disconnected extends State {
@@ -616,6 +671,10 @@ class AvrcpControllerStateMachine extends StateMachine {
                 {
                     logD(STATE_TAG + " new Get Request");
                     mBrowseNode = (BrowseTree.BrowseNode) msg.obj;
+                    if (!dequeueFolderRequest(mBrowseNode)) {
+                        logD(STATE_TAG + " Request was cancelled");
+                        mBrowseNode = null;
+                    }
                 }
             }
 
@@ -637,17 +696,30 @@ class AvrcpControllerStateMachine extends StateMachine {
                             + " received " + folderList.size());
 
                     // Always update the node so that the user does not wait forever
-                    // for the list to populate.
+                    // for the list to populate. Pages fetched only as read ahead aren't
+                    // notified, paginated clients would load them and count them as
+                    // consumed, but the folder is once it is complete.
+                    boolean readAhead = isReadAhead(mBrowseNode);
                     mBrowseNode.addChildren(folderList);
-                    notifyChanged(mBrowseNode);
+                    boolean complete = mBrowseNode.getChildrenCount() >= endIndicator
+                            || folderList.size() == 0;
+                    if (!readAhead || complete) {
+                        notifyChanged(mBrowseNode);
+                    }
 
-                    if (mBrowseNode.getChildrenCount() >= endIndicator || folderList.size() == 0
-                            || mAbort) {
+                    if (complete || (mAbort && !isFetchedOnDemand(mBrowseNode))) {
                         // If we have fetched all the elements or if the remotes sends us 0 elements
                         // (which can lead us into a loop since mCurrInd does not proceed) we simply
                         // abort.
                         mBrowseNode.setCached(true);
                         transitionTo(mConnected);
+                    } else if (mAbort || isReadAheadDone(mBrowseNode)) {
+                        // The folder is left partially fetched and resumes where it stopped the
+                        // next time it is requested, once clients have loaded what they have or
+                        // come back to it
+                        logD("GetFolderItems: Stopped at " + mBrowseNode.getChildrenCount()
+                                + " abort=" + mAbort);
+                        transitionTo(mConnected);
                     } else {
                         // Fetch the next set of items.
                         fetchContents(mBrowseNode);
@@ -718,6 +790,7 @@ class AvrcpControllerStateMachine extends StateMachine {
                         logD("GetFolderItems: Go Get Another Directory");
                     } else {
                         logD("GetFolderItems: Get The Same Directory, ignore");
+                        dequeueFolderRequest(mBrowseNode);
                     }
                     break;
 
@@ -745,6 +818,23 @@ class AvrcpControllerStateMachine extends StateMachine {
             return false;
         }
 
+        // Only folders are fetched as they are consumed, the player list and Now Playing are
+        // always fetched completely
+        private boolean isFetchedOnDemand(BrowseTree.BrowseNode node) {
+            return node.getScope() == AvrcpControllerService.BROWSE_SCOPE_VFS;
+        }
+
+        // Whether the next page of |node| is beyond what clients asked for
+        private boolean isReadAhead(BrowseTree.BrowseNode node) {
+            int start = node.getChildrenCount();
+            return isFetchedOnDemand(node) && start > 0 && start >= node.getConsumedCount();
+        }
+
+        private boolean isReadAheadDone(BrowseTree.BrowseNode node) {
+            return isFetchedOnDemand(node)
+                    && node.getChildrenCount() - READ_AHEAD_ITEMS >= node.getConsumedCount();
+        }
+
         private void fetchContents(BrowseTree.BrowseNode target) {
             int start = target.getChildrenCount();
             int end = Math.min(target.getExpectedChildren(), target.getChildrenCount()
@@ -822,6 +912,10 @@ class AvrcpControllerStateMachine extends StateMachine {
         @Override
         public void exit() {
             removeMessages(MESSAGE_INTERNAL_CMD_TIMEOUT);
+            if (mBrowseNode != null) {
+                // Clients still waiting for a page of the folder get what was fetched
+                BluetoothMediaBrowserService.folderRequestDone(mBrowseNode);
+            }
             mBrowseNode = null;
             super.exit();
         }
@@ -35,7 +35,10 @@ import com.android.bluetooth.BluetoothPrefs;
 import com.android.bluetooth.R;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Implements the MediaBrowserService interface to AVRCP and A2DP
@@ -62,6 +65,9 @@ public class BluetoothMediaBrowserService extends MediaBrowserServiceCompat {
 
     // Browsing related structures.
     private List<MediaSessionCompat.QueueItem> mMediaQueue = new ArrayList<>();
+    // Paginated loads waiting for their page to be fetched, by folder ID
+    private final Map<String, List<PendingPage>> mPendingPages =
+            new HashMap<String, List<PendingPage>>();
 
 
     // Error messaging extras
@@ -91,12 +97,16 @@ public class BluetoothMediaBrowserService extends MediaBrowserServiceCompat {
     }
 
     List<MediaItem> getContents(final String parentMediaId) {
+        return getContents(parentMediaId, 0);
+    }
+
+    List<MediaItem> getContents(final String parentMediaId, int requestedCount) {
         AvrcpControllerService avrcpControllerService =
                 AvrcpControllerService.getAvrcpControllerService();
         if (avrcpControllerService == null) {
             return new ArrayList(0);
         } else {
-            return avrcpControllerService.getContents(parentMediaId);
+            return avrcpControllerService.getContents(parentMediaId, requestedCount);
         }
     }
 
@@ -131,6 +141,115 @@ public class BluetoothMediaBrowserService extends MediaBrowserServiceCompat {
         }
     }
 
+    @Override
+    public synchronized void onLoadChildren(final String parentMediaId,
+            final Result<List<MediaBrowserCompat.MediaItem>> result, Bundle options) {
+        int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        if (page < 0 || pageSize < 1) {
+            onLoadChildren(parentMediaId, result);
+            return;
+        }
+        if (DBG) {
+            Log.d(TAG, "onLoadChildren parentMediaId=" + parentMediaId + " page=" + page
+                    + " pageSize=" + pageSize);
+        }
+
+        // Only the pages up to the requested one count as consumed
+        int requestedCount = (page + 1) * pageSize;
+        List<MediaItem> contents = getContents(parentMediaId, requestedCount);
+        if (contents == null) {
+            result.detach();
+            PendingPage pendingPage = new PendingPage(result, page, pageSize);
+            synchronized (mPendingPages) {
+                List<PendingPage> pending = mPendingPages.get(parentMediaId);
+                if (pending == null) {
+                    pending = new ArrayList<PendingPage>();
+                    mPendingPages.put(parentMediaId, pending);
+                }
+                pending.add(pendingPage);
+            }
+            // The page may have been fetched before it was queued
+            contents = getContents(parentMediaId, requestedCount);
+            if (contents == null || !removePendingPage(parentMediaId, pendingPage)) {
+                return;
+            }
+            pendingPage.send(contents);
+            return;
+        }
+        new PendingPage(result, page, pageSize).send(contents);
+    }
+
+    private boolean removePendingPage(String parentMediaId, PendingPage pendingPage) {
+        synchronized (mPendingPages) {
+            List<PendingPage> pending = mPendingPages.get(parentMediaId);
+            if (pending == null || !pending.remove(pendingPage)) {
+                return false;
+            }
+            if (pending.isEmpty()) {
+                mPendingPages.remove(parentMediaId);
+            }
+            return true;
+        }
+    }
+
+    // Answer the loads waiting for |node| whose page is fetched, or all of them if |done|
+    private void sendPendingPages(BrowseTree.BrowseNode node, boolean done) {
+        List<PendingPage> ready = new ArrayList<PendingPage>();
+        synchronized (mPendingPages) {
+            List<PendingPage> pending = mPendingPages.get(node.getID());
+            if (pending == null) {
+                return;
+            }
+            int count = node.getChildrenCount();
+            Iterator<PendingPage> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                PendingPage pendingPage = iterator.next();
+                if (done || node.isCached() || count >= pendingPage.getRequestedCount()) {
+                    ready.add(pendingPage);
+                    iterator.remove();
+                }
+            }
+            if (pending.isEmpty()) {
+                mPendingPages.remove(node.getID());
+            }
+        }
+        if (ready.isEmpty()) {
+            return;
+        }
+        List<MediaItem> contents = node.getContents();
+        for (PendingPage pendingPage : ready) {
+            pendingPage.send(contents);
+        }
+    }
+
+    // A paginated load, answered with its page of the folder contents
+    private static class PendingPage {
+        private final Result<List<MediaBrowserCompat.MediaItem>> mResult;
+        private final int mPage;
+        private final int mPageSize;
+
+        PendingPage(Result<List<MediaBrowserCompat.MediaItem>> result, int page, int pageSize) {
+            mResult = result;
+            mPage = page;
+            mPageSize = pageSize;
+        }
+
+        int getRequestedCount() {
+            return (mPage + 1) * mPageSize;
+        }
+
+        void send(List<MediaItem> contents) {
+            if (contents == null) {
+                contents = new ArrayList<MediaItem>(0);
+            }
+            int fromIndex = Math.min(mPage * mPageSize, contents.size());
+            int toIndex = Math.min(fromIndex + mPageSize, contents.size());
+            mResult.sendResult(MediaBrowserCompat.MediaItem.fromMediaItemList(
+                    contents.subList(fromIndex, toIndex)));
+        }
+    }
+
     @Override
     public BrowserRoot onGetRoot(String clientPackageName, int clientUid, Bundle rootHints) {
         if (DBG) Log.d(TAG, "onGetRoot");
@@ -156,10 +275,21 @@ public class BluetoothMediaBrowserService extends MediaBrowserServiceCompat {
                 sBluetoothMediaBrowserService.updateNowPlayingQueue(node);
             } else {
                 sBluetoothMediaBrowserService.notifyChildrenChanged(node.getID());
+                sBluetoothMediaBrowserService.sendPendingPages(node, false);
             }
         }
     }
 
+    /**
+     * Answer the paginated loads still waiting on |node| with what it has, once its fetch
+     * stopped or was cancelled.
+     */
+    static synchronized void folderRequestDone(BrowseTree.BrowseNode node) {
+        if (sBluetoothMediaBrowserService != null) {
+            sBluetoothMediaBrowserService.sendPendingPages(node, true);
+        }
+    }
+
     static synchronized void addressedPlayerChanged(MediaSessionCompat.Callback callback) {
         if (sBluetoothMediaBrowserService != null) {
             if (callback == null) {
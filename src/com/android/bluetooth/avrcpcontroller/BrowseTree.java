@@ -23,8 +23,11 @@ import android.media.browse.MediaBrowser.MediaItem;
 import android.os.Bundle;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.UUID;
 
@@ -39,6 +42,11 @@ import java.util.UUID;
 //        ....
 //      Player2
 //      ....
+//
+// The tree is bounded by an estimate of the memory its nodes take. When it goes over budget the
+// contents of the least recently used folders are dropped, except for folders on the current
+// browse path, the players in use and Now Playing. A dropped folder is no longer cached, so its
+// contents are fetched again from the remote the next time they are requested.
 public class BrowseTree {
     private static final String TAG = "BrowseTree";
     private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
@@ -49,8 +57,23 @@ public class BrowseTree {
     public static final String NOW_PLAYING_PREFIX = "NOW_PLAYING";
     public static final String PLAYER_PREFIX = "PLAYER";
 
+    @VisibleForTesting
+    static final long DEFAULT_BYTE_BUDGET = 2 * 1024 * 1024;
+    // Consumed count of a folder a client loaded without pagination, it's fetched completely
+    static final int CONSUMED_ALL = Integer.MAX_VALUE;
+    // Rough size of a BrowseNode with its MediaItem, MediaDescription and map entries
+    private static final int NODE_OVERHEAD_BYTES = 256;
+
     // Static instance of Folder ID <-> Folder Instance (for navigation purposes)
     private final HashMap<String, BrowseNode> mBrowseMap = new HashMap<String, BrowseNode>();
+    // Folders with contents, in access order. Guarded by mMapLock along with mBrowseMap and the
+    // size estimate. No other lock is taken while holding it.
+    private final LinkedHashMap<String, BrowseNode> mFolderLru =
+            new LinkedHashMap<String, BrowseNode>(16, 0.75f, true);
+    private final Object mMapLock = new Object();
+    private final long mByteBudget;
+    private long mEstimatedBytes;
+    private long mEvictions;
     private BrowseNode mCurrentBrowseNode;
     private BrowseNode mCurrentBrowsedPlayer;
     private BrowseNode mCurrentAddressedPlayer;
@@ -60,6 +83,12 @@ public class BrowseTree {
     final BrowseNode mNowPlayingNode;
 
     BrowseTree(BluetoothDevice device) {
+        this(device, DEFAULT_BYTE_BUDGET);
+    }
+
+    @VisibleForTesting
+    BrowseTree(BluetoothDevice device, long byteBudget) {
+        mByteBudget = byteBudget;
         if (device == null) {
             mRootNode = new BrowseNode(new MediaItem(new MediaDescription.Builder()
                     .setMediaId(ROOT).setTitle(ROOT).build(), MediaItem.FLAG_BROWSABLE));
@@ -83,15 +112,108 @@ public class BrowseTree {
                 .setTitle(NOW_PLAYING_PREFIX).build(), MediaItem.FLAG_BROWSABLE));
         mNowPlayingNode.mBrowseScope = AvrcpControllerService.BROWSE_SCOPE_NOW_PLAYING;
         mNowPlayingNode.setExpectedChildren(255);
-        mBrowseMap.put(ROOT, mRootNode);
-        mBrowseMap.put(NOW_PLAYING_PREFIX, mNowPlayingNode);
+        register(ROOT, mRootNode);
+        register(NOW_PLAYING_PREFIX, mNowPlayingNode);
 
         mCurrentBrowseNode = mRootNode;
     }
 
     public void clear() {
         // Clearing the map should garbage collect everything.
-        mBrowseMap.clear();
+        synchronized (mMapLock) {
+            mBrowseMap.clear();
+            mFolderLru.clear();
+            mEstimatedBytes = 0;
+        }
+    }
+
+    private void register(String id, BrowseNode node) {
+        synchronized (mMapLock) {
+            node.mEstimatedBytes = node.estimateBytes();
+            BrowseNode old = mBrowseMap.put(id, node);
+            if (old != null) mEstimatedBytes -= old.mEstimatedBytes;
+            mEstimatedBytes += node.mEstimatedBytes;
+        }
+    }
+
+    private void unregister(BrowseNode node) {
+        String id = node.getID();
+        synchronized (mMapLock) {
+            // The ID may have been taken over by a newer node
+            if (mBrowseMap.get(id) == node) {
+                mBrowseMap.remove(id);
+                mEstimatedBytes -= node.mEstimatedBytes;
+            }
+            mFolderLru.remove(id);
+        }
+    }
+
+    private BrowseNode getNode(String id) {
+        synchronized (mMapLock) {
+            return mBrowseMap.get(id);
+        }
+    }
+
+    @VisibleForTesting
+    int getNodeCount() {
+        synchronized (mMapLock) {
+            return mBrowseMap.size();
+        }
+    }
+
+    // Mark a folder with contents as just used
+    private void touch(BrowseNode node) {
+        String id = node.getID();
+        synchronized (mMapLock) {
+            if (mBrowseMap.get(id) == node) mFolderLru.put(id, node);
+        }
+    }
+
+    /**
+     * Drop the contents of the least recently used folders until the tree is within its budget.
+     *
+     * @param keep a folder being filled, which is not evicted
+     */
+    synchronized void trimToBudget(BrowseNode keep) {
+        while (true) {
+            BrowseNode victim = null;
+            synchronized (mMapLock) {
+                if (mEstimatedBytes <= mByteBudget) return;
+                for (BrowseNode folder : mFolderLru.values()) {
+                    if (!isInUse(folder, keep)) {
+                        victim = folder;
+                        break;
+                    }
+                }
+                if (victim == null) {
+                    Log.w(TAG, "Over budget with " + mEstimatedBytes + " bytes, all in use");
+                    return;
+                }
+                mEvictions++;
+            }
+            if (DBG) Log.d(TAG, "Evicting contents of " + victim);
+            victim.setCached(false);
+        }
+    }
+
+    // Whether |folder| is, or is an ancestor of, a node that is in use
+    private boolean isInUse(BrowseNode folder, BrowseNode keep) {
+        if (folder == mRootNode) return true;
+        BrowseNode[] inUse = {keep, mCurrentBrowseNode, mNowPlayingNode, mCurrentBrowsedPlayer,
+                mCurrentAddressedPlayer};
+        for (BrowseNode node : inUse) {
+            for (BrowseNode n = node; n != null; n = n.mParent) {
+                if (n == folder) return true;
+            }
+        }
+        return false;
+    }
+
+    @VisibleForTesting
+    long getEstimatedBytes() {
+        synchronized (mMapLock) {
+            return mEstimatedBytes;
+        }
     }
 
     void onConnected(BluetoothDevice device) {
@@ -127,6 +249,12 @@ public class BrowseTree {
         private final List<BrowseNode> mChildren = new ArrayList<BrowseNode>();
         private int mExpectedChildrenCount;
 
+        // Size estimate accounted for in the tree, set when added to it
+        int mEstimatedBytes;
+
+        // Number of children clients asked for so far
+        private int mConsumedCount;
+
         BrowseNode(MediaItem item) {
             mItem = item;
             Bundle extras = mItem.getDescription().getExtras();
@@ -176,16 +304,20 @@ public class BrowseTree {
             return mExpectedChildrenCount;
         }
 
-        synchronized <E> int addChildren(List<E> newChildren) {
-            for (E child : newChildren) {
-                BrowseNode currentNode = null;
-                if (child instanceof MediaItem) {
-                    currentNode = new BrowseNode((MediaItem) child);
-                } else if (child instanceof AvrcpPlayer) {
-                    currentNode = new BrowseNode((AvrcpPlayer) child);
+        <E> int addChildren(List<E> newChildren) {
+            synchronized (this) {
+                for (E child : newChildren) {
+                    BrowseNode currentNode = null;
+                    if (child instanceof MediaItem) {
+                        currentNode = new BrowseNode((MediaItem) child);
+                    } else if (child instanceof AvrcpPlayer) {
+                        currentNode = new BrowseNode((AvrcpPlayer) child);
+                    }
+                    addChild(currentNode);
                 }
-                addChild(currentNode);
             }
+            // Evict outside of the node lock, the tree locks the evicted nodes
+            trimToBudget(this);
             return newChildren.size();
         }
 
@@ -199,7 +331,8 @@ public class BrowseTree {
                     node.mDevice = this.mDevice;
                 }
                 mChildren.add(node);
-                mBrowseMap.put(node.getID(), node);
+                register(node.getID(), node);
+                touch(this);
                 return true;
             }
             return false;
@@ -207,7 +340,36 @@ public class BrowseTree {
 
         synchronized void removeChild(BrowseNode node) {
             mChildren.remove(node);
-            mBrowseMap.remove(node.getID());
+            removeFromTree(node);
+        }
+
+        // Remove |node| and everything below it from the map. Nodes of another tree that were
+        // attached here, like the root of a device under the root of the service, keep their
+        // own contents.
+        private void removeFromTree(BrowseNode node) {
+            unregister(node);
+            if (node.getTree() == BrowseTree.this) {
+                node.clearChildren();
+            }
+        }
+
+        private synchronized void clearChildren() {
+            for (BrowseNode child : mChildren) {
+                removeFromTree(child);
+            }
+            mChildren.clear();
+        }
+
+        private BrowseTree getTree() {
+            return BrowseTree.this;
+        }
+
+        // Estimate of the memory held by this node
+        private int estimateBytes() {
+            MediaDescription description = mItem.getDescription();
+            return NODE_OVERHEAD_BYTES + 2 * (length(description.getMediaId())
+                    + length(description.getTitle()) + length(description.getSubtitle())
+                    + length(description.getDescription()));
         }
 
         synchronized int getChildrenCount() {
@@ -230,6 +392,7 @@ public class BrowseTree {
         }
 
         synchronized List<MediaItem> getContents() {
+            if (mChildren.size() > 0) touch(this);
             if (mChildren.size() > 0 || mCached) {
                 List<MediaItem> contents = new ArrayList<MediaItem>(mChildren.size());
                 for (BrowseNode child : mChildren) {
@@ -240,6 +403,15 @@ public class BrowseTree {
             return null;
         }
 
+        synchronized int getConsumedCount() {
+            return mConsumedCount;
+        }
+
+        // Count the first |count| children as consumed by a client
+        synchronized void setConsumedCount(int count) {
+            mConsumedCount = Math.max(mConsumedCount, count);
+        }
+
         synchronized boolean isChild(BrowseNode node) {
             return mChildren.contains(node);
         }
@@ -256,10 +428,16 @@ public class BrowseTree {
             if (DBG) Log.d(TAG, "Set Cache" + cached + "Node" + toString());
             mCached = cached;
             if (!cached) {
+                // Drop the whole subtree, not only the children, so that nothing below
+                // stays in the map
                 for (BrowseNode child : mChildren) {
-                    mBrowseMap.remove(child.getID());
+                    removeFromTree(child);
                 }
                 mChildren.clear();
+                mConsumedCount = 0;
+                synchronized (mMapLock) {
+                    mFolderLru.remove(getID());
+                }
             }
         }
 
@@ -331,19 +509,19 @@ public class BrowseTree {
     }
 
     synchronized BrowseNode findBrowseNodeByID(String parentID) {
-        BrowseNode bn = mBrowseMap.get(parentID);
+        BrowseNode bn = getNode(parentID);
         if (bn == null) {
             Log.e(TAG, "folder " + parentID + " not found!");
             return null;
         }
         if (VDBG) {
-            Log.d(TAG, "Size" + mBrowseMap.size());
+            Log.d(TAG, "Size" + getNodeCount());
         }
         return bn;
     }
 
     synchronized boolean setCurrentBrowsedFolder(String uid) {
-        BrowseNode bn = mBrowseMap.get(uid);
+        BrowseNode bn = getNode(uid);
         if (bn == null) {
             Log.e(TAG, "Setting an unknown browsed folder, ignoring bn " + uid);
             return false;
@@ -362,7 +540,7 @@ public class BrowseTree {
     }
 
     synchronized boolean setCurrentBrowsedPlayer(String uid, int items, int depth) {
-        BrowseNode bn = mBrowseMap.get(uid);
+        BrowseNode bn = getNode(uid);
         if (bn == null) {
             Log.e(TAG, "Setting an unknown browsed player, ignoring bn " + uid);
             return false;
@@ -385,12 +563,12 @@ public class BrowseTree {
     }
 
     synchronized boolean setCurrentAddressedPlayer(String uid) {
-        BrowseNode bn = mBrowseMap.get(uid);
+        BrowseNode bn = getNode(uid);
         if (bn == null) {
             if (DBG) Log.d(TAG, "Setting an unknown addressed player, ignoring bn " + uid);
             mRootNode.setCached(false);
             mRootNode.mChildren.add(mNowPlayingNode);
-            mBrowseMap.put(NOW_PLAYING_PREFIX, mNowPlayingNode);
+            register(NOW_PLAYING_PREFIX, mNowPlayingNode);
             return false;
         }
         mCurrentAddressedPlayer = bn;
@@ -403,7 +581,12 @@ public class BrowseTree {
 
     @Override
     public String toString() {
-        String serialized = "Size: " + mBrowseMap.size();
+        String serialized;
+        synchronized (mMapLock) {
+            serialized = "Size: " + mBrowseMap.size() + ", folders with contents: "
+                    + mFolderLru.size() + ", estimated bytes: " + mEstimatedBytes + "/"
+                    + mByteBudget + ", evictions: " + mEvictions;
+        }
         if (VDBG) {
             serialized += mRootNode.toString();
         }
@@ -429,7 +612,7 @@ public class BrowseTree {
             } else {
                 return target;
             }
-        } else if (mBrowseMap.get(target.getID()) == null) {
+        } else if (getNode(target.getID()) == null) {
             return null;
         } else {
             BrowseNode nextChild = getEldestChild(mCurrentBrowseNode, target);
@@ -441,6 +624,10 @@ public class BrowseTree {
         }
     }
 
+    private static int length(CharSequence s) {
+        return (s == null) ? 0 : s.length();
+    }
+
     static BrowseNode getEldestChild(BrowseNode ancestor, BrowseNode target) {
         // ancestor is an ancestor of target
         BrowseNode descendant = target;
@@ -108,6 +108,7 @@ import com.android.bluetooth.btservice.storage.DatabaseManager;
 import com.android.bluetooth.btservice.storage.MetadataDatabase;
 import com.android.bluetooth.gatt.GattService;
 import com.android.bluetooth.sdp.SdpManager;
+import com.android.bluetooth.util.Interop;
 import com.android.bluetooth.ba.BATService;
 import com.android.internal.R;
 import com.android.internal.annotations.VisibleForTesting;
@@ -657,6 +658,12 @@ public class AdapterService extends Service {
             Config.init(getApplicationContext());
         }
 
+        // Pick up interop entries pushed since Bluetooth was last enabled, and those pushed
+        // while it is on. The config file is read by the next lookup rather than on the state
+        // machine thread
+        Interop.invalidate();
+        Interop.startWatchingConfig();
+
         debugLog("BleOnProcessStart() - Make Bond State Machine");
 
         mJniCallbacks.init(mBondStateMachine, mRemoteDevices);
@@ -861,6 +868,7 @@ public class AdapterService extends Service {
 
         unregisterReceiver(mAlarmBroadcastReceiver);
         unregisterReceiver(mWifiStateBroadcastReceiver);
+        Interop.stopWatchingConfig();
 
         if (mPendingAlarm != null) {
             mAlarmManager.cancel(mPendingAlarm);
@@ -3529,9 +3537,19 @@ public class AdapterService extends Service {
         mAdapterStateMachine.dump(fd, writer, args);
 
         StringBuilder sb = new StringBuilder();
+        sb.append("\nAdapterState:\n");
+        mAdapterStateMachine.dump(sb);
+        if (mBondStateMachine != null) {
+            sb.append("\nBondStateMachine:\n");
+            mBondStateMachine.dump(sb);
+        }
         for (ProfileService profile : mRegisteredProfiles) {
             profile.dump(sb);
         }
+        if (mSdpManager != null) {
+            mSdpManager.dump(sb);
+        }
+        MetricsLogger.dump(sb);
         mSilenceDeviceManager.dump(fd, writer, args);
 
         writer.write(sb.toString());
@@ -96,6 +96,9 @@ final class AdapterState extends StateMachine {
 
     private int mPrevState = BluetoothAdapter.STATE_OFF;
 
+    private final StateMachineProfiler mProfiler =
+            new StateMachineProfiler("adapter", this::messageString);
+
     private AdapterState(AdapterService service) {
         super(TAG);
         addState(mOnState);
@@ -144,6 +147,25 @@ final class AdapterState extends StateMachine {
         }
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        mProfiler.onPreHandleMessage(msg, getCurrentState());
+    }
+
+    @Override
+    protected void onPostHandleMessage(Message msg) {
+        mProfiler.onPostHandleMessage(msg);
+    }
+
+    /**
+     * Dump the message profile of this state machine
+     *
+     * @param sb StringBuilder to write to
+     */
+    void dump(StringBuilder sb) {
+        mProfiler.dump(sb);
+    }
+
     @Override
     protected void onQuitting() {
         cleanup();
@@ -39,6 +39,7 @@ import com.android.bluetooth.hfp.HeadsetService;
 import com.android.bluetooth.hfpclient.HeadsetClientService;
 import com.android.bluetooth.hid.HidHostService;
 import com.android.bluetooth.pbapclient.PbapClientService;
+import com.android.bluetooth.sdp.SdpManager;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -90,6 +91,8 @@ final class BondStateMachine extends StateMachine {
     private final ArrayList<BluetoothDevice> mDevices =
         new ArrayList<BluetoothDevice>();
 
+    private final StateMachineProfiler mProfiler = new StateMachineProfiler("bond", null);
+
     private BondStateMachine(PowerManager pm, AdapterService service,
             AdapterProperties prop, RemoteDevices remoteDevices) {
         super("BondStateMachine:");
@@ -125,6 +128,25 @@ final class BondStateMachine extends StateMachine {
         mAdapterProperties = null;
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        mProfiler.onPreHandleMessage(msg, getCurrentState());
+    }
+
+    @Override
+    protected void onPostHandleMessage(Message msg) {
+        mProfiler.onPostHandleMessage(msg);
+    }
+
+    /**
+     * Dump the message profile of this state machine
+     *
+     * @param sb StringBuilder to write to
+     */
+    void dump(StringBuilder sb) {
+        mProfiler.dump(sb);
+    }
+
     @Override
     protected void onQuitting() {
         cleanup();
@@ -441,6 +463,13 @@ final class BondStateMachine extends StateMachine {
 
         mAdapterProperties.onBondStateChanged(device, newState);
 
+        if (newState == BluetoothDevice.BOND_NONE) {
+            SdpManager sdpManager = SdpManager.getDefaultManager();
+            if (sdpManager != null) {
+                sdpManager.invalidateCache(device);
+            }
+        }
+
         if (devProp != null && ((devProp.getDeviceType() == BluetoothDevice.DEVICE_TYPE_CLASSIC
                 || devProp.getDeviceType() == BluetoothDevice.DEVICE_TYPE_DUAL)
                 && newState == BluetoothDevice.BOND_BONDED && devProp.getUuids() == null)) {
@@ -15,17 +15,31 @@
  */
 package com.android.bluetooth.btservice;
 
+import android.os.SystemClock;
+
 import com.android.bluetooth.BluetoothMetricsProto.BluetoothLog;
 import com.android.bluetooth.BluetoothMetricsProto.ProfileConnectionStats;
 import com.android.bluetooth.BluetoothMetricsProto.ProfileId;
+import com.android.internal.annotations.VisibleForTesting;
 
-import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Class with static methods for logging metrics data
+ *
+ * Besides the profile connection counts exported to the metrics proto, profile services can
+ * register named counters, gauges and latency histograms. Registration takes a map lookup,
+ * recording afterwards is lock free so it can be done on message dispatch paths.
  */
 public class MetricsLogger {
-    private static final HashMap<ProfileId, Integer> sProfileConnectionCounts = new HashMap<>();
+    private static final ConcurrentHashMap<ProfileId, AtomicInteger> sProfileConnectionCounts =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Metric> sMetrics = new ConcurrentHashMap<>();
 
     /**
      * Log profile connection event by incrementing an internal counter for that profile.
@@ -35,26 +49,289 @@ public class MetricsLogger {
      * @param profileId Bluetooth profile that is connected at this event
      */
     public static void logProfileConnectionEvent(ProfileId profileId) {
-        synchronized (sProfileConnectionCounts) {
-            sProfileConnectionCounts.merge(profileId, 1, Integer::sum);
-        }
+        sProfileConnectionCounts.computeIfAbsent(profileId, id -> new AtomicInteger())
+                .incrementAndGet();
     }
 
     /**
      * Dump collected metrics into proto using a builder.
      * Clean up internal data after the dump.
      *
+     * Registered metrics have no representation in {@link BluetoothLog} and are only
+     * part of the text dump, see {@link #dump(StringBuilder)}.
+     *
      * @param metricsBuilder proto builder for {@link BluetoothLog}
      */
     public static void dumpProto(BluetoothLog.Builder metricsBuilder) {
-        synchronized (sProfileConnectionCounts) {
-            sProfileConnectionCounts.forEach(
-                    (key, value) -> metricsBuilder.addProfileConnectionStats(
-                            ProfileConnectionStats.newBuilder()
-                                    .setProfileId(key)
-                                    .setNumTimesConnected(value)
-                                    .build()));
-            sProfileConnectionCounts.clear();
+        sProfileConnectionCounts.forEach((key, value) -> {
+            int count = value.getAndSet(0);
+            if (count > 0) {
+                metricsBuilder.addProfileConnectionStats(
+                        ProfileConnectionStats.newBuilder()
+                                .setProfileId(key)
+                                .setNumTimesConnected(count)
+                                .build());
+            }
+        });
+    }
+
+    /**
+     * Get or create the counter registered under |name|.
+     *
+     * @param name unique metric name, prefixed with the owning profile, e.g. "opp.bytes_sent"
+     * @return the counter, shared by every caller registering the same name
+     * @throws IllegalArgumentException if |name| is registered as another metric type
+     */
+    public static Counter registerCounter(String name) {
+        return register(name, Counter.class, new Counter(name));
+    }
+
+    /**
+     * Get or create the gauge registered under |name|.
+     *
+     * @param name unique metric name, prefixed with the owning profile
+     * @return the gauge, shared by every caller registering the same name
+     * @throws IllegalArgumentException if |name| is registered as another metric type
+     */
+    public static Gauge registerGauge(String name) {
+        return register(name, Gauge.class, new Gauge(name));
+    }
+
+    /**
+     * Get or create the latency histogram registered under |name|.
+     *
+     * @param name unique metric name, prefixed with the owning profile
+     * @return the histogram, shared by every caller registering the same name
+     * @throws IllegalArgumentException if |name| is registered as another metric type
+     */
+    public static LatencyHistogram registerLatencyHistogram(String name) {
+        return register(name, LatencyHistogram.class, new LatencyHistogram(name));
+    }
+
+    private static <T extends Metric> T register(String name, Class<T> type, T metric) {
+        Metric existing = sMetrics.putIfAbsent(name, metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as "
+                    + existing.getClass().getSimpleName());
+        }
+        return type.cast(existing);
+    }
+
+    /**
+     * Dump all registered metrics, sorted by name.
+     *
+     * @param sb StringBuilder to write to
+     */
+    public static void dump(StringBuilder sb) {
+        sb.append("\nMetricsLogger:\n");
+        for (Map.Entry<String, Metric> entry : new TreeMap<>(sMetrics).entrySet()) {
+            sb.append("  ").append(entry.getKey()).append(": ");
+            entry.getValue().dump(sb);
+            sb.append("\n");
+        }
+    }
+
+    @VisibleForTesting
+    static void clearRegisteredMetrics() {
+        sMetrics.clear();
+    }
+
+    /**
+     * Base class of registered metrics.
+     */
+    public abstract static class Metric {
+        private final String mName;
+
+        Metric(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        abstract void dump(StringBuilder sb);
+    }
+
+    /**
+     * Monotonic counter, dumped with its average rate since registration,
+     * e.g. bytes per second for a byte counter.
+     */
+    public static class Counter extends Metric {
+        private final AtomicLong mValue = new AtomicLong();
+        private final long mStartTimeMs = SystemClock.elapsedRealtime();
+
+        Counter(String name) {
+            super(name);
+        }
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void dump(StringBuilder sb) {
+            long value = mValue.get();
+            long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - mStartTimeMs);
+            sb.append(value).append(" (").append(value * 1000 / elapsedMs).append("/s)");
+        }
+    }
+
+    /**
+     * Last reported value of a quantity, such as a queue depth.
+     */
+    public static class Gauge extends Metric {
+        private final AtomicLong mValue = new AtomicLong();
+
+        Gauge(String name) {
+            super(name);
+        }
+
+        public void set(long value) {
+            mValue.set(value);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void dump(StringBuilder sb) {
+            sb.append(mValue.get());
+        }
+    }
+
+    /**
+     * Log-linear latency histogram in the style of HdrHistogram: values are bucketed by
+     * power of two, each power split into {@link #SUB_BUCKETS} linear buckets, so
+     * percentiles are reported within 12.5% of the recorded value using fixed memory.
+     */
+    public static class LatencyHistogram extends Metric {
+        private static final int SUB_BUCKET_BITS = 3;
+        @VisibleForTesting
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+        private final AtomicLong mSumNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        /**
+         * Create a histogram that is not part of the registry, for statistics that are kept
+         * per device and dumped by their owner. Use {@link #registerLatencyHistogram(String)}
+         * for histograms that are dumped with the registry.
+         */
+        public LatencyHistogram(String name) {
+            super(name);
+        }
+
+        /**
+         * Record one latency sample.
+         *
+         * @param nanos the latency in nanoseconds, negative values are recorded as 0
+         */
+        public void recordNanos(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            mBuckets.incrementAndGet(bucketIndex(nanos));
+            mSumNanos.addAndGet(nanos);
+            long max = mMaxNanos.get();
+            while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+                max = mMaxNanos.get();
+            }
+        }
+
+        /**
+         * Record one latency sample.
+         *
+         * @param millis the latency in milliseconds, negative values are recorded as 0
+         */
+        public void recordMillis(long millis) {
+            recordNanos(millis * 1000000L);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                count += mBuckets.get(i);
+            }
+            return count;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos.get();
+        }
+
+        /**
+         * Get the value at a percentile of the recorded samples.
+         *
+         * @param percentile between 0 and 100
+         * @return upper bound of the bucket holding the percentile, 0 if nothing was recorded
+         */
+        public long getPercentileNanos(double percentile) {
+            long[] counts = new long[NUM_BUCKETS];
+            long total = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                counts[i] = mBuckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(bucketUpperBound(i), mMaxNanos.get());
+                }
+            }
+            return mMaxNanos.get();
+        }
+
+        @VisibleForTesting
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        @VisibleForTesting
+        static long bucketUpperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lowerBound + (1L << shift) - 1;
+        }
+
+        @Override
+        void dump(StringBuilder sb) {
+            long count = getCount();
+            sb.append("count=").append(count);
+            if (count == 0) {
+                return;
+            }
+            sb.append(" mean=").append(mSumNanos.get() / count / 1000).append("us")
+                    .append(" p50=").append(getPercentileNanos(50) / 1000).append("us")
+                    .append(" p90=").append(getPercentileNanos(90) / 1000).append("us")
+                    .append(" p99=").append(getPercentileNanos(99) / 1000).append("us")
+                    .append(" max=").append(mMaxNanos.get() / 1000).append("us");
         }
     }
 }
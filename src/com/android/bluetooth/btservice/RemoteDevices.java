@@ -66,15 +66,16 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.StatsLog;
 
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.hfp.HeadsetHalConstants;
+import com.android.bluetooth.sdp.SdpManager;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -95,7 +96,9 @@ final class RemoteDevices {
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
 
-    private final HashMap<String, DeviceProperties> mDevices;
+    // Keyed by the packed address, so JNI callbacks can look devices up without formatting
+    // the address bytes into a String
+    private final LongSparseArray<DeviceProperties> mDevices;
     private Queue<String> mDeviceQueue;
 
     private final Handler mHandler;
@@ -154,7 +157,7 @@ final class RemoteDevices {
         sAdapter = BluetoothAdapter.getDefaultAdapter();
         sAdapterService = service;
         sSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<String, DeviceProperties>();
+        mDevices = new LongSparseArray<DeviceProperties>();
         mDeviceQueue = new LinkedList<String>();
         mHandler = new RemoteDevicesHandler(looper);
     }
@@ -208,14 +211,14 @@ final class RemoteDevices {
 
     DeviceProperties getDeviceProperties(BluetoothDevice device) {
         synchronized (mDevices) {
-            return mDevices.get(device.getAddress());
+            return mDevices.get(Utils.getLongFromAddress(device.getAddress()));
         }
     }
 
     BluetoothDevice getDevice(byte[] address) {
         DeviceProperties prop;
         synchronized (mDevices) {
-            prop = mDevices.get(Utils.getAddressStringFromByte(address));
+            prop = mDevices.get(Utils.getLongFromAddress(address));
         }
         if (prop != null) {
             return prop.getDevice();
@@ -229,8 +232,10 @@ final class RemoteDevices {
             DeviceProperties prop = new DeviceProperties();
             prop.mDevice = sAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
             prop.mAddress = address;
-            String key = Utils.getAddressStringFromByte(address);
-            DeviceProperties pv = mDevices.put(key, prop);
+            String key = prop.mDevice.getAddress();
+            long packedAddress = Utils.getLongFromAddress(address);
+            DeviceProperties pv = mDevices.get(packedAddress);
+            mDevices.put(packedAddress, prop);
 
             if (pv == null) {
                 mDeviceQueue.offer(key);
@@ -242,7 +247,7 @@ final class RemoteDevices {
                         }
                     }
                     debugLog("Removing device " + deleteKey + " from property map");
-                    mDevices.remove(deleteKey);
+                    mDevices.remove(Utils.getLongFromAddress(deleteKey));
                 }
             }
             return prop;
@@ -757,6 +762,11 @@ final class RemoteDevices {
             if (sAdapterService.getConnectionState(device) == 0) {
                 resetBatteryLevel(device);
             }
+            // Service records may change before the next connection
+            SdpManager sdpManager = SdpManager.getDefaultManager();
+            if (sdpManager != null) {
+                sdpManager.invalidateCache(device);
+            }
             debugLog(
                     "aclStateChangeCallback: Adapter State: " + BluetoothAdapter.nameForState(state)
                             + " Disconnected: " + device);
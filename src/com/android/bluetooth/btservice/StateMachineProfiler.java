@@ -0,0 +1,245 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IState;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+/**
+ * Message latency profiler for the profile StateMachines.
+ *
+ * The owning StateMachine forwards its onPreHandleMessage/onPostHandleMessage hooks here, on
+ * its own looper thread. For every message the profiler records the dispatch delay (time
+ * between the time the message was due and the time it was handled) and the handling time,
+ * per state and message what. Both are also fed into latency histograms registered with
+ * {@link MetricsLogger}, shared by all state machines of the same profile.
+ *
+ * Slow messages are logged, and a sample of recent messages along with every slow one is
+ * kept in a small trace buffer for dump.
+ */
+public class StateMachineProfiler {
+    private static final String TAG = "StateMachineProfiler";
+
+    @VisibleForTesting
+    static final long SLOW_DISPATCH_DELAY_MS = 500;
+    @VisibleForTesting
+    static final long SLOW_HANDLING_MS = 100;
+    @VisibleForTesting
+    static final int TRACE_BUFFER_SIZE = 32;
+    private static final int TRACE_SAMPLE_INTERVAL = 16;
+
+    private final String mName;
+    private final IntFunction<String> mWhatToString;
+    private final MetricsLogger.LatencyHistogram mDispatchDelayHistogram;
+    private final MetricsLogger.LatencyHistogram mHandlingTimeHistogram;
+
+    // Per state name, per message what. Updated on the looper thread, read from dump.
+    private final Map<String, SparseArray<MessageStats>> mStats = new TreeMap<>();
+    private final TraceEntry[] mTrace = new TraceEntry[TRACE_BUFFER_SIZE];
+    private int mTraceNext;
+    private long mMessageCount;
+
+    // State of the message being handled, only touched on the looper thread
+    private String mCurrentState;
+    private long mCurrentDispatchDelayMs;
+    private long mCurrentStartNanos;
+
+    /**
+     * Statistics of a single message what in a single state.
+     */
+    @VisibleForTesting
+    static class MessageStats {
+        long mCount;
+        long mSlowCount;
+        long mDispatchDelaySumMs;
+        long mDispatchDelayMaxMs;
+        long mHandlingSumNanos;
+        long mHandlingMaxNanos;
+    }
+
+    private static class TraceEntry {
+        final long mTimestampMs;
+        final String mState;
+        final int mWhat;
+        final long mDispatchDelayMs;
+        final long mHandlingNanos;
+
+        TraceEntry(long timestampMs, String state, int what, long dispatchDelayMs,
+                long handlingNanos) {
+            mTimestampMs = timestampMs;
+            mState = state;
+            mWhat = what;
+            mDispatchDelayMs = dispatchDelayMs;
+            mHandlingNanos = handlingNanos;
+        }
+    }
+
+    /**
+     * @param name profile prefix of the registered histograms, e.g. "hfp"
+     * @param whatToString converts message whats into names for dump, or null to print numbers
+     */
+    public StateMachineProfiler(String name, IntFunction<String> whatToString) {
+        mName = name;
+        mWhatToString = whatToString;
+        mDispatchDelayHistogram =
+                MetricsLogger.registerLatencyHistogram(name + ".sm_dispatch_delay");
+        mHandlingTimeHistogram =
+                MetricsLogger.registerLatencyHistogram(name + ".sm_handling_time");
+    }
+
+    /**
+     * Must be called from StateMachine.onPreHandleMessage
+     *
+     * @param msg the message about to be handled
+     * @param state the state that is going to handle it
+     */
+    public void onPreHandleMessage(Message msg, IState state) {
+        mCurrentState = (state != null) ? state.getName() : "null";
+        // Messages sent to the front of the queue, including deferred ones, have no due time
+        long when = msg.getWhen();
+        mCurrentDispatchDelayMs = (when > 0) ? Math.max(0, SystemClock.uptimeMillis() - when) : -1;
+        mCurrentStartNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Must be called from StateMachine.onPostHandleMessage
+     *
+     * @param msg the message that was handled
+     */
+    public void onPostHandleMessage(Message msg) {
+        if (mCurrentState == null) {
+            return;
+        }
+        long handlingNanos = SystemClock.elapsedRealtimeNanos() - mCurrentStartNanos;
+        long dispatchDelayMs = mCurrentDispatchDelayMs;
+        String state = mCurrentState;
+        mCurrentState = null;
+
+        mHandlingTimeHistogram.recordNanos(handlingNanos);
+        if (dispatchDelayMs >= 0) {
+            mDispatchDelayHistogram.recordMillis(dispatchDelayMs);
+        }
+        boolean slow = dispatchDelayMs >= SLOW_DISPATCH_DELAY_MS
+                || handlingNanos >= SLOW_HANDLING_MS * 1000000L;
+        if (slow) {
+            Log.w(TAG, mName + ": slow message " + whatToString(msg.what) + " in " + state
+                    + ", dispatch delay " + dispatchDelayMs + " ms, handling "
+                    + handlingNanos / 1000000L + " ms");
+        }
+
+        synchronized (mStats) {
+            SparseArray<MessageStats> stateStats = mStats.get(state);
+            if (stateStats == null) {
+                stateStats = new SparseArray<>();
+                mStats.put(state, stateStats);
+            }
+            MessageStats stats = stateStats.get(msg.what);
+            if (stats == null) {
+                stats = new MessageStats();
+                stateStats.put(msg.what, stats);
+            }
+            stats.mCount++;
+            if (slow) {
+                stats.mSlowCount++;
+            }
+            if (dispatchDelayMs >= 0) {
+                stats.mDispatchDelaySumMs += dispatchDelayMs;
+                stats.mDispatchDelayMaxMs = Math.max(stats.mDispatchDelayMaxMs, dispatchDelayMs);
+            }
+            stats.mHandlingSumNanos += handlingNanos;
+            stats.mHandlingMaxNanos = Math.max(stats.mHandlingMaxNanos, handlingNanos);
+
+            if (slow || mMessageCount % TRACE_SAMPLE_INTERVAL == 0) {
+                mTrace[mTraceNext] = new TraceEntry(System.currentTimeMillis(), state, msg.what,
+                        dispatchDelayMs, handlingNanos);
+                mTraceNext = (mTraceNext + 1) % TRACE_BUFFER_SIZE;
+            }
+            mMessageCount++;
+        }
+    }
+
+    @VisibleForTesting
+    MessageStats getStats(String state, int what) {
+        synchronized (mStats) {
+            SparseArray<MessageStats> stateStats = mStats.get(state);
+            return (stateStats != null) ? stateStats.get(what) : null;
+        }
+    }
+
+    @VisibleForTesting
+    int getTraceSize() {
+        synchronized (mStats) {
+            int size = 0;
+            for (TraceEntry entry : mTrace) {
+                if (entry != null) {
+                    size++;
+                }
+            }
+            return size;
+        }
+    }
+
+    private String whatToString(int what) {
+        return (mWhatToString != null) ? mWhatToString.apply(what) : Integer.toString(what);
+    }
+
+    /**
+     * Dump per state message statistics and the trace buffer.
+     *
+     * @param sb StringBuilder to write to
+     */
+    public void dump(StringBuilder sb) {
+        synchronized (mStats) {
+            ProfileService.println(sb, "  StateMachineProfiler (" + mMessageCount
+                    + " messages, delay/handling as avg/max):");
+            for (Map.Entry<String, SparseArray<MessageStats>> entry : mStats.entrySet()) {
+                SparseArray<MessageStats> stateStats = entry.getValue();
+                for (int i = 0; i < stateStats.size(); i++) {
+                    MessageStats stats = stateStats.valueAt(i);
+                    ProfileService.println(sb, "    " + entry.getKey() + "/"
+                            + whatToString(stateStats.keyAt(i)) + ": count=" + stats.mCount
+                            + " delay=" + stats.mDispatchDelaySumMs / stats.mCount + "/"
+                            + stats.mDispatchDelayMaxMs + "ms handling="
+                            + stats.mHandlingSumNanos / stats.mCount / 1000 + "/"
+                            + stats.mHandlingMaxNanos / 1000 + "us slow=" + stats.mSlowCount);
+                }
+            }
+            ProfileService.println(sb, "  Sampled messages:");
+            for (int i = 0; i < TRACE_BUFFER_SIZE; i++) {
+                TraceEntry entry = mTrace[(mTraceNext + i) % TRACE_BUFFER_SIZE];
+                if (entry == null) {
+                    continue;
+                }
+                ProfileService.println(sb, "    "
+                        + android.text.format.DateFormat.format("MM-dd HH:mm:ss",
+                                entry.mTimestampMs)
+                        + " " + entry.mState + "/" + whatToString(entry.mWhat) + " delay="
+                        + entry.mDispatchDelayMs + "ms handling=" + entry.mHandlingNanos / 1000
+                        + "us");
+            }
+        }
+    }
+}
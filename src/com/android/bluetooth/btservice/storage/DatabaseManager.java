@@ -33,6 +33,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.provider.Settings;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.StatsLog;
 
 import com.android.bluetooth.Utils;
@@ -40,9 +41,7 @@ import com.android.bluetooth.btservice.AdapterService;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -62,8 +61,9 @@ public class DatabaseManager {
     private MetadataDatabase mDatabase = null;
     private boolean mMigratedFromSettingsGlobal = false;
 
+    // Keyed by getCacheKey(), the packed device address
     @VisibleForTesting
-    final Map<String, Metadata> mMetadataCache = new HashMap<>();
+    final LongSparseArray<Metadata> mMetadataCache = new LongSparseArray<>();
     private final Semaphore mSemaphore = new Semaphore(1);
 
     private static final int LOAD_DATABASE_TIMEOUT = 500; // milliseconds
@@ -72,6 +72,8 @@ public class DatabaseManager {
     private static final int MSG_DELETE_DATABASE = 2;
     private static final int MSG_CLEAR_DATABASE = 100;
     private static final String LOCAL_STORAGE = "LocalStorage";
+    // LOCAL_STORAGE is not an address, so it gets a key no packed address can take
+    private static final long LOCAL_STORAGE_KEY = -2;
 
     /**
      * Constructor of the DatabaseManager
@@ -163,14 +165,14 @@ public class DatabaseManager {
         synchronized (mMetadataCache) {
             String address = device.getAddress();
             if (state != BluetoothDevice.BOND_NONE) {
-                if (mMetadataCache.containsKey(address)) {
+                if (mMetadataCache.indexOfKey(getCacheKey(address)) >= 0) {
                     return;
                 }
                 createMetadata(address);
             } else {
-                Metadata metadata = mMetadataCache.get(address);
+                Metadata metadata = mMetadataCache.get(getCacheKey(address));
                 if (metadata != null) {
-                    mMetadataCache.remove(address);
+                    mMetadataCache.remove(getCacheKey(address));
                     deleteDatabase(metadata);
                 }
             }
@@ -221,10 +223,10 @@ public class DatabaseManager {
             if (VERBOSE) {
                 Log.d(TAG, "setCustomMeta: " + address + ", key=" + key);
             }
-            if (!mMetadataCache.containsKey(address)) {
+            if (mMetadataCache.indexOfKey(getCacheKey(address)) < 0) {
                 createMetadata(address);
             }
-            Metadata data = mMetadataCache.get(address);
+            Metadata data = mMetadataCache.get(getCacheKey(address));
             byte[] oldValue = data.getCustomizedMeta(key);
             if (oldValue != null && Arrays.equals(oldValue, newValue)) {
                 if (VERBOSE) {
@@ -258,12 +260,12 @@ public class DatabaseManager {
 
             String address = device.getAddress();
 
-            if (!mMetadataCache.containsKey(address)) {
+            if (mMetadataCache.indexOfKey(getCacheKey(address)) < 0) {
                 Log.e(TAG, "getCustomMeta: device " + address + " is not in cache");
                 return null;
             }
 
-            Metadata data = mMetadataCache.get(address);
+            Metadata data = mMetadataCache.get(getCacheKey(address));
             return data.getCustomizedMeta(key);
         }
     }
@@ -306,13 +308,13 @@ public class DatabaseManager {
                 Log.v(TAG, "setProfilePriority: " + address + ", profile=" + profile
                         + ", priority = " + newPriority);
             }
-            if (!mMetadataCache.containsKey(address)) {
+            if (mMetadataCache.indexOfKey(getCacheKey(address)) < 0) {
                 if (newPriority == BluetoothProfile.PRIORITY_UNDEFINED) {
                     return true;
                 }
                 createMetadata(address);
             }
-            Metadata data = mMetadataCache.get(address);
+            Metadata data = mMetadataCache.get(getCacheKey(address));
             int oldPriority = data.getProfilePriority(profile);
             if (oldPriority == newPriority) {
                 if (VERBOSE) {
@@ -354,12 +356,12 @@ public class DatabaseManager {
 
             String address = device.getAddress();
 
-            if (!mMetadataCache.containsKey(address)) {
+            if (mMetadataCache.indexOfKey(getCacheKey(address)) < 0) {
                 Log.e(TAG, "getProfilePriority: device " + address + " is not in cache");
                 return BluetoothProfile.PRIORITY_UNDEFINED;
             }
 
-            Metadata data = mMetadataCache.get(address);
+            Metadata data = mMetadataCache.get(getCacheKey(address));
             int priority = data.getProfilePriority(profile);
             if (VERBOSE) {
                 Log.v(TAG, "getProfilePriority: " + address + ", profile=" + profile
@@ -394,10 +396,10 @@ public class DatabaseManager {
 
             String address = device.getAddress();
 
-            if (!mMetadataCache.containsKey(address)) {
+            if (mMetadataCache.indexOfKey(getCacheKey(address)) < 0) {
                 return;
             }
-            Metadata data = mMetadataCache.get(address);
+            Metadata data = mMetadataCache.get(getCacheKey(address));
             int oldValue = data.a2dpSupportsOptionalCodecs;
             if (oldValue == newValue) {
                 return;
@@ -427,12 +429,12 @@ public class DatabaseManager {
 
             String address = device.getAddress();
 
-            if (!mMetadataCache.containsKey(address)) {
+            if (mMetadataCache.indexOfKey(getCacheKey(address)) < 0) {
                 Log.e(TAG, "getA2dpOptionalCodec: device " + address + " is not in cache");
                 return BluetoothA2dp.OPTIONAL_CODECS_SUPPORT_UNKNOWN;
             }
 
-            Metadata data = mMetadataCache.get(address);
+            Metadata data = mMetadataCache.get(getCacheKey(address));
             return data.a2dpSupportsOptionalCodecs;
         }
     }
@@ -462,10 +464,10 @@ public class DatabaseManager {
 
             String address = device.getAddress();
 
-            if (!mMetadataCache.containsKey(address)) {
+            if (mMetadataCache.indexOfKey(getCacheKey(address)) < 0) {
                 return;
             }
-            Metadata data = mMetadataCache.get(address);
+            Metadata data = mMetadataCache.get(getCacheKey(address));
             int oldValue = data.a2dpOptionalCodecsEnabled;
             if (oldValue == newValue) {
                 return;
@@ -495,12 +497,12 @@ public class DatabaseManager {
 
             String address = device.getAddress();
 
-            if (!mMetadataCache.containsKey(address)) {
+            if (mMetadataCache.indexOfKey(getCacheKey(address)) < 0) {
                 Log.e(TAG, "getA2dpOptionalCodecEnabled: device " + address + " is not in cache");
                 return BluetoothA2dp.OPTIONAL_CODECS_PREF_UNKNOWN;
             }
 
-            Metadata data = mMetadataCache.get(address);
+            Metadata data = mMetadataCache.get(getCacheKey(address));
             return data.a2dpOptionalCodecsEnabled;
         }
     }
@@ -581,12 +583,26 @@ public class DatabaseManager {
         mMetadataCache.clear();
     }
 
+    /**
+     * Get the key of a device in {@link #mMetadataCache}
+     *
+     * @param address the device address, or {@link #LOCAL_STORAGE}
+     * @return the packed address, see {@link Utils#getLongFromAddress(String)}
+     */
+    @VisibleForTesting
+    static long getCacheKey(String address) {
+        if (LOCAL_STORAGE.equals(address)) {
+            return LOCAL_STORAGE_KEY;
+        }
+        return Utils.getLongFromAddress(address);
+    }
+
     void createMetadata(String address) {
         if (VERBOSE) {
             Log.v(TAG, "createMetadata " + address);
         }
         Metadata data = new Metadata(address);
-        mMetadataCache.put(address, data);
+        mMetadataCache.put(getCacheKey(address), data);
         updateDatabase(data);
     }
 
@@ -594,7 +610,9 @@ public class DatabaseManager {
     void removeUnusedMetadata() {
         BluetoothDevice[] bondedDevices = mAdapterService.getBondedDevices();
         synchronized (mMetadataCache) {
-            mMetadataCache.forEach((address, metadata) -> {
+            for (int i = 0; i < mMetadataCache.size(); i++) {
+                Metadata metadata = mMetadataCache.valueAt(i);
+                String address = metadata.getAddress();
                 if (!address.equals(LOCAL_STORAGE)
                         && !Arrays.asList(bondedDevices).stream().anyMatch(device ->
                         address.equals(device.getAddress()))) {
@@ -603,9 +621,9 @@ public class DatabaseManager {
                         mAdapterService.metadataChanged(address, key, null);
                     }
                     Log.i(TAG, "remove unpaired device from database " + address);
-                    deleteDatabase(mMetadataCache.get(address));
+                    deleteDatabase(metadata);
                 }
-            });
+            }
         }
     }
 
@@ -626,7 +644,7 @@ public class DatabaseManager {
                 if (VERBOSE) {
                     Log.v(TAG, "cacheMetadata: found device " + address);
                 }
-                mMetadataCache.put(address, data);
+                mMetadataCache.put(getCacheKey(address), data);
             }
             if (VERBOSE) {
                 Log.v(TAG, "cacheMetadata: Database is ready");
@@ -710,14 +728,14 @@ public class DatabaseManager {
             data.setProfilePriority(BluetoothProfile.HEARING_AID, hearingaidPriority);
             data.a2dpSupportsOptionalCodecs = a2dpSupportsOptionalCodec;
             data.a2dpOptionalCodecsEnabled = a2dpOptionalCodecEnabled;
-            mMetadataCache.put(address, data);
+            mMetadataCache.put(getCacheKey(address), data);
             updateDatabase(data);
         }
 
         // Mark database migrated from Settings Global
         Metadata localData = new Metadata(LOCAL_STORAGE);
         localData.migrated = true;
-        mMetadataCache.put(LOCAL_STORAGE, localData);
+        mMetadataCache.put(LOCAL_STORAGE_KEY, localData);
         updateDatabase(localData);
 
         // Reload database after migration is completed
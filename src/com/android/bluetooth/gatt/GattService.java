@@ -59,6 +59,7 @@ import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AbstractionLayer;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.MetricsLogger;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
@@ -147,6 +148,12 @@ public class GattService extends ProfileService {
 
     ClientMap mClientMap = new ClientMap();
 
+    /**
+     * Time spent handing notifications to client apps
+     */
+    private final MetricsLogger.LatencyHistogram mNotifyDispatchLatency =
+            MetricsLogger.registerLatencyHistogram("gatt.notify_dispatch_latency");
+
     /**
      * List of our registered server apps.
      */
@@ -1422,7 +1429,9 @@ public class GattService extends ProfileService {
                 Log.w(TAG, "onNotify() - permission check failed!");
                 return;
             }
+            long start = SystemClock.elapsedRealtimeNanos();
             app.callback.onNotify(address, handle, data);
+            mNotifyDispatchLatency.recordNanos(SystemClock.elapsedRealtimeNanos() - start);
         }
     }
 
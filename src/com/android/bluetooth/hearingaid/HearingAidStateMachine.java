@@ -54,6 +54,7 @@ import android.os.Message;
 import android.util.Log;
 
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.btservice.StateMachineProfiler;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -88,6 +89,9 @@ final class HearingAidStateMachine extends StateMachine {
 
     private final BluetoothDevice mDevice;
 
+    private final StateMachineProfiler mProfiler =
+            new StateMachineProfiler("hearing_aid", HearingAidStateMachine::messageWhatToString);
+
     HearingAidStateMachine(BluetoothDevice device, HearingAidService svc,
             HearingAidNativeInterface nativeInterface, Looper looper) {
         super(TAG, looper);
@@ -565,6 +569,16 @@ final class HearingAidStateMachine extends StateMachine {
         return Integer.toString(state);
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        mProfiler.onPreHandleMessage(msg, getCurrentState());
+    }
+
+    @Override
+    protected void onPostHandleMessage(Message msg) {
+        mProfiler.onPostHandleMessage(msg);
+    }
+
     public void dump(StringBuilder sb) {
         ProfileService.println(sb, "mDevice: " + mDevice);
         ProfileService.println(sb, "  StateMachine: " + this);
@@ -581,6 +595,7 @@ final class HearingAidStateMachine extends StateMachine {
             ProfileService.println(sb, "    " + line);
         }
         scanner.close();
+        mProfiler.dump(sb);
     }
 
     @Override
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.hfp;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Table driven parser for the AT commands that are not handled by the native stack.
+ *
+ * The command is normalized into a reusable char buffer: spaces are dropped and everything
+ * outside of double quotes is upper cased. The command name is then looked up in a table of
+ * handlers, and the comma separated arguments of a SET command are parsed in place into
+ * primitive slots. Nothing is allocated while parsing, so frequent vendor commands such as
+ * AT+IPHONEACCEV only pay for the values a handler actually asks for.
+ *
+ * Not thread safe, each {@link HeadsetStateMachine} owns one and uses it from its own thread.
+ */
+class AtCommandParser {
+    /**
+     * Handler of one AT command, the parser holds the parsed command during the call
+     */
+    interface Handler {
+        void onCommand(AtCommandParser command, BluetoothDevice device);
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 64;
+    private static final int INITIAL_ARG_SLOTS = 8;
+
+    private final ArrayList<char[]> mNames = new ArrayList<>();
+    private final ArrayList<Handler> mHandlers = new ArrayList<>();
+
+    private char[] mBuffer = new char[INITIAL_BUFFER_SIZE];
+    private int mLength;
+    // End of the command name, which is also the index of '=' or '?' if there is any
+    private int mNameEnd;
+    private int mType;
+    private int mArgCount;
+    private int[] mArgStart = new int[INITIAL_ARG_SLOTS];
+    private int[] mArgEnd = new int[INITIAL_ARG_SLOTS];
+    private int[] mArgInt = new int[INITIAL_ARG_SLOTS];
+    private boolean[] mArgIsInt = new boolean[INITIAL_ARG_SLOTS];
+
+    /**
+     * Register the handler of a command.
+     *
+     * @param name command name including the leading '+', for example "+XAPL"
+     * @param handler called by {@link #dispatch} when the command is received
+     */
+    void register(String name, Handler handler) {
+        mNames.add(name.toCharArray());
+        mHandlers.add(handler);
+    }
+
+    /**
+     * Parse an AT command, replacing the previously parsed one.
+     *
+     * @param atString AT command after the "AT" prefix
+     */
+    void parse(String atString) {
+        normalize(atString);
+
+        mNameEnd = 0;
+        while (mNameEnd < mLength && mBuffer[mNameEnd] != '=' && mBuffer[mNameEnd] != '?') {
+            mNameEnd++;
+        }
+
+        mArgCount = 0;
+        if (mNameEnd == mLength) {
+            mType = AtPhonebook.TYPE_UNKNOWN;
+        } else if (mBuffer[mNameEnd] == '?') {
+            mType = AtPhonebook.TYPE_READ;
+        } else if (mNameEnd + 1 < mLength && mBuffer[mNameEnd + 1] == '?') {
+            mType = AtPhonebook.TYPE_TEST;
+        } else {
+            mType = AtPhonebook.TYPE_SET;
+            parseArgs(mNameEnd + 1);
+        }
+    }
+
+    /**
+     * Call the handler registered for the parsed command.
+     *
+     * @return false if there is no handler for the command
+     */
+    boolean dispatch(BluetoothDevice device) {
+        for (int i = 0; i < mNames.size(); i++) {
+            if (nameEquals(mNames.get(i))) {
+                mHandlers.get(i).onCommand(this, device);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return one of the {@link AtPhonebook} command types, TYPE_UNKNOWN for a command without
+     * '=' or '?'
+     */
+    int getType() {
+        return mType;
+    }
+
+    /**
+     * @return number of arguments of a SET command, 0 for other types
+     */
+    int getArgCount() {
+        return mArgCount;
+    }
+
+    /**
+     * @return true if the argument is a decimal integer, as accepted by
+     * {@link Integer#parseInt(String)}
+     */
+    boolean isIntArg(int index) {
+        return mArgIsInt[checkArg(index)];
+    }
+
+    int getIntArg(int index) {
+        if (!isIntArg(index)) {
+            throw new NumberFormatException("Argument " + index + " is not an integer");
+        }
+        return mArgInt[index];
+    }
+
+    /**
+     * @return the argument as sent, quotes included
+     */
+    String getStringArg(int index) {
+        checkArg(index);
+        return new String(mBuffer, mArgStart[index], mArgEnd[index] - mArgStart[index]);
+    }
+
+    /**
+     * @return the arguments boxed as Integer or String, for the vendor specific event broadcast
+     */
+    Object[] getArgs() {
+        Object[] args = new Object[mArgCount];
+        for (int i = 0; i < mArgCount; i++) {
+            args[i] = mArgIsInt[i] ? (Object) Integer.valueOf(mArgInt[i]) : getStringArg(i);
+        }
+        return args;
+    }
+
+    /**
+     * @return everything after the command name, for example "=?" or "=1,10"
+     */
+    String getParams() {
+        return new String(mBuffer, mNameEnd, mLength - mNameEnd);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mBuffer, 0, mLength);
+    }
+
+    // Drop spaces and upper case everything outside of quotes. An unmatched quote is closed.
+    private void normalize(String atString) {
+        int length = atString.length();
+        if (mBuffer.length < length + 1) {
+            mBuffer = new char[Math.max(length + 1, mBuffer.length * 2)];
+        }
+        mLength = 0;
+        boolean quoted = false;
+        for (int i = 0; i < length; i++) {
+            char c = atString.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                mBuffer[mLength++] = c;
+            } else if (quoted) {
+                mBuffer[mLength++] = c;
+            } else if (c != ' ') {
+                mBuffer[mLength++] = Character.toUpperCase(c);
+            }
+        }
+        if (quoted) {
+            mBuffer[mLength++] = '"';
+        }
+    }
+
+    // Split the arguments on commas outside of quotes. An empty argument list is one empty
+    // argument, and a trailing comma adds an empty argument.
+    private void parseArgs(int start) {
+        int i = start;
+        while (i <= mLength) {
+            int j = i;
+            boolean quoted = false;
+            while (j < mLength && (quoted || mBuffer[j] != ',')) {
+                if (mBuffer[j] == '"') {
+                    quoted = !quoted;
+                }
+                j++;
+            }
+            addArg(i, j);
+            i = j + 1;
+        }
+    }
+
+    private void addArg(int start, int end) {
+        if (mArgCount == mArgStart.length) {
+            int size = mArgCount * 2;
+            mArgStart = Arrays.copyOf(mArgStart, size);
+            mArgEnd = Arrays.copyOf(mArgEnd, size);
+            mArgInt = Arrays.copyOf(mArgInt, size);
+            mArgIsInt = Arrays.copyOf(mArgIsInt, size);
+        }
+        mArgStart[mArgCount] = start;
+        mArgEnd[mArgCount] = end;
+        mArgIsInt[mArgCount] = parseInt(start, end, mArgCount);
+        mArgCount++;
+    }
+
+    // Same rules as Integer.parseInt(), the value is stored in mArgInt[slot]
+    private boolean parseInt(int start, int end, int slot) {
+        if (start == end) {
+            return false;
+        }
+        boolean negative = false;
+        int i = start;
+        if (mBuffer[i] == '-' || mBuffer[i] == '+') {
+            negative = mBuffer[i] == '-';
+            i++;
+            if (i == end) {
+                return false;
+            }
+        }
+        long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(mBuffer[i], 10);
+            if (digit < 0) {
+                return false;
+            }
+            value = value * 10 + digit;
+            if (value > limit) {
+                return false;
+            }
+        }
+        mArgInt[slot] = (int) (negative ? -value : value);
+        return true;
+    }
+
+    private boolean nameEquals(char[] name) {
+        if (name.length != mNameEnd) {
+            return false;
+        }
+        for (int i = 0; i < mNameEnd; i++) {
+            if (mBuffer[i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int checkArg(int index) {
+        if (index < 0 || index >= mArgCount) {
+            throw new IndexOutOfBoundsException("Argument " + index + " of " + mArgCount);
+        }
+        return index;
+    }
+}
@@ -20,9 +20,11 @@ import android.bluetooth.BluetoothDevice;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.PhoneLookup;
@@ -33,6 +35,7 @@ import android.util.Log;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.util.DevicePolicyUtils;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.GsmAlphabet;
 
 import java.util.HashMap;
@@ -94,6 +97,75 @@ public class AtPhonebook {
         public int nameColumn;
     }
 
+    /** Immutable copy of a phone book, so that AT+CPBR ranges are served without querying
+     *  the providers again. Numbers and names are stored the way they are sent, only the
+     *  character set is applied when sending.
+     */
+    private static class PhonebookSnapshot {
+        public final int size;
+        public final String[] numbers;
+        public final int[] regionTypes;
+        // Names of call log entries are looked up on first read, null until then
+        public final String[] names;
+        public final String[] lookupNumbers;
+
+        PhonebookSnapshot(PhonebookResult pbr, String restrictedName) {
+            Cursor cursor = pbr.cursor;
+            size = cursor.getCount();
+            numbers = new String[size];
+            regionTypes = new int[size];
+            names = new String[size];
+            lookupNumbers = new String[size];
+            cursor.moveToPosition(-1);
+            for (int i = 0; i < size && cursor.moveToNext(); i++) {
+                String number = cursor.getString(pbr.numberColumn);
+                if (number == null) {
+                    number = "";
+                }
+                regionTypes[i] = PhoneNumberUtils.toaFromString(number);
+                int numberPresentation = Calls.PRESENTATION_ALLOWED;
+                if (pbr.numberPresentationColumn != -1) {
+                    numberPresentation = cursor.getInt(pbr.numberPresentationColumn);
+                }
+                if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
+                    // TODO: there are 3 types of numbers should have resource
+                    // strings for: unknown, private, and payphone
+                    numbers[i] = "";
+                    names[i] = restrictedName;
+                    continue;
+                }
+                numbers[i] = truncate(PhoneNumberUtils.stripSeparators(number.trim()), 30);
+
+                if (pbr.nameColumn != -1) {
+                    String name = formatName(cursor.getString(pbr.nameColumn));
+                    if (pbr.typeColumn != -1) {
+                        name = name + "/" + getPhoneType(cursor.getInt(pbr.typeColumn));
+                    }
+                    names[i] = name;
+                } else if (number.length() > 0) {
+                    lookupNumbers[i] = number;
+                } else {
+                    names[i] = "";
+                }
+            }
+        }
+    }
+
+    /** Drops the snapshots of the given phone books when their provider changes */
+    private class PhonebookObserver extends ContentObserver {
+        private final String[] mPhonebookNames;
+
+        PhonebookObserver(String... phonebookNames) {
+            super(null);
+            mPhonebookNames = phonebookNames;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateSnapshots(mPhonebookNames);
+        }
+    }
+
     private Context mContext;
     private ContentResolver mContentResolver;
     private HeadsetNativeInterface mNativeInterface;
@@ -109,6 +181,15 @@ public class AtPhonebook {
 
     private final HashMap<String, PhonebookResult> mPhonebooks =
             new HashMap<String, PhonebookResult>(5);
+    private final HashMap<String, PhonebookSnapshot> mSnapshots =
+            new HashMap<String, PhonebookSnapshot>(5);
+    private int mSnapshotQueries;
+
+    @VisibleForTesting
+    final ContentObserver mCallLogObserver = new PhonebookObserver("DC", "RC", "MC");
+    // The call log snapshots hold caller names looked up from the contacts
+    @VisibleForTesting
+    final ContentObserver mContactsObserver = new PhonebookObserver("ME", "DC", "RC", "MC");
 
     static final int TYPE_UNKNOWN = -1;
     static final int TYPE_READ = 0;
@@ -128,10 +209,22 @@ public class AtPhonebook {
 
         mCurrentPhonebook = "ME";  // default to mobile phonebook
         mCpbrIndex1 = mCpbrIndex2 = -1;
+
+        try {
+            mContentResolver.registerContentObserver(Calls.CONTENT_URI, true, mCallLogObserver);
+            // Covers both the personal and the enterprise phone URIs
+            mContentResolver.registerContentObserver(
+                    ContactsContract.AUTHORITY_URI, true, mContactsObserver);
+        } catch (IllegalStateException | SecurityException e) {
+            Log.e(TAG, "Error while registering phonebook observers " + e);
+        }
     }
 
-    public void cleanup() {
+    public synchronized void cleanup() {
+        mContentResolver.unregisterContentObserver(mCallLogObserver);
+        mContentResolver.unregisterContentObserver(mContactsObserver);
         mPhonebooks.clear();
+        mSnapshots.clear();
     }
 
     /** Returns the last dialled number, or null if no numbers have been called */
@@ -177,6 +270,12 @@ public class AtPhonebook {
         mCpbrIndex1 = mCpbrIndex2 = cpbrIndex;
     }
 
+    @VisibleForTesting
+    void setCpbrRange(int index1, int index2) {
+        mCpbrIndex1 = index1;
+        mCpbrIndex2 = index2;
+    }
+
     private byte[] getByteAddress(BluetoothDevice device) {
         return Utils.getBytesFromAddress(device.getAddress());
     }
@@ -236,17 +335,15 @@ public class AtPhonebook {
             case TYPE_READ: // Read
                 log("handleCpbsCommand - read command");
                 // Return current size and max size
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true);
-                if (pbr == null) {
+                PhonebookSnapshot snapshot = getSnapshot(mCurrentPhonebook);
+                if (snapshot == null) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
                     break;
                 }
-                int size = pbr.cursor.getCount();
+                int size = snapshot.size;
                 atCommandResponse =
                         "+CPBS: \"" + mCurrentPhonebook + "\"," + size + "," + getMaxPhoneBookSize(
                                 size);
-                pbr.cursor.close();
-                pbr.cursor = null;
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 break;
             case TYPE_TEST: // Test
@@ -269,7 +366,7 @@ public class AtPhonebook {
                 while (pb.startsWith("\"")) {
                     pb = pb.substring(1, pb.length());
                 }
-                if (getPhonebookResult(pb, false) == null && !"SM".equals(pb)) {
+                if (getSnapshot(pb) == null && !"SM".equals(pb)) {
                     if (DBG) {
                         log("Dont know phonebook: '" + pb + "'");
                     }
@@ -304,17 +401,15 @@ public class AtPhonebook {
                  */
                 log("handleCpbrCommand - test command");
                 int size;
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
-                if (pbr == null) {
+                PhonebookSnapshot snapshot = getSnapshot(mCurrentPhonebook);
+                if (snapshot == null) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
                     mNativeInterface.atResponseCode(remoteDevice, atCommandResult,
                             atCommandErrorCode);
                     break;
                 }
-                size = pbr.cursor.getCount();
+                size = snapshot.size;
                 log("handleCpbrCommand - size = "+size);
-                pbr.cursor.close();
-                pbr.cursor = null;
                 if (size == 0) {
                     /* Sending "+CPBR: (1-0)" can confused some carkits, send "1-1" * instead */
                     size = 1;
@@ -422,6 +517,47 @@ public class AtPhonebook {
         return pbr;
     }
 
+    /** Get the snapshot of the given phone book, querying it only if it changed since the
+     *  last snapshot.
+     *  Returns null if the phone book can't be queried
+     */
+    private synchronized PhonebookSnapshot getSnapshot(String pb) {
+        if (pb == null) {
+            return null;
+        }
+        PhonebookSnapshot snapshot = mSnapshots.get(pb);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        PhonebookResult pbr = getPhonebookResult(pb, true);
+        if (pbr == null) {
+            return null;
+        }
+        mSnapshotQueries++;
+        snapshot = new PhonebookSnapshot(pbr, mContext.getString(R.string.unknownNumber));
+        pbr.cursor.close();
+        pbr.cursor = null;
+        // The SIM phone book provider doesn't notify changes, so it is queried every time
+        if (!"SM".equals(pb)) {
+            mSnapshots.put(pb, snapshot);
+        }
+        return snapshot;
+    }
+
+    private synchronized void invalidateSnapshots(String[] phonebooks) {
+        for (String pb : phonebooks) {
+            if (mSnapshots.remove(pb) != null) {
+                log("invalidateSnapshots - " + pb + " changed");
+            }
+        }
+    }
+
+    /** Returns the number of times a phone book was queried to build a snapshot */
+    @VisibleForTesting
+    synchronized int getSnapshotQueryCount() {
+        return mSnapshotQueries;
+    }
+
     private synchronized boolean queryPhonebook(String pb, PhonebookResult pbr) {
         String where;
         boolean ancillaryPhonebook = true;
@@ -556,13 +692,12 @@ public class AtPhonebook {
         int atCommandResult = HeadsetHalConstants.AT_RESPONSE_ERROR;
         int atCommandErrorCode = -1;
         String atCommandResponse = null;
-        StringBuilder response = new StringBuilder();
         String record;
 
         // Check phonebook
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
-        if (pbr == null) {
-            Log.e(TAG, "pbr is null");
+        PhonebookSnapshot snapshot = getSnapshot(mCurrentPhonebook);
+        if (snapshot == null) {
+            Log.e(TAG, "snapshot is null");
             atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
             return atCommandResult;
         }
@@ -571,91 +706,40 @@ public class AtPhonebook {
         // Send OK instead of ERROR if these checks fail.
         // When we send error, certain kits like BMW disconnect the
         // Handsfree connection.
-        if (pbr.cursor.getCount() == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1
-                || mCpbrIndex1 > pbr.cursor.getCount()) {
+        if (snapshot.size == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1
+                || mCpbrIndex1 > snapshot.size) {
             atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
             Log.e(TAG, "Invalid request or no results, returning");
             return atCommandResult;
         }
 
-        if (mCpbrIndex2 > pbr.cursor.getCount()) {
+        if (mCpbrIndex2 > snapshot.size) {
             Log.w(TAG, "max index requested is greater than number of records"
                     + " available, resetting it");
-            mCpbrIndex2 = pbr.cursor.getCount();
+            mCpbrIndex2 = snapshot.size;
         }
         // Process
         atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
-        int errorDetected = -1; // no error
-        pbr.cursor.moveToPosition(mCpbrIndex1 - 1);
         log("mCpbrIndex1 = " + mCpbrIndex1 + " and mCpbrIndex2 = " + mCpbrIndex2);
         for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
-            String number = pbr.cursor.getString(pbr.numberColumn);
-            String name = null;
-            int type = -1;
-            if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
+            int position = index - 1;
+            String name = snapshot.names[position];
+            if (name == null && snapshot.lookupNumbers[position] != null) {
+                // try caller id lookup, once per snapshot entry
                 try {
-                    Cursor c = mContentResolver.query(
-                            Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI,
-                            number), new String[]{
-                                PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
-                            }, null, null, null);
-                    if (c != null) {
-                        if (c.moveToFirst()) {
-                            name = c.getString(0);
-                            type = c.getInt(1);
-                        }
-                        c.close();
-                    }
+                    name = formatName(lookupCallerName(snapshot.lookupNumbers[position]));
                 } catch (Exception e) {
                     Log.e(TAG, "Exception while querying phonebook database", e);
                     return HeadsetHalConstants.AT_RESPONSE_ERROR;
                 }
-
-                if (DBG && name == null) {
-                    log("Caller ID lookup failed for " + number);
-                }
-
-            } else if (pbr.nameColumn != -1) {
-                name = pbr.cursor.getString(pbr.nameColumn);
-            } else {
-                log("processCpbrCommand: empty name and number");
-            }
-            if (name == null) {
+                snapshot.names[position] = name;
+            } else if (name == null) {
                 name = "";
             }
-            name = name.trim();
-            if (name.length() > 28) {
-                name = name.substring(0, 28);
-            }
-
-            if (pbr.typeColumn != -1) {
-                type = pbr.cursor.getInt(pbr.typeColumn);
-                name = name + "/" + getPhoneType(type);
-            }
-
+            String number = snapshot.numbers[position];
             if (number == null) {
                 number = "";
             }
-            int regionType = PhoneNumberUtils.toaFromString(number);
-
-            number = number.trim();
-            number = PhoneNumberUtils.stripSeparators(number);
-            if (number.length() > 30) {
-                number = number.substring(0, 30);
-            }
-            int numberPresentation = Calls.PRESENTATION_ALLOWED;
-            if (pbr.numberPresentationColumn != -1) {
-                numberPresentation = pbr.cursor.getInt(pbr.numberPresentationColumn);
-            }
-            if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
-                number = "";
-                // TODO: there are 3 types of numbers should have resource
-                // strings for: unknown, private, and payphone
-                name = mContext.getString(R.string.unknownNumber);
-            }
 
             // TODO(): Handle IRA commands. It's basically
             // a 7 bit ASCII character set.
@@ -668,19 +752,42 @@ public class AtPhonebook {
                 }
             }
 
-            record = "+CPBR: " + index + ",\"" + number + "\"," + regionType + ",\"" + name + "\"";
+            record = "+CPBR: " + index + ",\"" + number + "\"," + snapshot.regionTypes[position]
+                    + ",\"" + name + "\"";
             record = record + "\r\n\r\n";
             atCommandResponse = record;
             mNativeInterface.atResponseString(device, atCommandResponse);
-            if (!pbr.cursor.moveToNext()) {
-                break;
+        }
+        return atCommandResult;
+    }
+
+    /** Returns the contact name of a number, or null if it isn't in the contacts */
+    private String lookupCallerName(String number) {
+        String name = null;
+        Cursor c = mContentResolver.query(
+                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
+                new String[]{PhoneLookup.DISPLAY_NAME}, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                name = c.getString(0);
             }
+            c.close();
         }
-        if (pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
+        if (DBG && name == null) {
+            log("Caller ID lookup failed for " + number);
         }
-        return atCommandResult;
+        return name;
+    }
+
+    private static String formatName(String name) {
+        if (name == null) {
+            return "";
+        }
+        return truncate(name.trim(), 28);
+    }
+
+    private static String truncate(String value, int maxLength) {
+        return value.length() > maxLength ? value.substring(0, maxLength) : value;
     }
 
     /**
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.MetricsLogger;
+import com.android.bluetooth.btservice.ProfileService;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * Traces the setup of SCO audio for one headset, split into the stages it goes through.
+ *
+ * A span starts when a call state update that needs audio, a CONNECT_AUDIO request or a remote
+ * audio connection reaches the {@link HeadsetStateMachine}, and ends once the audio connected
+ * state has been reported to {@link HeadsetService} and broadcast. Each stage is the time
+ * between two consecutive marks of the span, so stages that a setup doesn't go through, such
+ * as the A2DP suspend when nothing is streaming, are simply not recorded.
+ *
+ * Stage latencies are kept per device, and also fed into histograms registered with
+ * {@link MetricsLogger} that are shared by all headsets. All marks are made on the state
+ * machine thread, the statistics are read from dump.
+ */
+class HeadsetAudioTracer {
+    private static final String TAG = "HeadsetAudioTracer";
+
+    // Dispatch delay of the call state update that started the span
+    static final int STAGE_PHONE_STATE = 0;
+    // Until A2DP reports being suspended, after the call state update suspended it
+    static final int STAGE_A2DP_SUSPEND = 1;
+    // Until CONNECT_AUDIO is handled, this includes waiting for Telecom to ask for audio
+    static final int STAGE_REQUEST = 2;
+    // Time spent in HeadsetNativeInterface.connectAudio()
+    static final int STAGE_NATIVE = 3;
+    // Until the stack reports audio connected
+    static final int STAGE_SCO_SETUP = 4;
+    // Until audio is set up in AudioManager, reported to HeadsetService through
+    // onAudioStateChangedFromStateMachine() and broadcast
+    static final int STAGE_CALLBACK = 5;
+    static final int STAGE_TOTAL = 6;
+    static final int NUM_STAGES = 7;
+
+    private static final String[] STAGE_NAMES = {"phone_state", "a2dp_suspend", "request",
+            "native", "sco_setup", "callback", "total"};
+    private static final long SLOW_SETUP_MS = 1000;
+    private static final int RECENT_SPANS = 8;
+
+    private final String mDevice;
+    private final MetricsLogger.LatencyHistogram[] mHistograms =
+            new MetricsLogger.LatencyHistogram[NUM_STAGES];
+    private final MetricsLogger.LatencyHistogram[] mRegisteredHistograms =
+            new MetricsLogger.LatencyHistogram[NUM_STAGES];
+
+    // Span being traced, null if none
+    private Span mSpan;
+    private final Span[] mRecentSpans = new Span[RECENT_SPANS];
+    private int mRecentNext;
+    private long mCompleted;
+    private long mAborted;
+
+    private static class Span {
+        final long mTimestampMs = System.currentTimeMillis();
+        final String mTrigger;
+        final long mStartMs;
+        final long[] mStageMs = new long[NUM_STAGES];
+        long mLastMarkMs;
+        String mAbortReason;
+
+        Span(String trigger, long startMs) {
+            mTrigger = trigger;
+            mStartMs = startMs;
+            mLastMarkMs = startMs;
+            Arrays.fill(mStageMs, -1);
+        }
+    }
+
+    HeadsetAudioTracer(String device) {
+        mDevice = device;
+        for (int i = 0; i < NUM_STAGES; i++) {
+            mHistograms[i] = new MetricsLogger.LatencyHistogram(STAGE_NAMES[i]);
+            mRegisteredHistograms[i] =
+                    MetricsLogger.registerLatencyHistogram("hfp.sco_" + STAGE_NAMES[i]);
+        }
+    }
+
+    /**
+     * Start a span, replacing the one being traced if there is any.
+     *
+     * @param trigger what started the audio setup, for dump
+     * @param startMs {@link SystemClock#uptimeMillis()} at which the setup started, for example
+     * the time a message was sent. 0 or less to start now.
+     */
+    synchronized void begin(String trigger, long startMs) {
+        if (mSpan != null) {
+            abort("replaced by " + trigger);
+        }
+        long nowMs = SystemClock.uptimeMillis();
+        mSpan = new Span(trigger, (startMs > 0 && startMs <= nowMs) ? startMs : nowMs);
+    }
+
+    /**
+     * @return true if a span is being traced
+     */
+    synchronized boolean isTracing() {
+        return mSpan != null;
+    }
+
+    /**
+     * End a stage of the span being traced. Does nothing if no span is being traced.
+     *
+     * @param stage one of the STAGE_ constants other than {@link #STAGE_TOTAL}
+     */
+    synchronized void mark(int stage) {
+        if (mSpan == null) {
+            return;
+        }
+        long nowMs = SystemClock.uptimeMillis();
+        record(stage, nowMs - mSpan.mLastMarkMs);
+        mSpan.mLastMarkMs = nowMs;
+    }
+
+    /**
+     * End the callback stage and the span being traced. Does nothing if no span is being traced.
+     */
+    synchronized void end() {
+        if (mSpan == null) {
+            return;
+        }
+        mark(STAGE_CALLBACK);
+        long totalMs = mSpan.mLastMarkMs - mSpan.mStartMs;
+        record(STAGE_TOTAL, totalMs);
+        if (totalMs >= SLOW_SETUP_MS) {
+            Log.w(TAG, mDevice + ": slow SCO setup, " + spanToString(mSpan));
+        }
+        mCompleted++;
+        addRecent(mSpan);
+        mSpan = null;
+    }
+
+    /**
+     * Drop the span being traced because audio was not connected. Does nothing if no span is
+     * being traced.
+     */
+    synchronized void abort(String reason) {
+        if (mSpan == null) {
+            return;
+        }
+        mSpan.mAbortReason = reason;
+        mAborted++;
+        addRecent(mSpan);
+        mSpan = null;
+    }
+
+    private void record(int stage, long ms) {
+        mSpan.mStageMs[stage] = Math.max(mSpan.mStageMs[stage], 0) + ms;
+        mHistograms[stage].recordMillis(ms);
+        mRegisteredHistograms[stage].recordMillis(ms);
+    }
+
+    private void addRecent(Span span) {
+        mRecentSpans[mRecentNext] = span;
+        mRecentNext = (mRecentNext + 1) % RECENT_SPANS;
+    }
+
+    /**
+     * @return number of spans that ended with audio connected
+     */
+    @VisibleForTesting
+    synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    /**
+     * @return latency of a stage of the last span that ended with audio connected, -1 if the
+     * span didn't go through the stage or no span ended yet
+     */
+    @VisibleForTesting
+    synchronized long getLastStageMillis(int stage) {
+        for (int i = 1; i <= RECENT_SPANS; i++) {
+            Span span = mRecentSpans[(mRecentNext - i + RECENT_SPANS) % RECENT_SPANS];
+            if (span != null && span.mAbortReason == null) {
+                return span.mStageMs[stage];
+            }
+        }
+        return -1;
+    }
+
+    @VisibleForTesting
+    MetricsLogger.LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    private static String spanToString(Span span) {
+        StringBuilder sb = new StringBuilder(span.mTrigger);
+        for (int i = 0; i < NUM_STAGES; i++) {
+            if (span.mStageMs[i] >= 0) {
+                sb.append(' ').append(STAGE_NAMES[i]).append('=').append(span.mStageMs[i])
+                        .append("ms");
+            }
+        }
+        if (span.mAbortReason != null) {
+            sb.append(" aborted: ").append(span.mAbortReason);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Dump per stage percentiles and the most recent spans.
+     *
+     * @param sb StringBuilder to write to
+     */
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "  SCO setup latency (" + mCompleted + " connected, "
+                + mAborted + " aborted, p50/p90/p99/max):");
+        for (int i = 0; i < NUM_STAGES; i++) {
+            MetricsLogger.LatencyHistogram histogram = mHistograms[i];
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            ProfileService.println(sb, "    " + STAGE_NAMES[i] + ": count=" + count + " "
+                    + histogram.getPercentileNanos(50) / 1000000L + "/"
+                    + histogram.getPercentileNanos(90) / 1000000L + "/"
+                    + histogram.getPercentileNanos(99) / 1000000L + "/"
+                    + histogram.getMaxNanos() / 1000000L + "ms");
+        }
+        if (mSpan != null) {
+            ProfileService.println(sb, "    in progress: " + spanToString(mSpan));
+        }
+        for (int i = 0; i < RECENT_SPANS; i++) {
+            Span span = mRecentSpans[(mRecentNext + i) % RECENT_SPANS];
+            if (span == null) {
+                continue;
+            }
+            ProfileService.println(sb, "    "
+                    + android.text.format.DateFormat.format("MM-dd HH:mm:ss", span.mTimestampMs)
+                    + " " + spanToString(span));
+        }
+    }
+}
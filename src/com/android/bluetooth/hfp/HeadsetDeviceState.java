@@ -15,6 +15,8 @@
  */
 package com.android.bluetooth.hfp;
 
+import java.util.Objects;
+
 /**
  * A blob of data representing AG's device state in response to an AT+CIND command from HF
  */
@@ -65,4 +67,22 @@ class HeadsetDeviceState extends HeadsetMessageObject {
                 .append(mBatteryCharge)
                 .append("]");
     }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof HeadsetDeviceState)) {
+            return false;
+        }
+        HeadsetDeviceState that = (HeadsetDeviceState) object;
+        return mService == that.mService && mRoam == that.mRoam && mSignal == that.mSignal
+                && mBatteryCharge == that.mBatteryCharge;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mService, mRoam, mSignal, mBatteryCharge);
+    }
 }
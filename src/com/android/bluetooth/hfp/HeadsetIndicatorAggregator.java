@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Merges the device indicator updates of {@link HeadsetPhoneState} before they are sent to the
+ * connected headsets.
+ *
+ * Every update is sent to every connected headset as +CIEV, and signal strength in particular
+ * can change many times a minute on a weak network. Changes within a short window are sent as
+ * a single {@link HeadsetDeviceState}, and each indicator is reported at most once per its
+ * minimum interval. Call indicators don't go through here and are always sent immediately.
+ *
+ * Updates can come from any thread, reports are sent from the state machines thread.
+ */
+class HeadsetIndicatorAggregator {
+    private static final String TAG = "HeadsetIndicatorAggregator";
+
+    static final int INDICATOR_SERVICE = 0;
+    static final int INDICATOR_ROAM = 1;
+    static final int INDICATOR_SIGNAL = 2;
+    static final int INDICATOR_BATTERY = 3;
+    static final int NUM_INDICATORS = 4;
+
+    private static final String WINDOW_PROPERTY = "persist.bluetooth.hfp.indicator_window_ms";
+    private static final long DEFAULT_WINDOW_MS = 500;
+    // Minimum time between two reports of each indicator. Service and roaming changes are
+    // only merged within the window.
+    private static final long[] DEFAULT_MIN_INTERVALS_MS = {0, 0, 5000, 10000};
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private final HeadsetService mHeadsetService;
+    private final Handler mHandler;
+    private final long mWindowMs;
+    private final long[] mMinIntervalsMs;
+    private final Runnable mFlushRunnable = this::flush;
+
+    // Latest values from HeadsetPhoneState
+    private final int[] mPending = new int[NUM_INDICATORS];
+    // Values last reported to the headsets, and when they were reported
+    private final int[] mReported = new int[NUM_INDICATORS];
+    private final long[] mReportedTimeMs = new long[NUM_INDICATORS];
+    private boolean mHasReported;
+    // Uptime of the next report, 0 if none is scheduled
+    private long mFlushAtMs;
+
+    private final long mStartTimeMs = SystemClock.elapsedRealtime();
+    private long mUpdates;
+    private long mReports;
+    private long mSuppressed;
+
+    HeadsetIndicatorAggregator(HeadsetService headsetService, Looper looper) {
+        this(headsetService, looper, SystemProperties.getLong(WINDOW_PROPERTY, DEFAULT_WINDOW_MS),
+                DEFAULT_MIN_INTERVALS_MS);
+    }
+
+    @VisibleForTesting
+    HeadsetIndicatorAggregator(HeadsetService headsetService, Looper looper, long windowMs,
+            long[] minIntervalsMs) {
+        mHeadsetService = headsetService;
+        mHandler = new Handler(looper);
+        mWindowMs = Math.max(windowMs, 0);
+        mMinIntervalsMs = minIntervalsMs.clone();
+    }
+
+    /**
+     * Stop sending reports. Instance can no longer be used after calling this method.
+     */
+    synchronized void cleanup() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushAtMs = 0;
+    }
+
+    /**
+     * Queue the latest device state, it is reported once the window is over
+     */
+    synchronized void update(HeadsetDeviceState deviceState) {
+        mUpdates++;
+        mPending[INDICATOR_SERVICE] = deviceState.mService;
+        mPending[INDICATOR_ROAM] = deviceState.mRoam;
+        mPending[INDICATOR_SIGNAL] = deviceState.mSignal;
+        mPending[INDICATOR_BATTERY] = deviceState.mBatteryCharge;
+        // A report held back by a rate limit must not delay the other indicators
+        scheduleFlush(SystemClock.uptimeMillis() + mWindowMs);
+    }
+
+    /**
+     * Count a report that a state machine didn't send because its headset already had it
+     */
+    synchronized void onDeviceStateSuppressed() {
+        mSuppressed++;
+    }
+
+    private void scheduleFlush(long flushAtMs) {
+        if (mFlushAtMs != 0 && mFlushAtMs <= flushAtMs) {
+            return;
+        }
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postAtTime(mFlushRunnable, flushAtMs);
+        mFlushAtMs = flushAtMs;
+    }
+
+    private void flush() {
+        HeadsetDeviceState deviceState;
+        synchronized (this) {
+            mFlushAtMs = 0;
+            long nowMs = SystemClock.uptimeMillis();
+            long nextFlushMs = Long.MAX_VALUE;
+            // Signal is forced to 0 without service, so it follows service changes right away
+            boolean serviceChanged = mPending[INDICATOR_SERVICE] != mReported[INDICATOR_SERVICE];
+            boolean changed = false;
+            for (int i = 0; i < NUM_INDICATORS; i++) {
+                if (mHasReported && mPending[i] == mReported[i]) {
+                    continue;
+                }
+                long allowedMs = mReportedTimeMs[i] + mMinIntervalsMs[i];
+                boolean limited = mHasReported && nowMs < allowedMs
+                        && !(i == INDICATOR_SIGNAL && serviceChanged);
+                if (limited) {
+                    nextFlushMs = Math.min(nextFlushMs, allowedMs);
+                    continue;
+                }
+                mReported[i] = mPending[i];
+                mReportedTimeMs[i] = nowMs;
+                changed = true;
+            }
+            mHasReported = true;
+            if (nextFlushMs != Long.MAX_VALUE) {
+                scheduleFlush(nextFlushMs);
+            }
+            if (!changed) {
+                return;
+            }
+            mReports++;
+            deviceState = new HeadsetDeviceState(mReported[INDICATOR_SERVICE],
+                    mReported[INDICATOR_ROAM], mReported[INDICATOR_SIGNAL],
+                    mReported[INDICATOR_BATTERY]);
+        }
+        Log.d(TAG, "flush: " + deviceState);
+        mHeadsetService.onDeviceStateChanged(deviceState);
+    }
+
+    /**
+     * @return +CIEV commands saved per connected headset per hour. Each update that isn't
+     * reported, or that a headset already had, would have sent every indicator.
+     */
+    @VisibleForTesting
+    synchronized long getSavedCommandsPerHour() {
+        long saved = (Math.max(mUpdates - mReports, 0) + mSuppressed) * NUM_INDICATORS;
+        long elapsedMs = Math.max(SystemClock.elapsedRealtime() - mStartTimeMs, 1);
+        return saved * HOUR_MS / elapsedMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HeadsetIndicatorAggregator [window=" + mWindowMs + "ms, updates=" + mUpdates
+                + ", reports=" + mReports + ", suppressed=" + mSuppressed
+                + ", savedCommandsPerHour=" + getSavedCommandsPerHour() + "]";
+    }
+}
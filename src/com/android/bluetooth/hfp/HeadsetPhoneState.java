@@ -86,12 +86,15 @@ public class HeadsetPhoneState {
     private int[] mSimStatus;
 
     private final HashMap<BluetoothDevice, Integer> mDeviceEventMap = new HashMap<>();
+    private final HeadsetIndicatorAggregator mIndicatorAggregator;
     private PhoneStateListener mPhoneStateListener;
     private final OnSubscriptionsChangedListener mOnSubscriptionsChangedListener;
 
     HeadsetPhoneState(HeadsetService headsetService) {
         Objects.requireNonNull(headsetService, "headsetService is null");
         mHeadsetService = headsetService;
+        mIndicatorAggregator = new HeadsetIndicatorAggregator(headsetService,
+                headsetService.getStateMachinesThreadLooper());
         mTelephonyManager =
                 (TelephonyManager) mHeadsetService.getSystemService(Context.TELEPHONY_SERVICE);
         Objects.requireNonNull(mTelephonyManager, "TELEPHONY_SERVICE is null");
@@ -135,6 +138,7 @@ public class HeadsetPhoneState {
             stopListenForPhoneState();
         }
         mSubscriptionManager.removeOnSubscriptionsChangedListener(mOnSubscriptionsChangedListener);
+        mIndicatorAggregator.cleanup();
         try {
              mHeadsetService.unregisterReceiver(mPhoneStateChangeReceiver);
         } catch (Exception e) {
@@ -147,7 +151,8 @@ public class HeadsetPhoneState {
         return "HeadsetPhoneState [mTelephonyServiceAvailability=" + mCindService + ", mNumActive="
                 + mNumActive + ", mCallState=" + mCallState + ", mNumHeld=" + mNumHeld
                 + ", mSignal=" + mCindSignal + ", mRoam=" + mCindRoam + ", mBatteryCharge="
-                + mCindBatteryCharge + ", TelephonyEvents=" + getTelephonyEventsToListen() + "]";
+                + mCindBatteryCharge + ", TelephonyEvents=" + getTelephonyEventsToListen()
+                + ", " + mIndicatorAggregator + "]";
     }
 
     private int getTelephonyEventsToListen() {
@@ -392,10 +397,18 @@ public class HeadsetPhoneState {
         Log.d(TAG, "sendDeviceStateChanged. mService=" + service + " mIsSimStateLoaded="
                 + mIsSimStateLoaded + " mSignal=" + signal + " mRoam=" + mCindRoam
                 + " mBatteryCharge=" + mCindBatteryCharge);
-        mHeadsetService.onDeviceStateChanged(
+        mIndicatorAggregator.update(
                 new HeadsetDeviceState(service, mCindRoam, signal, mCindBatteryCharge));
     }
 
+    /**
+     * Count a device state update that a state machine didn't send because its device already
+     * had the same state
+     */
+    void onDeviceStateSuppressed() {
+        mIndicatorAggregator.onDeviceStateSuppressed();
+    }
+
     private class HeadsetPhoneStateOnSubscriptionChangedListener
             extends OnSubscriptionsChangedListener {
         HeadsetPhoneStateOnSubscriptionChangedListener(Looper looper) {
@@ -40,6 +40,7 @@ import android.os.Looper;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.telecom.PhoneAccount;
@@ -55,10 +56,12 @@ import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.concurrent.Executor;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import android.telecom.TelecomManager;
 
@@ -99,14 +102,26 @@ public class HeadsetService extends ProfileService {
     private static final int[] CONNECTING_CONNECTED_STATES =
             {BluetoothProfile.STATE_CONNECTING, BluetoothProfile.STATE_CONNECTED};
     private static final int DIALING_OUT_TIMEOUT_MS = 10000;
+    // A current call list query that Telecom didn't answer within this time is asked again
+    private static final int CLCC_QUERY_TIMEOUT_MS = 5000;
+    // Telecom doesn't report every call list change through phoneStateChanged(), e.g. a
+    // participant leaving a conference, so a received call list is only reused this long
+    @VisibleForTesting
+    static final int CLCC_LIST_MAX_AGE_MS = 1000;
 
     private int mMaxHeadsetConnections = 1;
     private int mSetMaxConfig;
-    private BluetoothDevice mActiveDevice;
+    // Written with mStateMachines held, read without it by getActiveDevice()
+    private volatile BluetoothDevice mActiveDevice;
     private AdapterService mAdapterService;
     private HandlerThread mStateMachinesThread;
     // This is also used as a lock for shared data in HeadsetService
     private final HashMap<BluetoothDevice, HeadsetStateMachine> mStateMachines = new HashMap<>();
+    // Immutable copy of mStateMachines for binder reads, replaced with mStateMachines held every
+    // time a state machine is added or removed. Each state machine publishes its own connection
+    // and audio state, so reads of the connection and audio state never wait for this lock.
+    private volatile Map<BluetoothDevice, HeadsetStateMachine> mStateMachinesSnapshot =
+            Collections.emptyMap();
     private HeadsetNativeInterface mNativeInterface;
     private HeadsetSystemInterface mSystemInterface;
     private HeadsetA2dpSync mHfpA2dpSyncInterface;
@@ -118,6 +133,17 @@ public class HeadsetService extends ProfileService {
     // Non null value indicates a pending dialing out event is going on
     private DialingOutTimeoutEvent mDialingOutTimeoutEvent;
     private boolean mVoiceRecognitionStarted;
+    // Entries of the current call list being received from Telecom, one call at a time
+    private final ArrayList<HeadsetClccResponse> mPendingClccList = new ArrayList<>();
+    // Last complete current call list, null once the call state changed after it was asked for
+    private HeadsetClccResponse[] mClccList;
+    // Uptime at which mClccList was received
+    private long mClccListTimeMs;
+    // Uptime at which Telecom was asked for the current call list, 0 if not waiting for it
+    private long mClccQueryTimeMs;
+    // Incremented on every call state change, tells if a received call list is still current
+    private int mCallStateGeneration;
+    private int mClccQueryGeneration;
     // Non null value indicates a pending voice recognition request from headset is going on
     private VoiceRecognitionTimeoutEvent mVoiceRecognitionTimeoutEvent;
     // Timeout when voice recognition is started by remote device
@@ -285,6 +311,7 @@ public class HeadsetService extends ProfileService {
                 HeadsetObjectsFactory.getInstance().destroyStateMachine(stateMachine);
             }
             mStateMachines.clear();
+            publishStateMachines();
         }
         // Step 4: Destroy native interface
         mNativeInterface.cleanup();
@@ -409,6 +436,7 @@ public class HeadsetService extends ProfileService {
                                             mStateMachinesThread.getLooper(), this, mAdapterService,
                                             mNativeInterface, mSystemInterface);
                                 mStateMachines.put(stackEvent.device, stateMachine);
+                                publishStateMachines();
                             } else {
                                 Log.w(TAG, "messageFromNative: mStateMachinesThread is null");
                             }
@@ -972,6 +1000,7 @@ public class HeadsetService extends ProfileService {
                         .makeStateMachine(device, mStateMachinesThread.getLooper(), this,
                                 mAdapterService, mNativeInterface, mSystemInterface);
                     mStateMachines.put(device, stateMachine);
+                    publishStateMachines();
                 } else {
                     Log.w(TAG, "connect: mStateMachinesThread is null");
                 }
@@ -1054,11 +1083,9 @@ public class HeadsetService extends ProfileService {
     public List<BluetoothDevice> getConnectedDevices() {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
         ArrayList<BluetoothDevice> devices = new ArrayList<>();
-        synchronized (mStateMachines) {
-            for (HeadsetStateMachine stateMachine : mStateMachines.values()) {
-                if (stateMachine.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
-                    devices.add(stateMachine.getDevice());
-                }
+        for (HeadsetStateMachine stateMachine : mStateMachinesSnapshot.values()) {
+            if (stateMachine.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
+                devices.add(stateMachine.getDevice());
             }
         }
         return devices;
@@ -1075,22 +1102,20 @@ public class HeadsetService extends ProfileService {
             Log.e(TAG, "->States is null");
             return devices;
         }
-        synchronized (mStateMachines) {
-            final BluetoothDevice[] bondedDevices = mAdapterService.getBondedDevices();
-            if (bondedDevices == null) {
-                Log.e(TAG, "->Bonded device is null");
-                return devices;
-            }
-            for (BluetoothDevice device : bondedDevices) {
-
-                int connectionState = getConnectionState(device);
-                Log.e(TAG, "Connec state for: " + device + "is" + connectionState);
-                for (int state : states) {
-                    if (connectionState == state) {
-                        devices.add(device);
-                        Log.e(TAG, "Adding device: " + device);
-                        break;
-                    }
+        final BluetoothDevice[] bondedDevices = mAdapterService.getBondedDevices();
+        if (bondedDevices == null) {
+            Log.e(TAG, "->Bonded device is null");
+            return devices;
+        }
+        for (BluetoothDevice device : bondedDevices) {
+
+            int connectionState = getConnectionState(device);
+            Log.e(TAG, "Connec state for: " + device + "is" + connectionState);
+            for (int state : states) {
+                if (connectionState == state) {
+                    devices.add(device);
+                    Log.e(TAG, "Adding device: " + device);
+                    break;
                 }
             }
         }
@@ -1107,22 +1132,21 @@ public class HeadsetService extends ProfileService {
     public List<BluetoothDevice> getDevicesMatchingConnectionStates(int[] states) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
         ArrayList<BluetoothDevice> devices = new ArrayList<>();
-        synchronized (mStateMachines) {
-            if (states == null || mAdapterService == null) {
-                return devices;
-            }
-            final BluetoothDevice[] bondedDevices = mAdapterService.getBondedDevices();
-            if (bondedDevices == null) {
-                return devices;
-            }
-            for (BluetoothDevice device : bondedDevices) {
+        final AdapterService adapterService = mAdapterService;
+        if (states == null || adapterService == null) {
+            return devices;
+        }
+        final BluetoothDevice[] bondedDevices = adapterService.getBondedDevices();
+        if (bondedDevices == null) {
+            return devices;
+        }
+        for (BluetoothDevice device : bondedDevices) {
 
-                int connectionState = getConnectionState(device);
-                for (int state : states) {
-                    if (connectionState == state) {
-                        devices.add(device);
-                        break;
-                    }
+            int connectionState = getConnectionState(device);
+            for (int state : states) {
+                if (connectionState == state) {
+                    devices.add(device);
+                    break;
                 }
             }
         }
@@ -1131,13 +1155,11 @@ public class HeadsetService extends ProfileService {
 
     public int getConnectionState(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-        synchronized (mStateMachines) {
-            final HeadsetStateMachine stateMachine = mStateMachines.get(device);
-            if (stateMachine == null) {
-                return BluetoothProfile.STATE_DISCONNECTED;
-            }
-            return stateMachine.getConnectionState();
+        final HeadsetStateMachine stateMachine = mStateMachinesSnapshot.get(device);
+        if (stateMachine == null) {
+            return BluetoothProfile.STATE_DISCONNECTED;
         }
+        return stateMachine.getConnectionState();
     }
 
     public boolean setPriority(BluetoothDevice device, int priority) {
@@ -1315,24 +1337,20 @@ public class HeadsetService extends ProfileService {
     }
     boolean isAudioConnected(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-        synchronized (mStateMachines) {
-            final HeadsetStateMachine stateMachine = mStateMachines.get(device);
-            if (stateMachine == null) {
-                return false;
-            }
-            return stateMachine.getAudioState() == BluetoothHeadset.STATE_AUDIO_CONNECTED;
+        final HeadsetStateMachine stateMachine = mStateMachinesSnapshot.get(device);
+        if (stateMachine == null) {
+            return false;
         }
+        return stateMachine.getAudioState() == BluetoothHeadset.STATE_AUDIO_CONNECTED;
     }
 
     int getAudioState(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-        synchronized (mStateMachines) {
-            final HeadsetStateMachine stateMachine = mStateMachines.get(device);
-            if (stateMachine == null) {
-                return BluetoothHeadset.STATE_AUDIO_DISCONNECTED;
-            }
-            return stateMachine.getAudioState();
+        final HeadsetStateMachine stateMachine = mStateMachinesSnapshot.get(device);
+        if (stateMachine == null) {
+            return BluetoothHeadset.STATE_AUDIO_DISCONNECTED;
         }
+        return stateMachine.getAudioState();
     }
 
     public void setAudioRouteAllowed(boolean allowed) {
@@ -1539,9 +1557,7 @@ public class HeadsetService extends ProfileService {
      */
     public BluetoothDevice getActiveDevice() {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-        synchronized (mStateMachines) {
-            return mActiveDevice;
-        }
+        return mActiveDevice;
     }
 
     boolean connectAudio() {
@@ -1592,11 +1608,9 @@ public class HeadsetService extends ProfileService {
 
     private List<BluetoothDevice> getNonIdleAudioDevices() {
         ArrayList<BluetoothDevice> devices = new ArrayList<>();
-        synchronized (mStateMachines) {
-            for (HeadsetStateMachine stateMachine : mStateMachines.values()) {
-                if (stateMachine.getAudioState() != BluetoothHeadset.STATE_AUDIO_DISCONNECTED) {
-                    devices.add(stateMachine.getDevice());
-                }
+        for (HeadsetStateMachine stateMachine : mStateMachinesSnapshot.values()) {
+            if (stateMachine.getAudioState() != BluetoothHeadset.STATE_AUDIO_DISCONNECTED) {
+                devices.add(stateMachine.getDevice());
             }
         }
         return devices;
@@ -1959,6 +1973,9 @@ public class HeadsetService extends ProfileService {
             int type, String name, boolean isVirtualCall) {
         enforceCallingOrSelfPermission(MODIFY_PHONE_STATE, "Need MODIFY_PHONE_STATE permission");
         synchronized (mStateMachines) {
+            // The current call list has to be asked for again
+            mCallStateGeneration++;
+            mClccList = null;
             if (mStateMachinesThread == null) {
                 Log.w(TAG, "mStateMachinesThread is null, returning");
                 return;
@@ -2048,10 +2065,64 @@ public class HeadsetService extends ProfileService {
             String number, int type) {
         enforceCallingOrSelfPermission(MODIFY_PHONE_STATE, "Need MODIFY_PHONE_STATE permission");
         synchronized (mStateMachines) {
-           doForEachConnectedStateMachine(
-                stateMachine -> stateMachine.sendMessage(HeadsetStateMachine.SEND_CCLC_RESPONSE,
+            // Telecom sends one call at a time and ends the list with index 0
+            if (index != 0) {
+                mPendingClccList.add(
                         new HeadsetClccResponse(index, direction, status, mode, mpty, number,
-                                type)));
+                                type));
+                return;
+            }
+            final HeadsetClccResponse[] calls =
+                    mPendingClccList.toArray(new HeadsetClccResponse[mPendingClccList.size()]);
+            mPendingClccList.clear();
+            mClccQueryTimeMs = 0;
+            // Keep the list for the next AT+CLCC unless the call state changed meanwhile
+            mClccList = (mClccQueryGeneration == mCallStateGeneration) ? calls : null;
+            mClccListTimeMs = SystemClock.uptimeMillis();
+            doForEachConnectedStateMachine(
+                    stateMachine -> stateMachine.sendMessage(HeadsetStateMachine.SEND_CLCC_LIST,
+                            calls));
+        }
+    }
+
+    /**
+     * Get the current call list received from Telecom, if it was received within
+     * {@link #CLCC_LIST_MAX_AGE_MS} and the call state didn't change since.
+     * Called from {@link HeadsetStateMachine} to answer AT+CLCC without asking Telecom again.
+     *
+     * @return the current calls, without the terminating entry, or null if there is none
+     */
+    HeadsetClccResponse[] getCachedClccList() {
+        synchronized (mStateMachines) {
+            if (mClccList != null
+                    && SystemClock.uptimeMillis() - mClccListTimeMs >= CLCC_LIST_MAX_AGE_MS) {
+                mClccList = null;
+            }
+            return mClccList;
+        }
+    }
+
+    /**
+     * Ask Telecom for the current call list, unless it was already asked and didn't answer yet.
+     * The list is sent to all connected state machines with
+     * {@link HeadsetStateMachine#SEND_CLCC_LIST} once complete.
+     *
+     * @return true if the list is going to be sent
+     */
+    boolean requestClccList() {
+        synchronized (mStateMachines) {
+            long nowMs = SystemClock.uptimeMillis();
+            if (mClccQueryTimeMs != 0 && nowMs - mClccQueryTimeMs < CLCC_QUERY_TIMEOUT_MS) {
+                return true;
+            }
+            mPendingClccList.clear();
+            if (!mSystemInterface.listCurrentCalls()) {
+                mClccQueryTimeMs = 0;
+                return false;
+            }
+            mClccQueryTimeMs = nowMs;
+            mClccQueryGeneration = mCallStateGeneration;
+            return true;
         }
     }
 
@@ -2410,9 +2481,15 @@ public class HeadsetService extends ProfileService {
             Log.i(TAG, "removeStateMachine(), removing state machine for device: " + device);
             HeadsetObjectsFactory.getInstance().destroyStateMachine(stateMachine);
             mStateMachines.remove(device);
+            publishStateMachines();
         }
     }
 
+    // Must be called with mStateMachines held
+    private void publishStateMachines() {
+        mStateMachinesSnapshot = Collections.unmodifiableMap(new HashMap<>(mStateMachines));
+    }
+
     private boolean isOnStateMachineThread() {
         final Looper myLooper = Looper.myLooper();
         return myLooper != null && (mStateMachinesThread != null) && (myLooper.getThread().getId()
@@ -2446,6 +2523,8 @@ public class HeadsetService extends ProfileService {
                             .isBluetoothScoOn());
             ProfileService.println(sb, "Telecom.isInCall(): " + mSystemInterface.isInCall());
             ProfileService.println(sb, "Telecom.isRinging(): " + mSystemInterface.isRinging());
+            ProfileService.println(sb,
+                    "HeadsetPhoneState: " + mSystemInterface.getHeadsetPhoneState());
             for (HeadsetStateMachine stateMachine : mStateMachines.values()) {
                 ProfileService.println(sb,
                         "==== StateMachine for " + stateMachine.getDevice() + " ====");
@@ -45,6 +45,7 @@ import android.os.Build;
 
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.btservice.StateMachineProfiler;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -52,7 +53,6 @@ import com.android.internal.util.StateMachine;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -111,7 +111,7 @@ public class HeadsetStateMachine extends StateMachine {
     static final int INTENT_CONNECTION_ACCESS_REPLY = 8;
     static final int CALL_STATE_CHANGED = 9;
     static final int DEVICE_STATE_CHANGED = 10;
-    static final int SEND_CCLC_RESPONSE = 11;
+    static final int SEND_CLCC_LIST = 11;
     static final int SEND_VENDOR_SPECIFIC_RESULT_CODE = 12;
     static final int SEND_BSIR = 13;
     static final int DIALING_OUT_RESULT = 14;
@@ -200,10 +200,9 @@ public class HeadsetStateMachine extends StateMachine {
     private final AudioConnecting mAudioConnecting = new AudioConnecting();
     private final AudioDisconnecting mAudioDisconnecting = new AudioDisconnecting();
     private HeadsetStateBase mPrevState;
-    private HeadsetStateBase mCurrentState;
-
-    // used for synchronizing mCurrentState set/get
-    private final Object mLock = new Object();
+    // Only written by the state machine thread, read by HeadsetService binder calls without
+    // holding any lock
+    private volatile HeadsetStateBase mCurrentState;
 
     // Run time dependencies
     private final HeadsetService mHeadsetService;
@@ -216,6 +215,8 @@ public class HeadsetStateMachine extends StateMachine {
     private int mSpeakerVolume;
     private int mMicVolume;
     private boolean mDeviceSilenced;
+    // Device indicators last sent to the device, through +CIND or a device status update
+    private HeadsetDeviceState mReportedDeviceState;
     private HeadsetAgIndicatorEnableState mAgIndicatorEnableState;
     private boolean mA2dpSuspend;
     private boolean mIsCsCall = true;
@@ -247,6 +248,9 @@ public class HeadsetStateMachine extends StateMachine {
     private HashMap<BluetoothDevice, Integer> mA2dpPlayState =
                                           new HashMap<BluetoothDevice, Integer>();
 
+    // Parser of the AT commands that are not handled by the native stack
+    private final AtCommandParser mAtCommandParser = new AtCommandParser();
+
     // Keys are AT commands, and values are the company IDs.
     private static final Map<String, Integer> VENDOR_SPECIFIC_AT_COMMAND_COMPANY_ID;
 
@@ -269,6 +273,10 @@ public class HeadsetStateMachine extends StateMachine {
                 BluetoothAssignedNumbers.APPLE);
     }
 
+    private final StateMachineProfiler mProfiler =
+            new StateMachineProfiler("hfp", HeadsetStateMachine::getMessageName);
+    private final HeadsetAudioTracer mAudioTracer;
+
     private HeadsetStateMachine(BluetoothDevice device, Looper looper,
             HeadsetService headsetService, AdapterService adapterService,
             HeadsetNativeInterface nativeInterface, HeadsetSystemInterface systemInterface) {
@@ -276,6 +284,7 @@ public class HeadsetStateMachine extends StateMachine {
         // Enable/Disable StateMachine debug logs
         setDbg(DBG);
         mDevice = Objects.requireNonNull(device, "device cannot be null");
+        mAudioTracer = new HeadsetAudioTracer(device.toString());
         mHeadsetService = Objects.requireNonNull(headsetService, "headsetService cannot be null");
         mNativeInterface =
                 Objects.requireNonNull(nativeInterface, "nativeInterface cannot be null");
@@ -285,6 +294,7 @@ public class HeadsetStateMachine extends StateMachine {
         mDeviceSilenced = false;
         // Create phonebook helper
         mPhonebook = new AtPhonebook(mHeadsetService, mNativeInterface);
+        registerAtCommandHandlers();
         mConnectivityManager = (ConnectivityManager)
                           mHeadsetService.getSystemService(mHeadsetService.CONNECTIVITY_SERVICE);
         // Initialize state machine
@@ -358,6 +368,16 @@ public class HeadsetStateMachine extends StateMachine {
         mAudioParams.clear();
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        mProfiler.onPreHandleMessage(msg, getCurrentState());
+    }
+
+    @Override
+    protected void onPostHandleMessage(Message msg) {
+        mProfiler.onPostHandleMessage(msg);
+    }
+
     public void dump(StringBuilder sb) {
         ProfileService.println(sb, "  mCurrentDevice: " + mDevice);
         ProfileService.println(sb, "  mCurrentState: " + mCurrentState);
@@ -383,6 +403,8 @@ public class HeadsetStateMachine extends StateMachine {
             ProfileService.println(sb, "    " + line);
         }
         scanner.close();
+        mProfiler.dump(sb);
+        mAudioTracer.dump(sb);
     }
 
     /**
@@ -397,10 +419,8 @@ public class HeadsetStateMachine extends StateMachine {
             }
             enforceValidConnectionStateTransition();
 
-            synchronized(mLock) {
-                mCurrentState = this;
-                Log.e(TAG, "Setting mCurrentState as " + mCurrentState);
-            }
+            mCurrentState = this;
+            Log.e(TAG, "Setting mCurrentState as " + mCurrentState);
         }
 
         @Override
@@ -570,10 +590,7 @@ public class HeadsetStateMachine extends StateMachine {
     }
 
     public HeadsetStateBase getCurrentHeadsetStateMachineState() {
-        synchronized(mLock) {
-            Log.e(TAG, "returning mCurrentState as " + mCurrentState);
-            return mCurrentState;
-        }
+        return mCurrentState;
     }
 
     class Disconnected extends HeadsetStateBase {
@@ -592,6 +609,7 @@ public class HeadsetStateMachine extends StateMachine {
             super.enter();
             mConnectingTimestampMs = Long.MIN_VALUE;
             mPhonebook.resetAtState();
+            mReportedDeviceState = null;
             updateAgIndicatorEnableState(null);
             mNeedDialingOutReply = false;
             mAudioParams.clear();
@@ -602,6 +620,7 @@ public class HeadsetStateMachine extends StateMachine {
             mStateMachineCallState.mCallState = 0;
             mStateMachineCallState.mNumber = "";
             mStateMachineCallState.mType = 0;
+            mAudioTracer.abort("disconnected");
 
             broadcastStateTransitions();
             // Remove the state machine for unbonded devices
@@ -1080,6 +1099,7 @@ public class HeadsetStateMachine extends StateMachine {
                     boolean isPts = SystemProperties.getBoolean("vendor.bt.pts.certification", false);
 
                     HeadsetCallState callState = (HeadsetCallState) message.obj;
+                    traceCallState(callState, message.getWhen());
                     // for PTS, send the indicators as is
                     if (isPts) {
                         if (!mNativeInterface.phoneStateChange(mDevice, callState)) {
@@ -1136,10 +1156,10 @@ public class HeadsetStateMachine extends StateMachine {
                     processIntentA2dpPlayStateChanged(message.arg1);
                     break;
                 case DEVICE_STATE_CHANGED:
-                    mNativeInterface.notifyDeviceStatus(mDevice, (HeadsetDeviceState) message.obj);
+                    processDeviceStateChanged((HeadsetDeviceState) message.obj);
                     break;
-                case SEND_CCLC_RESPONSE:
-                    processSendClccResponse((HeadsetClccResponse) message.obj);
+                case SEND_CLCC_LIST:
+                    processSendClccList((HeadsetClccResponse[]) message.obj);
                     break;
                 case CLCC_RSP_TIMEOUT: {
                     BluetoothDevice device = (BluetoothDevice) message.obj;
@@ -1410,10 +1430,15 @@ public class HeadsetStateMachine extends StateMachine {
                 break;
                 case CONNECT_AUDIO:
                     stateLogD("CONNECT_AUDIO, device=" + mDevice);
+                    if (!mAudioTracer.isTracing()) {
+                        mAudioTracer.begin("connect_audio", message.getWhen());
+                    }
+                    mAudioTracer.mark(HeadsetAudioTracer.STAGE_REQUEST);
                     int a2dpState = mHeadsetService.getHfpA2DPSyncInterface().isA2dpPlaying();
                     if (!mHeadsetService.isScoAcceptable(mDevice)|| (a2dpState == HeadsetA2dpSync.A2DP_PLAYING)) {
                         stateLogW("No Active/Held call, no call setup,and no in-band ringing,"
                                   + " or A2Dp is playing, not allowing SCO, device=" + mDevice);
+                        mAudioTracer.abort("not allowed");
                         break;
                     }
 
@@ -1428,8 +1453,11 @@ public class HeadsetStateMachine extends StateMachine {
                         }
                     }
 
-                    if (!mNativeInterface.connectAudio(mDevice)) {
+                    boolean connectAudioSent = mNativeInterface.connectAudio(mDevice);
+                    mAudioTracer.mark(HeadsetAudioTracer.STAGE_NATIVE);
+                    if (!connectAudioSent) {
                         stateLogE("Failed to connect SCO audio for " + mDevice);
+                        mAudioTracer.abort("native connectAudio failed");
                         // No state change involved, fire broadcast immediately
                         broadcastAudioState(mDevice, BluetoothHeadset.STATE_AUDIO_DISCONNECTED,
                                 BluetoothHeadset.STATE_AUDIO_DISCONNECTED);
@@ -1465,8 +1493,12 @@ public class HeadsetStateMachine extends StateMachine {
             stateLogD("processAudioEvent, state=" + state);
             switch (state) {
                 case HeadsetHalConstants.AUDIO_STATE_CONNECTED:
+                    if (!mAudioTracer.isTracing()) {
+                        mAudioTracer.begin("remote", 0);
+                    }
                     if (!mHeadsetService.isScoAcceptable(mDevice)) {
                         stateLogW("processAudioEvent: reject incoming audio connection");
+                        mAudioTracer.abort("rejected");
                         if (!mNativeInterface.disconnectAudio(mDevice)) {
                             stateLogE("processAudioEvent: failed to disconnect audio");
                         }
@@ -1482,11 +1514,16 @@ public class HeadsetStateMachine extends StateMachine {
                         stateLogI("Sco connected for CS call, do not check network type");
                     }
                     stateLogI("processAudioEvent: audio connected");
+                    mAudioTracer.mark(HeadsetAudioTracer.STAGE_SCO_SETUP);
                     transitionTo(mAudioOn);
                     break;
                 case HeadsetHalConstants.AUDIO_STATE_CONNECTING:
+                    if (!mAudioTracer.isTracing()) {
+                        mAudioTracer.begin("remote", 0);
+                    }
                     if (!mHeadsetService.isScoAcceptable(mDevice)) {
                         stateLogW("processAudioEvent: reject incoming pending audio connection");
+                        mAudioTracer.abort("rejected");
                         if (!mNativeInterface.disconnectAudio(mDevice)) {
                             stateLogE("processAudioEvent: failed to disconnect pending audio");
                         }
@@ -1544,6 +1581,7 @@ public class HeadsetStateMachine extends StateMachine {
                         break;
                     }
                     stateLogW("CONNECT_TIMEOUT");
+                    mAudioTracer.abort("timeout");
                     transitionTo(mConnected);
                     break;
                 }
@@ -1558,6 +1596,7 @@ public class HeadsetStateMachine extends StateMachine {
             switch (state) {
                 case HeadsetHalConstants.AUDIO_STATE_DISCONNECTED:
                     stateLogW("processAudioEvent: audio connection failed");
+                    mAudioTracer.abort("audio connection failed");
                     transitionTo(mConnected);
                     break;
                 case HeadsetHalConstants.AUDIO_STATE_CONNECTING:
@@ -1574,6 +1613,7 @@ public class HeadsetStateMachine extends StateMachine {
                         stateLogI("Sco connected for CS call, do not check network type");
                     }
                     stateLogI("processAudioEvent: audio connected");
+                    mAudioTracer.mark(HeadsetAudioTracer.STAGE_SCO_SETUP);
                     transitionTo(mAudioOn);
                     break;
                 default:
@@ -1633,6 +1673,7 @@ public class HeadsetStateMachine extends StateMachine {
                     mHeadsetService.getMainExecutor(), mAudioServerStateCallback);
 
             broadcastStateTransitions();
+            mAudioTracer.end();
         }
 
         @Override
@@ -1862,7 +1903,7 @@ public class HeadsetStateMachine extends StateMachine {
      * @return device in focus
      */
     @VisibleForTesting
-    public synchronized BluetoothDevice getDevice() {
+    public BluetoothDevice getDevice() {
         return mDevice;
     }
 
@@ -1874,7 +1915,7 @@ public class HeadsetStateMachine extends StateMachine {
      * {@link BluetoothProfile#STATE_DISCONNECTING}
      */
     @VisibleForTesting
-    public synchronized int getConnectionState() {
+    public int getConnectionState() {
         //getCurrentState()
         HeadsetStateBase state = (HeadsetStateBase) getCurrentHeadsetStateMachineState();
         if (state == null) {
@@ -1890,7 +1931,7 @@ public class HeadsetStateMachine extends StateMachine {
      * {@link BluetoothHeadset#STATE_AUDIO_CONNECTING}, or
      * {@link BluetoothHeadset#STATE_AUDIO_CONNECTED}
      */
-    public synchronized int getAudioState() {
+    public int getAudioState() {
         //getCurrentState()
         HeadsetStateBase state = (HeadsetStateBase) getCurrentHeadsetStateMachineState();
         if (state == null) {
@@ -1955,46 +1996,6 @@ public class HeadsetStateMachine extends StateMachine {
         mSystemInterface.getAudioManager().setParameters(keyValuePairs);
     }
 
-    private String parseUnknownAt(String atString) {
-        StringBuilder atCommand = new StringBuilder(atString.length());
-
-        for (int i = 0; i < atString.length(); i++) {
-            char c = atString.charAt(i);
-            if (c == '"') {
-                int j = atString.indexOf('"', i + 1); // search for closing "
-                if (j == -1) { // unmatched ", insert one.
-                    atCommand.append(atString.substring(i, atString.length()));
-                    atCommand.append('"');
-                    break;
-                }
-                atCommand.append(atString.substring(i, j + 1));
-                i = j;
-            } else if (c != ' ') {
-                atCommand.append(Character.toUpperCase(c));
-            }
-        }
-        return atCommand.toString();
-    }
-
-    private int getAtCommandType(String atCommand) {
-        int commandType = AtPhonebook.TYPE_UNKNOWN;
-        String atString = null;
-        atCommand = atCommand.trim();
-        if (atCommand.length() > 5) {
-            atString = atCommand.substring(5);
-            if (atString.startsWith("?")) { // Read
-                commandType = AtPhonebook.TYPE_READ;
-            } else if (atString.startsWith("=?")) { // Test
-                commandType = AtPhonebook.TYPE_TEST;
-            } else if (atString.startsWith("=")) { // Set
-                commandType = AtPhonebook.TYPE_SET;
-            } else {
-                commandType = AtPhonebook.TYPE_UNKNOWN;
-            }
-        }
-        return commandType;
-    }
-
     private void processDialCall(String number) {
         String dialNumber;
         if (mHeadsetService.hasDeviceInitiatedDialingOut()) {
@@ -2357,9 +2358,34 @@ public class HeadsetStateMachine extends StateMachine {
         }
     }
 
+    // Start tracing the audio setup of a call that is answered or dialed while audio is off, and
+    // drop the trace when the call ends before audio is connected
+    private void traceCallState(HeadsetCallState callState, long whenMs) {
+        if (getAudioState() != BluetoothHeadset.STATE_AUDIO_DISCONNECTED) {
+            return;
+        }
+        if (callState.mNumActive == 0 && callState.mNumHeld == 0
+                && callState.mCallState == HeadsetHalConstants.CALL_STATE_IDLE) {
+            mAudioTracer.abort("call ended");
+        } else if (!mAudioTracer.isTracing()
+                && (callState.mNumActive > mStateMachineCallState.mNumActive
+                || callState.mCallState == HeadsetHalConstants.CALL_STATE_DIALING)) {
+            mAudioTracer.begin("call", whenMs);
+            mAudioTracer.mark(HeadsetAudioTracer.STAGE_PHONE_STATE);
+        }
+    }
+
+    @VisibleForTesting
+    HeadsetAudioTracer getAudioTracer() {
+        return mAudioTracer;
+    }
+
     private void processIntentA2dpPlayStateChanged(int a2dpState) {
         Log.d(TAG, "Enter processIntentA2dpPlayStateChanged(): a2dp state "+
                   a2dpState);
+        if (getAudioState() == BluetoothHeadset.STATE_AUDIO_DISCONNECTED) {
+            mAudioTracer.mark(HeadsetAudioTracer.STAGE_A2DP_SUSPEND);
+        }
         if (mHeadsetService.isVRStarted()) {
             Log.d(TAG, "VR is in started state");
             if (mDevice.equals(mHeadsetService.getActiveDevice())) {
@@ -2458,6 +2484,18 @@ public class HeadsetStateMachine extends StateMachine {
         }
     }
 
+    private void processDeviceStateChanged(HeadsetDeviceState deviceState) {
+        if (deviceState.equals(mReportedDeviceState)) {
+            // Every indicator would be sent again with the same value
+            log("processDeviceStateChanged: already reported " + deviceState);
+            mSystemInterface.getHeadsetPhoneState().onDeviceStateSuppressed();
+            return;
+        }
+        if (mNativeInterface.notifyDeviceStatus(mDevice, deviceState)) {
+            mReportedDeviceState = deviceState;
+        }
+    }
+
     private void processAtCind(BluetoothDevice device) {
         int call, callSetup, call_state, service, signal;
          // get the top of the Q
@@ -2500,9 +2538,12 @@ public class HeadsetStateMachine extends StateMachine {
              signal = phoneState.getCindSignal();
         }
 
-        mNativeInterface.cindResponse(device, service, call, callSetup,
+        if (mNativeInterface.cindResponse(device, service, call, callSetup,
                 call_state, signal, phoneState.getCindRoam(),
-                phoneState.getCindBatteryCharge());
+                phoneState.getCindBatteryCharge())) {
+            mReportedDeviceState = new HeadsetDeviceState(service, phoneState.getCindRoam(),
+                    signal, phoneState.getCindBatteryCharge());
+        }
         log("Exit processAtCind()");
     }
 
@@ -2534,12 +2575,19 @@ public class HeadsetStateMachine extends StateMachine {
             }
             mNativeInterface.clccResponse(device, 0, 0, 0, 0, false, "", 0);
         } else {
-            // In Telecom call, ask Telecom to send send remote phone number
-            if (!mSystemInterface.listCurrentCalls()) {
+            // In Telecom call, answer with the list Telecom last sent if calls didn't change
+            // since, otherwise ask Telecom for it, once for all connected devices
+            HeadsetClccResponse[] calls = mHeadsetService.getCachedClccList();
+            if (calls != null) {
+                sendClccList(device, calls);
+                return;
+            }
+            // Must be pending before the list can arrive
+            sendMessageDelayed(CLCC_RSP_TIMEOUT, device, CLCC_RSP_TIMEOUT_MS);
+            if (!mHeadsetService.requestClccList()) {
                 Log.e(TAG, "processAtClcc: failed to list current calls for " + device);
+                removeMessages(CLCC_RSP_TIMEOUT);
                 mNativeInterface.clccResponse(device, 0, 0, 0, 0, false, "", 0);
-            } else {
-                sendMessageDelayed(CLCC_RSP_TIMEOUT, device, CLCC_RSP_TIMEOUT_MS);
             }
         }
     }
@@ -2575,105 +2623,82 @@ public class HeadsetStateMachine extends StateMachine {
     }
 
     /**
-     * Find a character ch, ignoring quoted sections.
-     * Return input.length() if not found.
+     * Register the handlers of the AT commands that are not handled by the native stack
      */
-    private static int findChar(char ch, String input, int fromIndex) {
-        for (int i = fromIndex; i < input.length(); i++) {
-            char c = input.charAt(i);
-            if (c == '"') {
-                i = input.indexOf('"', i + 1);
-                if (i == -1) {
-                    return input.length();
-                }
-            } else if (c == ch) {
-                return i;
+    private void registerAtCommandHandlers() {
+        mAtCommandParser.register("+CSCS", (command, device) ->
+                processAtCscs(command.getParams(), command.getType(), device));
+        mAtCommandParser.register("+CPBS", (command, device) ->
+                processAtCpbs(command.getParams(), command.getType(), device));
+        mAtCommandParser.register("+CPBR", (command, device) ->
+                processAtCpbr(command.getParams(), command.getType(), device));
+        mAtCommandParser.register("+CSQ", (command, device) ->
+                mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_ERROR, 0));
+        mAtCommandParser.register("+CGMI", (command, device) -> {
+            if (command.getType() != AtPhonebook.TYPE_UNKNOWN) {
+                mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_ERROR, 0);
+                return;
             }
-        }
-        return input.length();
-    }
-
-    /**
-     * Break an argument string into individual arguments (comma delimited).
-     * Integer arguments are turned into Integer objects. Otherwise a String
-     * object is used.
-     */
-    private static Object[] generateArgs(String input) {
-        int i = 0;
-        int j;
-        ArrayList<Object> out = new ArrayList<Object>();
-        while (i <= input.length()) {
-            j = findChar(',', input, i);
-
-            String arg = input.substring(i, j);
-            try {
-                out.add(new Integer(arg));
-            } catch (NumberFormatException e) {
-                out.add(arg);
+            mNativeInterface.atResponseString(device, "+CGMI: \"" + Build.MANUFACTURER + "\"");
+            mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_OK, 0);
+        });
+        mAtCommandParser.register("+CGMM", (command, device) -> {
+            if (command.getType() != AtPhonebook.TYPE_UNKNOWN) {
+                mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_ERROR, 0);
+                return;
             }
-
-            i = j + 1; // move past comma
+            mNativeInterface.atResponseString(device, "+CGMM: " + Build.MODEL);
+            mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_OK, 0);
+        });
+        for (Map.Entry<String, Integer> entry : VENDOR_SPECIFIC_AT_COMMAND_COMPANY_ID.entrySet()) {
+            String name = entry.getKey();
+            int companyId = entry.getValue();
+            mAtCommandParser.register(name, (command, device) ->
+                    processVendorSpecificAt(command, name, companyId, device));
         }
-        return out.toArray();
     }
 
     /**
      * Process vendor specific AT commands
      *
-     * @param atString AT command after the "AT+" prefix
+     * @param command parsed AT command
+     * @param name name of the command, for example "+XAPL"
+     * @param companyId company that defined the command
      * @param device Remote device that has sent this command
      */
-    private void processVendorSpecificAt(String atString, BluetoothDevice device) {
-        log("processVendorSpecificAt - atString = " + atString);
-
+    private void processVendorSpecificAt(AtCommandParser command, String name, int companyId,
+            BluetoothDevice device) {
         // Currently we accept only SET type commands.
-        int indexOfEqual = atString.indexOf("=");
-        if (indexOfEqual == -1) {
-            Log.w(TAG, "processVendorSpecificAt: command type error in " + atString);
+        if (command.getType() != AtPhonebook.TYPE_SET) {
+            Log.w(TAG, "processVendorSpecificAt: command type error in " + command);
             mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_ERROR, 0);
             return;
         }
 
-        String command = atString.substring(0, indexOfEqual);
-        Integer companyId = VENDOR_SPECIFIC_AT_COMMAND_COMPANY_ID.get(command);
-        if (companyId == null) {
-            Log.i(TAG, "processVendorSpecificAt: unsupported command: " + atString);
-            mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_ERROR, 0);
-            return;
+        if (name.equals(BluetoothHeadset.VENDOR_SPECIFIC_HEADSET_EVENT_XAPL)) {
+            processAtXapl(command, device);
         }
-
-        String arg = atString.substring(indexOfEqual + 1);
-        if (arg.startsWith("?")) {
-            Log.w(TAG, "processVendorSpecificAt: command type error in " + atString);
-            mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_ERROR, 0);
-            return;
-        }
-
-        Object[] args = generateArgs(arg);
-        if (command.equals(BluetoothHeadset.VENDOR_SPECIFIC_HEADSET_EVENT_XAPL)) {
-            processAtXapl(args, device);
-        }
-        broadcastVendorSpecificEventIntent(command, companyId, BluetoothHeadset.AT_CMD_TYPE_SET,
-                args, device);
+        broadcastVendorSpecificEventIntent(name, companyId, BluetoothHeadset.AT_CMD_TYPE_SET,
+                command.getArgs(), device);
         mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_OK, 0);
     }
 
     /**
      * Process AT+XAPL AT command
      *
-     * @param args command arguments after the equal sign
+     * @param command parsed AT command, with the arguments after the equal sign
      * @param device Remote device that has sent this command
      */
-    private void processAtXapl(Object[] args, BluetoothDevice device) {
-        if (args.length != 2) {
-            Log.w(TAG, "processAtXapl() args length must be 2: " + String.valueOf(args.length));
+    private void processAtXapl(AtCommandParser command, BluetoothDevice device) {
+        if (command.getArgCount() != 2) {
+            Log.w(TAG, "processAtXapl() args length must be 2: " + command.getArgCount());
             return;
         }
-        if (!(args[0] instanceof String) || !(args[1] instanceof Integer)) {
+        if (command.isIntArg(0) || !command.isIntArg(1)) {
             Log.w(TAG, "processAtXapl() argument types not match");
             return;
         }
-        String[] deviceInfo = ((String) args[0]).split("-");
+        String[] deviceInfo = command.getStringArg(0).split("-");
         if (deviceInfo.length != 3) {
             Log.w(TAG, "processAtXapl() deviceInfo length " + deviceInfo.length + " is wrong");
             return;
@@ -2695,24 +2720,10 @@ public class HeadsetStateMachine extends StateMachine {
             return;
         }
         log("processUnknownAt - atString = " + atString);
-        String atCommand = parseUnknownAt(atString);
-        int commandType = getAtCommandType(atCommand);
-        if (atCommand.startsWith("+CSCS")) {
-            processAtCscs(atCommand.substring(5), commandType, device);
-        } else if (atCommand.startsWith("+CPBS")) {
-            processAtCpbs(atCommand.substring(5), commandType, device);
-        } else if (atCommand.startsWith("+CPBR")) {
-            processAtCpbr(atCommand.substring(5), commandType, device);
-        } else if (atCommand.startsWith("+CSQ")) {
+        mAtCommandParser.parse(atString);
+        if (!mAtCommandParser.dispatch(device)) {
+            Log.i(TAG, "processUnknownAt: unsupported command: " + mAtCommandParser);
             mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_ERROR, 0);
-        } else if (atCommand.equals("+CGMI")) {
-            mNativeInterface.atResponseString(device, "+CGMI: \"" + Build.MANUFACTURER + "\"");
-            mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_OK, 0);
-        } else if (atCommand.equals("+CGMM")) {
-            mNativeInterface.atResponseString(device, "+CGMM: " + Build.MODEL);
-            mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_OK, 0);
-        } else {
-            processVendorSpecificAt(atCommand, device);
         }
     }
 
@@ -2891,31 +2902,37 @@ public class HeadsetStateMachine extends StateMachine {
         Log.d(TAG, "Exit processCpbr()");
     }
 
-    private void processSendClccResponse(HeadsetClccResponse clcc) {
+    private void processSendClccList(HeadsetClccResponse[] calls) {
+        // Only answer if this device asked for the list
         if (!hasMessages(CLCC_RSP_TIMEOUT)) {
             return;
         }
-        if (clcc.mIndex == 0) {
-            removeMessages(CLCC_RSP_TIMEOUT);
-        }
+        removeMessages(CLCC_RSP_TIMEOUT);
+        sendClccList(mDevice, calls);
+    }
+
+    /**
+     * Send the current calls to the headset as +CLCC, followed by the final OK
+     *
+     * @param device remote device that sent AT+CLCC
+     * @param calls current calls, without the terminating entry
+     */
+    private void sendClccList(BluetoothDevice device, HeadsetClccResponse[] calls) {
         // get the top of the Q
         HeadsetCallState tempCallState = mDelayedCSCallStates.peek();
-
-        /* Send call state DIALING if call alerting update is still in the Q */
-        if (clcc.mStatus == HeadsetHalConstants.CALL_STATE_ALERTING &&
-            tempCallState != null &&
-            tempCallState.mCallState == HeadsetHalConstants.CALL_STATE_ALERTING) {
-            log("sending call status as DIALING");
-            mNativeInterface.clccResponse(mDevice, clcc.mIndex, clcc.mDirection,
-                                          HeadsetHalConstants.CALL_STATE_DIALING,
-                                   clcc.mMode, clcc.mMpty, clcc.mNumber, clcc.mType);
-        } else {
-            log("sending call status as " + clcc.mStatus);
-            mNativeInterface.clccResponse(mDevice, clcc.mIndex, clcc.mDirection,
-                                          clcc.mStatus,
-                                   clcc.mMode, clcc.mMpty, clcc.mNumber, clcc.mType);
+        for (HeadsetClccResponse clcc : calls) {
+            /* Send call state DIALING if call alerting update is still in the Q */
+            int status = clcc.mStatus;
+            if (status == HeadsetHalConstants.CALL_STATE_ALERTING && tempCallState != null
+                    && tempCallState.mCallState == HeadsetHalConstants.CALL_STATE_ALERTING) {
+                log("sending call status as DIALING");
+                status = HeadsetHalConstants.CALL_STATE_DIALING;
+            }
+            mNativeInterface.clccResponse(device, clcc.mIndex, clcc.mDirection, status,
+                    clcc.mMode, clcc.mMpty, clcc.mNumber, clcc.mType);
         }
-        log("Exit processSendClccResponse()");
+        mNativeInterface.clccResponse(device, 0, 0, 0, 0, false, "", 0);
+        log("sendClccList: sent " + calls.length + " calls to " + device);
     }
 
     private void processSendVendorSpecificResultCode(HeadsetVendorSpecificResultCode resultCode) {
@@ -3087,8 +3104,8 @@ public class HeadsetStateMachine extends StateMachine {
                 return "CALL_STATE_CHANGED";
             case DEVICE_STATE_CHANGED:
                 return "DEVICE_STATE_CHANGED";
-            case SEND_CCLC_RESPONSE:
-                return "SEND_CCLC_RESPONSE";
+            case SEND_CLCC_LIST:
+                return "SEND_CLCC_LIST";
             case SEND_VENDOR_SPECIFIC_RESULT_CODE:
                 return "SEND_VENDOR_SPECIFIC_RESULT_CODE";
             case STACK_EVENT:
@@ -49,6 +49,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 import android.util.StatsLog;
@@ -66,8 +67,9 @@ import com.android.internal.util.StateMachine;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -120,6 +122,11 @@ public class HeadsetClientStateMachine extends StateMachine {
     static final int HF_ORIGINATED_CALL_ID = -1;
     private static final long OUTGOING_TIMEOUT_MILLI = 10 * 1000; // 10 seconds
     private static final long QUERY_CURRENT_CALLS_WAIT_MILLIS = 2 * 1000; // 2 seconds
+    // Adaptive call sync: longest wait between two queries while calls don't change, and time
+    // after which a query the AG didn't answer no longer holds back new ones
+    private static final long QUERY_CURRENT_CALLS_MAX_WAIT_MILLIS = 32 * 1000; // 32 seconds
+    private static final long QUERY_CURRENT_CALLS_TIMEOUT_MILLIS = 5 * 1000; // 5 seconds
+    private static final long MINUTE_MILLIS = 60 * 1000;
 
     // Keep track of audio routing across all devices.
     private static boolean sAudioIsRouted = false;
@@ -129,16 +136,30 @@ public class HeadsetClientStateMachine extends StateMachine {
     private final Connected mConnected;
     private final AudioOn mAudioOn;
     private State mPrevState;
-    private long mClccTimer = 0;
 
     private final HeadsetClientService mService;
 
     // Set of calls that represent the accurate state of calls that exists on AG and the calls that
-    // are currently in process of being notified to the AG from HF.
-    private final Hashtable<Integer, BluetoothHeadsetClientCall> mCalls = new Hashtable<>();
+    // are currently in process of being notified to the AG from HF. Only accessed from the state
+    // machine thread, other threads read mCallsSnapshot.
+    private final HashMap<Integer, BluetoothHeadsetClientCall> mCalls = new HashMap<>();
     // Set of calls received from AG via the AT+CLCC command. We use this map to update the mCalls
     // which is eventually used to inform the telephony stack of any changes to call on HF.
-    private final Hashtable<Integer, BluetoothHeadsetClientCall> mCallsUpdate = new Hashtable<>();
+    private final HashMap<Integer, BluetoothHeadsetClientCall> mCallsUpdate = new HashMap<>();
+    // Copy of mCalls values, replaced each time mCalls changes
+    private volatile List<BluetoothHeadsetClientCall> mCallsSnapshot = Collections.emptyList();
+
+    // Elapsed time at which AT+CLCC was sent, 0 if no answer is expected
+    private long mCallsQueryTimeMs;
+    // A call event arrived while AT+CLCC was being answered, query again once done
+    private boolean mCallsQueryAgain;
+    // Wait before the next AT+CLCC in adaptive call sync, doubles while calls don't change
+    private long mCallsQueryWaitMs = QUERY_CURRENT_CALLS_WAIT_MILLIS;
+    // Call sync statistics
+    private long mCallsQueries;
+    private long mCallEvents;
+    private long mCallTimeMs;
+    private long mCallStartMs;
 
     private int mIndicatorNetworkState;
     private int mIndicatorNetworkType;
@@ -200,18 +221,76 @@ public class HeadsetClientStateMachine extends StateMachine {
         ProfileService.println(sb, "mSubscriberInfo: " + mSubscriberInfo);
 
         ProfileService.println(sb, "mCalls:");
-        if (mCalls != null) {
-            for (BluetoothHeadsetClientCall call : mCalls.values()) {
-                ProfileService.println(sb, "  " + call);
-            }
+        for (BluetoothHeadsetClientCall call : mCallsSnapshot) {
+            ProfileService.println(sb, "  " + call);
         }
+        ProfileService.println(sb, "Call sync: adaptive=" + isAdaptiveCallSync() + ", queries="
+                + mCallsQueries + ", call events=" + mCallEvents + ", call time="
+                + getCallTimeMillis() / 1000 + "s, saved queries per call minute="
+                + getSavedQueriesPerCallMinute());
+    }
 
-        ProfileService.println(sb, "mCallsUpdate:");
-        if (mCallsUpdate != null) {
-            for (BluetoothHeadsetClientCall call : mCallsUpdate.values()) {
-                ProfileService.println(sb, "  " + call);
-            }
+    // Must be called on the state machine thread after each change of mCalls
+    private void publishCalls() {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (mCalls.isEmpty() && mCallStartMs != 0) {
+            mCallTimeMs += nowMs - mCallStartMs;
+            mCallStartMs = 0;
+        } else if (!mCalls.isEmpty() && mCallStartMs == 0) {
+            mCallStartMs = nowMs;
         }
+        mCallsSnapshot = Collections.unmodifiableList(new ArrayList<>(mCalls.values()));
+    }
+
+    private void resetCallSync() {
+        mCallsQueryTimeMs = 0;
+        mCallsQueryAgain = false;
+        mCallsQueryWaitMs = QUERY_CURRENT_CALLS_WAIT_MILLIS;
+    }
+
+    private boolean isAdaptiveCallSync() {
+        return mService.getResources().getBoolean(R.bool.hfp_clcc_adaptive_sync);
+    }
+
+    // Calls in these states can change without an indicator the HF can rely on, for example the
+    // AG sends +CLIP and RING until the call is answered and may skip callsetup updates
+    private boolean isCallStateAmbiguous() {
+        return mCalls.containsKey(HF_ORIGINATED_CALL_ID)
+                || getCall(BluetoothHeadsetClientCall.CALL_STATE_INCOMING,
+                        BluetoothHeadsetClientCall.CALL_STATE_WAITING,
+                        BluetoothHeadsetClientCall.CALL_STATE_DIALING,
+                        BluetoothHeadsetClientCall.CALL_STATE_ALERTING) != null;
+    }
+
+    private long getCallTimeMillis() {
+        long callTimeMs = mCallTimeMs;
+        long callStartMs = mCallStartMs;
+        if (callStartMs != 0) {
+            callTimeMs += SystemClock.elapsedRealtime() - callStartMs;
+        }
+        return callTimeMs;
+    }
+
+    /**
+     * @return AT+CLCC commands saved per minute of calls, compared to querying on every call
+     * event and polling every {@link #QUERY_CURRENT_CALLS_WAIT_MILLIS} while there are calls
+     */
+    @VisibleForTesting
+    long getSavedQueriesPerCallMinute() {
+        long callTimeMs = getCallTimeMillis();
+        long legacyQueries = mCallEvents + callTimeMs / QUERY_CURRENT_CALLS_WAIT_MILLIS;
+        long saved = Math.max(legacyQueries - mCallsQueries, 0);
+        return saved * MINUTE_MILLIS / Math.max(callTimeMs, 1);
+    }
+
+    @VisibleForTesting
+    long getCallsQueryCount() {
+        return mCallsQueries;
+    }
+
+    @VisibleForTesting
+    long getCallsQueryWaitMillis() {
+        return mCallsQueryWaitMs;
     }
 
     private void clearPendingAction() {
@@ -272,13 +351,36 @@ public class HeadsetClientStateMachine extends StateMachine {
         clearPendingAction();
         NativeInterface.queryCurrentCallsNative(getByteAddress(mCurrentDevice));
         addQueuedAction(QUERY_CURRENT_CALLS, 0);
+        mCallsQueryTimeMs = SystemClock.elapsedRealtime();
+        mCallsQueries++;
         return true;
     }
 
+    // Handle QUERY_CURRENT_CALLS in adaptive call sync
+    private void queryCallsAdaptive() {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (mCallsQueryTimeMs != 0
+                && nowMs - mCallsQueryTimeMs < QUERY_CURRENT_CALLS_TIMEOUT_MILLIS) {
+            // The answer may predate the event, ask again once it is complete
+            mCallsQueryAgain = true;
+            sendMessageDelayed(QUERY_CURRENT_CALLS,
+                    mCallsQueryTimeMs + QUERY_CURRENT_CALLS_TIMEOUT_MILLIS - nowMs);
+            return;
+        }
+        mCallsQueryAgain = false;
+        if (mCalls.size() > 0) {
+            // In case the AG doesn't answer
+            sendMessageDelayed(QUERY_CURRENT_CALLS,
+                    Math.max(mCallsQueryWaitMs, QUERY_CURRENT_CALLS_TIMEOUT_MILLIS));
+        }
+        queryCallsStart();
+    }
+
     private void queryCallsDone() {
         if (DBG) {
             Log.d(TAG, "queryCallsDone");
         }
+        mCallsQueryTimeMs = 0;
         // mCalls has two types of calls:
         // (a) Calls that are received from AG of a previous iteration of queryCallsStart()
         // (b) Calls that are outgoing initiated from HF
@@ -360,6 +462,7 @@ public class HeadsetClientStateMachine extends StateMachine {
                     sendCallChangedIntent(c1);
                 }
                 mCalls.clear();
+                publishCalls();
 
                 // We return here, if there's any update to the phone we should get a
                 // follow up by getting some call indicators and hence update the calls.
@@ -388,9 +491,13 @@ public class HeadsetClientStateMachine extends StateMachine {
         }
 
         // Update the existing calls.
+        boolean callsChanged = !callAddedIds.isEmpty() || !callRemovedIds.isEmpty();
         for (Integer idx : callRetainedIds) {
             BluetoothHeadsetClientCall cOrig = mCalls.get(idx);
             BluetoothHeadsetClientCall cUpdate = mCallsUpdate.get(idx);
+            callsChanged |= cOrig.getState() != cUpdate.getState()
+                    || cOrig.isMultiParty() != cUpdate.isMultiParty()
+                    || !TextUtils.equals(cOrig.getNumber(), cUpdate.getNumber());
 
             // Update the necessary fields.
             cOrig.setNumber(cUpdate.getNumber());
@@ -400,8 +507,26 @@ public class HeadsetClientStateMachine extends StateMachine {
             // Send update with original object (UUID, idx).
             sendCallChangedIntent(cOrig);
         }
+        publishCalls();
 
-        if (mCalls.size() > 0) {
+        if (isAdaptiveCallSync()) {
+            removeMessages(QUERY_CURRENT_CALLS);
+            if (mCallsQueryAgain) {
+                sendMessage(QUERY_CURRENT_CALLS);
+            } else if (mCalls.size() > 0) {
+                // Poll quickly while calls change or are being set up, back off once stable
+                if (callsChanged || isCallStateAmbiguous()) {
+                    mCallsQueryWaitMs = QUERY_CURRENT_CALLS_WAIT_MILLIS;
+                } else {
+                    mCallsQueryWaitMs =
+                            Math.min(mCallsQueryWaitMs * 2, QUERY_CURRENT_CALLS_MAX_WAIT_MILLIS);
+                }
+                if (mService.getResources().getBoolean(R.bool.hfp_clcc_poll_during_call)
+                        || getCall(BluetoothHeadsetClientCall.CALL_STATE_INCOMING) != null) {
+                    sendMessageDelayed(QUERY_CURRENT_CALLS, mCallsQueryWaitMs);
+                }
+            }
+        } else if (mCalls.size() > 0) {
             if (mService.getResources().getBoolean(R.bool.hfp_clcc_poll_during_call)) {
                 sendMessageDelayed(QUERY_CURRENT_CALLS, QUERY_CURRENT_CALLS_WAIT_MILLIS);
             } else {
@@ -723,6 +848,7 @@ public class HeadsetClientStateMachine extends StateMachine {
 
         mCalls.clear();
         mCallsUpdate.clear();
+        mCallsSnapshot = Collections.emptyList();
 
         mDisconnected = new Disconnected();
         mConnecting = new Connecting();
@@ -838,6 +964,8 @@ public class HeadsetClientStateMachine extends StateMachine {
 
             mCalls.clear();
             mCallsUpdate.clear();
+            publishCalls();
+            resetCallSync();
 
             mPeerFeatures = 0;
             mChldFeatures = 0;
@@ -1223,6 +1351,8 @@ public class HeadsetClientStateMachine extends StateMachine {
                     // Add the call as an outgoing call.
                     BluetoothHeadsetClientCall c = (BluetoothHeadsetClientCall) message.obj;
                     mCalls.put(HF_ORIGINATED_CALL_ID, c);
+                    publishCalls();
+                    mCallsQueryWaitMs = QUERY_CURRENT_CALLS_WAIT_MILLIS;
 
                     if (NativeInterface.dialNative(getByteAddress(mCurrentDevice), c.getNumber())) {
                         addQueuedAction(DIAL_NUMBER, c.getNumber());
@@ -1235,6 +1365,7 @@ public class HeadsetClientStateMachine extends StateMachine {
                         c.setState(BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
                         sendCallChangedIntent(c);
                         mCalls.remove(HF_ORIGINATED_CALL_ID);
+                        publishCalls();
                     }
                     break;
                 case ACCEPT_CALL:
@@ -1273,6 +1404,10 @@ public class HeadsetClientStateMachine extends StateMachine {
                     break;
                 case QUERY_CURRENT_CALLS:
                     removeMessages(QUERY_CURRENT_CALLS);
+                    if (isAdaptiveCallSync()) {
+                        queryCallsAdaptive();
+                        break;
+                    }
                     if (mCalls.size() > 0) {
                         // If there are ongoing calls periodically check their status.
                         sendMessageDelayed(QUERY_CURRENT_CALLS, QUERY_CURRENT_CALLS_WAIT_MILLIS);
@@ -1384,6 +1519,8 @@ public class HeadsetClientStateMachine extends StateMachine {
                         case StackEvent.EVENT_TYPE_RESP_AND_HOLD:
                         case StackEvent.EVENT_TYPE_CLIP:
                         case StackEvent.EVENT_TYPE_CALL_WAITING:
+                            mCallEvents++;
+                            mCallsQueryWaitMs = QUERY_CURRENT_CALLS_WAIT_MILLIS;
                             sendMessage(QUERY_CURRENT_CALLS);
                             break;
                         case StackEvent.EVENT_TYPE_CURRENT_CALLS:
@@ -1894,7 +2031,7 @@ public class HeadsetClientStateMachine extends StateMachine {
     }
 
     public List<BluetoothHeadsetClientCall> getCurrentCalls() {
-        return new ArrayList<BluetoothHeadsetClientCall>(mCalls.values());
+        return new ArrayList<BluetoothHeadsetClientCall>(mCallsSnapshot);
     }
 
     public Bundle getCurrentAgEvents() {
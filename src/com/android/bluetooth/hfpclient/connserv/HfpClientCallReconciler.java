@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.hfpclient.connserv;
+
+import android.bluetooth.BluetoothHeadsetClientCall;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Computes the changes between the call lists sent by the AG, keyed by call UUID.
+//
+// HeadsetClientStateMachine broadcasts every call each time it queries the AG, whether it changed
+// or not. Calls received in one burst of intents are collected with update() and applied with
+// flush(), which only reports the calls that differ from what was last applied to Telecom. Not
+// thread safe, the owner serializes the calls.
+class HfpClientCallReconciler {
+    // The call is not known yet
+    static final int CHANGE_NEW = 1 << 0;
+    // The call state changed
+    static final int CHANGE_STATE = 1 << 1;
+    // The number or the multiparty flag changed
+    static final int CHANGE_DETAILS = 1 << 2;
+
+    interface Callback {
+        // Apply a call that changed since the last flush, changes is a set of CHANGE_ flags.
+        // Terminated calls are reported once, with CHANGE_STATE.
+        void onCallChanged(BluetoothHeadsetClientCall call, int changes);
+
+        // Calls were added, removed or changed multiparty, or there is a multiparty call that
+        // may have to be added to a conference
+        void onConferenceableChanged();
+    }
+
+    // What was last applied to Telecom for a call
+    private static class AppliedCall {
+        final int mState;
+        final String mNumber;
+        final boolean mMultiParty;
+
+        AppliedCall(BluetoothHeadsetClientCall call) {
+            mState = call.getState();
+            mNumber = call.getNumber();
+            mMultiParty = call.isMultiParty();
+        }
+    }
+
+    private final Map<UUID, AppliedCall> mApplied = new HashMap<>();
+    // Latest version of each call received since the last flush, in arrival order
+    private final Map<UUID, BluetoothHeadsetClientCall> mPending = new LinkedHashMap<>();
+
+    private long mReceived;
+    private long mApplyCount;
+
+    /**
+     * Queue a call received from the AG, replacing any version of it queued before
+     *
+     * @return true if this is the first call queued since the last flush
+     */
+    boolean update(BluetoothHeadsetClientCall call) {
+        mReceived++;
+        boolean first = mPending.isEmpty();
+        // Remove first so that the call moves to the end of the arrival order
+        mPending.remove(call.getUUID());
+        mPending.put(call.getUUID(), call);
+        return first;
+    }
+
+    /**
+     * Report the queued calls that changed, and forget the ones that are terminated
+     */
+    void flush(Callback callback) {
+        boolean conferenceable = false;
+        for (BluetoothHeadsetClientCall call : mPending.values()) {
+            UUID uuid = call.getUUID();
+            AppliedCall applied = mApplied.get(uuid);
+            boolean terminated =
+                    call.getState() == BluetoothHeadsetClientCall.CALL_STATE_TERMINATED;
+            conferenceable |= call.isMultiParty();
+            int changes = 0;
+            if (applied == null) {
+                // Also reported when terminated, the call may have been dialed from the HF
+                changes = CHANGE_NEW | CHANGE_STATE;
+            } else {
+                if (applied.mState != call.getState()) {
+                    changes |= CHANGE_STATE;
+                }
+                if (applied.mMultiParty != call.isMultiParty()
+                        || !TextUtils.equals(applied.mNumber, call.getNumber())) {
+                    changes |= CHANGE_DETAILS;
+                }
+                if (changes == 0) {
+                    continue;
+                }
+            }
+            if (terminated) {
+                mApplied.remove(uuid);
+            } else {
+                mApplied.put(uuid, new AppliedCall(call));
+            }
+            conferenceable |= terminated || (changes & (CHANGE_NEW | CHANGE_DETAILS)) != 0
+                    || (applied != null && applied.mMultiParty);
+            mApplyCount++;
+            callback.onCallChanged(call, changes);
+        }
+        mPending.clear();
+        if (conferenceable) {
+            callback.onConferenceableChanged();
+        }
+    }
+
+    /**
+     * Forget all calls, for example once the device disconnected
+     */
+    void clear() {
+        mApplied.clear();
+        mPending.clear();
+    }
+
+    /**
+     * @return number of calls received from the AG
+     */
+    @VisibleForTesting
+    long getReceivedCount() {
+        return mReceived;
+    }
+
+    /**
+     * @return number of calls reported to the callback
+     */
+    @VisibleForTesting
+    long getAppliedCount() {
+        return mApplyCount;
+    }
+
+    @Override
+    public String toString() {
+        return "HfpClientCallReconciler [calls=" + mApplied.size() + ", received=" + mReceived
+                + ", applied=" + mApplyCount + "]";
+    }
+}
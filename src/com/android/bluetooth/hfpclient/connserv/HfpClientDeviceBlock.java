@@ -21,6 +21,7 @@ import android.bluetooth.BluetoothHeadsetClientCall;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.telecom.Connection;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccount;
@@ -47,6 +48,21 @@ public class HfpClientDeviceBlock {
     private final TelecomManager mTelecomManager;
     private final HfpClientConnectionService mConnServ;
     private HfpClientConference mConference;
+    private final HfpClientCallReconciler mReconciler = new HfpClientCallReconciler();
+    private final Handler mHandler;
+    private final Runnable mFlushRunnable = this::flushCalls;
+    private final HfpClientCallReconciler.Callback mReconcilerCallback =
+            new HfpClientCallReconciler.Callback() {
+                @Override
+                public void onCallChanged(BluetoothHeadsetClientCall call, int changes) {
+                    applyCall(call, changes);
+                }
+
+                @Override
+                public void onConferenceableChanged() {
+                    updateConferenceableConnections();
+                }
+            };
 
     private BluetoothHeadsetClient mHeadsetProfile;
 
@@ -56,6 +72,7 @@ public class HfpClientDeviceBlock {
         mContext = connServ;
         mDevice = device;
         mTAG = "HfpClientDeviceBlock." + mDevice.getAddress();
+        mHandler = new Handler(connServ.getMainLooper());
         mPhoneAccount = HfpClientConnectionService.createAccount(mContext, device);
         mTelecomManager = (TelecomManager) mContext.getSystemService(Context.TELECOM_SERVICE);
 
@@ -80,8 +97,9 @@ public class HfpClientDeviceBlock {
             }
 
             for (BluetoothHeadsetClientCall call : calls) {
-                handleCall(call);
+                mReconciler.update(call);
             }
+            flushCalls();
         } else {
             Log.e(mTAG, "headset profile is null, ignoring broadcast.");
         }
@@ -137,16 +155,34 @@ public class HfpClientDeviceBlock {
     // Remove existing calls and the phone account associated, the object will get garbage
     // collected soon
     synchronized void cleanup() {
-        Log.d(mTAG, "Resetting state for device " + mDevice);
+        Log.d(mTAG, "Resetting state for device " + mDevice + " " + mReconciler);
+        mHandler.removeCallbacks(mFlushRunnable);
+        mReconciler.clear();
         disconnectAll();
         mTelecomManager.unregisterPhoneAccount(mPhoneAccount.getAccountHandle());
     }
 
-    // Handle call change
+    // Handle call change. HFP Client broadcasts every call each time it reads the calls from the
+    // AG, the calls received in one burst are applied together and only if they changed.
     synchronized void handleCall(BluetoothHeadsetClientCall call) {
         if (DBG) {
             Log.d(mTAG, "Got call " + call.toString(true));
         }
+        if (mReconciler.update(call)) {
+            mHandler.post(mFlushRunnable);
+        }
+    }
+
+    private synchronized void flushCalls() {
+        mReconciler.flush(mReconcilerCallback);
+    }
+
+    // Apply a call that changed to Telecom, changes is a set of HfpClientCallReconciler.CHANGE_
+    // flags
+    private void applyCall(BluetoothHeadsetClientCall call, int changes) {
+        if (DBG) {
+            Log.d(mTAG, "Applying call " + call.toString(true) + " changes " + changes);
+        }
 
         HfpClientConnection connection = findConnectionKey(call);
 
@@ -161,10 +197,18 @@ public class HfpClientDeviceBlock {
 
         if (connection != null) {
             connection.updateCall(call);
-            connection.handleCallChanged();
+            // Number and multiparty changes only matter to the conference
+            if ((changes & (HfpClientCallReconciler.CHANGE_NEW
+                    | HfpClientCallReconciler.CHANGE_STATE)) != 0) {
+                connection.handleCallChanged();
+            }
         }
 
         if (connection == null) {
+            if (call.getState() == BluetoothHeadsetClientCall.CALL_STATE_TERMINATED) {
+                // Ended before Telecom knew about it
+                return;
+            }
             // Create the connection here, trigger Telecom to bind to us.
             buildConnection(call, null);
 
@@ -193,8 +237,6 @@ public class HfpClientDeviceBlock {
             }
             mConnections.remove(call.getUUID());
         }
-
-        updateConferenceableConnections();
     }
 
     // Find the connection specified by the key, also update the key with ID if present.
@@ -18,11 +18,13 @@ import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.provider.Telephony.CanonicalAddressesColumns;
@@ -37,12 +39,13 @@ import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
 import android.util.Log;
 
-import com.android.bluetooth.DeviceWorkArounds;
 import com.android.bluetooth.SignedLongLong;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 import com.android.bluetooth.mapapi.BluetoothMapContract.ConversationColumns;
+import com.android.bluetooth.util.Interop;
+import com.android.internal.annotations.VisibleForTesting;
 
 import com.google.android.mms.pdu.CharacterSets;
 import com.google.android.mms.pdu.PduHeaders;
@@ -58,6 +61,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.regex.Pattern;
 
 @TargetApi(19)
 public class BluetoothMapContent {
@@ -142,6 +146,11 @@ public class BluetoothMapContent {
 
     public static final String INSERT_ADDRES_TOKEN = "insert-address-token";
 
+    // Limits the size of the SQL expression of an address filter. Filters matching more contact
+    // numbers are applied to each message instead.
+    @VisibleForTesting
+    static final int MAX_FILTER_CONTACT_NUMBERS = 100;
+
     private final Context mContext;
     private final ContentResolver mResolver;
     private final String mBaseUri;
@@ -152,6 +161,8 @@ public class BluetoothMapContent {
 
     private int mRemoteFeatureMask = BluetoothMapUtils.MAP_FEATURE_DEFAULT_BITMASK;
     protected int mMsgListingVersion = BluetoothMapUtils.MAP_MESSAGE_LISTING_FORMAT_V10;
+    // Provider queries made by the listings, reported by the listing cache
+    private int mQueryCount = 0;
 
     static final String[] SMS_PROJECTION = new String[]{
             BaseColumns._ID,
@@ -262,6 +273,12 @@ public class BluetoothMapContent {
         int mPhoneType = 0;
         String mPhoneNum = null;
         String mPhoneAlphaTag = null;
+        // Numbers of the contacts matching the address filters, looked up once per listing
+        List<String> mOriginatorNumbers = null;
+        List<String> mRecipientNumbers = null;
+        // Set if too many contacts match an address filter to put it in the query
+        boolean mMatchOriginatorPerMessage = false;
+        boolean mMatchRecipientPerMessage = false;
         /*column indices used to optimize queries */
         public int mMessageColId = -1;
         public int mMessageColDate = -1;
@@ -1321,8 +1338,9 @@ public class BluetoothMapContent {
         }
 
         // Fix Subject Display issue with HONDA Carkit - Ignore subject Mask.
-        if (DeviceWorkArounds.addressStartsWith(BluetoothMapService.getRemoteDevice().getAddress(),
-                    DeviceWorkArounds.HONDA_CARKIT)
+        if (Interop.match(Interop.INTEROP_MAP_IGNORE_SUBJECT_MASK,
+                    BluetoothMapService.getRemoteDevice().getAddress(),
+                    BluetoothMapService.getRemoteDeviceName())
                 || (ap.getParameterMask() & MASK_SUBJECT) != 0) {
             if (fi.mMsgType == FilterInfo.TYPE_SMS) {
                 subject = c.getString(fi.mSmsColSubject);
@@ -1529,200 +1547,218 @@ public class BluetoothMapContent {
         return addr;
     }
 
+    /*
+     * Address filter functions for SMS and MMS. A message matches an originator or recipient
+     * filter if its phone number, or the name of the contact with that number, matches. Both are
+     * part of the provider query, the numbers of the contacts with a matching name are looked up
+     * once per listing.
+     * */
+
     /**
-     * Matching functions for originator and recipient for MMS
-     * @return true if found a match
+     * @return the LIKE pattern, with '\' as escape character, of a MAP filter where '*' is a
+     * wildcard
      */
-    private boolean matchRecipientMms(Cursor c, FilterInfo fi, String recip) {
-        boolean res;
-        long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_TO);
-        if (phone != null && phone.length() > 0) {
-            if (phone.matches(recip)) {
-                if (V) {
-                    Log.v(TAG, "matchRecipientMms: match recipient phone = " + phone);
-                }
-                res = true;
-            } else {
-                String name = getContactNameFromPhone(phone, mResolver);
-                if (name != null && name.length() > 0 && name.matches(recip)) {
-                    if (V) {
-                        Log.v(TAG, "matchRecipientMms: match recipient name = " + name);
+    private static String getLikePattern(String filter) {
+        String pattern = filter.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        return "%" + pattern.replace("*", "%") + "%";
+    }
+
+    /**
+     * @return true if the phone number or name matches a MAP filter where '*' is a wildcard,
+     * the same way as the LIKE pattern of the filter
+     */
+    private static boolean matchFilter(String filter, String phone, String name) {
+        StringBuilder regex = new StringBuilder(".*");
+        for (String part : filter.split("\\*", -1)) {
+            regex.append(Pattern.quote(part)).append(".*");
+        }
+        Pattern pattern = Pattern.compile(regex.toString(),
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+        return (phone != null && phone.length() > 0 && pattern.matcher(phone).matches())
+                || (name != null && name.length() > 0 && pattern.matcher(name).matches());
+    }
+
+    /**
+     * @return the numbers of the contacts whose name matches a MAP filter, or null if there are
+     * more than MAX_FILTER_CONTACT_NUMBERS
+     */
+    private List<String> getContactNumbers(String filter) {
+        List<String> numbers = new ArrayList<String>();
+        String selection = Phone.DISPLAY_NAME + " LIKE ? ESCAPE '\\'";
+        mQueryCount++;
+        Cursor c = mResolver.query(Phone.CONTENT_URI, new String[]{Phone.NUMBER}, selection,
+                new String[]{getLikePattern(filter)}, null);
+        try {
+            if (c != null) {
+                while (c.moveToNext()) {
+                    String number = c.getString(0);
+                    if (number == null || number.length() == 0) {
+                        continue;
                     }
-                    res = true;
-                } else {
-                    res = false;
+                    if (numbers.size() == MAX_FILTER_CONTACT_NUMBERS) {
+                        Log.w(TAG, "getContactNumbers: too many contacts match " + filter
+                                + ", matching each message instead");
+                        return null;
+                    }
+                    numbers.add(number);
                 }
             }
-        } else {
-            res = false;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
         }
-        return res;
+        if (V) {
+            Log.v(TAG, "getContactNumbers: " + numbers.size() + " numbers match " + filter);
+        }
+        return numbers;
     }
 
-    private boolean matchRecipientSms(Cursor c, FilterInfo fi, String recip) {
-        boolean res;
-        int msgType = c.getInt(c.getColumnIndex(Sms.TYPE));
-        if (msgType == 1) {
-            String phone = fi.mPhoneNum;
-            String name = fi.mPhoneAlphaTag;
-            if (phone != null && phone.length() > 0 && phone.matches(recip)) {
-                if (V) {
-                    Log.v(TAG, "matchRecipientSms: match recipient phone = " + phone);
-                }
-                res = true;
-            } else if (name != null && name.length() > 0 && name.matches(recip)) {
-                if (V) {
-                    Log.v(TAG, "matchRecipientSms: match recipient name = " + name);
-                }
-                res = true;
-            } else {
-                res = false;
-            }
-        } else {
-            String phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
-            if (phone != null && phone.length() > 0) {
-                if (phone.matches(recip)) {
-                    if (V) {
-                        Log.v(TAG, "matchRecipientSms: match recipient phone = " + phone);
-                    }
-                    res = true;
-                } else {
-                    String name = getContactNameFromPhone(phone, mResolver);
-                    if (name != null && name.length() > 0 && name.matches(recip)) {
-                        if (V) {
-                            Log.v(TAG, "matchRecipientSms: match recipient name = " + name);
-                        }
-                        res = true;
-                    } else {
-                        res = false;
-                    }
-                }
+    /**
+     * @return an SQL expression that is true if the phone number in a column matches a MAP
+     * filter, or is the number of a contact whose name matches it
+     */
+    private static String getAddressClause(String column, String filter,
+            List<String> contactNumbers) {
+        StringBuilder clause = new StringBuilder("(").append(column).append(" LIKE ")
+                .append(DatabaseUtils.sqlEscapeString(getLikePattern(filter)))
+                .append(" ESCAPE '\\'");
+        for (String number : contactNumbers) {
+            clause.append(" OR PHONE_NUMBERS_EQUAL(").append(column).append(", ")
+                    .append(DatabaseUtils.sqlEscapeString(number)).append(")");
+        }
+        return clause.append(")").toString();
+    }
+
+    /**
+     * @return an SQL expression that is true if an MMS has an address of the given type
+     * matching a MAP filter
+     */
+    @VisibleForTesting
+    static String getMmsAddressClause(int type, String filter,
+            List<String> contactNumbers) {
+        return BaseColumns._ID + " IN (SELECT " + Mms.Addr.MSG_ID + " FROM addr WHERE "
+                + Mms.Addr.TYPE + "=" + type + " AND " + Mms.Addr.ADDRESS + "!='"
+                + INSERT_ADDRES_TOKEN + "' AND "
+                + getAddressClause(Mms.Addr.ADDRESS, filter, contactNumbers) + ")";
+    }
+
+    private String setWhereFilterOriginatorSmsMms(BluetoothMapAppParams ap, FilterInfo fi) {
+        String where = "";
+        String orig = ap.getFilterOriginator();
+        if (orig == null || orig.length() == 0) {
+            return where;
+        }
+        if (fi.mOriginatorNumbers == null && !fi.mMatchOriginatorPerMessage) {
+            fi.mOriginatorNumbers = getContactNumbers(orig);
+            fi.mMatchOriginatorPerMessage = fi.mOriginatorNumbers == null;
+        }
+        if (fi.mMatchOriginatorPerMessage) {
+            return where;
+        }
+        if (fi.mMsgType == FilterInfo.TYPE_SMS) {
+            String address = getAddressClause(Sms.ADDRESS, orig, fi.mOriginatorNumbers);
+            // Received messages are from their address, the others from this phone
+            if (matchFilter(orig, fi.mPhoneNum, fi.mPhoneAlphaTag)) {
+                where = " AND (" + Sms.TYPE + " != 1 OR " + address + ")";
             } else {
-                res = false;
+                where = " AND " + Sms.TYPE + " = 1 AND " + address;
             }
+        } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
+            where = " AND " + getMmsAddressClause(MMS_FROM, orig, fi.mOriginatorNumbers);
         }
-        return res;
+        return where;
     }
 
-    private boolean matchRecipient(Cursor c, FilterInfo fi, BluetoothMapAppParams ap) {
-        boolean res;
+    private String setWhereFilterRecipientSmsMms(BluetoothMapAppParams ap, FilterInfo fi) {
+        String where = "";
         String recip = ap.getFilterRecipient();
-        if (recip != null && recip.length() > 0) {
-            recip = recip.replace("*", ".*");
-            recip = ".*" + recip + ".*";
-            if (fi.mMsgType == FilterInfo.TYPE_SMS) {
-                res = matchRecipientSms(c, fi, recip);
-            } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
-                res = matchRecipientMms(c, fi, recip);
+        if (recip == null || recip.length() == 0) {
+            return where;
+        }
+        if (fi.mRecipientNumbers == null && !fi.mMatchRecipientPerMessage) {
+            fi.mRecipientNumbers = getContactNumbers(recip);
+            fi.mMatchRecipientPerMessage = fi.mRecipientNumbers == null;
+        }
+        if (fi.mMatchRecipientPerMessage) {
+            return where;
+        }
+        if (fi.mMsgType == FilterInfo.TYPE_SMS) {
+            String address = getAddressClause(Sms.ADDRESS, recip, fi.mRecipientNumbers);
+            // Received messages are to this phone, the others to their address
+            if (matchFilter(recip, fi.mPhoneNum, fi.mPhoneAlphaTag)) {
+                where = " AND (" + Sms.TYPE + " = 1 OR " + address + ")";
             } else {
-                if (D) {
-                    Log.d(TAG, "matchRecipient: Unknown msg type: " + fi.mMsgType);
-                }
-                res = false;
+                where = " AND " + Sms.TYPE + " != 1 AND " + address;
             }
-        } else {
-            res = true;
+        } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
+            where = " AND " + getMmsAddressClause(MMS_TO, recip, fi.mRecipientNumbers);
         }
-        return res;
+        return where;
     }
 
-    private boolean matchOriginatorMms(Cursor c, FilterInfo fi, String orig) {
-        boolean res;
-        long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_FROM);
-        if (phone != null && phone.length() > 0) {
-            if (phone.matches(orig)) {
-                if (V) {
-                    Log.v(TAG, "matchOriginatorMms: match originator phone = " + phone);
-                }
-                res = true;
-            } else {
-                String name = getContactNameFromPhone(phone, mResolver);
-                if (name != null && name.length() > 0 && name.matches(orig)) {
-                    if (V) {
-                        Log.v(TAG, "matchOriginatorMms: match originator name = " + name);
-                    }
-                    res = true;
-                } else {
-                    res = false;
-                }
-            }
-        } else {
-            res = false;
+    /**
+     * @return true if a phone number, or the name of the contact with that number, matches a
+     * MAP filter
+     */
+    private boolean matchPhoneOrContact(String filter, String phone) {
+        if (phone == null || phone.length() == 0 || phone.equals(INSERT_ADDRES_TOKEN)) {
+            return false;
         }
-        return res;
+        return matchFilter(filter, phone, null)
+                || matchFilter(filter, null, getContactNameFromPhone(phone, mResolver));
     }
 
-    private boolean matchOriginatorSms(Cursor c, FilterInfo fi, String orig) {
-        boolean res;
-        int msgType = c.getInt(c.getColumnIndex(Sms.TYPE));
-        if (msgType == 1) {
-            String phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
-            if (phone != null && phone.length() > 0) {
-                if (phone.matches(orig)) {
-                    if (V) {
-                        Log.v(TAG, "matchOriginatorSms: match originator phone = " + phone);
-                    }
-                    res = true;
-                } else {
-                    String name = getContactNameFromPhone(phone, mResolver);
-                    if (name != null && name.length() > 0 && name.matches(orig)) {
-                        if (V) {
-                            Log.v(TAG, "matchOriginatorSms: match originator name = " + name);
-                        }
-                        res = true;
-                    } else {
-                        res = false;
-                    }
-                }
-            } else {
-                res = false;
-            }
-        } else {
-            String phone = fi.mPhoneNum;
-            String name = fi.mPhoneAlphaTag;
-            if (phone != null && phone.length() > 0 && phone.matches(orig)) {
-                if (V) {
-                    Log.v(TAG, "matchOriginatorSms: match originator phone = " + phone);
-                }
-                res = true;
-            } else if (name != null && name.length() > 0 && name.matches(orig)) {
-                if (V) {
-                    Log.v(TAG, "matchOriginatorSms: match originator name = " + name);
-                }
-                res = true;
-            } else {
-                res = false;
-            }
+    /**
+     * Matching of the address filters that are not part of the query, see
+     * setWhereFilterOriginatorSmsMms() and setWhereFilterRecipientSmsMms()
+     * @return true if the message of the cursor matches
+     */
+    private boolean matchAddresses(Cursor c, FilterInfo fi, BluetoothMapAppParams ap) {
+        if (fi.mMatchOriginatorPerMessage
+                && !matchAddress(c, fi, ap.getFilterOriginator(), true)) {
+            return false;
         }
-        return res;
+        return !fi.mMatchRecipientPerMessage
+                || matchAddress(c, fi, ap.getFilterRecipient(), false);
     }
 
-    private boolean matchOriginator(Cursor c, FilterInfo fi, BluetoothMapAppParams ap) {
+    private boolean matchAddress(Cursor c, FilterInfo fi, String filter, boolean originator) {
         boolean res;
-        String orig = ap.getFilterOriginator();
-        if (orig != null && orig.length() > 0) {
-            orig = orig.replace("*", ".*");
-            orig = ".*" + orig + ".*";
-            if (fi.mMsgType == FilterInfo.TYPE_SMS) {
-                res = matchOriginatorSms(c, fi, orig);
-            } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
-                res = matchOriginatorMms(c, fi, orig);
+        if (fi.mMsgType == FilterInfo.TYPE_SMS) {
+            // Received messages are from their address to this phone, the others the other way
+            boolean received = c.getInt(c.getColumnIndex(Sms.TYPE)) == 1;
+            if (received == originator) {
+                res = matchPhoneOrContact(filter, c.getString(c.getColumnIndex(Sms.ADDRESS)));
             } else {
-                if (D) {
-                    Log.d(TAG, "matchOriginator: Unknown msg type: " + fi.mMsgType);
-                }
-                res = false;
+                res = matchFilter(filter, fi.mPhoneNum, fi.mPhoneAlphaTag);
             }
+        } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
+            long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
+            res = matchPhoneOrContact(filter,
+                    getAddressMms(mResolver, id, originator ? MMS_FROM : MMS_TO));
         } else {
-            res = true;
+            res = false;
+        }
+        if (V) {
+            Log.v(TAG, "matchAddress: " + (originator ? "originator " : "recipient ") + filter
+                    + " match = " + res);
         }
         return res;
     }
 
-    private boolean matchAddresses(Cursor c, FilterInfo fi, BluetoothMapAppParams ap) {
-        return matchOriginator(c, fi, ap) && matchRecipient(c, fi, ap);
+    // Counts the messages of a cursor matching the address filters that are not in the query
+    private int countMatches(Cursor c, FilterInfo fi, BluetoothMapAppParams ap) {
+        if (!fi.mMatchOriginatorPerMessage && !fi.mMatchRecipientPerMessage) {
+            return c.getCount();
+        }
+        int cnt = 0;
+        while (c.moveToNext()) {
+            if (matchAddresses(c, fi, ap)) {
+                cnt++;
+            }
+        }
+        return cnt;
     }
 
     /*
@@ -2009,6 +2045,10 @@ public class BluetoothMapContent {
             where += setWhereFilterReadStatus(ap, fi);
             where += setWhereFilterPriority(ap, fi);
             where += setWhereFilterPeriod(ap, fi);
+            if (fi.mMsgType == FilterInfo.TYPE_SMS || fi.mMsgType == FilterInfo.TYPE_MMS) {
+                where += setWhereFilterOriginatorSmsMms(ap, fi);
+                where += setWhereFilterRecipientSmsMms(ap, fi);
+            }
             if (fi.mMsgType == FilterInfo.TYPE_EMAIL) {
                 where += setWhereFilterOriginatorEmail(ap);
                 where += setWhereFilterRecipientEmail(ap);
@@ -2198,6 +2238,13 @@ public class BluetoothMapContent {
         }
     }
 
+    /**
+     * @return the number of provider queries made by the message listings so far
+     */
+    int getQueryCount() {
+        return mQueryCount;
+    }
+
     /**
      * Get a listing of message in folder after applying filter.
      * @param folderElement Must contain a valid folder string != null
@@ -2264,8 +2311,15 @@ public class BluetoothMapContent {
                     if (D) {
                         Log.d(TAG, "msgType: " + fi.mMsgType + " where: " + where);
                     }
+                    String smsLimit = limit;
+                    if (fi.mMatchOriginatorPerMessage || fi.mMatchRecipientPerMessage) {
+                        // The limit would count the messages that don't match
+                        smsLimit = "";
+                        offsetNum = ap.getStartOffset();
+                    }
+                    mQueryCount++;
                     smsCursor = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION, where, null,
-                            Sms.DATE + " DESC" + limit);
+                            Sms.DATE + " DESC" + smsLimit);
                     if (smsCursor != null) {
                         BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
@@ -2306,8 +2360,15 @@ public class BluetoothMapContent {
                     if (D) {
                         Log.d(TAG, "msgType: " + fi.mMsgType + " where: " + where);
                     }
+                    String mmsLimit = limit;
+                    if (fi.mMatchOriginatorPerMessage || fi.mMatchRecipientPerMessage) {
+                        // The limit would count the messages that don't match
+                        mmsLimit = "";
+                        offsetNum = ap.getStartOffset();
+                    }
+                    mQueryCount++;
                     mmsCursor = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION, where, null,
-                            Mms.DATE + " DESC" + limit);
+                            Mms.DATE + " DESC" + mmsLimit);
                     if (mmsCursor != null) {
                         BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
@@ -2349,6 +2410,7 @@ public class BluetoothMapContent {
                         Log.d(TAG, "msgType: " + fi.mMsgType + " where: " + where);
                     }
                     Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
+                    mQueryCount++;
                     emailCursor =
                             mResolver.query(contentUri, BluetoothMapContract.BT_MESSAGE_PROJECTION,
                                     where, null,
@@ -2393,6 +2455,7 @@ public class BluetoothMapContent {
                 }
 
                 Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
+                mQueryCount++;
                 imCursor = mResolver.query(contentUri,
                         BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION, where, null,
                         BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
@@ -2506,7 +2569,7 @@ public class BluetoothMapContent {
                     Sms.DATE + " DESC");
             try {
                 if (c != null) {
-                    cnt = c.getCount();
+                    cnt = countMatches(c, fi, ap);
                 }
             } finally {
                 if (c != null) {
@@ -2522,7 +2585,7 @@ public class BluetoothMapContent {
                     Mms.DATE + " DESC");
             try {
                 if (c != null) {
-                    cnt += c.getCount();
+                    cnt += countMatches(c, fi, ap);
                 }
             } finally {
                 if (c != null) {
@@ -57,6 +57,7 @@ import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 import com.android.bluetooth.mapapi.BluetoothMapContract.MessageColumns;
+import com.android.internal.annotations.VisibleForTesting;
 
 import com.google.android.mms.pdu.PduHeaders;
 
@@ -74,6 +75,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -335,7 +337,8 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    private Map<Long, Msg> getMsgListSms() {
+    @VisibleForTesting
+    Map<Long, Msg> getMsgListSms() {
         return mMsgListSms;
     }
 
@@ -888,6 +891,12 @@ public class BluetoothMapContentObserver {
 
     private Map<Long, Msg> mMsgListMms = null;
 
+    // Find the SMS and MMS that changed without comparing the whole tables with the lists
+    private final BluetoothMapMsgListTracker mSmsTracker = new BluetoothMapMsgListTracker(
+            Sms._ID, new String[]{Sms.TYPE, Sms.THREAD_ID, Sms.READ});
+    private final BluetoothMapMsgListTracker mMmsTracker = new BluetoothMapMsgListTracker(
+            Mms._ID, new String[]{Mms.MESSAGE_BOX, Mms.THREAD_ID, Mms.READ, Mms.MESSAGE_TYPE});
+
     private Map<Long, Msg> mMsgListMsg = null;
 
     private Map<String, BluetoothMapConvoContactElement> mContactList = null;
@@ -1048,12 +1057,22 @@ public class BluetoothMapContentObserver {
         }
     }
 
+    /**
+     * @return true if changes of the messages are detected, which keeps the cached message
+     * listings up to date
+     */
+    boolean isObserverRegistered() {
+        return mObserverRegistered;
+    }
+
     public void unregisterObserver() {
         if (V) {
             Log.d(TAG, "unregisterObserver");
         }
         mResolver.unregisterContentObserver(mObserver);
         mObserverRegistered = false;
+        // Changes are no longer detected, cached listings would go stale
+        invalidateMsgListings(null, null);
         if (mProviderClient != null) {
             mProviderClient.close();
             mProviderClient = null;
@@ -1269,6 +1288,9 @@ public class BluetoothMapContentObserver {
                         msgListSms.put(id, msg);
                     } while (c.moveToNext());
                 }
+                synchronized (getMsgListSms()) {
+                    mSmsTracker.rebuild(c);
+                }
             } finally {
                 if (c != null) {
                     c.close();
@@ -1295,6 +1317,9 @@ public class BluetoothMapContentObserver {
                         msgListMms.put(id, msg);
                     } while (c.moveToNext());
                 }
+                synchronized (getMsgListMms()) {
+                    mMmsTracker.rebuild(c);
+                }
             } finally {
                 if (c != null) {
                     c.close();
@@ -1391,141 +1416,103 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    private void handleMsgListChangesSms() {
+    @VisibleForTesting
+    void handleMsgListChangesSms() {
         if (V) {
             Log.d(TAG, "handleMsgListChangesSms");
         }
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        synchronized (getMsgListSms()) {
+            if (!handleMsgListChangesSmsIncremental()) {
+                handleMsgListChangesSmsFull();
+            }
+        }
+    }
+
+    /**
+     * Compare the SMS of the _ID ranges that changed since the last check with the message list.
+     * Must be called with the message list lock held.
+     *
+     * @return false if all SMS have to be compared with the message list
+     */
+    private boolean handleMsgListChangesSmsIncremental() {
+        if (!mSmsTracker.isValid()) {
+            return false;
+        }
+        Map<Long, Msg> msgListSms = getMsgListSms();
+        long maxId = mSmsTracker.getMaxId();
+        HashSet<Long> seenIds = new HashSet<Long>();
+        ArrayList<Long> newIds = new ArrayList<Long>();
         boolean listChanged = false;
 
-        Cursor c;
-        synchronized (getMsgListSms()) {
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
-            } else {
-                c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, null, null, null);
+        Cursor c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
+        if (c == null) {
+            mSmsTracker.invalidate();
+            return false;
+        }
+        try {
+            if (!mSmsTracker.scan(c)) {
+                return false;
+            }
+            if (!mSmsTracker.hasChanges()) {
+                return true;
+            }
+            if (c.moveToFirst()) {
+                int idIndex = c.getColumnIndex(Sms._ID);
+                int typeIndex = c.getColumnIndex(Sms.TYPE);
+                int threadIdIndex = c.getColumnIndex(Sms.THREAD_ID);
+                int readIndex = c.getColumnIndex(Sms.READ);
+                do {
+                    long id = c.getLong(idIndex);
+                    if (!mSmsTracker.isInChangedRange(id)) {
+                        continue;
+                    }
+                    seenIds.add(id);
+                    Msg msg = msgListSms.get(id);
+                    if (msg == null) {
+                        newIds.add(id);
+                    } else {
+                        listChanged |= updateSms(msg, c.getInt(typeIndex),
+                                c.getInt(threadIdIndex), c.getInt(readIndex));
+                    }
+                } while (c.moveToNext());
+            }
+        } finally {
+            c.close();
+        }
+
+        Iterator<Msg> it = msgListSms.values().iterator();
+        while (it.hasNext()) {
+            Msg msg = it.next();
+            if (mSmsTracker.isInChangedRange(msg.id) && !seenIds.contains(msg.id)) {
+                it.remove();
+                sendEvent(getSmsRemovedEvent(msg));
+                invalidateSmsListings(msg.type, msg.threadId);
+                listChanged = true;
             }
+        }
+
+        if (!newIds.isEmpty()) {
+            c = queryNewMessages(Sms.CONTENT_URI, Sms._ID,
+                    mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10
+                            ? SMS_PROJECTION_SHORT : SMS_PROJECTION_SHORT_EXT, newIds, maxId);
             try {
                 if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndex(Sms._ID);
+                    int typeIndex = c.getColumnIndex(Sms.TYPE);
+                    int threadIdIndex = c.getColumnIndex(Sms.THREAD_ID);
+                    int readIndex = c.getColumnIndex(Sms.READ);
                     do {
-                        long id = c.getLong(c.getColumnIndex(Sms._ID));
-                        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Sms.READ));
-
-                        Msg msg = getMsgListSms().remove(id);
-
-                        /* We must filter out any actions made by the MCE, hence do not send e.g.
-                         * a message deleted and/or MessageShift for messages deleted by the MCE. */
-
-                        if (msg == null) {
-                            /* New message */
-                            msg = new Msg(id, type, threadId, read);
-                            msgListSms.put(id, msg);
-                            listChanged = true;
-                            Event evt;
-                            if (mTransmitEvents && // extract contact details only if needed
-                                    mMapEventReportVersion
-                                            > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                String date = BluetoothMapUtils.getDateTimeString(
-                                        c.getLong(c.getColumnIndex(Sms.DATE)));
-                                String subject = c.getString(c.getColumnIndex(Sms.BODY));
-                                if (subject == null) {
-                                    subject = "";
-                                }
-                                String name = "";
-                                String phone = "";
-                                if (type == 1) { //inbox
-                                    phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
-                                    if (phone != null && !phone.isEmpty()) {
-                                        name = BluetoothMapContent.getContactNameFromPhone(phone,
-                                                mResolver);
-                                        if (name == null || name.isEmpty()) {
-                                            name = phone;
-                                        }
-                                    } else {
-                                        name = phone;
-                                    }
-                                } else {
-                                    TelephonyManager tm =
-                                            (TelephonyManager) mContext.getSystemService(
-                                                    Context.TELEPHONY_SERVICE);
-                                    if (tm != null) {
-                                        phone = tm.getLine1Number();
-                                        name = tm.getLine1AlphaTag();
-                                        if (name == null || name.isEmpty()) {
-                                            name = phone;
-                                        }
-                                    }
-                                }
-                                String priority = "no"; // no priority for sms
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion
-                                        == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                            mSmsType, date, subject, name, priority);
-                                } else {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                            mSmsType, date, subject, name, priority,
-                                            (long) threadId, null);
-                                }
-                            } else {
-                                /* Incoming message from the network */
-                                evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), null,
-                                        mSmsType);
-                            }
-                            sendEvent(evt);
-                        } else {
-                            /* Existing message */
-                            if (type != msg.type) {
-                                listChanged = true;
-                                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                                String oldFolder = getSmsFolderName(msg.type);
-                                String newFolder = getSmsFolderName(type);
-                                // Filter out the intermediate outbox steps
-                                if (!oldFolder.equalsIgnoreCase(newFolder)) {
-                                    Event evt =
-                                            new Event(EVENT_TYPE_SHIFT, id, getSmsFolderName(type),
-                                                    oldFolder, mSmsType);
-                                    sendEvent(evt);
-                                }
-                                msg.type = type;
-                            } else if (threadId != msg.threadId) {
-                                listChanged = true;
-                                Log.d(TAG, "Message delete change: type: " + type + " old type: "
-                                        + msg.type + "\n    threadId: " + threadId
-                                        + " old threadId: " + msg.threadId);
-                                if (threadId == DELETED_THREAD_ID) { // Message deleted
-                                    // TODO:
-                                    // We shall only use the folder attribute, but can't remember
-                                    // wether to set it to "deleted" or the name of the folder
-                                    // from which the message have been deleted.
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt = new Event(EVENT_TYPE_DELETE, id,
-                                            getSmsFolderName(msg.type), null, mSmsType);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                } else { // Undelete
-                                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
-                                            getSmsFolderName(msg.type),
-                                            BluetoothMapContract.FOLDER_NAME_DELETED, mSmsType);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                }
-                            }
-                            if (read != msg.flagRead) {
-                                listChanged = true;
-                                msg.flagRead = read;
-                                if (mMapEventReportVersion
-                                        > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
-                                            getSmsFolderName(msg.type), mSmsType);
-                                    sendEvent(evt);
-                                }
-                            }
-                            msgListSms.put(id, msg);
+                        long id = c.getLong(idIndex);
+                        if (msgListSms.containsKey(id)) {
+                            continue;
                         }
+                        int type = c.getInt(typeIndex);
+                        int threadId = c.getInt(threadIdIndex);
+                        msgListSms.put(id, new Msg(id, type, threadId, c.getInt(readIndex)));
+                        sendEvent(getSmsNewEvent(c, id, type, threadId));
+                        invalidateSmsListings(type, threadId);
+                        listChanged = true;
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1533,21 +1520,204 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
-            String eventType = EVENT_TYPE_DELETE;
-            for (Msg msg : getMsgListSms().values()) {
-                // "old_folder" used only for MessageShift event
-                if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
-                    eventType = EVENT_TYPE_REMOVED;
-                    if (V) Log.v(TAG," sent EVENT_TYPE_REMOVED");
+        }
+
+        setMsgListSms(msgListSms, listChanged);
+        return true;
+    }
+
+    /**
+     * Compare all SMS with the message list, and rebuild the change tracker.
+     * Must be called with the message list lock held.
+     */
+    @VisibleForTesting
+    void handleMsgListChangesSmsFull() {
+        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        boolean listChanged = false;
+
+        Cursor c;
+        if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+            c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
+        } else {
+            c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, null, null, null);
+        }
+        try {
+            if (c != null && c.moveToFirst()) {
+                int idIndex = c.getColumnIndex(Sms._ID);
+                int typeIndex = c.getColumnIndex(Sms.TYPE);
+                int threadIdIndex = c.getColumnIndex(Sms.THREAD_ID);
+                int readIndex = c.getColumnIndex(Sms.READ);
+                do {
+                    long id = c.getLong(idIndex);
+                    int type = c.getInt(typeIndex);
+                    int threadId = c.getInt(threadIdIndex);
+                    int read = c.getInt(readIndex);
+
+                    Msg msg = getMsgListSms().remove(id);
+
+                    /* We must filter out any actions made by the MCE, hence do not send e.g.
+                     * a message deleted and/or MessageShift for messages deleted by the MCE. */
+
+                    if (msg == null) {
+                        /* New message */
+                        msg = new Msg(id, type, threadId, read);
+                        listChanged = true;
+                        sendEvent(getSmsNewEvent(c, id, type, threadId));
+                        invalidateSmsListings(type, threadId);
+                    } else {
+                        /* Existing message */
+                        listChanged |= updateSms(msg, type, threadId, read);
+                    }
+                    msgListSms.put(id, msg);
+                } while (c.moveToNext());
+            }
+            if (c != null) {
+                mSmsTracker.rebuild(c);
+            } else {
+                mSmsTracker.invalidate();
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        for (Msg msg : getMsgListSms().values()) {
+            sendEvent(getSmsRemovedEvent(msg));
+            invalidateSmsListings(msg.type, msg.threadId);
+            listChanged = true;
+        }
+
+        setMsgListSms(msgListSms, listChanged);
+    }
+
+    /**
+     * Build the event of a new SMS
+     *
+     * @param c cursor positioned on the SMS, with the columns of SMS_PROJECTION_SHORT_EXT if
+     *          the event report version is higher than 1.0
+     */
+    private Event getSmsNewEvent(Cursor c, long id, int type, int threadId) {
+        if (mTransmitEvents && // extract contact details only if needed
+                mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+            String date = BluetoothMapUtils.getDateTimeString(
+                    c.getLong(c.getColumnIndex(Sms.DATE)));
+            String subject = c.getString(c.getColumnIndex(Sms.BODY));
+            if (subject == null) {
+                subject = "";
+            }
+            String name = "";
+            String phone = "";
+            if (type == 1) { //inbox
+                phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
+                if (phone != null && !phone.isEmpty()) {
+                    name = BluetoothMapContent.getContactNameFromPhone(phone, mResolver);
+                    if (name == null || name.isEmpty()) {
+                        name = phone;
+                    }
+                } else {
+                    name = phone;
+                }
+            } else {
+                TelephonyManager tm =
+                        (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+                if (tm != null) {
+                    phone = tm.getLine1Number();
+                    name = tm.getLine1AlphaTag();
+                    if (name == null || name.isEmpty()) {
+                        name = phone;
+                    }
                 }
-                Event evt = new Event(eventType, msg.id, getSmsFolderName(msg.type), null,
+            }
+            String priority = "no"; // no priority for sms
+            /* Incoming message from the network */
+            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                return new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), mSmsType, date,
+                        subject, name, priority);
+            }
+            return new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), mSmsType, date,
+                    subject, name, priority, (long) threadId, null);
+        }
+        /* Incoming message from the network */
+        return new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), null, mSmsType);
+    }
+
+    /**
+     * Apply the current state of an SMS of the message list, and send the matching events
+     *
+     * @return true if the SMS changed
+     */
+    private boolean updateSms(Msg msg, int type, int threadId, int read) {
+        boolean changed = false;
+        String oldListingFolder = getSmsListingFolder(msg.type, msg.threadId);
+        if (type != msg.type) {
+            changed = true;
+            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+            String oldFolder = getSmsFolderName(msg.type);
+            String newFolder = getSmsFolderName(type);
+            // Filter out the intermediate outbox steps
+            if (!oldFolder.equalsIgnoreCase(newFolder)) {
+                Event evt = new Event(EVENT_TYPE_SHIFT, msg.id, getSmsFolderName(type),
+                        oldFolder, mSmsType);
+                sendEvent(evt);
+            }
+            msg.type = type;
+        } else if (threadId != msg.threadId) {
+            changed = true;
+            Log.d(TAG, "Message delete change: type: " + type + " old type: " + msg.type
+                    + "\n    threadId: " + threadId + " old threadId: " + msg.threadId);
+            if (threadId == DELETED_THREAD_ID) { // Message deleted
+                // TODO:
+                // We shall only use the folder attribute, but can't remember
+                // wether to set it to "deleted" or the name of the folder
+                // from which the message have been deleted.
+                // "old_folder" used only for MessageShift event
+                Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getSmsFolderName(msg.type),
+                        null, mSmsType);
+                sendEvent(evt);
+                msg.threadId = threadId;
+            } else { // Undelete
+                Event evt = new Event(EVENT_TYPE_SHIFT, msg.id, getSmsFolderName(msg.type),
+                        BluetoothMapContract.FOLDER_NAME_DELETED, mSmsType);
+                sendEvent(evt);
+                msg.threadId = threadId;
+            }
+        }
+        if (read != msg.flagRead) {
+            changed = true;
+            msg.flagRead = read;
+            if (mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                Event evt = new Event(EVENT_TYPE_READ_STATUS, msg.id, getSmsFolderName(msg.type),
                         mSmsType);
                 sendEvent(evt);
-                listChanged = true;
             }
+        }
+        if (changed) {
+            invalidateMsgListings(mSmsType, oldListingFolder);
+            invalidateSmsListings(type, threadId);
+        }
+        return changed;
+    }
+
+    // Deleted SMS are kept in their thread, and listed in the deleted folder
+    private static String getSmsListingFolder(int type, int threadId) {
+        if (threadId == DELETED_THREAD_ID) {
+            return BluetoothMapContract.FOLDER_NAME_DELETED;
+        }
+        return getSmsFolderName(type);
+    }
 
-            setMsgListSms(msgListSms, listChanged);
+    private void invalidateSmsListings(int type, int threadId) {
+        invalidateMsgListings(mSmsType, getSmsListingFolder(type, threadId));
+    }
+
+    private Event getSmsRemovedEvent(Msg msg) {
+        String eventType = EVENT_TYPE_DELETE;
+        // "old_folder" used only for MessageShift event
+        if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
+            eventType = EVENT_TYPE_REMOVED;
+            if (V) Log.v(TAG," sent EVENT_TYPE_REMOVED");
         }
+        return new Event(eventType, msg.id, getSmsFolderName(msg.type), null, mSmsType);
     }
 
     private void handleMsgListChangesMms() {
@@ -1555,162 +1725,346 @@ public class BluetoothMapContentObserver {
             Log.d(TAG, "handleMsgListChangesMms");
         }
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
-        boolean listChanged = false;
-        Cursor c;
         synchronized (getMsgListMms()) {
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
-            } else {
-                c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, null, null, null);
+            if (!handleMsgListChangesMmsIncremental()) {
+                handleMsgListChangesMmsFull();
+            }
+        }
+    }
+
+    /**
+     * Compare the MMS of the _ID ranges that changed since the last check with the message list.
+     * Must be called with the message list lock held.
+     *
+     * @return false if all MMS have to be compared with the message list
+     */
+    private boolean handleMsgListChangesMmsIncremental() {
+        if (!mMmsTracker.isValid()) {
+            return false;
+        }
+        Map<Long, Msg> msgListMms = getMsgListMms();
+        long maxId = mMmsTracker.getMaxId();
+        HashSet<Long> seenIds = new HashSet<Long>();
+        ArrayList<Long> newIds = new ArrayList<Long>();
+        boolean listChanged = false;
+
+        Cursor c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
+        if (c == null) {
+            mMmsTracker.invalidate();
+            return false;
+        }
+        try {
+            if (!mMmsTracker.scan(c)) {
+                return false;
+            }
+            if (!mMmsTracker.hasChanges()) {
+                return true;
+            }
+            if (c.moveToFirst()) {
+                int idIndex = c.getColumnIndex(Mms._ID);
+                int typeIndex = c.getColumnIndex(Mms.MESSAGE_BOX);
+                int mtypeIndex = c.getColumnIndex(Mms.MESSAGE_TYPE);
+                int threadIdIndex = c.getColumnIndex(Mms.THREAD_ID);
+                int readIndex = c.getColumnIndex(Mms.READ);
+                do {
+                    long id = c.getLong(idIndex);
+                    if (!mMmsTracker.isInChangedRange(id)) {
+                        continue;
+                    }
+                    seenIds.add(id);
+                    Msg msg = msgListMms.get(id);
+                    int type = c.getInt(typeIndex);
+                    if (msg != null) {
+                        listChanged |= updateMms(msg, type, c.getInt(threadIdIndex),
+                                c.getInt(readIndex));
+                    } else if (isMmsNotRetrieved(type, c.getInt(mtypeIndex))) {
+                        /* New message - only notify on retrieve conf */
+                        listChanged = true;
+                        // Listings also contain the MMS that are not downloaded yet
+                        invalidateMmsListings(type, c.getInt(threadIdIndex));
+                    } else {
+                        newIds.add(id);
+                    }
+                } while (c.moveToNext());
+            }
+        } finally {
+            c.close();
+        }
+
+        Iterator<Msg> it = msgListMms.values().iterator();
+        while (it.hasNext()) {
+            Msg msg = it.next();
+            if (mMmsTracker.isInChangedRange(msg.id) && !seenIds.contains(msg.id)) {
+                it.remove();
+                sendEvent(getMmsRemovedEvent(msg));
+                invalidateMmsListings(msg.type, msg.threadId);
+                listChanged = true;
             }
+        }
 
+        if (!newIds.isEmpty()) {
+            c = queryNewMessages(Mms.CONTENT_URI, Mms._ID,
+                    mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10
+                            ? MMS_PROJECTION_SHORT : MMS_PROJECTION_SHORT_EXT, newIds, maxId);
             try {
                 if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndex(Mms._ID);
+                    int typeIndex = c.getColumnIndex(Mms.MESSAGE_BOX);
+                    int mtypeIndex = c.getColumnIndex(Mms.MESSAGE_TYPE);
+                    int threadIdIndex = c.getColumnIndex(Mms.THREAD_ID);
+                    int readIndex = c.getColumnIndex(Mms.READ);
                     do {
-                        long id = c.getLong(c.getColumnIndex(Mms._ID));
-                        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
-                        // TODO: Go through code to see if we have an issue with mismatch in types
-                        //       for threadId. Seems to be a long in DB??
-                        int read = c.getInt(c.getColumnIndex(Mms.READ));
+                        long id = c.getLong(idIndex);
+                        int type = c.getInt(typeIndex);
+                        if (msgListMms.containsKey(id)
+                                || isMmsNotRetrieved(type, c.getInt(mtypeIndex))) {
+                            continue;
+                        }
+                        int threadId = c.getInt(threadIdIndex);
+                        int read = c.getInt(readIndex);
+                        msgListMms.put(id, new Msg(id, type, threadId, read));
+                        sendEvent(getMmsNewEvent(c, id, type, threadId, read));
+                        invalidateMmsListings(type, threadId);
+                        listChanged = true;
+                    } while (c.moveToNext());
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
 
-                        Msg msg = getMsgListMms().remove(id);
+        setMsgListMms(msgListMms, listChanged);
+        return true;
+    }
 
-                        /* We must filter out any actions made by the MCE, hence do not send
-                         * e.g. a message deleted and/or MessageShift for messages deleted by the
-                         * MCE.*/
+    /**
+     * Compare all MMS with the message list, and rebuild the change tracker.
+     * Must be called with the message list lock held.
+     */
+    private void handleMsgListChangesMmsFull() {
+        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        boolean listChanged = false;
+        Cursor c;
+        if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+            c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
+        } else {
+            c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, null, null, null);
+        }
 
-                        if (msg == null) {
-                            /* New message - only notify on retrieve conf */
-                            listChanged = true;
-                            if (getMmsFolderName(type).equalsIgnoreCase(
-                                    BluetoothMapContract.FOLDER_NAME_INBOX)
-                                    && mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
-                                continue;
-                            }
-                            msg = new Msg(id, type, threadId, read);
-                            msgListMms.put(id, msg);
-                            Event evt;
-                            if (mTransmitEvents && // extract contact details only if needed
-                                    mMapEventReportVersion
-                                            != BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                String date = BluetoothMapUtils.getDateTimeString(
-                                        c.getLong(c.getColumnIndex(Mms.DATE)));
-                                String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
-                                if (subject == null || subject.length() == 0) {
-                                    /* Get subject from mms text body parts - if any exists */
-                                    subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
-                                    if (subject == null) {
-                                        subject = "";
-                                    }
-                                }
-                                int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
-                                Log.d(TAG, "TEMP handleMsgListChangesMms, "
-                                        + "newMessage 'read' state: " + read + "priority: "
-                                        + tmpPri);
-
-                                String address = BluetoothMapContent.getAddressMms(mResolver, id,
-                                        BluetoothMapContent.MMS_FROM);
-                                if (address == null) {
-                                    address = "";
-                                }
+        try {
+            if (c != null && c.moveToFirst()) {
+                int idIndex = c.getColumnIndex(Mms._ID);
+                int typeIndex = c.getColumnIndex(Mms.MESSAGE_BOX);
+                int mtypeIndex = c.getColumnIndex(Mms.MESSAGE_TYPE);
+                int threadIdIndex = c.getColumnIndex(Mms.THREAD_ID);
+                int readIndex = c.getColumnIndex(Mms.READ);
+                do {
+                    long id = c.getLong(idIndex);
+                    int type = c.getInt(typeIndex);
+                    int mtype = c.getInt(mtypeIndex);
+                    int threadId = c.getInt(threadIdIndex);
+                    // TODO: Go through code to see if we have an issue with mismatch in types
+                    //       for threadId. Seems to be a long in DB??
+                    int read = c.getInt(readIndex);
+
+                    Msg msg = getMsgListMms().remove(id);
+
+                    /* We must filter out any actions made by the MCE, hence do not send
+                     * e.g. a message deleted and/or MessageShift for messages deleted by the
+                     * MCE.*/
+
+                    if (msg == null) {
+                        /* New message - only notify on retrieve conf */
+                        listChanged = true;
+                        invalidateMmsListings(type, threadId);
+                        if (isMmsNotRetrieved(type, mtype)) {
+                            continue;
+                        }
+                        msg = new Msg(id, type, threadId, read);
+                        sendEvent(getMmsNewEvent(c, id, type, threadId, read));
+                    } else {
+                        /* Existing message */
+                        listChanged |= updateMms(msg, type, threadId, read);
+                    }
+                    msgListMms.put(id, msg);
+                } while (c.moveToNext());
+            }
+            if (c != null) {
+                mMmsTracker.rebuild(c);
+            } else {
+                mMmsTracker.invalidate();
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        for (Msg msg : getMsgListMms().values()) {
+            sendEvent(getMmsRemovedEvent(msg));
+            invalidateMmsListings(msg.type, msg.threadId);
+            listChanged = true;
+        }
+        setMsgListMms(msgListMms, listChanged);
+    }
 
-                                String priority = "no";
-                                if (tmpPri == PduHeaders.PRIORITY_HIGH) {
-                                    priority = "yes";
-                                }
+    // Inbox MMS are only reported once downloaded
+    private boolean isMmsNotRetrieved(int type, int mtype) {
+        return getMmsFolderName(type).equalsIgnoreCase(BluetoothMapContract.FOLDER_NAME_INBOX)
+                && mtype != MESSAGE_TYPE_RETRIEVE_CONF;
+    }
 
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion
-                                        == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                            TYPE.MMS, date, subject, address, priority);
-                                } else {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                            TYPE.MMS, date, subject, address, priority,
-                                            (long) threadId, null);
-                                }
+    /**
+     * Build the event of a new MMS
+     *
+     * @param c cursor positioned on the MMS, with the columns of MMS_PROJECTION_SHORT_EXT if
+     *          the event report version is higher than 1.0
+     */
+    private Event getMmsNewEvent(Cursor c, long id, int type, int threadId, int read) {
+        if (mTransmitEvents && // extract contact details only if needed
+                mMapEventReportVersion != BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+            String date = BluetoothMapUtils.getDateTimeString(
+                    c.getLong(c.getColumnIndex(Mms.DATE)));
+            String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
+            if (subject == null || subject.length() == 0) {
+                /* Get subject from mms text body parts - if any exists */
+                subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
+                if (subject == null) {
+                    subject = "";
+                }
+            }
+            int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
+            Log.d(TAG, "TEMP handleMsgListChangesMms, " + "newMessage 'read' state: " + read
+                    + "priority: " + tmpPri);
 
-                            } else {
-                                /* Incoming message from the network */
-                                evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), null,
-                                        TYPE.MMS);
-                            }
+            String address = BluetoothMapContent.getAddressMms(mResolver, id,
+                    BluetoothMapContent.MMS_FROM);
+            if (address == null) {
+                address = "";
+            }
 
-                            sendEvent(evt);
-                        } else {
-                            /* Existing message */
-                            if (type != msg.type) {
-                                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                                Event evt;
-                                listChanged = true;
-                                if (!msg.localInitiatedSend) {
-                                    // Only send events about local initiated changes
-                                    evt = new Event(EVENT_TYPE_SHIFT, id, getMmsFolderName(type),
-                                            getMmsFolderName(msg.type), TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                                msg.type = type;
+            String priority = "no";
+            if (tmpPri == PduHeaders.PRIORITY_HIGH) {
+                priority = "yes";
+            }
 
-                                if (getMmsFolderName(type).equalsIgnoreCase(
-                                        BluetoothMapContract.FOLDER_NAME_SENT)
-                                        && msg.localInitiatedSend) {
-                                    // Stop tracking changes for this message
-                                    msg.localInitiatedSend = false;
-                                    evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id,
-                                            getMmsFolderName(type), null, TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                            } else if (threadId != msg.threadId) {
-                                Log.d(TAG, "Message delete change: type: " + type + " old type: "
-                                        + msg.type + "\n    threadId: " + threadId
-                                        + " old threadId: " + msg.threadId);
-                                listChanged = true;
-                                if (threadId == DELETED_THREAD_ID) { // Message deleted
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt = new Event(EVENT_TYPE_DELETE, id,
-                                            getMmsFolderName(msg.type), null, TYPE.MMS);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                } else { // Undelete
-                                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
-                                            getMmsFolderName(msg.type),
-                                            BluetoothMapContract.FOLDER_NAME_DELETED, TYPE.MMS);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                }
-                            }
-                            if (read != msg.flagRead) {
-                                listChanged = true;
-                                msg.flagRead = read;
-                                if (mMapEventReportVersion
-                                        > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
-                                            getMmsFolderName(msg.type), TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                            }
-                            msgListMms.put(id, msg);
-                        }
-                    } while (c.moveToNext());
+            /* Incoming message from the network */
+            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                return new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), TYPE.MMS, date,
+                        subject, address, priority);
+            }
+            return new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), TYPE.MMS, date,
+                    subject, address, priority, (long) threadId, null);
+        }
+        /* Incoming message from the network */
+        return new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), null, TYPE.MMS);
+    }
 
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
+    /**
+     * Apply the current state of an MMS of the message list, and send the matching events
+     *
+     * @return true if the MMS changed
+     */
+    private boolean updateMms(Msg msg, int type, int threadId, int read) {
+        boolean changed = false;
+        String oldFolder = getMmsListingFolder(msg.type, msg.threadId);
+        if (type != msg.type) {
+            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+            Event evt;
+            changed = true;
+            if (!msg.localInitiatedSend) {
+                // Only send events about local initiated changes
+                evt = new Event(EVENT_TYPE_SHIFT, msg.id, getMmsFolderName(type),
+                        getMmsFolderName(msg.type), TYPE.MMS);
+                sendEvent(evt);
             }
-            for (Msg msg : getMsgListMms().values()) {
+            msg.type = type;
+
+            if (getMmsFolderName(type).equalsIgnoreCase(BluetoothMapContract.FOLDER_NAME_SENT)
+                    && msg.localInitiatedSend) {
+                // Stop tracking changes for this message
+                msg.localInitiatedSend = false;
+                evt = new Event(EVENT_TYPE_SENDING_SUCCESS, msg.id, getMmsFolderName(type), null,
+                        TYPE.MMS);
+                sendEvent(evt);
+            }
+        } else if (threadId != msg.threadId) {
+            Log.d(TAG, "Message delete change: type: " + type + " old type: " + msg.type
+                    + "\n    threadId: " + threadId + " old threadId: " + msg.threadId);
+            changed = true;
+            if (threadId == DELETED_THREAD_ID) { // Message deleted
                 // "old_folder" used only for MessageShift event
                 Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type), null,
                         TYPE.MMS);
                 sendEvent(evt);
-                listChanged = true;
+                msg.threadId = threadId;
+            } else { // Undelete
+                Event evt = new Event(EVENT_TYPE_SHIFT, msg.id, getMmsFolderName(msg.type),
+                        BluetoothMapContract.FOLDER_NAME_DELETED, TYPE.MMS);
+                sendEvent(evt);
+                msg.threadId = threadId;
+            }
+        }
+        if (read != msg.flagRead) {
+            changed = true;
+            msg.flagRead = read;
+            if (mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                Event evt = new Event(EVENT_TYPE_READ_STATUS, msg.id, getMmsFolderName(msg.type),
+                        TYPE.MMS);
+                sendEvent(evt);
             }
-            setMsgListMms(msgListMms, listChanged);
         }
+        if (changed) {
+            invalidateMsgListings(TYPE.MMS, oldFolder);
+            invalidateMmsListings(type, threadId);
+        }
+        return changed;
+    }
+
+    // Deleted MMS are kept in their thread, and listed in the deleted folder
+    private static String getMmsListingFolder(int type, int threadId) {
+        if (threadId == DELETED_THREAD_ID) {
+            return BluetoothMapContract.FOLDER_NAME_DELETED;
+        }
+        return getMmsFolderName(type);
+    }
+
+    private void invalidateMmsListings(int type, int threadId) {
+        invalidateMsgListings(TYPE.MMS, getMmsListingFolder(type, threadId));
+    }
+
+    /**
+     * Drop the cached message listings that may contain a changed message
+     *
+     * @param type message type, null for all types
+     * @param folder folder name, null for all folders
+     */
+    private void invalidateMsgListings(TYPE type, String folder) {
+        BluetoothMapMsgListingCache cache = mMasInstance.getMsgListingCache();
+        if (cache != null) {
+            cache.invalidate(type, folder);
+        }
+    }
+
+    private Event getMmsRemovedEvent(Msg msg) {
+        // "old_folder" used only for MessageShift event
+        return new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type), null, TYPE.MMS);
+    }
+
+    /**
+     * Query the new messages found by a change tracker scan. Messages inserted after the
+     * high-water mark are read with a range query, which also returns messages inserted since
+     * the scan, otherwise by _ID.
+     */
+    private Cursor queryNewMessages(Uri uri, String idColumn, String[] projection,
+            ArrayList<Long> newIds, long maxId) {
+        if (Collections.min(newIds) > maxId) {
+            return mResolver.query(uri, projection, idColumn + " > ?",
+                    new String[]{Long.toString(maxId)}, null);
+        }
+        return mResolver.query(uri, projection,
+                idColumn + " IN (" + TextUtils.join(",", newIds) + ")", null, null);
     }
 
     private void handleMsgListChangesMsg(Uri uri) throws RemoteException {
@@ -1900,6 +2254,10 @@ public class BluetoothMapContentObserver {
                     sendEvent(evt);
                 }
             }
+            if (listChanged) {
+                // Email and IM folders come from the account, drop all its listings
+                invalidateMsgListings(mAccount.getType(), null);
+            }
             setMsgListMsg(msgList, listChanged);
         }
     }
@@ -3657,6 +4015,8 @@ public class BluetoothMapContentObserver {
     public boolean handleSmsSendIntent(Context context, Intent intent) {
         TYPE type = TYPE.fromOrdinal(
                 intent.getIntExtra(EXTRA_MESSAGE_SENT_MSG_TYPE, TYPE.NONE.ordinal()));
+        // The sending and delivery status of messages are not in the message lists
+        invalidateMsgListings(type, null);
         if (type == TYPE.MMS) {
             return handleMmsSendIntent(context, intent);
         } else {
@@ -26,6 +26,7 @@ import org.xmlpull.v1.XmlSerializer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
@@ -94,17 +95,7 @@ public class BluetoothMapConvoListing {
         XmlSerializer xmlConvoElement = new FastXmlSerializer();
         try {
             xmlConvoElement.setOutput(sw);
-            xmlConvoElement.startDocument("UTF-8", true);
-            xmlConvoElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                    true);
-            xmlConvoElement.startTag(null, XML_TAG);
-            xmlConvoElement.attribute(null, "version", "1.0");
-            // Do the XML encoding of list
-            for (BluetoothMapConvoListingElement element : mList) {
-                element.encode(xmlConvoElement); // Append the list element
-            }
-            xmlConvoElement.endTag(null, XML_TAG);
-            xmlConvoElement.endDocument();
+            encode(xmlConvoElement);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
@@ -115,6 +106,39 @@ public class BluetoothMapConvoListing {
         return sw.toString().getBytes("UTF-8");
     }
 
+    /**
+     * Encode the list of BluetoothMapConvoListingElement(s) as UTF-8 formatted XML straight
+     * into a stream, without holding the whole document in memory
+     *
+     * @param out the stream to write to, not closed by this method.
+     * @throws IOException if writing to the stream failed, e.g. the operation was aborted.
+     */
+    public void encode(OutputStream out) throws IOException {
+        XmlSerializer xmlConvoElement = new FastXmlSerializer();
+        try {
+            xmlConvoElement.setOutput(out, "UTF-8");
+            encode(xmlConvoElement);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, e);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    private void encode(XmlSerializer xmlConvoElement) throws IOException {
+        xmlConvoElement.startDocument("UTF-8", true);
+        xmlConvoElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
+                true);
+        xmlConvoElement.startTag(null, XML_TAG);
+        xmlConvoElement.attribute(null, "version", "1.0");
+        // Do the XML encoding of list
+        for (BluetoothMapConvoListingElement element : mList) {
+            element.encode(xmlConvoElement); // Append the list element
+        }
+        xmlConvoElement.endTag(null, XML_TAG);
+        xmlConvoElement.endDocument();
+    }
+
     public void sort() {
         Collections.sort(mList);
     }
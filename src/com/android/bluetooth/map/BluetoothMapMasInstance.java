@@ -97,6 +97,10 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
 
     private Map<String, BluetoothMapConvoContactElement> mContactList;
 
+    // Only valid while a session observes the changes, cleared in between
+    private final BluetoothMapMsgListingCache mMsgListingCache =
+            new BluetoothMapMsgListingCache();
+
     private HashMap<Long, BluetoothMapConvoListingElement> mSmsMmsConvoList =
             new HashMap<Long, BluetoothMapConvoListingElement>();
 
@@ -193,6 +197,10 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         mImEmailConvoListVersionCounter.incrementAndGet();
     }
 
+    /* package */ BluetoothMapMsgListingCache getMsgListingCache() {
+        return mMsgListingCache;
+    }
+
     /* package */ Map<Long, Msg> getMsgListSms() {
         return mMsgListSms;
     }
@@ -284,6 +292,7 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
             }
             mObserver.deinit();
             mObserver = null;
+            mMsgListingCache.clear();
         }
 
         closeConnectionSocket();
@@ -383,6 +392,7 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
                                                          mAccount,
                                                          mEnableSmsMms);
             }
+            mMsgListingCache.clear();
             mObserver.init();
             mapServer = new BluetoothMapObexServer(mServiceHandler,
                                                     mContext,
@@ -433,6 +443,7 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         if (mObserver != null) {
             mObserver.deinit();
             mObserver = null;
+            mMsgListingCache.clear();
         }
 
         removeSdpRecord();
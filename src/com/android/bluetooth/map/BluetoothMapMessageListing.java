@@ -17,12 +17,13 @@ package com.android.bluetooth.map;
 import android.util.Log;
 import android.util.Xml;
 
-import com.android.bluetooth.DeviceWorkArounds;
+import com.android.bluetooth.util.Interop;
 import com.android.internal.util.FastXmlSerializer;
 
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -40,6 +41,15 @@ public class BluetoothMapMessageListing {
         mList = new ArrayList<BluetoothMapMessageListingElement>();
     }
 
+    /**
+     * Copy a listing, sorting or segmenting the copy leaves the original unchanged.
+     * The elements are shared.
+     */
+    public BluetoothMapMessageListing(BluetoothMapMessageListing listing) {
+        mList = new ArrayList<BluetoothMapMessageListingElement>(listing.mList);
+        mHasUnread = listing.mHasUnread;
+    }
+
     public void add(BluetoothMapMessageListingElement element) {
         mList.add(element);
         /* update info regarding whether the list contains unread messages */
@@ -91,32 +101,14 @@ public class BluetoothMapMessageListing {
     public byte[] encode(boolean includeThreadId, String version)
             throws UnsupportedEncodingException {
         StringWriter sw = new StringWriter();
-        XmlSerializer xmlMsgElement = null;
-        boolean isBenzCarkit = DeviceWorkArounds.addressStartsWith(
-                BluetoothMapService.getRemoteDevice().getAddress(),
-                DeviceWorkArounds.MERCEDES_BENZ_CARKIT);
+        String remoteAddress = BluetoothMapService.getRemoteDevice().getAddress();
+        String remoteName = BluetoothMapService.getRemoteDeviceName();
+        boolean isBenzCarkit = Interop.match(Interop.INTEROP_MAP_NO_XML_DECLARATION,
+                remoteAddress, remoteName);
         try {
-            if (isBenzCarkit) {
-                Log.d(TAG, "java_interop: Remote is Mercedes Benz, "
-                        + "using Xml Workaround.");
-                xmlMsgElement = Xml.newSerializer();
-                xmlMsgElement.setOutput(sw);
-                xmlMsgElement.text("\n");
-            } else {
-                xmlMsgElement = new FastXmlSerializer();
-                xmlMsgElement.setOutput(sw);
-                xmlMsgElement.startDocument("UTF-8", true);
-                xmlMsgElement.setFeature(
-                        "http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            }
-            xmlMsgElement.startTag(null, "MAP-msg-listing");
-            xmlMsgElement.attribute(null, "version", version);
-            // Do the XML encoding of list
-            for (BluetoothMapMessageListingElement element : mList) {
-                element.encode(xmlMsgElement, includeThreadId); // Append the list element
-            }
-            xmlMsgElement.endTag(null, "MAP-msg-listing");
-            xmlMsgElement.endDocument();
+            XmlSerializer xmlMsgElement = newSerializer(isBenzCarkit);
+            xmlMsgElement.setOutput(sw);
+            encode(xmlMsgElement, isBenzCarkit, includeThreadId, version);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
@@ -125,8 +117,7 @@ public class BluetoothMapMessageListing {
             Log.w(TAG, e);
         }
         /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
-        if (DeviceWorkArounds.addressStartsWith(BluetoothMapService.getRemoteDevice().getAddress(),
-                    DeviceWorkArounds.BREZZA_ZDI_CARKIT)) {
+        if (Interop.match(Interop.INTEROP_MAP_UNESCAPED_XML, remoteAddress, remoteName)) {
             return sw.toString()
                     .replaceAll("&amp;", "&")
                     .replaceAll("&lt;", "<")
@@ -136,24 +127,94 @@ public class BluetoothMapMessageListing {
         return sw.toString().getBytes("UTF-8");
     }
 
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as UTF-8 formatted XML straight
+     * into a stream, without holding the whole document in memory
+     *
+     * @param out the stream to write to, not closed by this method.
+     * @param version the version as a string, see {@link #encode(boolean, String)}.
+     * @throws IOException if writing to the stream failed, e.g. the operation was aborted.
+     */
+    public void encode(OutputStream out, boolean includeThreadId, String version)
+            throws IOException {
+        String remoteAddress = BluetoothMapService.getRemoteDevice().getAddress();
+        String remoteName = BluetoothMapService.getRemoteDeviceName();
+        if (Interop.match(Interop.INTEROP_MAP_UNESCAPED_XML, remoteAddress, remoteName)) {
+            // The unescaping works on the whole document
+            out.write(encode(includeThreadId, version));
+            return;
+        }
+        boolean isBenzCarkit = Interop.match(Interop.INTEROP_MAP_NO_XML_DECLARATION,
+                remoteAddress, remoteName);
+        try {
+            XmlSerializer xmlMsgElement = newSerializer(isBenzCarkit);
+            xmlMsgElement.setOutput(out, "UTF-8");
+            encode(xmlMsgElement, isBenzCarkit, includeThreadId, version);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, e);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    private static XmlSerializer newSerializer(boolean isBenzCarkit) {
+        if (isBenzCarkit) {
+            Log.d(TAG, "java_interop: Remote is Mercedes Benz, "
+                    + "using Xml Workaround.");
+            return Xml.newSerializer();
+        }
+        return new FastXmlSerializer();
+    }
+
+    private void encode(XmlSerializer xmlMsgElement, boolean isBenzCarkit,
+            boolean includeThreadId, String version) throws IOException {
+        if (isBenzCarkit) {
+            xmlMsgElement.text("\n");
+        } else {
+            xmlMsgElement.startDocument("UTF-8", true);
+            xmlMsgElement.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        }
+        xmlMsgElement.startTag(null, "MAP-msg-listing");
+        xmlMsgElement.attribute(null, "version", version);
+        // Do the XML encoding of list
+        for (BluetoothMapMessageListingElement element : mList) {
+            element.encode(xmlMsgElement, includeThreadId); // Append the list element
+        }
+        xmlMsgElement.endTag(null, "MAP-msg-listing");
+        xmlMsgElement.endDocument();
+    }
+
     public void sort() {
         Collections.sort(mList);
     }
 
     public void segment(int count, int offset) {
         count = Math.min(count, mList.size() - offset);
+        // Copy the segment, so that the elements outside of it can be garbage collected
         if (count > 0) {
-            mList = mList.subList(offset, offset + count);
-            if (mList == null) {
-                mList = new ArrayList<BluetoothMapMessageListingElement>(); // Return an empty list
-            }
+            mList = new ArrayList<BluetoothMapMessageListingElement>(
+                    mList.subList(offset, offset + count));
         } else {
             if (offset > mList.size()) {
                 mList = new ArrayList<BluetoothMapMessageListingElement>();
                 Log.d(TAG, "offset greater than list size. Returning empty list");
             } else {
-                mList = mList.subList(offset, mList.size());
+                mList = new ArrayList<BluetoothMapMessageListingElement>(
+                        mList.subList(offset, mList.size()));
             }
         }
     }
+
+    /**
+     * @return an estimate of the heap used by the listing, in bytes
+     */
+    int getEstimatedSize() {
+        int size = 64;
+        for (BluetoothMapMessageListingElement element : mList) {
+            // Element and its reference in the list
+            size += element.getEstimatedSize() + 8;
+        }
+        return size;
+    }
 }
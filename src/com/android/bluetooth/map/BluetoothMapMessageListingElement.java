@@ -14,8 +14,8 @@
 */
 package com.android.bluetooth.map;
 
-import com.android.bluetooth.DeviceWorkArounds;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+import com.android.bluetooth.util.Interop;
 
 import org.xmlpull.v1.XmlSerializer;
 
@@ -253,6 +253,23 @@ public class BluetoothMapMessageListingElement
         this.mFolderType = folderType;
     }
 
+    /**
+     * @return an estimate of the heap used by this element, in bytes
+     */
+    int getEstimatedSize() {
+        // Object header and primitive fields, then two bytes per character
+        return 128 + 2 * (length(mSubject) + length(mSenderName) + length(mSenderAddressing)
+                + length(mReplytoAddressing) + length(mRecipientName)
+                + length(mRecipientAddressing) + length(mText) + length(mReceptionStatus)
+                + length(mDeliveryStatus) + length(mPriority) + length(mSent) + length(mProtect)
+                + length(mFolderType) + length(mThreadId) + length(mThreadName)
+                + length(mAttachmentMimeTypes));
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
     @Override
     public int compareTo(BluetoothMapMessageListingElement e) {
         if (this.mDateTime < e.mDateTime) {
@@ -274,9 +291,9 @@ public class BluetoothMapMessageListingElement
         if (mSubject != null) {
             String stripped = BluetoothMapUtils.stripInvalidChars(mSubject);
 
-            if (DeviceWorkArounds.addressStartsWith(BluetoothMapService
-                    .getRemoteDevice().getAddress(), DeviceWorkArounds
-                    .MERCEDES_BENZ_CARKIT)) {
+            if (Interop.match(Interop.INTEROP_MAP_ASCIIONLY,
+                    BluetoothMapService.getRemoteDevice().getAddress(),
+                    BluetoothMapService.getRemoteDeviceName())) {
                 stripped = stripped.replaceAll("[\\P{ASCII}&\"><]", "");
                 if (stripped.isEmpty()) {
                     stripped = "---";
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.map;
+
+import android.database.Cursor;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Finds the rows of a message table that changed since the previous scan, without comparing
+ * every row with the message list of {@link BluetoothMapContentObserver}.
+ *
+ * Rows are grouped in ranges of {@link #RANGE_SIZE} consecutive _ID values, and a checksum of
+ * the tracked columns is kept per range. A scan reads the _ID and tracked columns of the whole
+ * table, which are all integers, so that only the rows of the ranges whose checksum changed have
+ * to be compared with the message list.
+ * Inserts, deletes, read status and folder changes all change the checksum of their range.
+ * The highest _ID seen is kept as a high-water mark, so that the columns needed for the events
+ * of new messages can be read for the new rows only.
+ *
+ * Not thread safe, the observer scans with the message list lock held.
+ */
+class BluetoothMapMsgListTracker {
+    private static final int RANGE_SHIFT = 8;
+    @VisibleForTesting
+    static final int RANGE_SIZE = 1 << RANGE_SHIFT;
+
+    private final String mIdColumn;
+    private final String[] mColumns;
+    // Range -> checksum of its rows, null until built by a full comparison
+    private Map<Long, Long> mChecksums;
+    private final HashSet<Long> mChangedRanges = new HashSet<>();
+    private long mMaxId = -1;
+
+    private long mScans;
+    private long mChangedRangeCount;
+
+    /**
+     * @param idColumn name of the _ID column
+     * @param columns names of the integer columns whose changes have to be detected
+     */
+    BluetoothMapMsgListTracker(String idColumn, String[] columns) {
+        mIdColumn = idColumn;
+        mColumns = columns.clone();
+    }
+
+    /**
+     * @return true if a scan can tell the changes since the last scan or rebuild
+     */
+    boolean isValid() {
+        return mChecksums != null;
+    }
+
+    /**
+     * Force the next changes to be found with a full comparison
+     */
+    void invalidate() {
+        mChecksums = null;
+        mChangedRanges.clear();
+        mMaxId = -1;
+    }
+
+    /**
+     * @return highest _ID seen by the last scan or rebuild, -1 if none
+     */
+    long getMaxId() {
+        return mMaxId;
+    }
+
+    /**
+     * Compute the checksums of all rows, after a full comparison with the message list
+     *
+     * @param c cursor with the _ID and tracked columns, may be null if the table is empty
+     */
+    void rebuild(Cursor c) {
+        mChangedRanges.clear();
+        mChecksums = checksum(c);
+        if (mChecksums == null) {
+            mMaxId = -1;
+        }
+    }
+
+    /**
+     * Find the ranges that changed since the last scan or rebuild
+     *
+     * @param c cursor with the _ID and tracked columns of all rows, in any order
+     * @return false if the tracker has to be rebuilt with a full comparison
+     */
+    boolean scan(Cursor c) {
+        if (mChecksums == null) {
+            return false;
+        }
+        Map<Long, Long> checksums = checksum(c);
+        if (checksums == null) {
+            invalidate();
+            return false;
+        }
+        mScans++;
+        mChangedRanges.clear();
+        for (Map.Entry<Long, Long> entry : checksums.entrySet()) {
+            if (!entry.getValue().equals(mChecksums.get(entry.getKey()))) {
+                mChangedRanges.add(entry.getKey());
+            }
+        }
+        for (Long range : mChecksums.keySet()) {
+            if (!checksums.containsKey(range)) {
+                mChangedRanges.add(range);
+            }
+        }
+        mChecksums = checksums;
+        mChangedRangeCount += mChangedRanges.size();
+        return true;
+    }
+
+    /**
+     * @return true if the last scan found changes
+     */
+    boolean hasChanges() {
+        return !mChangedRanges.isEmpty();
+    }
+
+    /**
+     * @return true if the last scan found changes in the range of the given _ID. Messages of the
+     * message list in such a range that are no longer in the table have been deleted.
+     */
+    boolean isInChangedRange(long id) {
+        return mChangedRanges.contains(id >> RANGE_SHIFT);
+    }
+
+    // Returns null if the cursor lacks a column
+    private Map<Long, Long> checksum(Cursor c) {
+        Map<Long, Long> checksums = new HashMap<>();
+        mMaxId = -1;
+        if (c == null || !c.moveToFirst()) {
+            return checksums;
+        }
+        int idIndex = c.getColumnIndex(mIdColumn);
+        int[] indexes = new int[mColumns.length];
+        for (int i = 0; i < mColumns.length; i++) {
+            indexes[i] = c.getColumnIndex(mColumns[i]);
+            if (indexes[i] == -1) {
+                return null;
+            }
+        }
+        if (idIndex == -1) {
+            return null;
+        }
+        do {
+            long id = c.getLong(idIndex);
+            long hash = mix(id);
+            for (int index : indexes) {
+                hash = mix(hash + c.getInt(index));
+            }
+            // A sum does not depend on the order of the rows
+            Long range = id >> RANGE_SHIFT;
+            Long checksum = checksums.get(range);
+            checksums.put(range, checksum == null ? hash : checksum + hash);
+            mMaxId = Math.max(mMaxId, id);
+        } while (c.moveToNext());
+        return checksums;
+    }
+
+    // Finalizer of SplitMix64, spreads the bits of the columns over the whole checksum
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return "BluetoothMapMsgListTracker [valid=" + isValid() + ", maxId=" + mMaxId
+                + ", scans=" + mScans + ", changedRanges=" + mChangedRangeCount + "]";
+    }
+}
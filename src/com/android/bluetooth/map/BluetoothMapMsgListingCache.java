@@ -0,0 +1,247 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.map;
+
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the message listings of a MAS instance, so that a client repeating the same
+ * GetMessagesListing request is answered without querying the content providers again.
+ *
+ * A MAS instance serves a single account, hence listings are keyed by the listed folder and
+ * the normalized filters of the request.
+ * The {@link BluetoothMapContentObserver} of the session drops the listings of the folders and
+ * message types in which it detects changes, and the OBEX server drops all listings when the
+ * client changes messages itself, as the observer applies those changes to its message lists
+ * without detecting them.
+ * Listings are evicted in least recently used order to stay within a memory budget.
+ */
+class BluetoothMapMsgListingCache {
+    private static final String TAG = "BluetoothMapMsgListingCache";
+    private static final boolean D = BluetoothMapService.DEBUG;
+
+    // Holds a few listings of the 1024 messages a client can request at most
+    @VisibleForTesting
+    static final int DEFAULT_BUDGET_BYTES = 512 * 1024;
+
+    private static class Entry {
+        // Name of the listed folder, null if the listing ignores folders
+        final String mFolder;
+        final int mFilterMessageType;
+        final BluetoothMapMessageListing mListing;
+        final int mSize;
+        final int mQueries;
+
+        Entry(String folder, int filterMessageType, BluetoothMapMessageListing listing,
+                int queries) {
+            mFolder = folder;
+            mFilterMessageType = filterMessageType;
+            mListing = new BluetoothMapMessageListing(listing);
+            mSize = listing.getEstimatedSize();
+            mQueries = queries;
+        }
+    }
+
+    private final int mBudget;
+    // In access order, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private int mSize;
+    // Changes on each invalidation, so that a listing built meanwhile is not kept
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+    private long mAvoidedQueries;
+    private long mInvalidations;
+    private long mEvictions;
+
+    BluetoothMapMsgListingCache() {
+        this(DEFAULT_BUDGET_BYTES);
+    }
+
+    /**
+     * @param budget estimated heap the cached listings may use, in bytes
+     */
+    @VisibleForTesting
+    BluetoothMapMsgListingCache(int budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Get the listing of a previous request with the same folder and filters.
+     * Must be called before the listing request changes the application parameters.
+     *
+     * @return a copy of the listing that the caller may sort or segment, or null if it has to
+     * be built from the content providers
+     */
+    synchronized BluetoothMapMessageListing get(BluetoothMapFolderElement folderElement,
+            BluetoothMapAppParams ap) {
+        Entry entry = mEntries.get(getKey(folderElement, ap));
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        mAvoidedQueries += entry.mQueries;
+        return new BluetoothMapMessageListing(entry.mListing);
+    }
+
+    /**
+     * @return the generation to give to {@link #put} for a listing built from now on
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Keep the listing built for a request, evicting the least recently used listings if
+     * needed. Must be called with the application parameters given to {@link #get}.
+     *
+     * @param queries number of provider queries made to build the listing
+     * @param generation value of {@link #getGeneration} before the listing was built
+     */
+    synchronized void put(BluetoothMapFolderElement folderElement, BluetoothMapAppParams ap,
+            BluetoothMapMessageListing listing, int queries, long generation) {
+        if (generation != mGeneration) {
+            // Messages changed while the listing was built
+            return;
+        }
+        Entry entry = new Entry(folderElement.shouldIgnore() ? null : folderElement.getName(),
+                getFilterMessageType(ap), listing, queries);
+        if (entry.mSize > mBudget) {
+            if (D) {
+                Log.d(TAG, "put: listing of " + entry.mSize + " bytes exceeds the budget");
+            }
+            return;
+        }
+        Entry old = mEntries.put(getKey(folderElement, ap), entry);
+        if (old != null) {
+            mSize -= old.mSize;
+        }
+        mSize += entry.mSize;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mSize > mBudget && it.hasNext()) {
+            mSize -= it.next().mSize;
+            it.remove();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Drop the listings that may contain messages of a type in a folder
+     *
+     * @param type message type, null for all types
+     * @param folder folder name, null for all folders
+     */
+    synchronized void invalidate(TYPE type, String folder) {
+        mGeneration++;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (isTypeListed(entry.mFilterMessageType, type) && (folder == null
+                    || entry.mFolder == null || entry.mFolder.equalsIgnoreCase(folder))) {
+                mSize -= entry.mSize;
+                it.remove();
+                mInvalidations++;
+            }
+        }
+    }
+
+    /**
+     * Drop all listings, e.g. when a session starts or the client changes messages
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mInvalidations += mEntries.size();
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    private static int getFilterMessageType(BluetoothMapAppParams ap) {
+        int filter = ap.getFilterMessageType();
+        return filter == BluetoothMapAppParams.INVALID_VALUE_PARAMETER ? 0 : filter;
+    }
+
+    private static boolean isTypeListed(int filterMessageType, TYPE type) {
+        if (type == null) {
+            return true;
+        }
+        switch (type) {
+            case SMS_GSM:
+                return (filterMessageType & BluetoothMapAppParams.FILTER_NO_SMS_GSM) == 0;
+            case SMS_CDMA:
+                return (filterMessageType & BluetoothMapAppParams.FILTER_NO_SMS_CDMA) == 0;
+            case MMS:
+                return (filterMessageType & BluetoothMapAppParams.FILTER_NO_MMS) == 0;
+            case EMAIL:
+                return (filterMessageType & BluetoothMapAppParams.FILTER_NO_EMAIL) == 0;
+            case IM:
+                return (filterMessageType & BluetoothMapAppParams.FILTER_NO_IM) == 0;
+            default:
+                return true;
+        }
+    }
+
+    // All the application parameters used by BluetoothMapContent.msgListing()
+    private static String getKey(BluetoothMapFolderElement folderElement,
+            BluetoothMapAppParams ap) {
+        long parameterMask = ap.getParameterMask();
+        // msgListing() enables all parameters if the mask is missing or empty
+        if (parameterMask == BluetoothMapAppParams.INVALID_VALUE_PARAMETER
+                || parameterMask == 0) {
+            parameterMask = BluetoothMapContent.PARAMETER_MASK_ALL_ENABLED;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(folderElement.shouldIgnore() ? "*" : folderElement.getFullPath())
+                .append('|').append(ap.getMaxListCount())
+                .append('|').append(ap.getStartOffset())
+                .append('|').append(getFilterMessageType(ap))
+                .append('|').append(ap.getFilterPeriodBegin())
+                .append('|').append(ap.getFilterPeriodEnd())
+                .append('|').append(ap.getFilterReadStatus())
+                .append('|').append(ap.getFilterRecipient())
+                .append('|').append(ap.getFilterOriginator())
+                .append('|').append(ap.getFilterPriority())
+                .append('|').append(ap.getFilterConvoId() == null ? null
+                        : ap.getFilterConvoId().toHexString())
+                .append('|').append(ap.getFilterMsgHandle())
+                .append('|').append(parameterMask)
+                .append('|').append(ap.getSubjectLength());
+        return key.toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long requests = mHits + mMisses;
+        return "BluetoothMapMsgListingCache [listings=" + mEntries.size() + ", bytes=" + mSize
+                + "/" + mBudget + ", hits=" + mHits + ", misses=" + mMisses + ", hitRate="
+                + (requests == 0 ? 0 : mHits * 100 / requests) + "%, avoidedQueries="
+                + mAvoidedQueries + ", invalidations=" + mInvalidations + ", evictions="
+                + mEvictions + "]";
+    }
+}
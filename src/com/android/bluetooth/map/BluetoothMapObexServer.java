@@ -24,6 +24,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserManager;
 import android.telephony.TelephonyManager;
 import android.text.format.DateUtils;
@@ -516,6 +517,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     Log.e(TAG, "Storage locked, " + type + " failed");
                     return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
                 }
+                // The observer applies the changes of the client to its message lists itself
+                mMasInstance.getMsgListingCache().clear();
                 return setMessageStatus(name, appParams);
             } else if (type.equals(TYPE_MESSAGE)) {
                 if (V) {
@@ -528,6 +531,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     Log.e(TAG, "Storage locked, " + type + " failed");
                     return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
                 }
+                mMasInstance.getMsgListingCache().clear();
                 return pushMessage(op, name, appParams, mMessageVersion);
             } else if (type.equals(TYPE_SET_OWNER_STATUS)) {
                 if (V) {
@@ -1153,13 +1157,14 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams,
             String folderName) {
+        long startTime = SystemClock.elapsedRealtime();
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
+        String version = null;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1205,10 +1210,27 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
 
             // Check to see if we only need to send the size - hence no need to encode.
             if (appParams.getMaxListCount() != 0) {
-                outList = mOutContent.msgListing(folderToList, appParams);
+                // Without the observer, e.g. for clients polling without notifications, changes
+                // wouldn't drop the cached listings
+                BluetoothMapMsgListingCache listingCache = null;
+                if (mObserver != null && mObserver.isObserverRegistered()) {
+                    listingCache = mMasInstance.getMsgListingCache();
+                    outList = listingCache.get(folderToList, appParams);
+                }
+                if (outList == null) {
+                    long generation = (listingCache == null) ? 0 : listingCache.getGeneration();
+                    int queryCount = mOutContent.getQueryCount();
+                    outList = mOutContent.msgListing(folderToList, appParams);
+                    if (listingCache != null) {
+                        listingCache.put(folderToList, appParams, outList,
+                                mOutContent.getQueryCount() - queryCount, generation);
+                    }
+                } else if (D) {
+                    Log.d(TAG, "sendMessageListingRsp: cached listing of " + outList.getCount()
+                            + " messages");
+                }
                 // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                String version;
                 if (0 < (mRemoteFeatureMask
                         & BluetoothMapUtils.MAP_FEATURE_MESSAGE_LISTING_FORMAT_V11_BIT)) {
                     version = BluetoothMapUtils.MAP_V11_STR;
@@ -1216,8 +1238,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     version = BluetoothMapUtils.MAP_V10_STR;
                 }
                 /* This will only set the version, the bit must also be checked before adding any
-                 * 1.1 bits to the listing. */
-                outBytes = outList.encode(mThreadIdSupport, version);
+                 * 1.1 bits to the listing. The listing is encoded once the body stream is open. */
                 hasUnread = outList.hasUnread();
             } else {
                 listSize = mOutContent.msgListingSize(folderToList, appParams);
@@ -1277,31 +1298,33 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if (outBytes != null) {
+        if (outList != null) {
+            // This must be called after setting the headers.
+            ChunkOutputStream chunkStream =
+                    new ChunkOutputStream(outStream, op.getMaxPacketSize());
             try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                outList.encode(chunkStream, mThreadIdSupport, version);
+                chunkStream.flush();
             } catch (IOException e) {
                 if (D) {
                     Log.w(TAG, e);
                 }
                 // We were probably aborted or disconnected
+                if (!mIsAborted) {
+                    Log.w(TAG, "sendMessageListingRsp: failed to write the listing"
+                            + " - sending OBEX_HTTP_BAD_REQUEST");
+                    return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+                }
             } finally {
-                if (outStream != null) {
-                    try {
-                        outStream.close();
-                    } catch (IOException e) {
-                    }
+                try {
+                    outStream.close();
+                } catch (IOException e) {
                 }
             }
-            if (bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG, "sendMessageListingRsp: bytesWritten != outBytes.length"
-                        + " - sending OBEX_HTTP_BAD_REQUEST");
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+            if (V) {
+                Log.v(TAG, "sendMessageListingRsp: " + outList.getCount() + " messages, "
+                        + chunkStream.getBytesWritten() + " bytes, first byte after "
+                        + chunkStream.getFirstByteDelay(startTime) + " ms");
             }
         } else {
             if (outStream != null) {
@@ -1368,13 +1391,14 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendConvoListingRsp(Operation op, BluetoothMapAppParams appParams,
             String folderName) {
+        long startTime = SystemClock.elapsedRealtime();
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
         //boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
         BluetoothMapConvoListing outList;
+        // The listing to encode once the body stream is open
+        BluetoothMapConvoListing bodyList = null;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1397,11 +1421,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             if (appParams.getMaxListCount() != 0) {
                 outList = mOutContent.convoListing(appParams, false);
                 outAppParams.setConvoListingSize(outList.getCount());
-                // Generate the byte stream
-                outBytes = outList.encode(); // Include thread ID for clients that supports it.
-                if (D) {
-                    Log.d(TAG, "outBytes size:" + outBytes.length);
-                }
+                bodyList = outList;
             } else {
                 outList = mOutContent.convoListing(appParams, true);
                 outAppParams.setConvoListingSize(outList.getCount());
@@ -1424,7 +1444,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 Log.d(TAG, "outList size:" + outList.getCount() + " MaxListCount: "
                         + appParams.getMaxListCount());
             }
-            outList = null; // We don't need it anymore - we might as well give it up for GC
             outAppParams.setDatabaseIdentifier(0, mMasInstance.getDbIdentifier());
 
             // Build the application parameter header
@@ -1463,31 +1482,33 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if (outBytes != null) {
+        if (bodyList != null) {
+            // This must be called after setting the headers.
+            ChunkOutputStream chunkStream =
+                    new ChunkOutputStream(outStream, op.getMaxPacketSize());
             try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                bodyList.encode(chunkStream);
+                chunkStream.flush();
             } catch (IOException e) {
                 if (D) {
                     Log.w(TAG, e);
                 }
                 // We were probably aborted or disconnected
+                if (!mIsAborted) {
+                    Log.w(TAG, "sendConvoListingRsp: failed to write the listing"
+                            + " - sending OBEX_HTTP_BAD_REQUEST");
+                    return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+                }
             } finally {
-                if (outStream != null) {
-                    try {
-                        outStream.close();
-                    } catch (IOException e) {
-                    }
+                try {
+                    outStream.close();
+                } catch (IOException e) {
                 }
             }
-            if (bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG, "sendConvoListingRsp: bytesWritten != outBytes.length"
-                        + " - sending OBEX_HTTP_BAD_REQUEST");
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+            if (D) {
+                Log.d(TAG, "sendConvoListingRsp: " + chunkStream.getBytesWritten()
+                        + " bytes, first byte after " + chunkStream.getFirstByteDelay(startTime)
+                        + " ms");
             }
         } else {
             if (outStream != null) {
@@ -1902,6 +1923,74 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
     }
 
+    /**
+     * Collects a response body into chunks of the OBEX packet size, so that a listing can be
+     * encoded straight into the OBEX operation instead of into a byte array first.
+     * Writing fails once the operation has been aborted by the peer.
+     */
+    private class ChunkOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final byte[] mChunk;
+        private int mCount = 0;
+        private long mBytesWritten = 0;
+        private long mFirstByteTime = -1;
+
+        ChunkOutputStream(OutputStream out, int chunkSize) {
+            mOut = out;
+            mChunk = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mChunk.length) {
+                writeChunk();
+            }
+            mChunk[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mCount == mChunk.length) {
+                    writeChunk();
+                }
+                int count = Math.min(len, mChunk.length - mCount);
+                System.arraycopy(b, off, mChunk, mCount, count);
+                mCount += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mCount > 0) {
+                writeChunk();
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            if (mIsAborted) {
+                throw new IOException("Operation aborted");
+            }
+            mOut.write(mChunk, 0, mCount);
+            if (mFirstByteTime == -1) {
+                mFirstByteTime = SystemClock.elapsedRealtime();
+            }
+            mBytesWritten += mCount;
+            mCount = 0;
+        }
+
+        long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        // Time from startTime until the first chunk was written, -1 if none was
+        long getFirstByteDelay(long startTime) {
+            return mFirstByteTime == -1 ? -1 : mFirstByteTime - startTime;
+        }
+    }
+
     private void notifyUpdateWakeLock() {
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
@@ -503,6 +503,10 @@ public class BluetoothMapService extends ProfileService {
         return sRemoteDevice;
     }
 
+    public static String getRemoteDeviceName() {
+        return sRemoteDeviceName;
+    }
+
     private void setState(int state) {
         setState(state, BluetoothMap.RESULT_SUCCESS);
     }
@@ -1331,7 +1335,9 @@ public class BluetoothMapService extends ProfileService {
         println(sb, "mBluetoothMnsObexClient: " + mBluetoothMnsObexClient);
         println(sb, "mMasInstanceMap:");
         for (BluetoothMapAccountItem key : mMasInstanceMap.keySet()) {
-            println(sb, "  " + key + " : " + mMasInstanceMap.get(key));
+            BluetoothMapMasInstance masInstance = mMasInstanceMap.get(key);
+            println(sb, "  " + key + " : " + masInstance);
+            println(sb, "    " + masInstance.getMsgListingCache());
         }
         println(sb, "mEnabledAccounts:");
         if (mEnabledAccounts != null) {
@@ -67,6 +67,9 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
     private static final boolean D = Constants.DEBUG;
     private static final boolean V = Constants.VERBOSE;
 
+    private static final MetricsLogger.Counter sBytesSent =
+            MetricsLogger.registerCounter("opp.obex_bytes_sent");
+
     private ClientThread mThread;
 
     private ObexTransport mTransport;
@@ -492,6 +495,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         outputStream.write(buffer, 0, readLength);
 
                         position += readLength;
+                        sBytesSent.add(readLength);
 
                         if (position == fileInfo.mLength) {
                             // if file length is smaller than buffer size, only one packet
@@ -543,6 +547,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                             okToProceed = false;
                         } else {
                             position += readLength;
+                            sBytesSent.add(readLength);
                             currentTime = SystemClock.elapsedRealtime();
                             if (V) {
                                 Log.v(TAG, "Sending file position = " + position
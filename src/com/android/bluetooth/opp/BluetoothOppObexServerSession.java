@@ -71,6 +71,9 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
     private static final boolean D = Constants.DEBUG;
     private static final boolean V = Constants.VERBOSE;
 
+    private static final MetricsLogger.Counter sBytesReceived =
+            MetricsLogger.registerCounter("opp.obex_bytes_received");
+
     private ObexTransport mTransport;
 
     private Context mContext;
@@ -494,6 +497,7 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
 
                     bos.write(b, 0, readLength);
                     position += readLength;
+                    sBytesReceived.add(readLength);
                     percent = position * 100 / fileInfo.mLength;
                     currentTime = SystemClock.elapsedRealtime();
 
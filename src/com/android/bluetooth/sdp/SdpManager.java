@@ -31,9 +31,11 @@ import android.util.Log;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AbstractionLayer;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class SdpManager {
 
@@ -71,6 +73,10 @@ public class SdpManager {
     static boolean sSearchInProgress = false;
     static final Object TRACKER_LOCK = new Object();
 
+    /* Results of completed searches, served without a new search while valid.
+     * TRACKER_LOCK must be held when using sSdpRecordCache. */
+    static SdpRecordCache sSdpRecordCache;
+
     /* The timeout to wait for reply from native. Should never fire. */
     private static final int SDP_INTENT_DELAY = 11000;
     private static final int MESSAGE_SDP_INTENT = 2;
@@ -114,6 +120,13 @@ public class SdpManager {
 
     private native boolean sdpRemoveSdpRecordNative(int recordId);
 
+    /* Indirection for starting a search in the stack, so tests can fake the native layer */
+    @VisibleForTesting
+    interface SearchNative {
+        boolean sdpSearch(byte[] address, byte[] uuid);
+    }
+
+    private SearchNative mSearchNative = this::sdpSearchNative;
 
     /* Inner class used for wrapping sdp search instance data */
     private class SdpSearchInstance {
@@ -121,6 +134,8 @@ public class SdpManager {
         private final ParcelUuid mUuid;
         private int mStatus = 0;
         private boolean mSearching;
+        private boolean mTimedOut;
+        private final ArrayList<Parcelable> mRecords = new ArrayList<Parcelable>();
 
         /* TODO: If we change the API to use another mechanism than intents for
          *       delivering the results, this would be the place to keep a list
@@ -164,6 +179,24 @@ public class SdpManager {
         public boolean isSearching() {
             return mSearching;
         }
+
+        public void addRecord(Parcelable record) {
+            mRecords.add(record);
+        }
+
+        public List<Parcelable> getRecords() {
+            return mRecords;
+        }
+
+        public void setTimedOut() {
+            mTimedOut = true;
+        }
+
+        /* Only complete, successful searches may be served from the cache */
+        public boolean isCacheable() {
+            return !mTimedOut && mStatus == AbstractionLayer.BT_STATUS_SUCCESS
+                    && !mRecords.isEmpty();
+        }
     }
 
 
@@ -205,21 +238,27 @@ public class SdpManager {
             return null;
         }
 
-        boolean isSearching(BluetoothDevice device, ParcelUuid uuid) {
+        /* True if a search for the device and UUID is queued or still delivering results */
+        boolean isTracked(BluetoothDevice device, ParcelUuid uuid) {
             String addressString = device.getAddress();
             for (SdpSearchInstance inst : mList) {
                 if (inst.getDevice().getAddress().equals(addressString) && inst.getUuid()
                         .equals(uuid)) {
-                    return inst.isSearching();
+                    return true;
                 }
             }
             return false;
         }
+
+        int size() {
+            return mList.size();
+        }
     }
 
 
     private SdpManager(AdapterService adapterService) {
         sSdpSearchTracker = new SdpSearchTracker();
+        sSdpRecordCache = new SdpRecordCache();
 
         /* This is only needed until intents are no longer used */
         sAdapterService = adapterService;
@@ -243,6 +282,11 @@ public class SdpManager {
                 sSdpSearchTracker.clear();
             }
         }
+        if (sSdpRecordCache != null) {
+            synchronized (TRACKER_LOCK) {
+                sSdpRecordCache.clear();
+            }
+        }
 
         if (sNativeAvailable) {
             cleanupNative();
@@ -417,8 +461,18 @@ public class SdpManager {
             return;
         }
         synchronized (TRACKER_LOCK) {
-            if (sSdpSearchTracker.isSearching(device, uuid)) {
-                /* Search already in progress */
+            if (sSdpSearchTracker.isTracked(device, uuid)) {
+                /* Search already queued or in progress, the caller will get its results */
+                return;
+            }
+
+            List<Parcelable> records = sSdpRecordCache.get(device.getAddress(), uuid);
+            if (records != null) {
+                if (D) {
+                    Log.d(TAG, "sdpSearch: using " + records.size() + " cached record(s) for UUID: "
+                            + uuid);
+                }
+                sendCachedSdpIntents(device, uuid, records);
                 return;
             }
 
@@ -443,7 +497,7 @@ public class SdpManager {
 
             inst.startSearch(); // Trigger timeout message
 
-            sdpSearchNative(Utils.getBytesFromAddress(inst.getDevice().getAddress()),
+            mSearchNative.sdpSearch(Utils.getBytesFromAddress(inst.getDevice().getAddress()),
                     Utils.uuidToByteArray(inst.getUuid()));
         } else { // Else queue is empty.
             if (D) {
@@ -458,25 +512,78 @@ public class SdpManager {
 
         inst.stopSearch();
 
+        if (record != null) {
+            inst.addRecord(record);
+        }
+        broadcastSdpRecord(inst.getDevice(), inst.getUuid(), inst.getStatus(), record);
+
+        if (!moreResults) {
+            if (inst.isCacheable()) {
+                sSdpRecordCache.put(inst.getDevice().getAddress(), inst.getUuid(),
+                        inst.getRecords());
+            }
+            //Remove the outstanding UUID request
+            sSdpSearchTracker.remove(inst);
+            sSearchInProgress = false;
+            startSearch();
+        }
+    }
+
+    /* Caller must hold the mTrackerLock */
+    private void sendCachedSdpIntents(BluetoothDevice device, ParcelUuid uuid,
+            List<Parcelable> records) {
+        for (Parcelable record : records) {
+            broadcastSdpRecord(device, uuid, AbstractionLayer.BT_STATUS_SUCCESS, record);
+        }
+    }
+
+    private void broadcastSdpRecord(BluetoothDevice device, ParcelUuid uuid, int status,
+            Parcelable record) {
         Intent intent = new Intent(BluetoothDevice.ACTION_SDP_RECORD);
 
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, inst.getDevice());
-        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, inst.getStatus());
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, status);
         if (record != null) {
             intent.putExtra(BluetoothDevice.EXTRA_SDP_RECORD, record);
         }
-        intent.putExtra(BluetoothDevice.EXTRA_UUID, inst.getUuid());
+        intent.putExtra(BluetoothDevice.EXTRA_UUID, uuid);
         /* TODO:  BLUETOOTH_ADMIN_PERM was private... change to callback interface.
          * Keep in mind that the MAP client needs to use this as well,
          * hence to make it call-backs, the MAP client profile needs to be
          * part of the Bluetooth APK. */
         sAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_ADMIN_PERM);
+    }
 
-        if (!moreResults) {
-            //Remove the outstanding UUID request
-            sSdpSearchTracker.remove(inst);
-            sSearchInProgress = false;
-            startSearch();
+    /**
+     * Drop the cached SDP results of a device. Must be called when the device is
+     * unbonded or its ACL link goes down, as its service records may change.
+     * @param device the remote device
+     */
+    public void invalidateCache(BluetoothDevice device) {
+        synchronized (TRACKER_LOCK) {
+            if (sSdpRecordCache != null) {
+                sSdpRecordCache.invalidate(device.getAddress());
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void setSearchNativeForTesting(SearchNative searchNative) {
+        mSearchNative = searchNative;
+    }
+
+    /**
+     * Dump SDP search and cache state.
+     * @param sb StringBuilder to write to
+     */
+    public void dump(StringBuilder sb) {
+        synchronized (TRACKER_LOCK) {
+            sb.append("\nSdpManager:\n");
+            sb.append("  Search in progress: " + sSearchInProgress + "\n");
+            sb.append("  Queued searches: " + sSdpSearchTracker.size() + "\n");
+            sb.append("  Cached results: " + sSdpRecordCache.size() + " (hits: "
+                    + sSdpRecordCache.getHitCount() + ", misses: "
+                    + sSdpRecordCache.getMissCount() + ")\n");
         }
     }
 
@@ -488,6 +595,7 @@ public class SdpManager {
                     SdpSearchInstance msgObj = (SdpSearchInstance) msg.obj;
                     Log.w(TAG, "Search timedout for UUID " + msgObj.getUuid());
                     synchronized (TRACKER_LOCK) {
+                        msgObj.setTimedOut();
                         sendSdpIntent(msgObj, null, false);
                     }
                     break;
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.sdp;
+
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Per-device cache of completed SDP search results, keyed by the searched UUID.
+ *
+ * Only successful searches are cached. Entries expire after a fixed time to live and are
+ * dropped as soon as the device disconnects or is unbonded, since the remote may change its
+ * service records between connections. Callers must provide their own synchronization.
+ */
+class SdpRecordCache {
+    /* Records are only trusted while the link that produced them is likely unchanged */
+    @VisibleForTesting
+    static final long DEFAULT_TTL_MS = 60 * 1000;
+
+    /* Upper bound on cached devices, the least recently searched device is dropped first */
+    @VisibleForTesting
+    static final int MAX_CACHED_DEVICES = 16;
+
+    /** Time source used for expiry, replaceable in tests. */
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    /* The result of one completed search: every record reported by the stack, in order */
+    static class Entry {
+        private final List<Parcelable> mRecords;
+        private final long mTimestamp;
+
+        Entry(List<Parcelable> records, long timestamp) {
+            mRecords = Collections.unmodifiableList(new ArrayList<Parcelable>(records));
+            mTimestamp = timestamp;
+        }
+
+        List<Parcelable> getRecords() {
+            return mRecords;
+        }
+
+        long getTimestamp() {
+            return mTimestamp;
+        }
+    }
+
+    private final HashMap<String, HashMap<ParcelUuid, Entry>> mCache = new HashMap<>();
+    private final ArrayList<String> mDeviceOrder = new ArrayList<>();
+    private final Clock mClock;
+    private final long mTtlMs;
+
+    private int mHits;
+    private int mMisses;
+
+    SdpRecordCache() {
+        this(SystemClock::elapsedRealtime, DEFAULT_TTL_MS);
+    }
+
+    @VisibleForTesting
+    SdpRecordCache(Clock clock, long ttlMs) {
+        mClock = clock;
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Get the cached records of a device for the given UUID.
+     *
+     * @param address the address of the remote device
+     * @param uuid the UUID that was searched for
+     * @return the cached records, or null if nothing valid is cached
+     */
+    List<Parcelable> get(String address, ParcelUuid uuid) {
+        HashMap<ParcelUuid, Entry> deviceEntries = mCache.get(address);
+        Entry entry = deviceEntries == null ? null : deviceEntries.get(uuid);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        if (mClock.elapsedRealtime() - entry.getTimestamp() > mTtlMs) {
+            deviceEntries.remove(uuid);
+            if (deviceEntries.isEmpty()) {
+                removeDevice(address);
+            }
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.getRecords();
+    }
+
+    /**
+     * Store the records found by a completed search, replacing any earlier result.
+     *
+     * @param address the address of the remote device
+     * @param uuid the UUID that was searched for
+     * @param records all records reported by the search
+     */
+    void put(String address, ParcelUuid uuid, List<Parcelable> records) {
+        HashMap<ParcelUuid, Entry> deviceEntries = mCache.get(address);
+        if (deviceEntries == null) {
+            if (mDeviceOrder.size() >= MAX_CACHED_DEVICES) {
+                removeDevice(mDeviceOrder.get(0));
+            }
+            deviceEntries = new HashMap<>();
+            mCache.put(address, deviceEntries);
+        } else {
+            mDeviceOrder.remove(address);
+        }
+        mDeviceOrder.add(address);
+        deviceEntries.put(uuid, new Entry(records, mClock.elapsedRealtime()));
+    }
+
+    /**
+     * Drop everything cached for a device.
+     *
+     * @param address the address of the remote device
+     */
+    void invalidate(String address) {
+        removeDevice(address);
+    }
+
+    void clear() {
+        mCache.clear();
+        mDeviceOrder.clear();
+    }
+
+    int size() {
+        int size = 0;
+        for (HashMap<ParcelUuid, Entry> deviceEntries : mCache.values()) {
+            size += deviceEntries.size();
+        }
+        return size;
+    }
+
+    int getHitCount() {
+        return mHits;
+    }
+
+    int getMissCount() {
+        return mMisses;
+    }
+
+    private void removeDevice(String address) {
+        mCache.remove(address);
+        mDeviceOrder.remove(address);
+    }
+}
@@ -16,41 +16,128 @@
 
 package com.android.bluetooth.util;
 
+import android.os.FileObserver;
+import android.util.Log;
+
+import com.android.bluetooth.DeviceWorkArounds;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
 
 /**
  * Centralized Bluetooth Interoperability workaround utilities and database.
  * This is the Java version. An analagous native version can be found
  * in /system/bt/devices/include/interop_database.h.
+ *
+ * Entries come from the built-in list below, extended by a versioned config file
+ * that can be updated without a software update. The file is read by the first lookup,
+ * and again by the first lookup after {@link #invalidate()}, which runs whenever the file
+ * is written while {@link #startWatchingConfig()} is in effect.
+ * The config file uses the same layout as the native interop_database.conf:
+ *
+ * <pre>
+ * format_version = 1
+ * db_version = 20191001
+ *
+ * [INTEROP_MAP_ASCIIONLY]
+ * 00:26:E8 = Address_Based
+ * Mercedes-Benz = Name_Based
+ * </pre>
+ *
+ * Address entries are (partial) address prefixes of one to six bytes, name entries match
+ * remote names starting with the given string.
  */
 public class Interop {
+    private static final String TAG = "Interop";
+    private static final boolean DBG = false;
+
+    private static final String CONFIG_DIR = "/data/misc/bluedroid";
+    private static final String CONFIG_FILE_NAME = "interop_database_java.conf";
+    @VisibleForTesting
+    static final String CONFIG_FILE_PATH = CONFIG_DIR + "/" + CONFIG_FILE_NAME;
+
+    /* Highest config file layout this parser understands */
+    private static final int SUPPORTED_FORMAT_VERSION = 1;
+
+    private static final String KEY_FORMAT_VERSION = "format_version";
+    private static final String KEY_DB_VERSION = "db_version";
+    private static final String TYPE_ADDRESS_BASED = "Address_Based";
+    private static final String TYPE_NAME_BASED = "Name_Based";
+
+    /**
+     * Workaround ID for deivces which do not accept non-ASCII
+     * characters in SMS messages.
+     */
+    public static final int INTEROP_MAP_ASCIIONLY = 1;
 
     /**
-     * Simple interop entry consisting of a workarond id (see below)
-     * and a (partial or complete) Bluetooth device address string
-     * to match against.
+     * Workaround ID for devices which only display the message subject
+     * when it is always sent, regardless of the requested parameter mask.
      */
-    private static class Entry {
-        public String address;
-        public int workaround_id;
+    public static final int INTEROP_MAP_IGNORE_SUBJECT_MASK = 2;
 
-        Entry(int workaroundId, String address) {
-            this.workaround_id = workaroundId;
-            this.address = address;
-        }
+    /**
+     * Workaround ID for devices which do not unescape '&amp;', '&lt;' and '&gt;'
+     * in message listings.
+     */
+    public static final int INTEROP_MAP_UNESCAPED_XML = 3;
+
+    /**
+     * Workaround ID for devices which fail to parse messages containing
+     * carriage returns.
+     */
+    public static final int INTEROP_MAP_STRIP_CR = 4;
+
+    /**
+     * Workaround ID for devices which display line feeds in messages incorrectly.
+     */
+    public static final int INTEROP_MAP_STRIP_LF = 5;
+
+    /**
+     * Workaround ID for devices which display trailing line feeds in messages.
+     */
+    public static final int INTEROP_MAP_STRIP_TRAILING_LF = 6;
+
+    /**
+     * Workaround ID for devices which reject message listings starting
+     * with an XML declaration.
+     */
+    public static final int INTEROP_MAP_NO_XML_DECLARATION = 7;
+
+    private static final int MAX_WORKAROUND_ID = INTEROP_MAP_NO_XML_DECLARATION;
+
+    private static final HashMap<String, Integer> WORKAROUND_NAMES = new HashMap<>();
+
+    static {
+        WORKAROUND_NAMES.put("INTEROP_MAP_ASCIIONLY", INTEROP_MAP_ASCIIONLY);
+        WORKAROUND_NAMES.put("INTEROP_MAP_IGNORE_SUBJECT_MASK", INTEROP_MAP_IGNORE_SUBJECT_MASK);
+        WORKAROUND_NAMES.put("INTEROP_MAP_UNESCAPED_XML", INTEROP_MAP_UNESCAPED_XML);
+        WORKAROUND_NAMES.put("INTEROP_MAP_STRIP_CR", INTEROP_MAP_STRIP_CR);
+        WORKAROUND_NAMES.put("INTEROP_MAP_STRIP_LF", INTEROP_MAP_STRIP_LF);
+        WORKAROUND_NAMES.put("INTEROP_MAP_STRIP_TRAILING_LF", INTEROP_MAP_STRIP_TRAILING_LF);
+        WORKAROUND_NAMES.put("INTEROP_MAP_NO_XML_DECLARATION", INTEROP_MAP_NO_XML_DECLARATION);
     }
 
     /**
-     * The actual "database" of interop entries.
+     * The actual "database" of interop entries. Replaced as a whole on reload,
+     * so lookups never need a lock. Null until the first lookup reads it.
      */
-    private static List<Entry> sEntries = null;
+    private static volatile Database sDatabase = null;
 
     /**
-     * Workaround ID for deivces which do not accept non-ASCII
-     * characters in SMS messages.
+     * Guards the publication of sDatabase against invalidations. Each invalidation starts a
+     * new generation, a load only publishes its database if none happened while it ran.
      */
-    public static final int INTEROP_MAP_ASCIIONLY = 1;
+    private static final Object sGenerationLock = new Object();
+    private static int sGeneration;
+
+    private static FileObserver sConfigObserver;
 
     /**
      * Initializes the interop datbase with the relevant workaround
@@ -58,14 +145,170 @@ public class Interop {
      * When adding entries, please provide a description for each
      * device as to what problem the workaround addresses.
      */
-    private static void lazyInitInteropDatabase() {
-        if (sEntries != null) {
+    private static void addBuiltInEntries(Database.Builder builder) {
+        /** Mercedes Benz NTG 4.5 does not handle non-ASCII characters in SMS */
+        builder.addAddress(INTEROP_MAP_ASCIIONLY, DeviceWorkArounds.MERCEDES_BENZ_CARKIT);
+        /** Mercedes Benz NTG 4.5 does not parse the XML declaration of message listings */
+        builder.addAddress(INTEROP_MAP_NO_XML_DECLARATION,
+                DeviceWorkArounds.MERCEDES_BENZ_CARKIT);
+        /** HONDA carkits do not display the subject unless it is always sent */
+        builder.addAddress(INTEROP_MAP_IGNORE_SUBJECT_MASK, DeviceWorkArounds.HONDA_CARKIT);
+        /** BREZZA ZDI carkits show XML escapes verbatim in message listings */
+        builder.addAddress(INTEROP_MAP_UNESCAPED_XML, DeviceWorkArounds.BREZZA_ZDI_CARKIT);
+        /** PCM carkits cannot parse messages containing carriage returns */
+        builder.addAddress(INTEROP_MAP_STRIP_CR, DeviceWorkArounds.PCM_CARKIT);
+        /** FORD SYNC carkits display line feeds in messages incorrectly */
+        builder.addAddress(INTEROP_MAP_STRIP_LF, DeviceWorkArounds.FORD_SYNC_CARKIT);
+        /** SYNC carkits display trailing line feeds in messages */
+        builder.addAddress(INTEROP_MAP_STRIP_TRAILING_LF, DeviceWorkArounds.SYNC_CARKIT);
+    }
+
+    private static Database getDatabase() {
+        Database database = sDatabase;
+        if (database == null) {
+            database = loadDatabase(new File(CONFIG_FILE_PATH));
+        }
+        return database;
+    }
+
+    /**
+     * Drops the database, so that the next lookup rebuilds it from the built-in entries
+     * and the config file. Cheap enough for the adapter state machine, as the file is read
+     * by the thread of the next lookup.
+     */
+    public static void invalidate() {
+        synchronized (sGenerationLock) {
+            sGeneration++;
+            sDatabase = null;
+        }
+    }
+
+    /**
+     * Starts invalidating the database whenever the config file is written or replaced,
+     * so that updates are picked up without restarting Bluetooth.
+     */
+    public static void startWatchingConfig() {
+        synchronized (sGenerationLock) {
+            if (sConfigObserver != null) {
+                return;
+            }
+            sConfigObserver = new FileObserver(CONFIG_DIR,
+                    FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE) {
+                @Override
+                public void onEvent(int event, String path) {
+                    if (CONFIG_FILE_NAME.equals(path)) {
+                        if (DBG) Log.d(TAG, "onEvent: config file changed, event " + event);
+                        invalidate();
+                    }
+                }
+            };
+            sConfigObserver.startWatching();
+        }
+    }
+
+    /**
+     * Stops watching the config file, see {@link #startWatchingConfig()}.
+     */
+    public static void stopWatchingConfig() {
+        synchronized (sGenerationLock) {
+            if (sConfigObserver != null) {
+                sConfigObserver.stopWatching();
+                sConfigObserver = null;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static synchronized Database loadDatabase(File configFile) {
+        int generation;
+        synchronized (sGenerationLock) {
+            generation = sGeneration;
+        }
+        Database.Builder builder = new Database.Builder();
+        addBuiltInEntries(builder);
+        if (configFile.exists()) {
+            try (FileReader reader = new FileReader(configFile)) {
+                parseConfig(reader, builder);
+            } catch (IOException e) {
+                Log.e(TAG, "loadDatabase: unable to read " + configFile + ", " + e.getMessage());
+            }
+        }
+        Database database = builder.build();
+        synchronized (sGenerationLock) {
+            // An invalidation while the file was read may mean it is already outdated, the
+            // caller still gets it but the next lookup reads the file again
+            if (generation == sGeneration) {
+                sDatabase = database;
+            }
+        }
+        if (DBG) {
+            Log.d(TAG, "loadDatabase: db_version " + database.mDbVersion + ", "
+                    + database.mAddressKeys.size() + " address and " + database.mNameCount
+                    + " name entries");
+        }
+        return database;
+    }
+
+    /**
+     * Parses config file entries into |builder|. The file is ignored as a whole if it
+     * declares a format version this parser does not support.
+     */
+    @VisibleForTesting
+    static void parseConfig(Reader input, Database.Builder builder) throws IOException {
+        BufferedReader reader = new BufferedReader(input);
+        Database.Builder fileEntries = new Database.Builder();
+        int workaroundId = 0;
+        int formatVersion = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            if (line.charAt(0) == '[' && line.charAt(line.length() - 1) == ']') {
+                Integer id = WORKAROUND_NAMES.get(line.substring(1, line.length() - 1).trim());
+                if (id == null) {
+                    Log.w(TAG, "parseConfig: unknown workaround " + line);
+                }
+                workaroundId = id == null ? 0 : id;
+                continue;
+            }
+            int separator = line.lastIndexOf('=');
+            if (separator <= 0) {
+                Log.w(TAG, "parseConfig: malformed line '" + line + "'");
+                continue;
+            }
+            String key = line.substring(0, separator).trim();
+            String value = line.substring(separator + 1).trim();
+            if (workaroundId == 0) {
+                if (KEY_FORMAT_VERSION.equals(key)) {
+                    formatVersion = parseVersion(value);
+                } else if (KEY_DB_VERSION.equals(key)) {
+                    fileEntries.mDbVersion = parseVersion(value);
+                }
+            } else if (TYPE_ADDRESS_BASED.equals(value)) {
+                if (!fileEntries.addAddress(workaroundId, key)) {
+                    Log.w(TAG, "parseConfig: malformed address '" + key + "'");
+                }
+            } else if (TYPE_NAME_BASED.equals(value)) {
+                fileEntries.addName(workaroundId, key);
+            } else {
+                Log.w(TAG, "parseConfig: unknown entry type '" + value + "'");
+            }
+        }
+        if (formatVersion < 1 || formatVersion > SUPPORTED_FORMAT_VERSION) {
+            Log.e(TAG, "parseConfig: unsupported format_version " + formatVersion);
             return;
         }
-        sEntries = new ArrayList<Entry>();
+        builder.addAll(fileEntries);
+    }
 
-        /** Mercedes Benz NTG 4.5 does not handle non-ASCII characters in SMS */
-        sEntries.add(new Entry(INTEROP_MAP_ASCIIONLY, "00:26:e8"));
+    private static int parseVersion(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     /**
@@ -77,15 +320,258 @@ public class Interop {
         if (address == null || address.isEmpty()) {
             return false;
         }
+        if (workaroundId <= 0 || workaroundId > MAX_WORKAROUND_ID) {
+            return false;
+        }
+        long packedAddress = packAddress(address);
+        if (packedAddress < 0 || (packedAddress >>> 48) != 6) {
+            return false;
+        }
+
+        return getDatabase().matchAddress(workaroundId, packedAddress & ADDRESS_MASK);
+    }
+
+    /**
+     * Checks whether a device with the remote name |name| is a match
+     * for a given workaround identified by |workaroundId|.
+     * Return true if the name starts with one of the workaround's name entries.
+     */
+    public static boolean matchByName(int workaroundId, String name) {
+        if (name == null || name.isEmpty()) {
+            return false;
+        }
+        if (workaroundId <= 0 || workaroundId > MAX_WORKAROUND_ID) {
+            return false;
+        }
+
+        return getDatabase().matchName(workaroundId, name);
+    }
+
+    /**
+     * Checks whether a device identified by |address| or by its remote |name| is
+     * a match for a given workaround identified by |workaroundId|.
+     */
+    public static boolean match(int workaroundId, String address, String name) {
+        return matchByAddress(workaroundId, address) || matchByName(workaroundId, name);
+    }
+
+    /**
+     * Returns the db_version of the loaded config file, 0 if only built-in
+     * entries are in use.
+     */
+    public static int getDatabaseVersion() {
+        return getDatabase().mDbVersion;
+    }
+
+    private static final long ADDRESS_MASK = 0xFFFFFFFFFFFFL;
+
+    /**
+     * Packs a full or partial address string ("00:26:e8") into a long without
+     * allocating. The address bytes are left aligned in the low 48 bits and the
+     * number of bytes parsed is stored above them.
+     * Returns -1 if the string is not a well formed address prefix.
+     */
+    @VisibleForTesting
+    static long packAddress(String address) {
+        int length = address.length();
+        if (length < 2 || length > 17 || (length + 1) % 3 != 0) {
+            return -1;
+        }
+        long packed = 0;
+        int numBytes = 0;
+        for (int i = 0; i < length; i += 3) {
+            if (i > 0 && address.charAt(i - 1) != ':') {
+                return -1;
+            }
+            int high = hexDigit(address.charAt(i));
+            int low = hexDigit(address.charAt(i + 1));
+            if (high < 0 || low < 0) {
+                return -1;
+            }
+            packed = (packed << 8) | (high << 4) | low;
+            numBytes++;
+        }
+        packed <<= 8 * (6 - numBytes);
+        return ((long) numBytes << 48) | packed;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /* Key of an address prefix: the workaround, the prefix length in bytes and the
+     * prefix itself. Never 0, as workaround ids start at 1. */
+    private static long addressKey(int workaroundId, int prefixLength, long address) {
+        long prefix = address >>> (8 * (6 - prefixLength));
+        return ((long) workaroundId << 51) | ((long) prefixLength << 48) | prefix;
+    }
+
+    /**
+     * Immutable, indexed set of interop entries.
+     */
+    @VisibleForTesting
+    static class Database {
+        final LongHashSet mAddressKeys;
+        /* Per workaround id, bit n is set if an address prefix of n bytes exists */
+        final int[] mPrefixLengths;
+        /* Per workaround id, the remote name prefixes to match, or null */
+        final String[][] mNames;
+        final int mNameCount;
+        final int mDbVersion;
 
-        lazyInitInteropDatabase();
-        for (Entry entry : sEntries) {
-            if (entry.workaround_id == workaroundId && entry.address.startsWith(
-                    address.toLowerCase())) {
+        private Database(Builder builder) {
+            mAddressKeys = builder.mAddressKeys;
+            mPrefixLengths = builder.mPrefixLengths;
+            mNames = new String[MAX_WORKAROUND_ID + 1][];
+            int nameCount = 0;
+            for (int id = 1; id <= MAX_WORKAROUND_ID; id++) {
+                ArrayList<String> names = builder.mNames[id];
+                if (names != null) {
+                    mNames[id] = names.toArray(new String[names.size()]);
+                    nameCount += names.size();
+                }
+            }
+            mNameCount = nameCount;
+            mDbVersion = builder.mDbVersion;
+        }
+
+        /* One hash lookup per distinct prefix length of the workaround, six at most */
+        boolean matchAddress(int workaroundId, long address) {
+            int prefixLengths = mPrefixLengths[workaroundId];
+            for (int length = 1; length <= 6; length++) {
+                if ((prefixLengths & (1 << length)) != 0
+                        && mAddressKeys.contains(addressKey(workaroundId, length, address))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean matchName(int workaroundId, String name) {
+            String[] names = mNames[workaroundId];
+            if (names == null) {
+                return false;
+            }
+            for (String prefix : names) {
+                if (name.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @VisibleForTesting
+        static class Builder {
+            private final LongHashSet mAddressKeys = new LongHashSet();
+            private final int[] mPrefixLengths = new int[MAX_WORKAROUND_ID + 1];
+            @SuppressWarnings("unchecked")
+            private final ArrayList<String>[] mNames = new ArrayList[MAX_WORKAROUND_ID + 1];
+            int mDbVersion;
+
+            boolean addAddress(int workaroundId, String address) {
+                long packed = packAddress(address);
+                if (packed < 0) {
+                    return false;
+                }
+                int length = (int) (packed >>> 48);
+                mAddressKeys.add(addressKey(workaroundId, length, packed & ADDRESS_MASK));
+                mPrefixLengths[workaroundId] |= 1 << length;
                 return true;
             }
+
+            void addName(int workaroundId, String name) {
+                if (mNames[workaroundId] == null) {
+                    mNames[workaroundId] = new ArrayList<>();
+                }
+                mNames[workaroundId].add(name);
+            }
+
+            void addAll(Builder other) {
+                mAddressKeys.addAll(other.mAddressKeys);
+                for (int id = 1; id <= MAX_WORKAROUND_ID; id++) {
+                    mPrefixLengths[id] |= other.mPrefixLengths[id];
+                    if (other.mNames[id] != null) {
+                        for (String name : other.mNames[id]) {
+                            addName(id, name);
+                        }
+                    }
+                }
+                mDbVersion = other.mDbVersion;
+            }
+
+            Database build() {
+                return new Database(this);
+            }
         }
+    }
 
-        return false;
+    /**
+     * Open addressing hash set of non-zero longs, avoiding the boxing of a HashSet<Long>.
+     */
+    @VisibleForTesting
+    static class LongHashSet {
+        private long[] mTable = new long[16];
+        private int mSize;
+
+        boolean contains(long key) {
+            int mask = mTable.length - 1;
+            for (int i = hash(key) & mask; mTable[i] != 0; i = (i + 1) & mask) {
+                if (mTable[i] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(long key) {
+            if ((mSize + 1) * 2 > mTable.length) {
+                long[] oldTable = mTable;
+                mTable = new long[oldTable.length * 2];
+                mSize = 0;
+                for (long oldKey : oldTable) {
+                    if (oldKey != 0) {
+                        insert(oldKey);
+                    }
+                }
+            }
+            insert(key);
+        }
+
+        void addAll(LongHashSet other) {
+            for (long key : other.mTable) {
+                if (key != 0) {
+                    add(key);
+                }
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        private void insert(long key) {
+            int mask = mTable.length - 1;
+            int i = hash(key) & mask;
+            while (mTable[i] != 0) {
+                if (mTable[i] == key) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            mTable[i] = key;
+            mSize++;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
     }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class UtilsTest {
+    private static final String TAG = "UtilsTest";
+    private static final int BENCHMARK_DEVICES = 200;
+    private static final int BENCHMARK_LOOKUPS = 100000;
+
+    /**
+     * Test that the address string and byte conversions round trip
+     */
+    @Test
+    public void testAddressStringFromByte_roundTrip() {
+        byte[] address = {(byte) 0x00, (byte) 0x1A, (byte) 0x7D, (byte) 0xDA, (byte) 0x71,
+                (byte) 0xFF};
+        Assert.assertEquals("00:1A:7D:DA:71:FF", Utils.getAddressStringFromByte(address));
+        Assert.assertArrayEquals(address, Utils.getBytesFromAddress("00:1A:7D:DA:71:FF"));
+        Assert.assertArrayEquals(address, Utils.getBytesFromAddress("00:1a:7d:da:71:ff"));
+        Assert.assertNull(Utils.getAddressStringFromByte(new byte[5]));
+    }
+
+    /**
+     * Test that string and byte forms of an address pack to the same long
+     */
+    @Test
+    public void testGetLongFromAddress() {
+        byte[] address = {(byte) 0x00, (byte) 0x1A, (byte) 0x7D, (byte) 0xDA, (byte) 0x71,
+                (byte) 0xFF};
+        Assert.assertEquals(0x001A7DDA71FFL, Utils.getLongFromAddress(address));
+        Assert.assertEquals(0x001A7DDA71FFL, Utils.getLongFromAddress("00:1A:7D:DA:71:FF"));
+        Assert.assertEquals(0x001A7DDA71FFL, Utils.getLongFromAddress("00:1a:7d:da:71:ff"));
+        Assert.assertEquals(0xFFFFFFFFFFFFL, Utils.getLongFromAddress("FF:FF:FF:FF:FF:FF"));
+        Assert.assertEquals(-1, Utils.getLongFromAddress("00:1A:7D:DA:71"));
+        Assert.assertEquals(-1, Utils.getLongFromAddress("00-1A-7D-DA-71-FF"));
+        Assert.assertEquals(-1, Utils.getLongFromAddress("00:1A:7D:DA:71:FG"));
+        Assert.assertEquals(-1, Utils.getLongFromAddress((byte[]) null));
+    }
+
+    /**
+     * Test that a packed address keyed LongSparseArray finds the same devices as a String keyed
+     * HashMap, and log how long both take. Timings are only logged, never asserted, since they
+     * depend on the device and its load.
+     */
+    @Test
+    public void testAddressLookup_benchmark() {
+        byte[][] addresses = new byte[BENCHMARK_DEVICES][];
+        HashMap<String, Object> stringMap = new HashMap<>();
+        LongSparseArray<Object> longMap = new LongSparseArray<>();
+        for (int i = 0; i < BENCHMARK_DEVICES; i++) {
+            addresses[i] = new byte[] {0x00, 0x11, 0x22, (byte) (i >> 8), (byte) i, 0x7F};
+            Object value = new Object();
+            String address = Utils.getAddressStringFromByte(addresses[i]);
+            Assert.assertEquals(Utils.getLongFromAddress(address),
+                    Utils.getLongFromAddress(addresses[i]));
+            stringMap.put(address, value);
+            longMap.put(Utils.getLongFromAddress(addresses[i]), value);
+        }
+        Assert.assertEquals(BENCHMARK_DEVICES, longMap.size());
+        for (byte[] address : addresses) {
+            Assert.assertSame(stringMap.get(Utils.getAddressStringFromByte(address)),
+                    longMap.get(Utils.getLongFromAddress(address)));
+        }
+        Assert.assertEquals(-1, Utils.getLongFromAddress(new byte[] {0x00, 0x11, 0x22, 0x33}));
+        Assert.assertEquals(-1, Utils.getLongFromAddress(new byte[7]));
+        Assert.assertNull(longMap.get(Utils.getLongFromAddress(new byte[5])));
+
+        int stringHits = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_LOOKUPS; i++) {
+            if (stringMap.get(Utils.getAddressStringFromByte(
+                    addresses[i % BENCHMARK_DEVICES])) != null) {
+                stringHits++;
+            }
+        }
+        long stringNs = SystemClock.elapsedRealtimeNanos() - start;
+
+        int longHits = 0;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_LOOKUPS; i++) {
+            if (longMap.get(Utils.getLongFromAddress(addresses[i % BENCHMARK_DEVICES])) != null) {
+                longHits++;
+            }
+        }
+        long longNs = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "address lookup over " + BENCHMARK_DEVICES + " devices: String key "
+                + (stringNs / BENCHMARK_LOOKUPS) + " ns/lookup, packed long key "
+                + (longNs / BENCHMARK_LOOKUPS) + " ns/lookup");
+        Assert.assertEquals(BENCHMARK_LOOKUPS, stringHits);
+        Assert.assertEquals(BENCHMARK_LOOKUPS, longHits);
+    }
+}
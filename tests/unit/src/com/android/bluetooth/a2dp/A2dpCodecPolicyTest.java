@@ -0,0 +1,184 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.a2dp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothCodecConfig;
+import android.bluetooth.BluetoothDevice;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class A2dpCodecPolicyTest {
+    private static final int AAC = BluetoothCodecConfig.SOURCE_CODEC_TYPE_AAC;
+    private static final int LDAC = BluetoothCodecConfig.SOURCE_CODEC_TYPE_LDAC;
+    // A stream that plays for a while, then is cut and resumes right away
+    private static final long PLAY_MS = 5000;
+    private static final long DROPOUT_MS = 500;
+    // A stream paused by the user
+    private static final long PAUSE_MS = 60000;
+
+    private A2dpCodecPolicy mPolicy;
+    private BluetoothDevice mTestDevice;
+    private long mNowMs;
+
+    @Before
+    public void setUp() {
+        mPolicy = new A2dpCodecPolicy();
+        mTestDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:05");
+        mNowMs = 1000000;
+        Assert.assertEquals(A2dpCodecPolicy.LEVEL_UNCHANGED,
+                mPolicy.onStreamStarted(mTestDevice, AAC, mNowMs));
+    }
+
+    /**
+     * Test that streams paused and resumed by the user never change the codec
+     */
+    @Test
+    public void testPauses_noChange() {
+        List<Integer> decisions = replay(AAC, 50, PAUSE_MS);
+        Assert.assertTrue(decisions.isEmpty());
+        Assert.assertEquals(A2dpCodecPolicy.LEVEL_FULL, mPolicy.getLevel(mTestDevice));
+    }
+
+    /**
+     * Test that restarts caused by codec changes aren't taken for interruptions
+     */
+    @Test
+    public void testCodecChanges_noChange() {
+        for (int i = 0; i < 10; i++) {
+            mNowMs += PLAY_MS;
+            mPolicy.onCodecChanged(mTestDevice, AAC, mNowMs);
+            mPolicy.onStreamStopped(mTestDevice, mNowMs);
+            mNowMs += DROPOUT_MS;
+            Assert.assertEquals(A2dpCodecPolicy.LEVEL_UNCHANGED,
+                    mPolicy.onStreamStarted(mTestDevice, AAC, mNowMs));
+        }
+        Assert.assertEquals(A2dpCodecPolicy.LEVEL_FULL, mPolicy.getLevel(mTestDevice));
+    }
+
+    /**
+     * Test that interruptions drop a non LDAC codec straight to the mandatory codec, and that
+     * it comes back only after the stream has been stable for the upgrade hold time
+     */
+    @Test
+    public void testInterruptions_dropToMandatoryThenRecover() {
+        List<Integer> decisions = replay(AAC, A2dpCodecPolicy.DOWNGRADE_INTERRUPTIONS, DROPOUT_MS);
+        Assert.assertEquals(1, decisions.size());
+        Assert.assertEquals(A2dpCodecPolicy.LEVEL_MANDATORY, (int) decisions.get(0));
+
+        int stableStreams = (int) (A2dpCodecPolicy.UPGRADE_STABLE_MS / (PLAY_MS + PAUSE_MS));
+        Assert.assertTrue(replay(AAC, stableStreams, PAUSE_MS).isEmpty());
+        decisions = replay(AAC, 2, PAUSE_MS);
+        Assert.assertEquals(1, decisions.size());
+        Assert.assertEquals(A2dpCodecPolicy.LEVEL_FULL, (int) decisions.get(0));
+    }
+
+    /**
+     * Test that LDAC steps down through its bitrates, one step per burst of interruptions
+     */
+    @Test
+    public void testInterruptions_ldacStepsDown() {
+        List<Integer> decisions = replay(LDAC, 20, DROPOUT_MS);
+        Assert.assertEquals(3, decisions.size());
+        Assert.assertEquals(A2dpCodecPolicy.LEVEL_LDAC_STANDARD, (int) decisions.get(0));
+        Assert.assertEquals(A2dpCodecPolicy.LEVEL_LDAC_MOBILE, (int) decisions.get(1));
+        Assert.assertEquals(A2dpCodecPolicy.LEVEL_MANDATORY, (int) decisions.get(2));
+    }
+
+    /**
+     * Test that a link flapping between good and bad is not followed switch for switch
+     */
+    @Test
+    public void testFlappingLink_hysteresis() {
+        int switches = 0;
+        for (int cycle = 0; cycle < 20; cycle++) {
+            switches += replay(AAC, 5, DROPOUT_MS).size();
+            switches += replay(AAC, 5, PAUSE_MS).size();
+        }
+        // 40 link transitions; the growing upgrade hold keeps switches rare
+        Assert.assertTrue("switches=" + switches, switches <= 10);
+    }
+
+    /**
+     * Test that the stream events and decisions are logged in the dump
+     */
+    @Test
+    public void testDump() {
+        replay(AAC, A2dpCodecPolicy.DOWNGRADE_INTERRUPTIONS, DROPOUT_MS);
+        StringBuilder sb = new StringBuilder();
+        mPolicy.dump(sb);
+        Assert.assertTrue(sb.toString().contains("interrupted"));
+        Assert.assertTrue(sb.toString().contains("-> MANDATORY"));
+    }
+
+    /**
+     * Test that the codec config saved before the first downgrade is kept until reset
+     */
+    @Test
+    public void testSavedCodecConfig() {
+        BluetoothCodecConfig ldacConfig = new BluetoothCodecConfig(LDAC,
+                BluetoothCodecConfig.CODEC_PRIORITY_HIGHEST,
+                BluetoothCodecConfig.SAMPLE_RATE_96000, BluetoothCodecConfig.BITS_PER_SAMPLE_24,
+                BluetoothCodecConfig.CHANNEL_MODE_STEREO, A2dpCodecConfig.LDAC_QUALITY_STANDARD,
+                0, 0, 0);
+        mPolicy.saveCodecConfig(mTestDevice, ldacConfig);
+        mPolicy.saveCodecConfig(mTestDevice, null);
+        Assert.assertEquals(ldacConfig, mPolicy.getSavedCodecConfig(mTestDevice));
+        mPolicy.resetDevice(mTestDevice);
+        Assert.assertNull(mPolicy.getSavedCodecConfig(mTestDevice));
+    }
+
+    /**
+     * Test that resetting a device forgets its level
+     */
+    @Test
+    public void testResetDevice() {
+        replay(AAC, A2dpCodecPolicy.DOWNGRADE_INTERRUPTIONS, DROPOUT_MS);
+        Assert.assertEquals(A2dpCodecPolicy.LEVEL_MANDATORY, mPolicy.getLevel(mTestDevice));
+        mPolicy.resetDevice(mTestDevice);
+        Assert.assertEquals(A2dpCodecPolicy.LEVEL_FULL, mPolicy.getLevel(mTestDevice));
+    }
+
+    // Play |count| streams, each stopped for |gapMs| before the next, return the level changes
+    private List<Integer> replay(int codecType, int count, long gapMs) {
+        List<Integer> decisions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            mNowMs += PLAY_MS;
+            mPolicy.onStreamStopped(mTestDevice, mNowMs);
+            mNowMs += gapMs;
+            int level = mPolicy.onStreamStarted(mTestDevice, codecType, mNowMs);
+            if (level != A2dpCodecPolicy.LEVEL_UNCHANGED) {
+                decisions.add(level);
+                // Applying the level reconfigures the codec
+                mPolicy.onCodecChanged(mTestDevice, codecType, mNowMs);
+            }
+        }
+        return decisions;
+    }
+}
@@ -31,6 +31,8 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.MediumTest;
@@ -56,13 +58,21 @@ import org.mockito.MockitoAnnotations;
 
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @MediumTest
 @RunWith(AndroidJUnit4.class)
 public class A2dpServiceTest {
+    private static final String TAG = "A2dpServiceTest";
     private static final int MAX_CONNECTED_AUDIO_DEVICES = 5;
+    private static final int BENCHMARK_READERS = 8;
+    private static final int BENCHMARK_QUERIES = 10000;
+    private static final int BENCHMARK_TIMEOUT_MS = 30000;
 
     private BluetoothAdapter mAdapter;
     private Context mTargetContext;
@@ -928,6 +938,64 @@ public class A2dpServiceTest {
         verify(mAvrcpTargetService).storeVolumeForDevice(otherDevice);
     }
 
+    /**
+     * Benchmark binder queries from concurrent readers while native audio events are processed
+     */
+    @Test
+    public void testConcurrentReaders_benchmark() throws Exception {
+        BluetoothDevice otherDevice = mAdapter.getRemoteDevice("05:04:03:02:01:00");
+        connectDevice(mTestDevice);
+        connectDevice(otherDevice);
+
+        AtomicBoolean done = new AtomicBoolean();
+        Thread nativeThread = new Thread(() -> {
+            int audioState = A2dpStackEvent.AUDIO_STATE_STARTED;
+            while (!done.get()) {
+                A2dpStackEvent stackEvent =
+                        new A2dpStackEvent(A2dpStackEvent.EVENT_TYPE_AUDIO_STATE_CHANGED);
+                stackEvent.device = mTestDevice;
+                stackEvent.valueInt = audioState;
+                mA2dpService.messageFromNative(stackEvent);
+                audioState = (audioState == A2dpStackEvent.AUDIO_STATE_STARTED)
+                        ? A2dpStackEvent.AUDIO_STATE_STOPPED : A2dpStackEvent.AUDIO_STATE_STARTED;
+            }
+        });
+
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch readersDone = new CountDownLatch(BENCHMARK_READERS);
+        long[] readerNanos = new long[BENCHMARK_READERS];
+        for (int i = 0; i < BENCHMARK_READERS; i++) {
+            final int reader = i;
+            new Thread(() -> {
+                long start = SystemClock.elapsedRealtimeNanos();
+                for (int j = 0; j < BENCHMARK_QUERIES; j++) {
+                    if (mA2dpService.getConnectionState(otherDevice)
+                            != BluetoothProfile.STATE_CONNECTED
+                            || mA2dpService.getConnectedDevices().size() != 2) {
+                        errors.incrementAndGet();
+                    }
+                    mA2dpService.isA2dpPlaying(mTestDevice);
+                    mA2dpService.getCodecStatus(otherDevice);
+                }
+                readerNanos[reader] = SystemClock.elapsedRealtimeNanos() - start;
+                readersDone.countDown();
+            }).start();
+        }
+        nativeThread.start();
+        Assert.assertTrue(readersDone.await(BENCHMARK_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        done.set(true);
+        nativeThread.join();
+
+        long totalNanos = 0;
+        for (long nanos : readerNanos) {
+            totalNanos += nanos;
+        }
+        Log.i(TAG, BENCHMARK_READERS + " concurrent readers: "
+                + totalNanos / ((long) BENCHMARK_READERS * BENCHMARK_QUERIES)
+                + " ns per query round");
+        Assert.assertEquals(0, errors.get());
+    }
+
     private void connectDevice(BluetoothDevice device) {
         connectDeviceWithCodecStatus(device, null);
     }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import static org.mockito.Mockito.*;
+
+import android.media.MediaDescription;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
+import android.media.session.PlaybackState;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link AddressedMediaPlayer}
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class AddressedMediaPlayerTest {
+    private static final String TAG = "AddressedMediaPlayerTest";
+    private static final String GPM_BUNDLE_METADATA_KEY =
+            "com.google.android.music.mediasession.music_metadata";
+    private static final byte[] TEST_ADDRESS = {0x00, 0x01, 0x02, 0x03, 0x04, 0x05};
+    private static final int BENCHMARK_QUEUE_SIZE = 1000;
+    private static final int BENCHMARK_PAGE_SIZE = 10;
+    private static final long ACTIVE_QUEUE_ID = 3;
+
+    private AddressedMediaPlayer mPlayer;
+    private List<MediaSession.QueueItem> mQueue;
+
+    @Mock private AvrcpMediaRspInterface mMediaInterface;
+    @Mock private MediaController mMediaController;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mPlayer = new AddressedMediaPlayer(mMediaInterface);
+        mQueue = buildQueue(BENCHMARK_QUEUE_SIZE);
+        when(mMediaController.getQueue()).thenReturn(mQueue);
+        when(mMediaController.getPlaybackState()).thenReturn(new PlaybackState.Builder()
+                .setState(PlaybackState.STATE_PLAYING, 0, 1)
+                .setActiveQueueItemId(ACTIVE_QUEUE_ID)
+                .build());
+        when(mMediaController.getMetadata()).thenReturn(new MediaMetadata.Builder()
+                .putString(MediaMetadata.METADATA_KEY_TITLE, "Live Title")
+                .putString(MediaMetadata.METADATA_KEY_ARTIST, "Live Artist")
+                .build());
+    }
+
+    /**
+     * Test that a page holds the requested slice, with the active item taken from the live
+     * metadata of the controller
+     */
+    @Test
+    public void testGetFolderItemsNowPlaying_page() {
+        FolderItemsRsp rsp = requestPage(2, 4, new int[] {AvrcpConstants.ATTRID_TITLE,
+                AvrcpConstants.ATTRID_ARTIST, AvrcpConstants.ATTRID_PLAY_TIME});
+
+        Assert.assertEquals(3, rsp.mNumItems);
+        ByteBuffer uids = ByteBuffer.wrap(rsp.mItemUid);
+        Assert.assertEquals(2, uids.getLong());
+        Assert.assertEquals(ACTIVE_QUEUE_ID, uids.getLong());
+        Assert.assertEquals(4, uids.getLong());
+        Assert.assertEquals("Title 2", rsp.mDisplayNames[0]);
+        Assert.assertEquals("Live Title", rsp.mDisplayNames[1]);
+        Assert.assertEquals("Title 4", rsp.mDisplayNames[2]);
+
+        // The active item has no duration in its live metadata
+        Assert.assertArrayEquals(new int[] {3, 3, 3}, rsp.mAttributesNum);
+        Assert.assertEquals("Artist 2", rsp.mAttrValues[1]);
+        Assert.assertEquals("2000", rsp.mAttrValues[2]);
+        Assert.assertEquals("Live Artist", rsp.mAttrValues[4]);
+        Assert.assertEquals("0", rsp.mAttrValues[5]);
+        Assert.assertEquals(AvrcpConstants.ATTRID_PLAY_TIME, rsp.mAttrIds[8]);
+        Assert.assertEquals("4000", rsp.mAttrValues[8]);
+    }
+
+    /**
+     * Test that the snapshot is reused across pages and rebuilt when the queue changes
+     */
+    @Test
+    public void testGetFolderItemsNowPlaying_snapshotFollowsQueue() {
+        requestPage(0, 9, null);
+        AddressedMediaPlayer.NowPlayingSnapshot snapshot = mPlayer.getNowPlayingSnapshot();
+        Assert.assertNotNull(snapshot);
+        requestPage(10, 19, null);
+        Assert.assertSame(snapshot, mPlayer.getNowPlayingSnapshot());
+        verify(mMediaInterface, never()).nowPlayingChangedRsp(anyInt());
+
+        when(mMediaController.getQueue()).thenReturn(buildQueue(5));
+        FolderItemsRsp rsp = requestPage(0, 9, null);
+        Assert.assertNotSame(snapshot, mPlayer.getNowPlayingSnapshot());
+        Assert.assertEquals(5, rsp.mNumItems);
+        Assert.assertNull(rsp.mAttrIds);
+        verify(mMediaInterface).nowPlayingChangedRsp(
+                AvrcpConstants.NOTIFICATION_TYPE_CHANGED);
+    }
+
+    /**
+     * Test that the snapshot is rebuilt when only the metadata in the extras of an item changes
+     */
+    @Test
+    public void testGetFolderItemsNowPlaying_snapshotFollowsExtras() {
+        requestPage(0, 9, null);
+        AddressedMediaPlayer.NowPlayingSnapshot snapshot = mPlayer.getNowPlayingSnapshot();
+
+        // An equal queue received again keeps the snapshot
+        when(mMediaController.getQueue()).thenReturn(buildQueue(BENCHMARK_QUEUE_SIZE));
+        requestPage(0, 9, null);
+        Assert.assertSame(snapshot, mPlayer.getNowPlayingSnapshot());
+
+        List<MediaSession.QueueItem> queue = buildQueue(BENCHMARK_QUEUE_SIZE);
+        Bundle extras = new Bundle();
+        extras.putParcelable(GPM_BUNDLE_METADATA_KEY, new MediaMetadata.Builder()
+                .putString(MediaMetadata.METADATA_KEY_ARTIST, "Artist Renamed")
+                .build());
+        queue.set(1, new MediaSession.QueueItem(new MediaDescription.Builder()
+                .setMediaId("media1")
+                .setTitle("Title 1")
+                .setExtras(extras)
+                .build(), 1));
+        when(mMediaController.getQueue()).thenReturn(queue);
+        FolderItemsRsp rsp = requestPage(1, 1, new int[] {AvrcpConstants.ATTRID_ARTIST});
+        Assert.assertNotSame(snapshot, mPlayer.getNowPlayingSnapshot());
+        Assert.assertEquals("Artist Renamed", rsp.mAttrValues[0]);
+    }
+
+    /**
+     * Test that a page starting past the end of the queue is rejected
+     */
+    @Test
+    public void testGetFolderItemsNowPlaying_invalidRange() {
+        AvrcpCmd.FolderItemsCmd cmd = new AvrcpCmd().new FolderItemsCmd(TEST_ADDRESS,
+                AvrcpConstants.BTRC_SCOPE_NOW_PLAYING, BENCHMARK_QUEUE_SIZE,
+                BENCHMARK_QUEUE_SIZE + 10, AvrcpConstants.NUM_ATTR_NONE, null);
+        mPlayer.getFolderItemsNowPlaying(TEST_ADDRESS, cmd, mMediaController);
+        verify(mMediaInterface).folderItemsRsp(TEST_ADDRESS, AvrcpConstants.RSP_INV_RANGE, null);
+    }
+
+    /**
+     * Measure the response latency of paging through a 1k item queue with all attributes
+     */
+    @Test
+    public void testGetFolderItemsNowPlaying_benchmark() {
+        int pages = BENCHMARK_QUEUE_SIZE / BENCHMARK_PAGE_SIZE;
+        long firstPageNanos = 0;
+        long maxPageNanos = 0;
+        for (int page = 0; page < pages; page++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            requestPage(page * BENCHMARK_PAGE_SIZE, (page + 1) * BENCHMARK_PAGE_SIZE - 1,
+                    new int[0]);
+            long nanos = SystemClock.elapsedRealtimeNanos() - start;
+            if (page == 0) {
+                firstPageNanos = nanos;
+            } else {
+                maxPageNanos = Math.max(maxPageNanos, nanos);
+            }
+        }
+        Log.i(TAG, "Now playing pages of " + BENCHMARK_QUEUE_SIZE + " items: first "
+                + firstPageNanos / 1000 + "us (builds snapshot), max of the rest "
+                + maxPageNanos / 1000 + "us");
+        // Later pages only slice the snapshot
+        Assert.assertTrue("maxPageNanos=" + maxPageNanos, maxPageNanos < 20000000L);
+    }
+
+    // Request [start, end] with the given attribute ids, all of them if empty, none if null
+    private FolderItemsRsp requestPage(long start, long end, int[] attrIds) {
+        byte numAttr = (attrIds == null) ? AvrcpConstants.NUM_ATTR_NONE
+                : (attrIds.length == 0) ? AvrcpConstants.NUM_ATTR_ALL : (byte) attrIds.length;
+        AvrcpCmd.FolderItemsCmd cmd = new AvrcpCmd().new FolderItemsCmd(TEST_ADDRESS,
+                AvrcpConstants.BTRC_SCOPE_NOW_PLAYING, start, end, numAttr, attrIds);
+        reset(mMediaInterface);
+        mPlayer.getFolderItemsNowPlaying(TEST_ADDRESS, cmd, mMediaController);
+        ArgumentCaptor<FolderItemsRsp> rsp = ArgumentCaptor.forClass(FolderItemsRsp.class);
+        verify(mMediaInterface).folderItemsRsp(eq(TEST_ADDRESS),
+                eq((int) AvrcpConstants.RSP_NO_ERROR), rsp.capture());
+        return rsp.getValue();
+    }
+
+    private static List<MediaSession.QueueItem> buildQueue(int size) {
+        List<MediaSession.QueueItem> queue = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            MediaMetadata metadata = new MediaMetadata.Builder()
+                    .putString(MediaMetadata.METADATA_KEY_ARTIST, "Artist " + i)
+                    .putString(MediaMetadata.METADATA_KEY_ALBUM, "Album " + i / 10)
+                    .putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, i % 10 + 1)
+                    .putLong(MediaMetadata.METADATA_KEY_NUM_TRACKS, 10)
+                    .putLong(MediaMetadata.METADATA_KEY_DURATION, i * 1000)
+                    .build();
+            Bundle extras = new Bundle();
+            extras.putParcelable(GPM_BUNDLE_METADATA_KEY, metadata);
+            MediaDescription desc = new MediaDescription.Builder()
+                    .setMediaId("media" + i)
+                    .setTitle("Title " + i)
+                    .setExtras(extras)
+                    .build();
+            queue.add(new MediaSession.QueueItem(desc, i));
+        }
+        return queue;
+    }
+}
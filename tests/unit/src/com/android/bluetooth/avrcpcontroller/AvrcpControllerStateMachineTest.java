@@ -25,9 +25,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.media.AudioManager;
+import android.media.MediaDescription;
+import android.media.browse.MediaBrowser.MediaItem;
+import android.os.Bundle;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.MediumTest;
@@ -507,6 +512,142 @@ public class AvrcpControllerStateMachineTest {
                 eq(0), eq(4));
     }
 
+    /**
+     * Test read ahead of folder contents
+     * Verify that a large folder is only fetched READ_AHEAD_ITEMS ahead of what was loaded
+     * Verify that loading the contents issues the next range, and measure how long it takes
+     * for the next page to be available with a native layer that answers immediately
+     */
+    @Test
+    public void testFolderReadAhead() {
+        setUpConnectedState(true, true);
+        final int folderSize = 200;
+        final int pageSize = AvrcpControllerStateMachine.ITEM_PAGE_SIZE;
+        BrowseTree.BrowseNode playerNode = setUpBrowsedPlayer(folderSize);
+
+        // Pages are fetched until the read ahead is satisfied
+        int fetched = 0;
+        while (fetched < AvrcpControllerStateMachine.READ_AHEAD_ITEMS) {
+            verify(mAvrcpControllerService, timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(1))
+                    .getFolderListNative(eq(mTestAddress), eq(fetched),
+                            eq(fetched + pageSize - 1));
+            sendFolderPage(fetched, pageSize);
+            fetched += pageSize;
+        }
+        TestUtils.waitForLooperToFinishScheduledTask(mAvrcpStateMachine.getHandler().getLooper());
+        verify(mAvrcpControllerService, never()).getFolderListNative(eq(mTestAddress),
+                eq(fetched), anyInt());
+        Assert.assertFalse(playerNode.isCached());
+        Assert.assertEquals(fetched, playerNode.getChildrenCount());
+
+        // Handing out the contents doesn't consume them, only what a client asks for does
+        Assert.assertEquals(fetched, playerNode.getContents().size());
+        Assert.assertEquals(0, playerNode.getConsumedCount());
+
+        // A client asking for what was fetched moves the window
+        long start = SystemClock.elapsedRealtimeNanos();
+        playerNode.setConsumedCount(fetched);
+        mAvrcpStateMachine.requestContents(playerNode);
+        verify(mAvrcpControllerService, timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(1))
+                .getFolderListNative(eq(mTestAddress), eq(fetched), eq(fetched + pageSize - 1));
+        sendFolderPage(fetched, pageSize);
+        TestUtils.waitForLooperToFinishScheduledTask(mAvrcpStateMachine.getHandler().getLooper());
+        long latencyNanos = SystemClock.elapsedRealtimeNanos() - start;
+        Assert.assertTrue(playerNode.getChildrenCount() >= fetched + pageSize);
+        Log.i("AvrcpControllerStateMachineTest", "Load to next page latency: "
+                + latencyNanos / 1000 + "us");
+    }
+
+    /**
+     * Test that a folder loaded without pagination is fetched completely, without stopping at
+     * the read ahead
+     */
+    @Test
+    public void testFolderConsumedAll() {
+        setUpConnectedState(true, true);
+        final int folderSize = 100;
+        final int pageSize = AvrcpControllerStateMachine.ITEM_PAGE_SIZE;
+        BrowseTree.BrowseNode playerNode = setUpBrowsedPlayer(folderSize);
+        playerNode.setConsumedCount(BrowseTree.CONSUMED_ALL);
+
+        for (int fetched = 0; fetched < folderSize; fetched += pageSize) {
+            verify(mAvrcpControllerService, timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(1))
+                    .getFolderListNative(eq(mTestAddress), eq(fetched),
+                            eq(fetched + pageSize - 1));
+            sendFolderPage(fetched, pageSize);
+        }
+        TestUtils.waitForLooperToFinishScheduledTask(mAvrcpStateMachine.getHandler().getLooper());
+        Assert.assertTrue(playerNode.isCached());
+        Assert.assertEquals(folderSize, playerNode.getChildrenCount());
+    }
+
+    /**
+     * Test that only a bounded number of folder requests is queued, the oldest are cancelled
+     */
+    @Test
+    public void testQueuedFolderRequestsCapped() {
+        setUpConnectedState(true, true);
+        BrowseTree.BrowseNode playerNode = setUpBrowsedPlayer(100);
+
+        // The player is being fetched, request more folders than can be queued
+        List<MediaItem> folders = new ArrayList<>();
+        for (int i = 0; i <= AvrcpControllerStateMachine.MAX_QUEUED_FOLDER_REQUESTS; i++) {
+            Bundle extras = new Bundle();
+            extras.putLong(AvrcpControllerService.MEDIA_ITEM_UID_KEY, i);
+            folders.add(new MediaItem(new MediaDescription.Builder()
+                    .setMediaId("folder" + i).setTitle("Folder " + i).setExtras(extras).build(),
+                    MediaItem.FLAG_BROWSABLE));
+        }
+        playerNode.addChildren(folders);
+        for (BrowseTree.BrowseNode folder : playerNode.getChildren()) {
+            mAvrcpStateMachine.requestContents(folder);
+        }
+
+        // Finish the current fetch, the oldest request was cancelled so the next one is served
+        mAvrcpStateMachine.sendMessage(
+                AvrcpControllerStateMachine.MESSAGE_PROCESS_GET_FOLDER_ITEMS_OUT_OF_RANGE);
+        verify(mAvrcpControllerService, timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(1))
+                .changeFolderPathNative(eq(mTestAddress),
+                        eq(AvrcpControllerService.FOLDER_NAVIGATION_DIRECTION_DOWN), eq(1L));
+        verify(mAvrcpControllerService, never()).changeFolderPathNative(eq(mTestAddress),
+                eq(AvrcpControllerService.FOLDER_NAVIGATION_DIRECTION_DOWN), eq(0L));
+    }
+
+    // Fetch the player list, browse the player and start fetching its folder of |size| items
+    private BrowseTree.BrowseNode setUpBrowsedPlayer(int size) {
+        BrowseTree.BrowseNode root = mAvrcpStateMachine.findNode("__ROOT__");
+        mAvrcpStateMachine.requestContents(root);
+        verify(mAvrcpControllerService, timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(1))
+                .getPlayerListNative(eq(mTestAddress), eq(0), eq(19));
+        byte[] playerFeatures =
+                new byte[]{0, 0, 0, 0, 0, (byte) 0xb7, 0x01, 0x0c, 0x0a, 0, 0, 0, 0, 0, 0, 0};
+        List<AvrcpPlayer> testPlayers = new ArrayList<>();
+        testPlayers.add(new AvrcpPlayer(1, "Player 1", playerFeatures, 1, 1));
+        mAvrcpStateMachine.sendMessage(AvrcpControllerStateMachine.MESSAGE_PROCESS_GET_PLAYER_ITEMS,
+                testPlayers);
+        TestUtils.waitForLooperToFinishScheduledTask(mAvrcpStateMachine.getHandler().getLooper());
+
+        BrowseTree.BrowseNode playerNode = root.getChildren().get(0);
+        mAvrcpStateMachine.requestContents(playerNode);
+        verify(mAvrcpControllerService, timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(1))
+                .setBrowsedPlayerNative(eq(mTestAddress), eq(1));
+        mAvrcpStateMachine.sendMessage(AvrcpControllerStateMachine.MESSAGE_PROCESS_FOLDER_PATH,
+                size);
+        return playerNode;
+    }
+
+    // Answer a GetFolderItems request like native would
+    private void sendFolderPage(int start, int count) {
+        ArrayList<MediaItem> items = new ArrayList<>();
+        for (int i = start; i < start + count; i++) {
+            items.add(new MediaItem(new MediaDescription.Builder()
+                    .setMediaId("song" + i).setTitle("Song " + i).build(),
+                    MediaItem.FLAG_PLAYABLE));
+        }
+        mAvrcpStateMachine.sendMessage(
+                AvrcpControllerStateMachine.MESSAGE_PROCESS_GET_FOLDER_ITEMS, items);
+    }
+
     /**
      * Test addressed media player changed
      * Verify when the addressed media player changes browsing data updates
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcpcontroller;
+
+import android.media.MediaDescription;
+import android.media.browse.MediaBrowser.MediaItem;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BrowseTreeTest {
+    private static final int NUM_FOLDERS = 10;
+    private static final int FOLDER_SIZE = 100;
+
+    private long mFolderBytes;
+
+    @Before
+    public void setUp() {
+        // Measure what one filled folder adds to a tree
+        BrowseTree tree = new BrowseTree(null, Long.MAX_VALUE);
+        tree.mRootNode.addChildren(makeItems("f", 1, MediaItem.FLAG_BROWSABLE));
+        long before = tree.getEstimatedBytes();
+        fill(tree, "f0");
+        mFolderBytes = tree.getEstimatedBytes() - before;
+    }
+
+    /**
+     * Test that the least recently used folders are dropped once over budget, and are no
+     * longer cached so that they get fetched again
+     */
+    @Test
+    public void testTrimToBudget_evictsLeastRecentlyUsed() {
+        long budget = mFolderBytes * 3;
+        BrowseTree tree = new BrowseTree(null, budget);
+        tree.mRootNode.addChildren(makeItems("f", NUM_FOLDERS, MediaItem.FLAG_BROWSABLE));
+        for (int i = 0; i < NUM_FOLDERS; i++) {
+            fill(tree, "f" + i);
+            Assert.assertTrue(tree.getEstimatedBytes() <= budget);
+        }
+
+        BrowseTree.BrowseNode first = tree.findBrowseNodeByID("f0");
+        Assert.assertFalse(first.isCached());
+        Assert.assertNull(first.getContents());
+        Assert.assertNull(tree.findBrowseNodeByID("f0-0"));
+
+        BrowseTree.BrowseNode last = tree.findBrowseNodeByID("f" + (NUM_FOLDERS - 1));
+        Assert.assertTrue(last.isCached());
+        Assert.assertEquals(FOLDER_SIZE, last.getContents().size());
+        Assert.assertTrue(tree.toString().contains("evictions: "));
+    }
+
+    /**
+     * Test that the folders on the current browse path and Now Playing are never evicted
+     */
+    @Test
+    public void testTrimToBudget_keepsFoldersInUse() {
+        BrowseTree tree = new BrowseTree(null, mFolderBytes * 3);
+        tree.mRootNode.addChildren(makeItems("f", NUM_FOLDERS, MediaItem.FLAG_BROWSABLE));
+        fill(tree, "f0");
+        tree.setCurrentBrowsedFolder("f0");
+        tree.mNowPlayingNode.addChildren(makeItems("np", FOLDER_SIZE, MediaItem.FLAG_PLAYABLE));
+        tree.mNowPlayingNode.setCached(true);
+
+        for (int i = 1; i < NUM_FOLDERS; i++) {
+            fill(tree, "f" + i);
+        }
+
+        Assert.assertTrue(tree.findBrowseNodeByID("f0").isCached());
+        Assert.assertEquals(FOLDER_SIZE, tree.mNowPlayingNode.getChildrenCount());
+        Assert.assertFalse(tree.findBrowseNodeByID("f1").isCached());
+    }
+
+    /**
+     * Test that dropping the contents of a folder drops everything below it as well
+     */
+    @Test
+    public void testSetCachedFalse_dropsSubtree() {
+        BrowseTree tree = new BrowseTree(null);
+        tree.mRootNode.addChildren(makeItems("f", 1, MediaItem.FLAG_BROWSABLE));
+        int nodeCount = tree.getNodeCount();
+        long bytes = tree.getEstimatedBytes();
+
+        BrowseTree.BrowseNode folder = tree.findBrowseNodeByID("f0");
+        folder.addChildren(makeItems("s", 1, MediaItem.FLAG_BROWSABLE));
+        folder.setCached(true);
+        fill(tree, "s0");
+        Assert.assertNotNull(tree.findBrowseNodeByID("s0-0"));
+
+        folder.setCached(false);
+        Assert.assertNull(tree.findBrowseNodeByID("s0"));
+        Assert.assertNull(tree.findBrowseNodeByID("s0-0"));
+        Assert.assertEquals(nodeCount, tree.getNodeCount());
+        Assert.assertEquals(bytes, tree.getEstimatedBytes());
+    }
+
+    // Fill the folder |id| with FOLDER_SIZE songs
+    private static void fill(BrowseTree tree, String id) {
+        BrowseTree.BrowseNode folder = tree.findBrowseNodeByID(id);
+        folder.addChildren(makeItems(id + "-", FOLDER_SIZE, MediaItem.FLAG_PLAYABLE));
+        folder.setCached(true);
+    }
+
+    private static List<MediaItem> makeItems(String prefix, int count, int flags) {
+        List<MediaItem> items = new ArrayList<MediaItem>();
+        for (int i = 0; i < count; i++) {
+            items.add(new MediaItem(new MediaDescription.Builder()
+                    .setMediaId(prefix + i)
+                    .setTitle("Title " + i)
+                    .setSubtitle("Artist")
+                    .build(), flags));
+        }
+        return items;
+    }
+}
@@ -15,6 +15,9 @@
  */
 package com.android.bluetooth.btservice;
 
+import android.os.SystemClock;
+import android.util.Log;
+
 import androidx.test.filters.MediumTest;
 import androidx.test.runner.AndroidJUnit4;
 
@@ -37,6 +40,8 @@ import java.util.List;
 @MediumTest
 @RunWith(AndroidJUnit4.class)
 public class MetricsLoggerTest {
+    private static final String TAG = "MetricsLoggerTest";
+    private static final int BENCHMARK_RECORDS = 1000000;
 
     @Before
     public void setUp() {
@@ -48,6 +53,7 @@ public class MetricsLoggerTest {
     public void tearDown() {
         // Dump metrics to clean up internal states
         MetricsLogger.dumpProto(BluetoothLog.newBuilder());
+        MetricsLogger.clearRegisteredMetrics();
     }
 
     /**
@@ -97,6 +103,108 @@ public class MetricsLoggerTest {
         Assert.assertEquals(0, metricsProtoAfterDump.getProfileConnectionStatsCount());
     }
 
+    /**
+     * Test that registering a name twice returns the same metric
+     */
+    @Test
+    public void testRegisterMetric_sharedByName() {
+        MetricsLogger.Counter counter = MetricsLogger.registerCounter("test.counter");
+        counter.add(3);
+        MetricsLogger.registerCounter("test.counter").increment();
+        Assert.assertEquals(4, counter.get());
+
+        MetricsLogger.registerGauge("test.gauge").set(7);
+        Assert.assertEquals(7, MetricsLogger.registerGauge("test.gauge").get());
+    }
+
+    /**
+     * Test that a name cannot be registered as two metric types
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterMetric_typeMismatch() {
+        MetricsLogger.registerCounter("test.metric");
+        MetricsLogger.registerGauge("test.metric");
+    }
+
+    /**
+     * Test that histogram percentiles stay within the bucket precision
+     */
+    @Test
+    public void testLatencyHistogram_percentiles() {
+        MetricsLogger.LatencyHistogram histogram =
+                MetricsLogger.registerLatencyHistogram("test.latency");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordNanos(i * 1000L);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMaxNanos());
+        assertWithinPrecision(500000, histogram.getPercentileNanos(50));
+        assertWithinPrecision(990000, histogram.getPercentileNanos(99));
+        Assert.assertEquals(1000000, histogram.getPercentileNanos(100));
+
+        for (long value = 0; value < 1 << 20; value = value * 3 / 2 + 1) {
+            int index = MetricsLogger.LatencyHistogram.bucketIndex(value);
+            Assert.assertTrue(value <= MetricsLogger.LatencyHistogram.bucketUpperBound(index));
+            if (index > 0) {
+                Assert.assertTrue(
+                        value > MetricsLogger.LatencyHistogram.bucketUpperBound(index - 1));
+            }
+        }
+    }
+
+    /**
+     * Test that registered metrics show up in the text dump
+     */
+    @Test
+    public void testDump_containsRegisteredMetrics() {
+        MetricsLogger.registerCounter("test.bytes").add(10);
+        MetricsLogger.registerLatencyHistogram("test.latency").recordMillis(2);
+        StringBuilder sb = new StringBuilder();
+        MetricsLogger.dump(sb);
+        String dump = sb.toString();
+        Assert.assertTrue(dump.contains("test.bytes: 10"));
+        Assert.assertTrue(dump.contains("test.latency: count=1"));
+    }
+
+    /**
+     * Benchmark the per record overhead. Only logged, as wall clock timings vary too much
+     * between devices and test hosts to be asserted.
+     */
+    @Test
+    public void testRecord_overheadBenchmark() {
+        MetricsLogger.Counter counter = MetricsLogger.registerCounter("test.counter");
+        MetricsLogger.LatencyHistogram histogram =
+                MetricsLogger.registerLatencyHistogram("test.latency");
+        // Warm up so the measured loops run compiled code
+        for (int i = 0; i < BENCHMARK_RECORDS; i++) {
+            counter.increment();
+            histogram.recordNanos(i & 0xFFFF);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_RECORDS; i++) {
+            counter.increment();
+        }
+        long counterNanos = (SystemClock.elapsedRealtimeNanos() - start) / BENCHMARK_RECORDS;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_RECORDS; i++) {
+            histogram.recordNanos(i & 0xFFFF);
+        }
+        long histogramNanos = (SystemClock.elapsedRealtimeNanos() - start) / BENCHMARK_RECORDS;
+
+        Log.i(TAG, "record overhead: counter " + counterNanos + " ns, histogram "
+                + histogramNanos + " ns");
+        Assert.assertEquals(2 * BENCHMARK_RECORDS, counter.get());
+        Assert.assertEquals(2 * BENCHMARK_RECORDS, histogram.getCount());
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        Assert.assertTrue("expected ~" + expected + " but was " + actual,
+                Math.abs(actual - expected)
+                        <= expected / MetricsLogger.LatencyHistogram.SUB_BUCKETS);
+    }
+
     private static HashMap<ProfileId, ProfileConnectionStats> getProfileUsageStatsMap(
             List<ProfileConnectionStats> profileUsageStats) {
         HashMap<ProfileId, ProfileConnectionStats> profileUsageStatsMap = new HashMap<>();
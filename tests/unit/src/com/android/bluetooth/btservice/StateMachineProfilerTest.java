@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.State;
+import com.android.internal.util.StateMachine;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class StateMachineProfilerTest {
+    private static final int MSG_FAST = 1;
+    private static final int MSG_SLOW = 2;
+    private static final long MESSAGE_TIMEOUT_MS = 2000;
+
+    private HandlerThread mHandlerThread;
+    private TestStateMachine mStateMachine;
+
+    /* Single state machine whose MSG_SLOW handler blocks the looper */
+    private static class TestStateMachine extends StateMachine {
+        final StateMachineProfiler mProfiler = new StateMachineProfiler("test",
+                what -> (what == MSG_SLOW) ? "MSG_SLOW" : "MSG_FAST");
+        final IdleState mIdle = new IdleState();
+        volatile CountDownLatch mHandledLatch;
+
+        class IdleState extends State {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == MSG_SLOW) {
+                    SystemClock.sleep(StateMachineProfiler.SLOW_HANDLING_MS + 50);
+                }
+                return HANDLED;
+            }
+        }
+
+        TestStateMachine(Looper looper) {
+            super("TestStateMachine", looper);
+            addState(mIdle);
+            setInitialState(mIdle);
+        }
+
+        @Override
+        protected void onPreHandleMessage(Message msg) {
+            mProfiler.onPreHandleMessage(msg, getCurrentState());
+        }
+
+        @Override
+        protected void onPostHandleMessage(Message msg) {
+            mProfiler.onPostHandleMessage(msg);
+            mHandledLatch.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread = new HandlerThread("StateMachineProfilerTestThread");
+        mHandlerThread.start();
+        mStateMachine = new TestStateMachine(mHandlerThread.getLooper());
+        mStateMachine.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStateMachine.quitNow();
+        mHandlerThread.quitSafely();
+        MetricsLogger.clearRegisteredMetrics();
+    }
+
+    /**
+     * Test that handling time and dispatch delay are recorded per state and message
+     */
+    @Test
+    public void testProfiler_recordsHandlingAndDispatchDelay() throws Exception {
+        mStateMachine.mHandledLatch = new CountDownLatch(2);
+        mStateMachine.sendMessage(MSG_SLOW);
+        mStateMachine.sendMessage(MSG_FAST);
+        Assert.assertTrue(mStateMachine.mHandledLatch.await(MESSAGE_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS));
+
+        StateMachineProfiler.MessageStats slow =
+                mStateMachine.mProfiler.getStats("IdleState", MSG_SLOW);
+        Assert.assertEquals(1, slow.mCount);
+        Assert.assertEquals(1, slow.mSlowCount);
+        Assert.assertTrue(slow.mHandlingMaxNanos >= StateMachineProfiler.SLOW_HANDLING_MS
+                * 1000000L);
+
+        // The fast message waited in the queue behind the slow one
+        StateMachineProfiler.MessageStats fast =
+                mStateMachine.mProfiler.getStats("IdleState", MSG_FAST);
+        Assert.assertEquals(1, fast.mCount);
+        Assert.assertEquals(0, fast.mSlowCount);
+        Assert.assertTrue(fast.mDispatchDelayMaxMs >= StateMachineProfiler.SLOW_HANDLING_MS);
+
+        Assert.assertEquals(2, MetricsLogger.registerLatencyHistogram("test.sm_handling_time")
+                .getCount());
+
+        StringBuilder sb = new StringBuilder();
+        mStateMachine.mProfiler.dump(sb);
+        Assert.assertTrue(sb.toString().contains("IdleState/MSG_SLOW: count=1"));
+    }
+
+    /**
+     * Test that the trace buffer keeps slow messages and stays bounded
+     */
+    @Test
+    public void testProfiler_traceBufferBounded() throws Exception {
+        int messages = StateMachineProfiler.TRACE_BUFFER_SIZE * 20;
+        mStateMachine.mHandledLatch = new CountDownLatch(messages + 1);
+        mStateMachine.sendMessage(MSG_SLOW);
+        for (int i = 0; i < messages; i++) {
+            mStateMachine.sendMessage(MSG_FAST);
+        }
+        Assert.assertTrue(mStateMachine.mHandledLatch.await(MESSAGE_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(StateMachineProfiler.TRACE_BUFFER_SIZE,
+                mStateMachine.mProfiler.getTraceSize());
+    }
+}
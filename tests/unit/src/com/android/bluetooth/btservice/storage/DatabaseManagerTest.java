@@ -211,11 +211,11 @@ public final class DatabaseManagerTest {
         Metadata otherData = new Metadata(OTHER_BT_ADDR1);
         // Add metadata for otherDevice
         otherData.setCustomizedMeta(0, TEST_BYTE_ARRAY);
-        mDatabaseManager.mMetadataCache.put(OTHER_BT_ADDR1, otherData);
+        mDatabaseManager.mMetadataCache.put(DatabaseManager.getCacheKey(OTHER_BT_ADDR1), otherData);
         mDatabase.insert(otherData);
 
         Metadata data = new Metadata(TEST_BT_ADDR);
-        mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, data);
+        mDatabaseManager.mMetadataCache.put(DatabaseManager.getCacheKey(TEST_BT_ADDR), data);
         mDatabase.insert(data);
 
         mDatabaseManager.removeUnusedMetadata();
@@ -248,19 +248,21 @@ public final class DatabaseManagerTest {
         // Add metadata for TEST_BT_ADDR
         Metadata testData = new Metadata(TEST_BT_ADDR);
         testData.setCustomizedMeta(0, TEST_BYTE_ARRAY);
-        mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, testData);
+        mDatabaseManager.mMetadataCache.put(DatabaseManager.getCacheKey(TEST_BT_ADDR), testData);
         mDatabase.insert(testData);
 
         // Add metadata for OTHER_BT_ADDR1
         Metadata otherData1 = new Metadata(OTHER_BT_ADDR1);
         otherData1.setCustomizedMeta(0, TEST_BYTE_ARRAY);
-        mDatabaseManager.mMetadataCache.put(OTHER_BT_ADDR1, otherData1);
+        mDatabaseManager.mMetadataCache.put(DatabaseManager.getCacheKey(OTHER_BT_ADDR1),
+                otherData1);
         mDatabase.insert(otherData1);
 
         // Add metadata for OTHER_BT_ADDR2
         Metadata otherData2 = new Metadata(OTHER_BT_ADDR2);
         otherData2.setCustomizedMeta(0, TEST_BYTE_ARRAY);
-        mDatabaseManager.mMetadataCache.put(OTHER_BT_ADDR2, otherData2);
+        mDatabaseManager.mMetadataCache.put(DatabaseManager.getCacheKey(OTHER_BT_ADDR2),
+                otherData2);
         mDatabase.insert(otherData2);
 
         // Add OTHER_BT_ADDR1 OTHER_BT_ADDR2 to bonded devices
@@ -385,7 +387,7 @@ public final class DatabaseManagerTest {
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
 
         // Remove local storage
-        mDatabaseManager.mMetadataCache.remove(LOCAL_STORAGE);
+        mDatabaseManager.mMetadataCache.remove(DatabaseManager.getCacheKey(LOCAL_STORAGE));
         mDatabase.delete(LOCAL_STORAGE);
     }
 
@@ -393,7 +395,7 @@ public final class DatabaseManagerTest {
             boolean expectedSetResult) {
         if (stored) {
             Metadata data = new Metadata(TEST_BT_ADDR);
-            mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, data);
+            mDatabaseManager.mMetadataCache.put(DatabaseManager.getCacheKey(TEST_BT_ADDR), data);
             mDatabase.insert(data);
         }
         Assert.assertEquals(expectedSetResult,
@@ -432,7 +434,7 @@ public final class DatabaseManagerTest {
     void testSetGetA2dpOptionalCodecsCase(int test, boolean stored, int value, int expectedValue) {
         if (stored) {
             Metadata data = new Metadata(TEST_BT_ADDR);
-            mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, data);
+            mDatabaseManager.mMetadataCache.put(DatabaseManager.getCacheKey(TEST_BT_ADDR), data);
             mDatabase.insert(data);
         }
         if (test == A2DP_SUPPORT_OP_CODEC_TEST) {
@@ -478,7 +480,7 @@ public final class DatabaseManagerTest {
         int verifyTime = 1;
         if (stored) {
             Metadata data = new Metadata(TEST_BT_ADDR);
-            mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, data);
+            mDatabaseManager.mMetadataCache.put(DatabaseManager.getCacheKey(TEST_BT_ADDR), data);
             mDatabase.insert(data);
             Assert.assertEquals(expectedResult,
                     mDatabaseManager.setCustomMeta(mTestDevice, key, testValue));
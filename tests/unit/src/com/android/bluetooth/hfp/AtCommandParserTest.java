@@ -0,0 +1,285 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.hfp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AtCommandParserTest {
+    private static final String TAG = "AtCommandParserTest";
+    private static final int FUZZ_ITERATIONS = 20000;
+    private static final int BENCHMARK_ITERATIONS = 2000;
+
+    // Unknown AT commands captured from carkits and headsets, as received from the native stack
+    private static final String[] AT_TRACE = {
+            "+XAPL=0000-0000-0100,10",
+            "+XAPL=ABCD-1234-0100,7",
+            "+IPHONEACCEV=1,1,9",
+            "+IPHONEACCEV=2,1,3,2,0",
+            "+iphoneaccev = 2, 1, 5, 2, 1",
+            "+XEVENT=USER-AGENT,\"Plantronics\",\"Voyager\",\"3.1\"",
+            "+XEVENT=BATTERY,6,11,461,0",
+            "+ANDROID=?",
+            "+ANDROID=1,\"Sound Mode\"",
+            "+CSCS=\"UTF-8\"",
+            "+CPBS=\"ME\"",
+            "+CPBR=1,10",
+            "+CPBR=?",
+            "+CSQ",
+            "+CGMI",
+            "+CGMM",
+    };
+
+    /**
+     * Test that the command name, type and arguments are parsed into their slots
+     */
+    @Test
+    public void testParse_setCommand() {
+        AtCommandParser parser = new AtCommandParser();
+        parser.parse("+xapl = abcd-1234-0100, 10");
+        Assert.assertEquals("+XAPL=ABCD-1234-0100,10", parser.toString());
+        Assert.assertEquals(AtPhonebook.TYPE_SET, parser.getType());
+        Assert.assertEquals(2, parser.getArgCount());
+        Assert.assertFalse(parser.isIntArg(0));
+        Assert.assertEquals("ABCD-1234-0100", parser.getStringArg(0));
+        Assert.assertTrue(parser.isIntArg(1));
+        Assert.assertEquals(10, parser.getIntArg(1));
+        Assert.assertEquals("=ABCD-1234-0100,10", parser.getParams());
+    }
+
+    /**
+     * Test that quoted arguments keep their case, spaces and commas
+     */
+    @Test
+    public void testParse_quotedArgs() {
+        AtCommandParser parser = new AtCommandParser();
+        parser.parse("+android=1,\"Sound, Mode\",\"unterminated");
+        Assert.assertEquals(3, parser.getArgCount());
+        Assert.assertEquals(1, parser.getIntArg(0));
+        Assert.assertEquals("\"Sound, Mode\"", parser.getStringArg(1));
+        Assert.assertEquals("\"unterminated\"", parser.getStringArg(2));
+    }
+
+    /**
+     * Test the command types and that only SET commands have arguments
+     */
+    @Test
+    public void testParse_commandTypes() {
+        AtCommandParser parser = new AtCommandParser();
+        parser.parse("+CPBR?");
+        Assert.assertEquals(AtPhonebook.TYPE_READ, parser.getType());
+        parser.parse("+CPBR=?");
+        Assert.assertEquals(AtPhonebook.TYPE_TEST, parser.getType());
+        Assert.assertEquals(0, parser.getArgCount());
+        parser.parse("+CPBR");
+        Assert.assertEquals(AtPhonebook.TYPE_UNKNOWN, parser.getType());
+        parser.parse("+CPBR=");
+        Assert.assertEquals(AtPhonebook.TYPE_SET, parser.getType());
+        Assert.assertEquals(1, parser.getArgCount());
+        Assert.assertEquals("", parser.getStringArg(0));
+    }
+
+    /**
+     * Test that integers follow the rules of Integer.parseInt()
+     */
+    @Test
+    public void testParse_intLimits() {
+        AtCommandParser parser = new AtCommandParser();
+        parser.parse("+X=2147483647,-2147483648,2147483648,+5,-,1A,");
+        Assert.assertEquals(7, parser.getArgCount());
+        Assert.assertEquals(Integer.MAX_VALUE, parser.getIntArg(0));
+        Assert.assertEquals(Integer.MIN_VALUE, parser.getIntArg(1));
+        Assert.assertFalse(parser.isIntArg(2));
+        Assert.assertEquals(5, parser.getIntArg(3));
+        Assert.assertFalse(parser.isIntArg(4));
+        Assert.assertFalse(parser.isIntArg(5));
+        Assert.assertFalse(parser.isIntArg(6));
+    }
+
+    /**
+     * Test that commands are dispatched to the handler registered for their exact name
+     */
+    @Test
+    public void testDispatch() {
+        AtCommandParser parser = new AtCommandParser();
+        int[] calls = new int[2];
+        parser.register("+CSQ", (command, device) -> calls[0]++);
+        parser.register("+CSQX", (command, device) -> calls[1]++);
+
+        parser.parse("+csq");
+        Assert.assertTrue(parser.dispatch(null));
+        parser.parse("+CSQX=1");
+        Assert.assertTrue(parser.dispatch(null));
+        parser.parse("+CS");
+        Assert.assertFalse(parser.dispatch(null));
+        Assert.assertEquals(1, calls[0]);
+        Assert.assertEquals(1, calls[1]);
+    }
+
+    /**
+     * Test that the captured trace parses the same way as the string based parsing it replaces
+     */
+    @Test
+    public void testParse_capturedTraceMatchesLegacyParsing() {
+        AtCommandParser parser = new AtCommandParser();
+        for (String at : AT_TRACE) {
+            assertMatchesLegacy(parser, at);
+        }
+    }
+
+    /**
+     * Feed random commands built from the characters that matter to the tokenizer, and check
+     * that they parse the same way as the string based parsing it replaces
+     */
+    @Test
+    public void testParse_fuzzMatchesLegacyParsing() {
+        final String alphabet = "+=?,\" -019aXz";
+        Random random = new Random(0);
+        AtCommandParser parser = new AtCommandParser();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            sb.setLength(0);
+            int length = random.nextInt(24);
+            for (int j = 0; j < length; j++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            assertMatchesLegacy(parser, sb.toString());
+        }
+    }
+
+    /**
+     * Compare the time taken to parse the captured trace with the string based parsing
+     */
+    @Test
+    public void testParse_benchmark() {
+        AtCommandParser parser = new AtCommandParser();
+        long sum = 0;
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            for (String at : AT_TRACE) {
+                String command = legacyNormalize(at);
+                int index = command.indexOf('=');
+                if (index != -1) {
+                    for (Object arg : legacyGenerateArgs(command.substring(index + 1))) {
+                        if (arg instanceof Integer) {
+                            sum += (Integer) arg;
+                        }
+                    }
+                }
+            }
+        }
+        long legacyNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            for (String at : AT_TRACE) {
+                parser.parse(at);
+                for (int j = 0; j < parser.getArgCount(); j++) {
+                    if (parser.isIntArg(j)) {
+                        sum -= parser.getIntArg(j);
+                    }
+                }
+            }
+        }
+        long parserNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Assert.assertEquals(0, sum);
+        int commands = BENCHMARK_ITERATIONS * AT_TRACE.length;
+        Log.i(TAG, "Parsed " + commands + " commands: legacy " + legacyNanos / commands
+                + "ns/command, table driven " + parserNanos / commands + "ns/command");
+    }
+
+    private static void assertMatchesLegacy(AtCommandParser parser, String at) {
+        parser.parse(at);
+        String command = legacyNormalize(at);
+        Assert.assertEquals(at, command, parser.toString());
+
+        int equal = command.indexOf('=');
+        int question = command.indexOf('?');
+        boolean set = equal != -1 && (question == -1 || question > equal + 1);
+        if (!set) {
+            Assert.assertNotEquals(at, AtPhonebook.TYPE_SET, parser.getType());
+            return;
+        }
+        Assert.assertEquals(at, AtPhonebook.TYPE_SET, parser.getType());
+        Assert.assertEquals(at, command.substring(equal), parser.getParams());
+        Assert.assertArrayEquals(at, legacyGenerateArgs(command.substring(equal + 1)),
+                parser.getArgs());
+    }
+
+    // Normalization of HeadsetStateMachine before the table driven parser
+    private static String legacyNormalize(String atString) {
+        StringBuilder atCommand = new StringBuilder(atString.length());
+        for (int i = 0; i < atString.length(); i++) {
+            char c = atString.charAt(i);
+            if (c == '"') {
+                int j = atString.indexOf('"', i + 1);
+                if (j == -1) {
+                    atCommand.append(atString.substring(i, atString.length()));
+                    atCommand.append('"');
+                    break;
+                }
+                atCommand.append(atString.substring(i, j + 1));
+                i = j;
+            } else if (c != ' ') {
+                atCommand.append(Character.toUpperCase(c));
+            }
+        }
+        return atCommand.toString();
+    }
+
+    // Argument splitting of HeadsetStateMachine before the table driven parser
+    private static Object[] legacyGenerateArgs(String input) {
+        int i = 0;
+        ArrayList<Object> out = new ArrayList<Object>();
+        while (i <= input.length()) {
+            int j = i;
+            for (; j < input.length(); j++) {
+                char c = input.charAt(j);
+                if (c == '"') {
+                    j = input.indexOf('"', j + 1);
+                    if (j == -1) {
+                        j = input.length();
+                        break;
+                    }
+                } else if (c == ',') {
+                    break;
+                }
+            }
+            String arg = input.substring(i, j);
+            try {
+                out.add(Integer.valueOf(arg));
+            } catch (NumberFormatException e) {
+                out.add(arg);
+            }
+            i = j + 1;
+        }
+        return out.toArray();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.hfp;
+
+import static org.mockito.Mockito.*;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.CallLog;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class AtPhonebookTest {
+    private static final String TAG = "AtPhonebookTest";
+    private static final int PHONEBOOK_SIZE = 2000;
+    private static final int CALL_LOG_SIZE = 50;
+    // Number of entries carkits usually read with one AT+CPBR
+    private static final int CPBR_RANGE = 20;
+
+    private BluetoothDevice mTestDevice;
+    private MockContentResolver mMockContentResolver;
+    private AtPhonebook mAtPhonebook;
+    private int mPhoneQueries;
+    private int mCallLogQueries;
+    private int mLookupQueries;
+
+    @Mock private Context mContext;
+    @Mock private HeadsetNativeInterface mNativeInterface;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTestDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:05");
+
+        Context targetContext = InstrumentationRegistry.getTargetContext();
+        mMockContentResolver = new MockContentResolver();
+        mMockContentResolver.addProvider(ContactsContract.AUTHORITY, new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                if (uri.getPath().startsWith("/phone_lookup")) {
+                    mLookupQueries++;
+                    MatrixCursor cursor = new MatrixCursor(projection);
+                    cursor.addRow(new Object[]{"Contact " + uri.getLastPathSegment()});
+                    return cursor;
+                }
+                mPhoneQueries++;
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (int i = 0; i < PHONEBOOK_SIZE; i++) {
+                    cursor.addRow(new Object[]{i, "Contact " + i, "+1 650-555-" + (1000 + i),
+                            Phone.TYPE_MOBILE});
+                }
+                return cursor;
+            }
+        });
+        mMockContentResolver.addProvider(CallLog.AUTHORITY, new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                mCallLogQueries++;
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (int i = 0; i < CALL_LOG_SIZE; i++) {
+                    cursor.addRow(new Object[]{i, "650555" + (1000 + i),
+                            CallLog.Calls.PRESENTATION_ALLOWED});
+                }
+                return cursor;
+            }
+        });
+        when(mContext.getContentResolver()).thenReturn(mMockContentResolver);
+        when(mContext.getString(anyInt())).thenAnswer(
+                invocation -> targetContext.getString((Integer) invocation.getArgument(0)));
+        when(mContext.getSystemService(anyString())).thenAnswer(
+                invocation -> targetContext.getSystemService((String) invocation.getArgument(0)));
+
+        mAtPhonebook = new AtPhonebook(mContext, mNativeInterface);
+    }
+
+    @After
+    public void tearDown() {
+        mAtPhonebook.cleanup();
+    }
+
+    /**
+     * Test that dumping the whole phonebook in AT+CPBR ranges queries the contacts only once,
+     * and report how long the dump takes
+     */
+    @Test
+    public void testProcessCpbrCommand_rangesServedFromSnapshot() {
+        long start = SystemClock.elapsedRealtime();
+        for (int index = 1; index <= PHONEBOOK_SIZE; index += CPBR_RANGE) {
+            mAtPhonebook.setCpbrRange(index, index + CPBR_RANGE - 1);
+            Assert.assertEquals(HeadsetHalConstants.AT_RESPONSE_OK,
+                    mAtPhonebook.processCpbrCommand(mTestDevice));
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "Dumped " + PHONEBOOK_SIZE + " entries in " + elapsed + "ms");
+
+        verify(mNativeInterface, times(PHONEBOOK_SIZE)).atResponseString(eq(mTestDevice),
+                anyString());
+        verify(mNativeInterface).atResponseString(mTestDevice,
+                "+CPBR: 1,\"+16505551000\",145,\"Contact 0/M\"\r\n\r\n");
+        Assert.assertEquals(1, mPhoneQueries);
+        Assert.assertEquals(1, mAtPhonebook.getSnapshotQueryCount());
+    }
+
+    /**
+     * Test that a change of the call log keeps the snapshot of the mobile phonebook, and that
+     * a change of the contacts drops it
+     */
+    @Test
+    public void testContentChange_invalidatesSnapshot() {
+        mAtPhonebook.setCpbrRange(1, 1);
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+        mAtPhonebook.mCallLogObserver.onChange(false);
+        mAtPhonebook.setCpbrRange(1, 1);
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+        Assert.assertEquals(1, mPhoneQueries);
+
+        mAtPhonebook.mContactsObserver.onChange(false);
+        mAtPhonebook.setCpbrRange(1, 1);
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+        Assert.assertEquals(2, mPhoneQueries);
+    }
+
+    /**
+     * Test that the caller ID of a call log entry is looked up only the first time it is read
+     */
+    @Test
+    public void testProcessCpbrCommand_callLogNamesLookedUpOnce() {
+        mAtPhonebook.handleCpbsCommand("=\"DC\"", AtPhonebook.TYPE_SET, mTestDevice);
+        verify(mNativeInterface).atResponseCode(mTestDevice, HeadsetHalConstants.AT_RESPONSE_OK,
+                -1);
+
+        for (int i = 0; i < 2; i++) {
+            mAtPhonebook.setCpbrRange(1, CALL_LOG_SIZE);
+            Assert.assertEquals(HeadsetHalConstants.AT_RESPONSE_OK,
+                    mAtPhonebook.processCpbrCommand(mTestDevice));
+        }
+        verify(mNativeInterface, times(2)).atResponseString(mTestDevice,
+                "+CPBR: 1,\"6505551000\",129,\"Contact 6505551000\"\r\n\r\n");
+        Assert.assertEquals(1, mCallLogQueries);
+        Assert.assertEquals(CALL_LOG_SIZE, mLookupQueries);
+    }
+
+    /**
+     * Test that a change of the contacts drops the call log snapshots, so that caller IDs
+     * are looked up again
+     */
+    @Test
+    public void testContactsChange_invalidatesCallLogNames() {
+        mAtPhonebook.handleCpbsCommand("=\"DC\"", AtPhonebook.TYPE_SET, mTestDevice);
+        mAtPhonebook.setCpbrRange(1, CALL_LOG_SIZE);
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+
+        mAtPhonebook.mContactsObserver.onChange(false);
+        mAtPhonebook.setCpbrRange(1, CALL_LOG_SIZE);
+        Assert.assertEquals(HeadsetHalConstants.AT_RESPONSE_OK,
+                mAtPhonebook.processCpbrCommand(mTestDevice));
+        Assert.assertEquals(2, mCallLogQueries);
+        Assert.assertEquals(2 * CALL_LOG_SIZE, mLookupQueries);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import static org.mockito.Mockito.*;
+
+import android.os.HandlerThread;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Unit test to verify the coalescing and rate limiting of {@link HeadsetIndicatorAggregator}
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class HeadsetIndicatorAggregatorTest {
+    private static final long WINDOW_MS = 100;
+    private static final long SIGNAL_INTERVAL_MS = 1000;
+    private static final long ASYNC_CALL_TIMEOUT_MILLIS = 250;
+    private static final int SERVICE = HeadsetHalConstants.NETWORK_STATE_AVAILABLE;
+    private static final int NO_SERVICE = HeadsetHalConstants.NETWORK_STATE_NOT_AVAILABLE;
+    private static final int HOME = HeadsetHalConstants.SERVICE_TYPE_HOME;
+
+    private HandlerThread mHandlerThread;
+    private HeadsetIndicatorAggregator mAggregator;
+
+    @Mock private HeadsetService mHeadsetService;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mHandlerThread = new HandlerThread("HeadsetIndicatorAggregatorTestHandlerThread");
+        mHandlerThread.start();
+        mAggregator = new HeadsetIndicatorAggregator(mHeadsetService, mHandlerThread.getLooper(),
+                WINDOW_MS, new long[]{0, 0, SIGNAL_INTERVAL_MS, 0});
+    }
+
+    @After
+    public void tearDown() {
+        mAggregator.cleanup();
+        mHandlerThread.quit();
+    }
+
+    /**
+     * Verify that changes within the window are reported once, with the latest values
+     */
+    @Test
+    public void testUpdate_burstCoalesced() {
+        for (int signal = 1; signal <= 5; signal++) {
+            mAggregator.update(new HeadsetDeviceState(SERVICE, HOME, signal, 3));
+        }
+        verify(mHeadsetService, timeout(WINDOW_MS + ASYNC_CALL_TIMEOUT_MILLIS))
+                .onDeviceStateChanged(new HeadsetDeviceState(SERVICE, HOME, 5, 3));
+        verify(mHeadsetService, after(ASYNC_CALL_TIMEOUT_MILLIS).times(1))
+                .onDeviceStateChanged(any());
+        Assert.assertTrue(mAggregator.getSavedCommandsPerHour() > 0);
+        Assert.assertTrue(mAggregator.toString().contains("updates=5, reports=1"));
+    }
+
+    /**
+     * Verify that an indicator changing back to the reported value is not reported again
+     */
+    @Test
+    public void testUpdate_unchangedValueNotReported() {
+        mAggregator.update(new HeadsetDeviceState(SERVICE, HOME, 3, 3));
+        verify(mHeadsetService, timeout(WINDOW_MS + ASYNC_CALL_TIMEOUT_MILLIS))
+                .onDeviceStateChanged(any());
+
+        mAggregator.update(new HeadsetDeviceState(SERVICE, HOME, 3, 4));
+        mAggregator.update(new HeadsetDeviceState(SERVICE, HOME, 3, 3));
+        verify(mHeadsetService, after(WINDOW_MS + ASYNC_CALL_TIMEOUT_MILLIS).times(1))
+                .onDeviceStateChanged(any());
+    }
+
+    /**
+     * Verify that signal changes are rate limited, but that other indicators are not held back
+     * with them
+     */
+    @Test
+    public void testUpdate_signalRateLimited() {
+        mAggregator.update(new HeadsetDeviceState(SERVICE, HOME, 3, 3));
+        verify(mHeadsetService, timeout(WINDOW_MS + ASYNC_CALL_TIMEOUT_MILLIS))
+                .onDeviceStateChanged(new HeadsetDeviceState(SERVICE, HOME, 3, 3));
+
+        // Signal is held until the interval is over, battery goes out with the window
+        mAggregator.update(new HeadsetDeviceState(SERVICE, HOME, 4, 3));
+        mAggregator.update(new HeadsetDeviceState(SERVICE, HOME, 4, 2));
+        verify(mHeadsetService, timeout(WINDOW_MS + ASYNC_CALL_TIMEOUT_MILLIS))
+                .onDeviceStateChanged(new HeadsetDeviceState(SERVICE, HOME, 3, 2));
+        verify(mHeadsetService, timeout(SIGNAL_INTERVAL_MS + ASYNC_CALL_TIMEOUT_MILLIS))
+                .onDeviceStateChanged(new HeadsetDeviceState(SERVICE, HOME, 4, 2));
+    }
+
+    /**
+     * Verify that losing service reports the signal drop right away
+     */
+    @Test
+    public void testUpdate_serviceLossBypassesSignalLimit() {
+        mAggregator.update(new HeadsetDeviceState(SERVICE, HOME, 3, 3));
+        verify(mHeadsetService, timeout(WINDOW_MS + ASYNC_CALL_TIMEOUT_MILLIS))
+                .onDeviceStateChanged(any());
+
+        mAggregator.update(new HeadsetDeviceState(NO_SERVICE, HOME, 0, 3));
+        verify(mHeadsetService, timeout(WINDOW_MS + ASYNC_CALL_TIMEOUT_MILLIS))
+                .onDeviceStateChanged(new HeadsetDeviceState(NO_SERVICE, HOME, 0, 3));
+    }
+}
@@ -40,7 +40,9 @@ import android.net.Uri;
 import android.os.ParcelUuid;
 import android.os.PowerManager;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.telecom.PhoneAccount;
+import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.espresso.intent.Intents;
@@ -81,6 +83,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 @MediumTest
 @RunWith(AndroidJUnit4.class)
 public class HeadsetServiceAndStateMachineTest {
+    private static final String TAG = "HeadsetServiceAndStateMachineTest";
     private static final int ASYNC_CALL_TIMEOUT_MILLIS = 250;
     private static final int START_VR_TIMEOUT_MILLIS = 1000;
     private static final int START_VR_TIMEOUT_WAIT_MILLIS = START_VR_TIMEOUT_MILLIS * 3 / 2;
@@ -88,6 +91,8 @@ public class HeadsetServiceAndStateMachineTest {
     private static final ParcelUuid[] FAKE_HEADSET_UUID = {BluetoothUuid.Handsfree};
     private static final String TEST_PHONE_NUMBER = "1234567890";
     private static final String TEST_CALLER_ID = "Test Name";
+    // Conference of five plus a held call
+    private static final int TEST_NUM_CALLS = 6;
 
     @Rule public final ServiceTestRule mServiceRule = new ServiceTestRule();
 
@@ -1111,6 +1116,80 @@ public class HeadsetServiceAndStateMachineTest {
         verifyCallStateToNativeInvocation(incomingCallState, connectedDevices);
     }
 
+    /**
+     * Test that AT+CLCC from several headsets is answered with a single query to Telecom, and
+     * that the list is reused for a short time, unless the call state changes
+     */
+    @Test
+    public void testClcc_batchedAndCached() throws RemoteException {
+        BluetoothDevice deviceA = TestUtils.getTestDevice(mAdapter, 0);
+        BluetoothDevice deviceB = TestUtils.getTestDevice(mAdapter, 1);
+        connectTestDevice(deviceA);
+        connectTestDevice(deviceB);
+        doReturn(true).when(mNativeInterface).clccResponse(any(BluetoothDevice.class), anyInt(),
+                anyInt(), anyInt(), anyInt(), anyBoolean(), anyString(), anyInt());
+        // Telecom answers asynchronously, one call at a time
+        doAnswer(invocation -> {
+            new Thread(() -> {
+                try {
+                    for (int i = 1; i <= TEST_NUM_CALLS; i++) {
+                        mHeadsetServiceBinder.clccResponse(i, 0,
+                                HeadsetHalConstants.CALL_STATE_ACTIVE, 0, i != TEST_NUM_CALLS,
+                                TEST_PHONE_NUMBER + i, 129);
+                    }
+                    mHeadsetServiceBinder.clccResponse(0, 0, 0, 0, false, "", 0);
+                } catch (RemoteException e) {
+                    Assert.fail("clccResponse failed: " + e.getMessage());
+                }
+            }).start();
+            return true;
+        }).when(mSystemInterface).listCurrentCalls();
+
+        long start = SystemClock.elapsedRealtime();
+        sendAtClcc(deviceA);
+        sendAtClcc(deviceB);
+        verifyClccList(deviceA, 1);
+        verifyClccList(deviceB, 1);
+        Log.i(TAG, "AT+CLCC answered from Telecom in " + (SystemClock.elapsedRealtime() - start)
+                + "ms");
+        verify(mSystemInterface).listCurrentCalls();
+
+        start = SystemClock.elapsedRealtime();
+        sendAtClcc(deviceA);
+        verifyClccList(deviceA, 2);
+        Log.i(TAG, "AT+CLCC answered from cache in " + (SystemClock.elapsedRealtime() - start)
+                + "ms");
+        verify(mSystemInterface).listCurrentCalls();
+
+        // Telecom doesn't report every change of the list, an old list is asked for again
+        SystemClock.sleep(HeadsetService.CLCC_LIST_MAX_AGE_MS);
+        sendAtClcc(deviceA);
+        verifyClccList(deviceA, 3);
+        verify(mSystemInterface, times(2)).listCurrentCalls();
+
+        // A call state change makes the list stale
+        mHeadsetServiceBinder.phoneStateChanged(TEST_NUM_CALLS - 1, 0,
+                HeadsetHalConstants.CALL_STATE_IDLE, "", 0, "");
+        sendAtClcc(deviceB);
+        verifyClccList(deviceB, 2);
+        verify(mSystemInterface, times(3)).listCurrentCalls();
+    }
+
+    private void sendAtClcc(BluetoothDevice device) {
+        mHeadsetService.messageFromNative(
+                new HeadsetStackEvent(HeadsetStackEvent.EVENT_TYPE_AT_CLCC, device));
+    }
+
+    private void verifyClccList(BluetoothDevice device, int times) {
+        for (int i = 1; i <= TEST_NUM_CALLS; i++) {
+            verify(mNativeInterface, timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(times)).clccResponse(
+                    device, i, 0, HeadsetHalConstants.CALL_STATE_ACTIVE, 0, i != TEST_NUM_CALLS,
+                    TEST_PHONE_NUMBER + i, 129);
+        }
+        verify(mNativeInterface, timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(times)).clccResponse(
+                device, 0, 0, 0, 0, false, "", 0);
+    }
+
     private void startVoiceRecognitionFromHf(BluetoothDevice device) {
         // Start voice recognition
         HeadsetStackEvent startVrEvent =
@@ -29,6 +29,7 @@ import android.media.AudioManager;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.MediumTest;
@@ -56,7 +57,13 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests for {@link HeadsetService}
@@ -64,10 +71,12 @@ import java.util.Set;
 @MediumTest
 @RunWith(AndroidJUnit4.class)
 public class HeadsetServiceTest {
+    private static final String TAG = "HeadsetServiceTest";
     private static final int MAX_HEADSET_CONNECTIONS = 5;
     private static final ParcelUuid[] FAKE_HEADSET_UUID = {BluetoothUuid.Handsfree};
     private static final int ASYNC_CALL_TIMEOUT_MILLIS = 250;
     private static final String TEST_PHONE_NUMBER = "1234567890";
+    private static final long BENCHMARK_DURATION_MILLIS = 200;
 
     private Context mTargetContext;
     private HeadsetService mHeadsetService;
@@ -841,6 +850,77 @@ public class HeadsetServiceTest {
                 ASYNC_CALL_TIMEOUT_MILLIS);
     }
 
+    /**
+     * Test that binder reads of the connection and audio state of two headsets are not blocked
+     * while another call holds the service lock, and report the read throughput
+     */
+    @Test
+    public void testBinderReads_notBlockedByStateChange() throws Exception {
+        when(mDatabaseManager.getProfilePriority(any(BluetoothDevice.class),
+                eq(BluetoothProfile.HEADSET)))
+                .thenReturn(BluetoothProfile.PRIORITY_UNDEFINED);
+        for (int i = 0; i < 2; i++) {
+            mCurrentDevice = TestUtils.getTestDevice(mAdapter, i);
+            Assert.assertTrue(mHeadsetService.connect(mCurrentDevice));
+            when(mStateMachines.get(mCurrentDevice).getDevice()).thenReturn(mCurrentDevice);
+            when(mStateMachines.get(mCurrentDevice).getConnectionState()).thenReturn(
+                    BluetoothProfile.STATE_CONNECTED);
+            when(mStateMachines.get(mCurrentDevice).getConnectingTimestampMs()).thenReturn(
+                    SystemClock.uptimeMillis());
+        }
+        mCurrentDevice = TestUtils.getTestDevice(mAdapter, 0);
+        final BluetoothDevice otherDevice = TestUtils.getTestDevice(mAdapter, 1);
+        Assert.assertTrue(mHeadsetService.setActiveDevice(mCurrentDevice));
+
+        // Hold the service lock in connectAudio() until the reads are done
+        final CountDownLatch lockHeld = new CountDownLatch(1);
+        final CountDownLatch releaseLock = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            lockHeld.countDown();
+            releaseLock.await();
+            return null;
+        }).when(mStateMachines.get(mCurrentDevice)).sendMessage(
+                HeadsetStateMachine.CONNECT_AUDIO, mCurrentDevice);
+        Thread writer = new Thread(() -> mHeadsetService.connectAudio(mCurrentDevice));
+        writer.start();
+        Assert.assertTrue(lockHeld.await(ASYNC_CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (BluetoothDevice device : new BluetoothDevice[]{mCurrentDevice, otherDevice}) {
+                readers.add(executor.submit(() -> {
+                    int reads = 0;
+                    long end = SystemClock.uptimeMillis() + BENCHMARK_DURATION_MILLIS;
+                    while (SystemClock.uptimeMillis() < end) {
+                        Assert.assertEquals(2, mHeadsetService.getConnectedDevices().size());
+                        Assert.assertEquals(BluetoothProfile.STATE_CONNECTED,
+                                mHeadsetService.getConnectionState(device));
+                        Assert.assertEquals(BluetoothHeadset.STATE_AUDIO_DISCONNECTED,
+                                mHeadsetService.getAudioState(device));
+                        Assert.assertFalse(mHeadsetService.isAudioOn());
+                        Assert.assertEquals(mCurrentDevice, mHeadsetService.getActiveDevice());
+                        reads += 5;
+                    }
+                    return reads;
+                }));
+            }
+            int reads = 0;
+            for (Future<Integer> reader : readers) {
+                reads += reader.get(BENCHMARK_DURATION_MILLIS + ASYNC_CALL_TIMEOUT_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            }
+            Log.i(TAG, "testBinderReads_notBlockedByStateChange: " + reads + " reads in "
+                    + BENCHMARK_DURATION_MILLIS + "ms while the service lock was held");
+        } finally {
+            executor.shutdownNow();
+            releaseLock.countDown();
+            writer.join();
+        }
+        verify(mStateMachines.get(mCurrentDevice)).sendMessage(HeadsetStateMachine.CONNECT_AUDIO,
+                mCurrentDevice);
+    }
+
     /**
      * Test that whether active device been removed after enable silence mode
      */
@@ -29,6 +29,7 @@ import android.database.Cursor;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.CallLog;
 import android.telephony.PhoneStateListener;
@@ -63,6 +64,8 @@ public class HeadsetStateMachineTest {
     private static final int CONNECT_TIMEOUT_TEST_MILLIS = 1000;
     private static final int CONNECT_TIMEOUT_TEST_WAIT_MILLIS = CONNECT_TIMEOUT_TEST_MILLIS * 3 / 2;
     private static final int ASYNC_CALL_TIMEOUT_MILLIS = 250;
+    private static final long NATIVE_DELAY_MILLIS = 50;
+    private static final long SCO_DELAY_MILLIS = 100;
     private static final String TEST_PHONE_NUMBER = "1234567890";
     private Context mTargetContext;
     private BluetoothAdapter mAdapter;
@@ -604,6 +607,67 @@ public class HeadsetStateMachineTest {
                 IsInstanceOf.instanceOf(HeadsetStateMachine.AudioOn.class));
     }
 
+    /**
+     * Test that the stages of a SCO setup are traced with the latencies of a slow stack
+     */
+    @Test
+    public void testAudioTracer_stageLatencies() {
+        int numBroadcastsSent = setUpConnectedState();
+        doAnswer(invocation -> {
+            SystemClock.sleep(NATIVE_DELAY_MILLIS);
+            return true;
+        }).when(mNativeInterface).connectAudio(mTestDevice);
+        // Send CONNECT_AUDIO, native connectAudio() takes NATIVE_DELAY_MILLIS
+        numBroadcastsSent++;
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.CONNECT_AUDIO, mTestDevice);
+        verify(mHeadsetService,
+                timeout(NATIVE_DELAY_MILLIS + ASYNC_CALL_TIMEOUT_MILLIS).times(numBroadcastsSent))
+                .sendBroadcastAsUser(mIntentArgument.capture(), eq(UserHandle.ALL),
+                        eq(HeadsetService.BLUETOOTH_PERM));
+        // The stack reports audio connected SCO_DELAY_MILLIS later
+        SystemClock.sleep(SCO_DELAY_MILLIS);
+        numBroadcastsSent++;
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.STACK_EVENT,
+                new HeadsetStackEvent(HeadsetStackEvent.EVENT_TYPE_AUDIO_STATE_CHANGED,
+                        HeadsetHalConstants.AUDIO_STATE_CONNECTED, mTestDevice));
+        verify(mHeadsetService,
+                timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(numBroadcastsSent)).sendBroadcastAsUser(
+                mIntentArgument.capture(), eq(UserHandle.ALL), eq(HeadsetService.BLUETOOTH_PERM));
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+
+        HeadsetAudioTracer tracer = mHeadsetStateMachine.getAudioTracer();
+        Assert.assertEquals(1, tracer.getCompletedCount());
+        Assert.assertEquals(-1, tracer.getLastStageMillis(HeadsetAudioTracer.STAGE_A2DP_SUSPEND));
+        Assert.assertTrue(tracer.getLastStageMillis(HeadsetAudioTracer.STAGE_NATIVE)
+                >= NATIVE_DELAY_MILLIS);
+        Assert.assertTrue(tracer.getLastStageMillis(HeadsetAudioTracer.STAGE_SCO_SETUP)
+                >= SCO_DELAY_MILLIS);
+        Assert.assertTrue(tracer.getLastStageMillis(HeadsetAudioTracer.STAGE_TOTAL)
+                >= NATIVE_DELAY_MILLIS + SCO_DELAY_MILLIS);
+        Assert.assertEquals(1, tracer.getHistogram(HeadsetAudioTracer.STAGE_TOTAL).getCount());
+    }
+
+    /**
+     * Test that a SCO setup that fails is not counted as connected
+     */
+    @Test
+    public void testAudioTracer_failedSetupAborted() {
+        int numBroadcastsSent = setUpAudioConnectingState();
+        numBroadcastsSent++;
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.STACK_EVENT,
+                new HeadsetStackEvent(HeadsetStackEvent.EVENT_TYPE_AUDIO_STATE_CHANGED,
+                        HeadsetHalConstants.AUDIO_STATE_DISCONNECTED, mTestDevice));
+        verify(mHeadsetService,
+                timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(numBroadcastsSent)).sendBroadcastAsUser(
+                mIntentArgument.capture(), eq(UserHandle.ALL), eq(HeadsetService.BLUETOOTH_PERM));
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+
+        HeadsetAudioTracer tracer = mHeadsetStateMachine.getAudioTracer();
+        Assert.assertFalse(tracer.isTracing());
+        Assert.assertEquals(0, tracer.getCompletedCount());
+        Assert.assertEquals(-1, tracer.getLastStageMillis(HeadsetAudioTracer.STAGE_TOTAL));
+    }
+
     /**
      * Test state transition from AudioOn to AudioDisconnecting state via
      * StackEvent.AUDIO_DISCONNECTING message
@@ -941,6 +1005,66 @@ public class HeadsetStateMachineTest {
         verify(mNativeInterface, timeout(ASYNC_CALL_TIMEOUT_MILLIS)).disconnectAudio(mTestDevice);
     }
 
+    /**
+     * A test to verify that a device state already reported to the device is not sent again
+     */
+    @Test
+    public void testDeviceStateChanged_duplicateSuppressed() {
+        setUpConnectedState();
+        doReturn(true).when(mNativeInterface).notifyDeviceStatus(eq(mTestDevice), any());
+        HeadsetDeviceState deviceState = new HeadsetDeviceState(
+                HeadsetHalConstants.NETWORK_STATE_AVAILABLE, HeadsetHalConstants.SERVICE_TYPE_HOME,
+                3, 4);
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.DEVICE_STATE_CHANGED, deviceState);
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.DEVICE_STATE_CHANGED,
+                new HeadsetDeviceState(HeadsetHalConstants.NETWORK_STATE_AVAILABLE,
+                        HeadsetHalConstants.SERVICE_TYPE_HOME, 3, 4));
+        verify(mPhoneState, timeout(ASYNC_CALL_TIMEOUT_MILLIS)).onDeviceStateSuppressed();
+        verify(mNativeInterface, times(1)).notifyDeviceStatus(mTestDevice, deviceState);
+    }
+
+    /**
+     * A test to verify that a vendor specific AT command is broadcast with its arguments parsed
+     */
+    @Test
+    public void testUnknownAtEvent_vendorSpecificCommandBroadcast() {
+        setUpConnectedState();
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.STACK_EVENT,
+                new HeadsetStackEvent(HeadsetStackEvent.EVENT_TYPE_UNKNOWN_AT,
+                        "+iphoneaccev=2,1,3,2,\"0\"", mTestDevice));
+        verify(mNativeInterface, timeout(ASYNC_CALL_TIMEOUT_MILLIS)).atResponseCode(mTestDevice,
+                HeadsetHalConstants.AT_RESPONSE_OK, 0);
+        ArgumentCaptor<Intent> intentArgument = ArgumentCaptor.forClass(Intent.class);
+        verify(mHeadsetService, atLeastOnce()).sendBroadcastAsUser(intentArgument.capture(),
+                eq(UserHandle.ALL), eq(HeadsetService.BLUETOOTH_PERM));
+        Intent intent = intentArgument.getValue();
+        Assert.assertEquals(BluetoothHeadset.ACTION_VENDOR_SPECIFIC_HEADSET_EVENT,
+                intent.getAction());
+        Assert.assertEquals(BluetoothHeadset.VENDOR_SPECIFIC_HEADSET_EVENT_IPHONEACCEV,
+                intent.getStringExtra(BluetoothHeadset.EXTRA_VENDOR_SPECIFIC_HEADSET_EVENT_CMD));
+        Assert.assertArrayEquals(new Object[]{2, 1, 3, 2, "\"0\""},
+                (Object[]) intent.getSerializableExtra(
+                        BluetoothHeadset.EXTRA_VENDOR_SPECIFIC_HEADSET_EVENT_ARGS));
+    }
+
+    /**
+     * A test to verify that an unsupported or malformed AT command is answered with an error
+     */
+    @Test
+    public void testUnknownAtEvent_unsupportedCommandError() {
+        setUpConnectedState();
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.STACK_EVENT,
+                new HeadsetStackEvent(HeadsetStackEvent.EVENT_TYPE_UNKNOWN_AT, "+XFOO=1",
+                        mTestDevice));
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.STACK_EVENT,
+                new HeadsetStackEvent(HeadsetStackEvent.EVENT_TYPE_UNKNOWN_AT, "+XAPL?",
+                        mTestDevice));
+        verify(mNativeInterface, timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(2)).atResponseCode(
+                mTestDevice, HeadsetHalConstants.AT_RESPONSE_ERROR, 0);
+        verify(mNativeInterface, never()).atResponseCode(mTestDevice,
+                HeadsetHalConstants.AT_RESPONSE_OK, 0);
+    }
+
     /**
      * A test to verfiy that we correctly handles AT+BIND event with driver safety case from HF
      */
@@ -23,6 +23,7 @@ import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.bluetooth.R;
+import com.android.bluetooth.TestUtils;
 
 import org.hamcrest.core.AllOf;
 import org.hamcrest.core.IsInstanceOf;
@@ -330,4 +331,78 @@ public class HeadsetClientStateMachineTest {
         Assert.assertEquals(false, mHeadsetClientStateMachine.getInBandRing());
 
     }
+
+    /**
+     * Test that a burst of call indicators leads to a single query plus one follow up, and that
+     * polling backs off while calls don't change
+     */
+    @MediumTest
+    @Test
+    public void testAdaptiveCallSync_eventsCoalescedAndPollingBacksOff() {
+        when(mMockHfpResources.getBoolean(R.bool.hfp_clcc_adaptive_sync)).thenReturn(true);
+        setUpConnectedState();
+
+        // Indicators of one call change, all received before the AG answers AT+CLCC
+        sendStackEvent(new StackEvent(StackEvent.EVENT_TYPE_CALL));
+        sendStackEvent(new StackEvent(StackEvent.EVENT_TYPE_CALLSETUP));
+        sendStackEvent(new StackEvent(StackEvent.EVENT_TYPE_CALLHELD));
+        waitForStateMachine();
+        Assert.assertEquals(1, mHeadsetClientStateMachine.getCallsQueryCount());
+
+        // The answer may predate the last indicators, so the calls are queried once more
+        sendActiveCallAndOk();
+        Assert.assertEquals(2, mHeadsetClientStateMachine.getCallsQueryCount());
+        Assert.assertEquals(QUERY_CURRENT_CALLS_WAIT_MILLIS,
+                mHeadsetClientStateMachine.getCallsQueryWaitMillis());
+
+        // Nothing changed, next poll is delayed
+        sendActiveCallAndOk();
+        Assert.assertEquals(2, mHeadsetClientStateMachine.getCallsQueryCount());
+        Assert.assertEquals(QUERY_CURRENT_CALLS_WAIT_MILLIS * 2,
+                mHeadsetClientStateMachine.getCallsQueryWaitMillis());
+        Assert.assertEquals(1, mHeadsetClientStateMachine.getCurrentCalls().size());
+        Assert.assertTrue(mHeadsetClientStateMachine.getSavedQueriesPerCallMinute() > 0);
+    }
+
+    private void setUpConnectedState() {
+        when(mHeadsetClientService.getPriority(any(BluetoothDevice.class))).thenReturn(
+                BluetoothProfile.PRIORITY_ON);
+        StackEvent connStCh = new StackEvent(StackEvent.EVENT_TYPE_CONNECTION_STATE_CHANGED);
+        connStCh.valueInt = HeadsetClientHalConstants.CONNECTION_STATE_CONNECTED;
+        connStCh.device = mTestDevice;
+        sendStackEvent(connStCh);
+        StackEvent slcEvent = new StackEvent(StackEvent.EVENT_TYPE_CONNECTION_STATE_CHANGED);
+        slcEvent.valueInt = HeadsetClientHalConstants.CONNECTION_STATE_SLC_CONNECTED;
+        slcEvent.valueInt2 = HeadsetClientHalConstants.PEER_FEAT_ECS;
+        slcEvent.device = mTestDevice;
+        sendStackEvent(slcEvent);
+        waitForStateMachine();
+        Assert.assertThat(mHeadsetClientStateMachine.getCurrentState(),
+                IsInstanceOf.instanceOf(HeadsetClientStateMachine.Connected.class));
+    }
+
+    private void sendActiveCallAndOk() {
+        StackEvent eventCall = new StackEvent(StackEvent.EVENT_TYPE_CURRENT_CALLS);
+        eventCall.valueInt = 1; //index
+        eventCall.valueInt2 = 0; //direction
+        eventCall.valueInt3 = BluetoothHeadsetClientCall.CALL_STATE_ACTIVE; //state
+        eventCall.valueInt4 = 0; //multi party
+        eventCall.valueString = "5551212"; //phone number
+        eventCall.device = mTestDevice;
+        sendStackEvent(eventCall);
+        StackEvent eventCommandStatus = new StackEvent(StackEvent.EVENT_TYPE_CMD_RESULT);
+        eventCommandStatus.valueInt = AT_OK;
+        sendStackEvent(eventCommandStatus);
+        waitForStateMachine();
+    }
+
+    private void sendStackEvent(StackEvent event) {
+        mHeadsetClientStateMachine.sendMessage(StackEvent.STACK_EVENT, event);
+    }
+
+    // Messages sent by the state machine to itself are handled too
+    private void waitForStateMachine() {
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+    }
 }
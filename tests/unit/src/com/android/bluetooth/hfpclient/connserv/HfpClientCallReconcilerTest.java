@@ -0,0 +1,247 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.hfpclient.connserv;
+
+import static android.bluetooth.BluetoothHeadsetClientCall.CALL_STATE_ACTIVE;
+import static android.bluetooth.BluetoothHeadsetClientCall.CALL_STATE_ALERTING;
+import static android.bluetooth.BluetoothHeadsetClientCall.CALL_STATE_DIALING;
+import static android.bluetooth.BluetoothHeadsetClientCall.CALL_STATE_HELD;
+import static android.bluetooth.BluetoothHeadsetClientCall.CALL_STATE_INCOMING;
+import static android.bluetooth.BluetoothHeadsetClientCall.CALL_STATE_TERMINATED;
+import static android.bluetooth.BluetoothHeadsetClientCall.CALL_STATE_WAITING;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHeadsetClientCall;
+import android.util.Log;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HfpClientCallReconcilerTest {
+    private static final String TAG = "HfpClientCallReconcilerTest";
+    // Number of AT+CLCC answers while a call is stable, one minute of polling every 2 seconds
+    private static final int STABLE_POLLS = 30;
+
+    // Recorded AG call lists, each answer is a list of {index, state, multiparty} rows
+    private static final int[][][] INCOMING_CALL = concat(
+            answers(new int[][]{{1, CALL_STATE_INCOMING, 0}}),
+            answers(new int[][]{{1, CALL_STATE_ACTIVE, 0}}),
+            repeat(new int[][]{{1, CALL_STATE_ACTIVE, 0}}, STABLE_POLLS),
+            answers(new int[][]{}));
+    private static final int[][][] OUTGOING_CALL = concat(
+            answers(new int[][]{{1, CALL_STATE_DIALING, 0}}),
+            repeat(new int[][]{{1, CALL_STATE_ALERTING, 0}}, 5),
+            repeat(new int[][]{{1, CALL_STATE_ACTIVE, 0}}, STABLE_POLLS),
+            answers(new int[][]{}));
+    private static final int[][][] WAITING_CALL_MERGED = concat(
+            answers(new int[][]{{1, CALL_STATE_ACTIVE, 0}}),
+            repeat(new int[][]{{1, CALL_STATE_ACTIVE, 0}, {2, CALL_STATE_WAITING, 0}}, 3),
+            repeat(new int[][]{{1, CALL_STATE_HELD, 0}, {2, CALL_STATE_ACTIVE, 0}}, 5),
+            repeat(new int[][]{{1, CALL_STATE_ACTIVE, 1}, {2, CALL_STATE_ACTIVE, 1}},
+                    STABLE_POLLS),
+            repeat(new int[][]{{1, CALL_STATE_ACTIVE, 0}}, 5),
+            answers(new int[][]{}));
+
+    private BluetoothDevice mTestDevice;
+    private HfpClientCallReconciler mReconciler;
+    private RecordingCallback mCallback;
+
+    // Stands for HfpClientDeviceBlock, counting the Telecom operations it would issue
+    private static class RecordingCallback implements HfpClientCallReconciler.Callback {
+        final Map<UUID, Integer> mStates = new HashMap<>();
+        int mStateOperations;
+        int mDetailUpdates;
+        int mConferenceUpdates;
+
+        @Override
+        public void onCallChanged(BluetoothHeadsetClientCall call, int changes) {
+            if ((changes & (HfpClientCallReconciler.CHANGE_NEW
+                    | HfpClientCallReconciler.CHANGE_STATE)) != 0) {
+                mStateOperations++;
+            } else {
+                mDetailUpdates++;
+            }
+            if (call.getState() == CALL_STATE_TERMINATED) {
+                mStates.remove(call.getUUID());
+            } else {
+                mStates.put(call.getUUID(), call.getState());
+            }
+        }
+
+        @Override
+        public void onConferenceableChanged() {
+            mConferenceUpdates++;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mTestDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:05");
+        mReconciler = new HfpClientCallReconciler();
+        mCallback = new RecordingCallback();
+    }
+
+    /**
+     * Test that the state of a call is applied once per change, not once per poll
+     */
+    @Test
+    public void testReplay_incomingCall() {
+        int legacyOperations = replay(INCOMING_CALL);
+        // Ringing, answered, ended
+        Assert.assertEquals(3, mCallback.mStateOperations);
+        Assert.assertEquals(0, mCallback.mDetailUpdates);
+        Assert.assertTrue(mCallback.mStates.isEmpty());
+        logSavings("incoming call", legacyOperations);
+    }
+
+    /**
+     * Test that repeated alerting states of an outgoing call are applied once
+     */
+    @Test
+    public void testReplay_outgoingCall() {
+        int legacyOperations = replay(OUTGOING_CALL);
+        // Dialing, alerting, answered, ended
+        Assert.assertEquals(4, mCallback.mStateOperations);
+        Assert.assertTrue(mCallback.mStates.isEmpty());
+        logSavings("outgoing call", legacyOperations);
+    }
+
+    /**
+     * Test that a conference keeps being re-evaluated while it exists, but that its calls are
+     * only updated when they change
+     */
+    @Test
+    public void testReplay_waitingCallMerged() {
+        int legacyOperations = replay(WAITING_CALL_MERGED);
+        // Call 1: active, held, active, ended. Call 2: waiting, active, ended.
+        Assert.assertEquals(7, mCallback.mStateOperations);
+        // Call 2 joined the conference with call 1 being resumed, then call 1 left it
+        Assert.assertEquals(2, mCallback.mDetailUpdates);
+        Assert.assertTrue(mCallback.mConferenceUpdates >= STABLE_POLLS);
+        Assert.assertTrue(mCallback.mStates.isEmpty());
+        logSavings("waiting call merged", legacyOperations);
+    }
+
+    /**
+     * Test that only the latest version of a call received within one burst is applied
+     */
+    @Test
+    public void testFlush_burstKeepsLatestVersion() {
+        BluetoothHeadsetClientCall call = new BluetoothHeadsetClientCall(mTestDevice, 1,
+                CALL_STATE_INCOMING, "5551212", false, false, false);
+        Assert.assertTrue(mReconciler.update(call));
+        call.setState(CALL_STATE_ACTIVE);
+        Assert.assertFalse(mReconciler.update(call));
+        mReconciler.flush(mCallback);
+
+        Assert.assertEquals(1, mCallback.mStateOperations);
+        Assert.assertEquals(CALL_STATE_ACTIVE, (int) mCallback.mStates.get(call.getUUID()));
+        Assert.assertEquals(2, mReconciler.getReceivedCount());
+        Assert.assertEquals(1, mReconciler.getAppliedCount());
+    }
+
+    /**
+     * Replay AG answers the way HeadsetClientStateMachine broadcasts them, one burst per answer,
+     * and check that Telecom ends up with the AG calls after each of them
+     *
+     * @return Telecom operations issued when every broadcast is applied
+     */
+    private int replay(int[][][] answers) {
+        Map<Integer, BluetoothHeadsetClientCall> agCalls = new HashMap<>();
+        int legacyOperations = 0;
+        for (int[][] answer : answers) {
+            List<BluetoothHeadsetClientCall> burst = new ArrayList<>();
+            Set<Integer> ids = new HashSet<>();
+            for (int[] row : answer) {
+                ids.add(row[0]);
+                BluetoothHeadsetClientCall call = agCalls.get(row[0]);
+                if (call == null) {
+                    call = new BluetoothHeadsetClientCall(mTestDevice, row[0], row[1],
+                            "555121" + row[0], row[2] != 0, false, false);
+                    agCalls.put(row[0], call);
+                }
+                call.setState(row[1]);
+                call.setMultiParty(row[2] != 0);
+                burst.add(call);
+            }
+            for (Integer id : new ArrayList<>(agCalls.keySet())) {
+                if (!ids.contains(id)) {
+                    BluetoothHeadsetClientCall call = agCalls.remove(id);
+                    call.setState(CALL_STATE_TERMINATED);
+                    burst.add(call);
+                }
+            }
+            for (BluetoothHeadsetClientCall call : burst) {
+                mReconciler.update(call);
+            }
+            mReconciler.flush(mCallback);
+            // A call state update and a conference update for each broadcast
+            legacyOperations += burst.size() * 2;
+
+            Assert.assertEquals(agCalls.size(), mCallback.mStates.size());
+            for (BluetoothHeadsetClientCall call : agCalls.values()) {
+                Assert.assertEquals(call.getState(),
+                        (int) mCallback.mStates.get(call.getUUID()));
+            }
+        }
+        return legacyOperations;
+    }
+
+    private void logSavings(String sequence, int legacyOperations) {
+        int operations = mCallback.mStateOperations + mCallback.mConferenceUpdates;
+        Log.i(TAG, sequence + ": " + operations + " Telecom operations, " + legacyOperations
+                + " when applying every broadcast");
+        Assert.assertTrue(operations < legacyOperations);
+    }
+
+    private static int[][][] answers(int[][]... answers) {
+        return answers;
+    }
+
+    private static int[][][] repeat(int[][] answer, int times) {
+        int[][][] answers = new int[times][][];
+        for (int i = 0; i < times; i++) {
+            answers[i] = answer;
+        }
+        return answers;
+    }
+
+    private static int[][][] concat(int[][][]... parts) {
+        List<int[][]> answers = new ArrayList<>();
+        for (int[][][] part : parts) {
+            for (int[][] answer : part) {
+                answers.add(answer);
+            }
+        }
+        return answers.toArray(new int[answers.size()][][]);
+    }
+}
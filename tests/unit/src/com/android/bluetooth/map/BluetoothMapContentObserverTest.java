@@ -20,14 +20,19 @@ import static org.mockito.Mockito.*;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserManager;
+import android.provider.Telephony.Sms;
 import android.telephony.TelephonyManager;
 import android.test.mock.MockContentProvider;
 import android.test.mock.MockContentResolver;
+import android.text.TextUtils;
+import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.MediumTest;
@@ -41,9 +46,18 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
 @MediumTest
 @RunWith(AndroidJUnit4.class)
 public class BluetoothMapContentObserverTest {
+    private static final String TAG = "BluetoothMapContentObserverTest";
+    private static final int SYNTHETIC_SMS_COUNT = 100000;
+    private static final int BENCHMARK_ROUNDS = 5;
+
     private Context mTargetContext;
 
     class ExceptionTestProvider extends MockContentProvider {
@@ -57,6 +71,76 @@ public class BluetoothMapContentObserverTest {
         }
     }
 
+    // SMS table of a phone with a large history, answering the queries of the observer
+    class SyntheticSmsProvider extends MockContentProvider {
+        private final String[] mColumns = {Sms._ID, Sms.THREAD_ID, Sms.ADDRESS, Sms.BODY,
+                Sms.DATE, Sms.READ, Sms.TYPE};
+        final TreeMap<Long, Object[]> mRows = new TreeMap<>();
+        // Rows returned with the message bodies
+        int mBodyRows;
+
+        SyntheticSmsProvider(Context context, int count) {
+            super(context);
+            for (long id = 1; id <= count; id++) {
+                insert(id, Sms.MESSAGE_TYPE_INBOX, 1);
+            }
+        }
+
+        void insert(long id, int type, int read) {
+            mRows.put(id, new Object[]{id, id % 500 + 1, "5551212", "Message " + id,
+                    1546300800000L + id * 1000, read, type});
+        }
+
+        void set(long id, String column, Object value) {
+            mRows.get(id)[indexOf(column)] = value;
+        }
+
+        private int indexOf(String column) {
+            for (int i = 0; i < mColumns.length; i++) {
+                if (mColumns[i].equals(column)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException(column);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            long minId = Long.MIN_VALUE;
+            HashSet<Long> ids = null;
+            if (selection != null && selection.startsWith(Sms._ID + " > ")) {
+                minId = Long.parseLong(selectionArgs[0]) + 1;
+            } else if (selection != null && selection.startsWith(Sms._ID + " IN (")) {
+                ids = new HashSet<>();
+                for (String id : TextUtils.split(selection.substring(
+                        selection.indexOf('(') + 1, selection.indexOf(')')), ",")) {
+                    ids.add(Long.parseLong(id));
+                }
+            }
+            int[] indexes = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                indexes[i] = indexOf(projection[i]);
+            }
+            boolean hasBody = Arrays.asList(projection).contains(Sms.BODY);
+            MatrixCursor c = new MatrixCursor(projection);
+            for (Object[] row : mRows.tailMap(minId).values()) {
+                if (ids != null && !ids.contains(row[0])) {
+                    continue;
+                }
+                Object[] values = new Object[indexes.length];
+                for (int i = 0; i < indexes.length; i++) {
+                    values[i] = row[indexes[i]];
+                }
+                c.addRow(values);
+                if (hasBody) {
+                    mBodyRows++;
+                }
+            }
+            return c;
+        }
+    }
+
     @Before
     public void setUp() {
         mTargetContext = InstrumentationRegistry.getTargetContext();
@@ -94,4 +178,83 @@ public class BluetoothMapContentObserverTest {
             Assert.fail("Threw SQLiteException instead of Assert.failing cleanly");
         }
     }
+
+    /**
+     * Test that SMS inserts, deletes, read status and folder changes are all found by the
+     * incremental change detection, and compare its cost with a full comparison
+     */
+    @Test
+    public void testMsgListChangesSms_incrementalAgainstSyntheticProvider() throws Exception {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        Context mockContext = mock(Context.class);
+        MockContentResolver mockResolver = new MockContentResolver();
+        SyntheticSmsProvider provider =
+                new SyntheticSmsProvider(mockContext, SYNTHETIC_SMS_COUNT);
+        mockResolver.addProvider("sms", provider);
+
+        TelephonyManager mockTelephony = mock(TelephonyManager.class);
+        UserManager mockUserService = mock(UserManager.class);
+        BluetoothMapMasInstance mockMas = mock(BluetoothMapMasInstance.class);
+        BluetoothMnsObexClient mockMns = mock(BluetoothMnsObexClient.class);
+
+        when(mockUserService.isUserUnlocked()).thenReturn(true);
+        when(mockMns.isConnected()).thenReturn(true);
+        when(mockContext.getContentResolver()).thenReturn(mockResolver);
+        when(mockContext.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(mockTelephony);
+        when(mockContext.getSystemService(Context.USER_SERVICE)).thenReturn(mockUserService);
+
+        BluetoothMapContentObserver observer =
+                new BluetoothMapContentObserver(mockContext, mockMns, mockMas, null, true);
+        observer.setObserverRemoteFeatureMask(BluetoothMapUtils.MAP_FEATURE_EVENT_REPORT_V12_BIT);
+        Map<Long, BluetoothMapContentObserver.Msg> msgList = observer.getMsgListSms();
+        Assert.assertEquals(SYNTHETIC_SMS_COUNT, msgList.size());
+
+        long newId = SYNTHETIC_SMS_COUNT + 1;
+        provider.insert(newId, Sms.MESSAGE_TYPE_INBOX, 0);
+        provider.set(500, Sms.READ, 1);
+        provider.set(1000, Sms.THREAD_ID, BluetoothMapContentObserver.DELETED_THREAD_ID);
+        provider.set(2000, Sms.TYPE, Sms.MESSAGE_TYPE_SENT);
+        provider.mRows.remove(3000L);
+        provider.mBodyRows = 0;
+        observer.handleMsgListChangesSms();
+
+        // New, read status, deleted, shift and removed
+        verify(mockMns, times(5)).sendEvent(any(byte[].class), anyInt());
+        Assert.assertTrue(msgList.containsKey(newId));
+        Assert.assertEquals(1, msgList.get(500L).flagRead);
+        Assert.assertEquals(BluetoothMapContentObserver.DELETED_THREAD_ID,
+                msgList.get(1000L).threadId);
+        Assert.assertEquals(Sms.MESSAGE_TYPE_SENT, msgList.get(2000L).type);
+        Assert.assertFalse(msgList.containsKey(3000L));
+        Assert.assertEquals(SYNTHETIC_SMS_COUNT, msgList.size());
+        // Only the body of the new message was read
+        Assert.assertEquals(1, provider.mBodyRows);
+
+        // A change the observer has already seen does not send events again
+        observer.handleMsgListChangesSms();
+        verify(mockMns, times(5)).sendEvent(any(byte[].class), anyInt());
+
+        // Benchmark one incoming SMS, as found incrementally and by a full comparison
+        long incrementalMs = 0;
+        long fullMs = 0;
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            provider.insert(++newId, Sms.MESSAGE_TYPE_INBOX, 0);
+            long start = SystemClock.elapsedRealtime();
+            observer.handleMsgListChangesSms();
+            incrementalMs += SystemClock.elapsedRealtime() - start;
+            Assert.assertTrue(observer.getMsgListSms().containsKey(newId));
+
+            provider.insert(++newId, Sms.MESSAGE_TYPE_INBOX, 0);
+            start = SystemClock.elapsedRealtime();
+            observer.handleMsgListChangesSmsFull();
+            fullMs += SystemClock.elapsedRealtime() - start;
+            Assert.assertTrue(observer.getMsgListSms().containsKey(newId));
+        }
+        verify(mockMns, times(5 + BENCHMARK_ROUNDS * 2)).sendEvent(any(byte[].class), anyInt());
+        Log.i(TAG, SYNTHETIC_SMS_COUNT + " SMS, one new SMS: incremental "
+                + incrementalMs / BENCHMARK_ROUNDS + " ms, full " + fullMs / BENCHMARK_ROUNDS
+                + " ms");
+    }
 }
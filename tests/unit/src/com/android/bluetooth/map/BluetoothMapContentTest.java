@@ -0,0 +1,339 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.map;
+
+import static org.mockito.Mockito.*;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Sms;
+import android.telephony.TelephonyManager;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.R;
+import com.android.bluetooth.mapapi.BluetoothMapContract;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapContentTest {
+    private static final String TAG = "BluetoothMapContentTest";
+    private static final int SMS_COUNT = 16000;
+    private static final int MMS_COUNT = 4000;
+    // Correspondents of the mailbox, the first ones are contacts
+    private static final int ADDRESS_COUNT = 200;
+    private static final int CONTACT_COUNT = 20;
+    private static final String OWN_NUMBER = "+15559999";
+
+    private SQLiteDatabase mDb;
+    private SqlProvider mSmsProvider;
+    private SqlProvider mMmsProvider;
+    private SqlProvider mContactsProvider;
+    private BluetoothMapContent mContent;
+    private BluetoothMapFolderElement mInbox;
+    private BluetoothMapFolderElement mSent;
+
+    // Answers the queries of one table of the mailbox database, and counts them. Also answers
+    // the phone lookups of the contacts provider and the address queries of the MMS provider.
+    private class SqlProvider extends MockContentProvider {
+        private final String mTable;
+        int mQueries;
+
+        SqlProvider(Context context, String table) {
+            super(context);
+            mTable = table;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries++;
+            if (uri.toString().startsWith(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI.toString())) {
+                return mDb.rawQuery("SELECT rowid AS " + BaseColumns._ID + ", "
+                        + Phone.DISPLAY_NAME + " FROM phones WHERE PHONE_NUMBERS_EQUAL("
+                        + Phone.NUMBER + ", ?)", new String[]{uri.getLastPathSegment()});
+            }
+            if ("addr".equals(uri.getLastPathSegment())) {
+                return mDb.query("addr", projection, selection, selectionArgs, null, null,
+                        sortOrder);
+            }
+            return mDb.query(mTable, projection, selection, selectionArgs, null, null,
+                    sortOrder);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context targetContext = InstrumentationRegistry.getTargetContext();
+        Assume.assumeTrue("Ignore test when BluetoothMapService is not enabled",
+                targetContext.getResources().getBoolean(R.bool.profile_supported_map));
+
+        mDb = SQLiteDatabase.create(null);
+        createMailbox();
+
+        Context mockContext = mock(Context.class);
+        MockContentResolver mockResolver = new MockContentResolver();
+        mSmsProvider = new SqlProvider(mockContext, "sms");
+        mMmsProvider = new SqlProvider(mockContext, "pdu");
+        mContactsProvider = new SqlProvider(mockContext, "phones");
+        mockResolver.addProvider("sms", mSmsProvider);
+        mockResolver.addProvider("mms", mMmsProvider);
+        mockResolver.addProvider(ContactsContract.AUTHORITY, mContactsProvider);
+
+        TelephonyManager mockTelephony = mock(TelephonyManager.class);
+        when(mockTelephony.getPhoneType()).thenReturn(TelephonyManager.PHONE_TYPE_GSM);
+        when(mockTelephony.getLine1Number()).thenReturn(OWN_NUMBER);
+        when(mockContext.getContentResolver()).thenReturn(mockResolver);
+        when(mockContext.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(mockTelephony);
+
+        mContent = new BluetoothMapContent(mockContext, null, null);
+        BluetoothMapFolderElement root = new BluetoothMapFolderElement("msg", null);
+        mInbox = root.addSmsMmsFolder(BluetoothMapContract.FOLDER_NAME_INBOX);
+        mSent = root.addSmsMmsFolder(BluetoothMapContract.FOLDER_NAME_SENT);
+    }
+
+    @After
+    public void tearDown() {
+        if (mDb != null) {
+            mDb.close();
+        }
+    }
+
+    /**
+     * Test that an originator filter matches the names of contacts, with one contacts lookup
+     * instead of one per message
+     */
+    @Test
+    public void testMsgListingSize_originatorContactName() {
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        ap.setFilterOriginator("Contact 7");
+        Assert.assertEquals(countInboxFrom(7), listingSize(mInbox, ap, "originator name"));
+        Assert.assertEquals(1, mContactsProvider.mQueries);
+        Assert.assertEquals(1, mSmsProvider.mQueries);
+        Assert.assertEquals(1, mMmsProvider.mQueries);
+    }
+
+    /**
+     * Test that an originator filter matching more contacts than fit in the query is matched
+     * message by message instead of dropping contacts
+     */
+    @Test
+    public void testMsgListingSize_originatorManyContacts() {
+        mDb.beginTransaction();
+        try {
+            // Contacts without messages, and the contact with messages last
+            mDb.delete("phones", Phone.DISPLAY_NAME + "='Contact 7'", null);
+            for (int i = 0; i < BluetoothMapContent.MAX_FILTER_CONTACT_NUMBERS; i++) {
+                insertContact("Contact 7 Other " + i, String.format("+1 666 %04d", i));
+            }
+            insertContact("Contact 7", String.format("+1 555 %04d", 7));
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        ap.setFilterOriginator("Contact 7");
+        Assert.assertEquals(countInboxFrom(7), listingSize(mInbox, ap, "originator many names"));
+    }
+
+    /**
+     * Test that the telephony provider accepts the addr subquery of the MMS address filters
+     */
+    @Test
+    public void testMmsAddressClause_telephonyProvider() {
+        String where = BluetoothMapContent.getMmsAddressClause(BluetoothMapContent.MMS_FROM,
+                "555*0042", Arrays.asList("+1 555 0042"));
+        Cursor c = InstrumentationRegistry.getTargetContext().getContentResolver().query(
+                Mms.CONTENT_URI, new String[]{BaseColumns._ID}, where, null, Mms.DATE + " DESC");
+        Assume.assumeNotNull(c);
+        c.close();
+    }
+
+    /**
+     * Test that an originator filter with a wildcard matches phone numbers
+     */
+    @Test
+    public void testMsgListingSize_originatorNumberWildcard() {
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        ap.setFilterOriginator("555*0042");
+        Assert.assertEquals(countInboxFrom(42), listingSize(mInbox, ap, "originator number"));
+    }
+
+    /**
+     * Test that received messages match a recipient filter on the number of this phone, and
+     * sent messages a recipient filter on their address
+     */
+    @Test
+    public void testMsgListingSize_recipient() {
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        ap.setFilterRecipient("5559999");
+        Assert.assertEquals(countInbox(SMS_COUNT) + countInbox(MMS_COUNT),
+                listingSize(mInbox, ap, "recipient own number"));
+
+        ap = new BluetoothMapAppParams();
+        ap.setFilterRecipient("Contact 7");
+        Assert.assertEquals(countSentTo(7), listingSize(mSent, ap, "recipient name"));
+    }
+
+    private int listingSize(BluetoothMapFolderElement folder, BluetoothMapAppParams ap,
+            String filter) {
+        long start = SystemClock.elapsedRealtime();
+        int size = mContent.msgListingSize(folder, ap);
+        Log.i(TAG, (SMS_COUNT + MMS_COUNT) + " messages, " + filter + " filter: " + size
+                + " messages in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return size;
+    }
+
+    // Sent messages are every tenth message
+    private static boolean isSent(int i) {
+        return i % 10 == 0;
+    }
+
+    private static String getAddress(int i) {
+        return String.format("+1555%04d", i % ADDRESS_COUNT);
+    }
+
+    // Received messages out of the first count ones
+    private static int countInbox(int count) {
+        return count - (count + 9) / 10;
+    }
+
+    // Received SMS and MMS from one correspondent
+    private static int countInboxFrom(int address) {
+        int count = 0;
+        for (int i = 0; i < SMS_COUNT; i++) {
+            count += !isSent(i) && i % ADDRESS_COUNT == address ? 1 : 0;
+        }
+        for (int i = 0; i < MMS_COUNT; i++) {
+            count += !isSent(i) && i % ADDRESS_COUNT == address ? 1 : 0;
+        }
+        return count;
+    }
+
+    // Sent SMS and MMS to one correspondent
+    private static int countSentTo(int address) {
+        int count = 0;
+        for (int i = 0; i < SMS_COUNT; i++) {
+            count += isSent(i) && i % ADDRESS_COUNT == address ? 1 : 0;
+        }
+        for (int i = 0; i < MMS_COUNT; i++) {
+            count += isSent(i) && i % ADDRESS_COUNT == address ? 1 : 0;
+        }
+        return count;
+    }
+
+    private void createMailbox() {
+        createTable("sms", BluetoothMapContent.SMS_PROJECTION);
+        createTable("pdu", BluetoothMapContent.MMS_PROJECTION);
+        mDb.execSQL("ALTER TABLE pdu ADD COLUMN " + Mms.MESSAGE_TYPE);
+        mDb.execSQL("CREATE TABLE addr (" + Mms.Addr.MSG_ID + ", " + Mms.Addr.TYPE + ", "
+                + Mms.Addr.ADDRESS + ")");
+        mDb.execSQL("CREATE INDEX addr_msg_id ON addr (" + Mms.Addr.MSG_ID + ")");
+        mDb.execSQL("CREATE TABLE phones (" + Phone.DISPLAY_NAME + ", " + Phone.NUMBER + ")");
+
+        mDb.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < SMS_COUNT; i++) {
+                values.clear();
+                values.put(BaseColumns._ID, i + 1);
+                values.put(Sms.THREAD_ID, i % ADDRESS_COUNT + 1);
+                values.put(Sms.ADDRESS, getAddress(i));
+                values.put(Sms.BODY, "Message " + i);
+                values.put(Sms.DATE, 1546300800000L + i * 60000L);
+                values.put(Sms.READ, 1);
+                values.put(Sms.TYPE, isSent(i) ? Sms.MESSAGE_TYPE_SENT : Sms.MESSAGE_TYPE_INBOX);
+                mDb.insert("sms", null, values);
+            }
+            for (int i = 0; i < MMS_COUNT; i++) {
+                values.clear();
+                values.put(BaseColumns._ID, i + 1);
+                values.put(Mms.THREAD_ID, i % ADDRESS_COUNT + 1);
+                values.put(Mms.SUBJECT, "Picture " + i);
+                values.put(Mms.DATE, 1546300800L + i * 60L);
+                values.put(Mms.READ, 1);
+                values.put(Mms.MESSAGE_BOX,
+                        isSent(i) ? Mms.MESSAGE_BOX_SENT : Mms.MESSAGE_BOX_INBOX);
+                values.put(Mms.MESSAGE_TYPE, isSent(i) ? PduHeaders.MESSAGE_TYPE_SEND_REQ
+                        : PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+                mDb.insert("pdu", null, values);
+                insertAddr(i + 1, BluetoothMapContent.MMS_FROM,
+                        isSent(i) ? BluetoothMapContent.INSERT_ADDRES_TOKEN : getAddress(i));
+                insertAddr(i + 1, BluetoothMapContent.MMS_TO,
+                        isSent(i) ? getAddress(i) : OWN_NUMBER);
+            }
+            for (int i = 0; i < CONTACT_COUNT; i++) {
+                // Formatted differently than the addresses of the messages
+                insertContact("Contact " + i, String.format("+1 555 %04d", i));
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private void createTable(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("CREATE TABLE ").append(table).append(" (")
+                .append(BaseColumns._ID).append(" INTEGER PRIMARY KEY");
+        for (String column : columns) {
+            if (!BaseColumns._ID.equals(column)) {
+                sql.append(", ").append(column);
+            }
+        }
+        mDb.execSQL(sql.append(")").toString());
+    }
+
+    private void insertContact(String name, String number) {
+        ContentValues values = new ContentValues();
+        values.put(Phone.DISPLAY_NAME, name);
+        values.put(Phone.NUMBER, number);
+        mDb.insert("phones", null, values);
+    }
+
+    private void insertAddr(long msgId, int type, String address) {
+        ContentValues values = new ContentValues();
+        values.put(Mms.Addr.MSG_ID, msgId);
+        values.put(Mms.Addr.TYPE, type);
+        values.put(Mms.Addr.ADDRESS, address);
+        mDb.insert("addr", null, values);
+    }
+}
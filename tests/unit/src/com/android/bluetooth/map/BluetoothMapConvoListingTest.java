@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapConvoListingTest {
+    private static final String TAG = "BluetoothMapConvoListingTest";
+    // Largest MaxListCount of a listing request
+    private static final int LISTING_SIZE = 1024;
+    // Typical OBEX packet size of a MAP connection
+    private static final int CHUNK_SIZE = 4096;
+
+    private BluetoothMapConvoListing mListing;
+
+    // Records what an OBEX body stream would receive
+    private static class RecordingOutputStream extends OutputStream {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        long mFirstByteTime = -1;
+        long mUsedHeapAtFirstByte = -1;
+        int mWrites;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (mFirstByteTime == -1) {
+                mFirstByteTime = SystemClock.elapsedRealtimeNanos();
+                mUsedHeapAtFirstByte = usedHeap();
+            }
+            mWrites++;
+            mBytes.write(b, off, len);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mListing = new BluetoothMapConvoListing();
+        for (int i = 0; i < LISTING_SIZE; i++) {
+            BluetoothMapConvoListingElement element = new BluetoothMapConvoListingElement();
+            element.setConvoId(0, i + 1);
+            element.setName("Conversation <" + i + "> & friends");
+            element.setLastActivity(1546300800000L + i * 60000L);
+            element.setRead(i % 3 == 0, true);
+            element.setVersionCounter(i);
+            element.setSummary("Last message of conversation " + i);
+            mListing.add(element);
+        }
+    }
+
+    /**
+     * Test that streaming the listing produces the same document as encoding it in memory
+     */
+    @Test
+    public void testEncodeStream_matchesEncode() throws IOException {
+        byte[] expected = mListing.encode();
+        RecordingOutputStream out = new RecordingOutputStream();
+        mListing.encode(out);
+        Assert.assertTrue(Arrays.equals(expected, out.mBytes.toByteArray()));
+        // The document is handed over while being encoded, not in one piece at the end
+        Assert.assertTrue(out.mWrites > 1);
+    }
+
+    /**
+     * Compare the time to first byte and the heap used by the buffered and streaming encoders
+     */
+    @Test
+    public void testEncodeStream_timeToFirstByteAndHeap() throws IOException {
+        // Warm up both paths
+        mListing.encode();
+        mListing.encode(new RecordingOutputStream());
+
+        long heapBefore = usedHeap();
+        long start = SystemClock.elapsedRealtimeNanos();
+        byte[] bytes = mListing.encode();
+        // The buffered encoder only gives a first byte once the whole document is encoded
+        long bufferedFirstByteUs = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        long bufferedHeap = usedHeap() - heapBefore;
+
+        heapBefore = usedHeap();
+        RecordingOutputStream out = new RecordingOutputStream();
+        start = SystemClock.elapsedRealtimeNanos();
+        ChunkingOutputStream chunkStream = new ChunkingOutputStream(out, CHUNK_SIZE);
+        mListing.encode(chunkStream);
+        chunkStream.flush();
+        long streamingFirstByteUs = (out.mFirstByteTime - start) / 1000;
+        long streamingHeap = out.mUsedHeapAtFirstByte - heapBefore;
+
+        Assert.assertEquals(bytes.length, out.mBytes.size());
+        Log.i(TAG, LISTING_SIZE + " conversations, " + bytes.length + " bytes: first byte after "
+                + bufferedFirstByteUs + " us buffered, " + streamingFirstByteUs
+                + " us streamed. Heap growth " + bufferedHeap + " bytes buffered, "
+                + streamingHeap + " bytes streamed");
+    }
+
+    // Same chunking as the OBEX server, without the OBEX operation
+    private static class ChunkingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final byte[] mChunk;
+        private int mCount;
+
+        ChunkingOutputStream(OutputStream out, int chunkSize) {
+            mOut = out;
+            mChunk = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mCount == mChunk.length) {
+                    flush();
+                }
+                int count = Math.min(len, mChunk.length - mCount);
+                System.arraycopy(b, off, mChunk, mCount, count);
+                mCount += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mCount > 0) {
+                mOut.write(mChunk, 0, mCount);
+                mCount = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
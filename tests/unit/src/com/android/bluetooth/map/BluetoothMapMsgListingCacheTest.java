@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.map;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+import com.android.bluetooth.mapapi.BluetoothMapContract;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapMsgListingCacheTest {
+    private BluetoothMapMsgListingCache mCache;
+    private BluetoothMapFolderElement mInbox;
+    private BluetoothMapFolderElement mSent;
+
+    @Before
+    public void setUp() {
+        mCache = new BluetoothMapMsgListingCache();
+        BluetoothMapFolderElement root = new BluetoothMapFolderElement("msg", null);
+        mInbox = root.addSmsMmsFolder(BluetoothMapContract.FOLDER_NAME_INBOX);
+        mSent = root.addSmsMmsFolder(BluetoothMapContract.FOLDER_NAME_SENT);
+    }
+
+    /**
+     * Test that a request with the same folder and filters gets the cached listing
+     */
+    @Test
+    public void testGet_sameRequest() {
+        BluetoothMapMessageListing listing = createListing(10);
+        Assert.assertNull(mCache.get(mInbox, createParams()));
+        mCache.put(mInbox, createParams(), listing, 2, mCache.getGeneration());
+
+        Assert.assertEquals(listing.getList(), mCache.get(mInbox, createParams()).getList());
+        Assert.assertNull(mCache.get(mSent, createParams()));
+        BluetoothMapAppParams ap = createParams();
+        ap.setStartOffset(10);
+        Assert.assertNull(mCache.get(mInbox, ap));
+        ap = createParams();
+        ap.setFilterOriginator("Contact");
+        Assert.assertNull(mCache.get(mInbox, ap));
+    }
+
+    /**
+     * Test that a missing parameter mask is the same as all parameters, as msgListing() enables
+     * all parameters when the mask is missing
+     */
+    @Test
+    public void testGet_missingParameterMask() {
+        BluetoothMapMessageListing listing = createListing(10);
+        BluetoothMapAppParams ap = createParams();
+        long generation = mCache.getGeneration();
+        Assert.assertNull(mCache.get(mInbox, ap));
+        ap.setParameterMask(BluetoothMapContent.PARAMETER_MASK_ALL_ENABLED);
+        mCache.put(mInbox, ap, listing, 2, generation);
+
+        Assert.assertEquals(listing.getList(), mCache.get(mInbox, createParams()).getList());
+    }
+
+    /**
+     * Test that changing the listings given to and returned by the cache leaves it unchanged
+     */
+    @Test
+    public void testGet_returnsCopy() {
+        BluetoothMapMessageListing listing = createListing(10);
+        mCache.put(mInbox, createParams(), listing, 2, mCache.getGeneration());
+        listing.segment(5, 0);
+
+        BluetoothMapMessageListing cached = mCache.get(mInbox, createParams());
+        Assert.assertEquals(10, cached.getCount());
+        cached.segment(2, 8);
+        Assert.assertEquals(10, mCache.get(mInbox, createParams()).getCount());
+        Assert.assertTrue(mCache.get(mInbox, createParams()).hasUnread());
+    }
+
+    /**
+     * Test that changes only drop the listings of their folder and message type
+     */
+    @Test
+    public void testInvalidate_folderAndType() {
+        mCache.put(mInbox, createParams(), createListing(10), 2, mCache.getGeneration());
+        mCache.put(mSent, createParams(), createListing(10), 2, mCache.getGeneration());
+        BluetoothMapAppParams smsOnly = createParams();
+        smsOnly.setFilterMessageType(BluetoothMapAppParams.FILTER_NO_EMAIL
+                | BluetoothMapAppParams.FILTER_NO_MMS | BluetoothMapAppParams.FILTER_NO_IM);
+        mCache.put(mInbox, smsOnly, createListing(10), 1, mCache.getGeneration());
+
+        mCache.invalidate(TYPE.MMS, BluetoothMapContract.FOLDER_NAME_INBOX);
+        Assert.assertNull(mCache.get(mInbox, createParams()));
+        Assert.assertNotNull(mCache.get(mSent, createParams()));
+        Assert.assertNotNull(mCache.get(mInbox, smsOnly));
+
+        mCache.invalidate(TYPE.SMS_GSM, null);
+        Assert.assertEquals(0, mCache.size());
+    }
+
+    /**
+     * Test that a listing built while messages changed is not kept
+     */
+    @Test
+    public void testPut_changedWhileListing() {
+        long generation = mCache.getGeneration();
+        mCache.invalidate(TYPE.SMS_GSM, BluetoothMapContract.FOLDER_NAME_INBOX);
+        mCache.put(mInbox, createParams(), createListing(10), 2, generation);
+
+        Assert.assertNull(mCache.get(mInbox, createParams()));
+    }
+
+    /**
+     * Test that the least recently used listings are evicted to stay within the budget
+     */
+    @Test
+    public void testPut_evictsLeastRecentlyUsed() {
+        int size = createListing(100).getEstimatedSize();
+        mCache = new BluetoothMapMsgListingCache(size * 2);
+        mCache.put(mInbox, createParams(), createListing(100), 2, mCache.getGeneration());
+        mCache.put(mSent, createParams(), createListing(100), 2, mCache.getGeneration());
+        Assert.assertNotNull(mCache.get(mInbox, createParams()));
+
+        BluetoothMapAppParams ap = createParams();
+        ap.setStartOffset(100);
+        mCache.put(mInbox, ap, createListing(100), 2, mCache.getGeneration());
+        Assert.assertEquals(2, mCache.size());
+        Assert.assertNull(mCache.get(mSent, createParams()));
+        Assert.assertNotNull(mCache.get(mInbox, createParams()));
+
+        // Larger than the whole budget
+        mCache.put(mSent, createParams(), createListing(300), 2, mCache.getGeneration());
+        Assert.assertNull(mCache.get(mSent, createParams()));
+    }
+
+    private static BluetoothMapAppParams createParams() {
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        ap.setMaxListCount(1024);
+        ap.setStartOffset(0);
+        return ap;
+    }
+
+    private static BluetoothMapMessageListing createListing(int count) {
+        BluetoothMapMessageListing listing = new BluetoothMapMessageListing();
+        for (int i = 0; i < count; i++) {
+            BluetoothMapMessageListingElement element = new BluetoothMapMessageListingElement();
+            element.setHandle(i + 1);
+            element.setSubject("Message " + i);
+            element.setSenderAddressing("+1555" + i);
+            element.setRead(i % 2 == 0, false);
+            listing.add(element);
+        }
+        return listing;
+    }
+}
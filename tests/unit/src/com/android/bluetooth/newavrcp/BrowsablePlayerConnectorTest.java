@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import static org.mockito.Mockito.*;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.media.MediaDescription;
+import android.media.browse.MediaBrowser.MediaItem;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class BrowsablePlayerConnectorTest {
+    private static final String TAG = "BrowsablePlayerConnectorTest";
+    private static final String TEST_PREFERENCE_FILE = "avrcp_browsable_players_test";
+    private static final int NUM_FAKE_PLAYERS = 20;
+    // Time a fake media app takes to answer a connection
+    private static final long FAKE_CONNECT_MS = 100;
+
+    private HandlerThread mThread;
+    private Handler mServiceHandler;
+    private SharedPreferences mPreferences;
+    private PackageInfo mPackageInfo;
+    private final List<MediaBrowser.ConnectionCallback> mConnectionCbs = new ArrayList<>();
+    private List<BrowsedPlayerWrapper> mResult;
+
+    @Mock Context mMockContext;
+    @Mock PackageManager mMockPackageManager;
+    @Mock MediaBrowser mMockBrowser;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        mThread = new HandlerThread("BrowsablePlayerConnectorTestThread");
+        mThread.start();
+        mServiceHandler = new Handler(mThread.getLooper());
+
+        mPreferences = InstrumentationRegistry.getTargetContext()
+                .getSharedPreferences(TEST_PREFERENCE_FILE, Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+        when(mMockContext.getSharedPreferences(anyString(), anyInt())).thenReturn(mPreferences);
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        mPackageInfo = new PackageInfo();
+        mPackageInfo.versionCode = 1;
+        when(mMockPackageManager.getPackageInfo(anyString(), anyInt())).thenReturn(mPackageInfo);
+
+        // Every fake service accepts the connection after FAKE_CONNECT_MS. They all share the
+        // injected browser, so a connection wakes up every wrapper that is waiting for one.
+        when(mMockBrowser.getRoot()).thenReturn("root");
+        doAnswer(invocation -> {
+            synchronized (mConnectionCbs) {
+                mConnectionCbs.add(invocation.getArgument(2));
+            }
+            return null;
+        }).when(mMockBrowser).testInit(any(), any(), any(), any());
+        doAnswer(invocation -> {
+            mServiceHandler.postDelayed(() -> {
+                List<MediaBrowser.ConnectionCallback> cbs;
+                synchronized (mConnectionCbs) {
+                    cbs = new ArrayList<>(mConnectionCbs);
+                }
+                for (MediaBrowser.ConnectionCallback cb : cbs) {
+                    cb.onConnected();
+                }
+            }, FAKE_CONNECT_MS);
+            return null;
+        }).when(mMockBrowser).connect();
+        doAnswer(invocation -> {
+            List<MediaItem> children = new ArrayList<>();
+            children.add(new MediaItem(new MediaDescription.Builder()
+                    .setMediaId("song")
+                    .setTitle("Song")
+                    .build(), MediaItem.FLAG_PLAYABLE));
+            MediaBrowser.SubscriptionCallback cb = invocation.getArgument(1);
+            cb.onChildrenLoaded(invocation.getArgument(0), children);
+            return null;
+        }).when(mMockBrowser).subscribe(any(), any(MediaBrowser.SubscriptionCallback.class));
+
+        MediaBrowserFactory.inject(mMockBrowser);
+    }
+
+    @After
+    public void tearDown() {
+        MediaBrowserFactory.inject(null);
+        mPreferences.edit().clear().commit();
+        mThread.quitSafely();
+    }
+
+    /**
+     * Test that a second discovery is served from the cache without binding to any player,
+     * and report the time to ready of both
+     */
+    @Test
+    public void testConnectToPlayers_cachedDiscovery() throws Exception {
+        long coldMs = discover();
+        Assert.assertEquals(NUM_FAKE_PLAYERS, mResult.size());
+        verify(mMockBrowser, atLeast(NUM_FAKE_PLAYERS)).connect();
+
+        reset(mMockBrowser);
+        long warmMs = discover();
+        Assert.assertEquals(NUM_FAKE_PLAYERS, mResult.size());
+        verify(mMockBrowser, never()).connect();
+        for (BrowsedPlayerWrapper wrapper : mResult) {
+            Assert.assertFalse(wrapper.isValidated());
+            Assert.assertEquals("root", wrapper.getRootId());
+        }
+
+        Log.i(TAG, "Time to ready with " + NUM_FAKE_PLAYERS + " players: cold " + coldMs
+                + "ms, cached " + warmMs + "ms");
+        Assert.assertTrue("warmMs=" + warmMs, warmMs < FAKE_CONNECT_MS);
+    }
+
+    /**
+     * Test that a package update invalidates its cached discovery result
+     */
+    @Test
+    public void testConnectToPlayers_packageUpdated() throws Exception {
+        discover();
+        mPackageInfo.versionCode = 2;
+
+        discover();
+        for (BrowsedPlayerWrapper wrapper : mResult) {
+            Assert.assertTrue(wrapper.isValidated());
+        }
+    }
+
+    /**
+     * Test that a cached player that refuses its first connection is dropped from the cache
+     */
+    @Test
+    public void testCachedPlayer_revalidatedOnFirstBrowse() throws Exception {
+        BrowsablePlayerCache cache = new BrowsablePlayerCache(mMockContext);
+        cache.putBrowsable("package0", "service", "root");
+
+        BrowsedPlayerWrapper wrapper = BrowsedPlayerWrapper.wrapCached(mMockContext,
+                "package0", "service", "root", cache);
+        Assert.assertFalse(wrapper.isValidated());
+        synchronized (mConnectionCbs) {
+            mConnectionCbs.get(mConnectionCbs.size() - 1).onConnectionFailed();
+        }
+
+        Assert.assertTrue(wrapper.isValidated());
+        Assert.assertNull(cache.get("package0", "service"));
+    }
+
+    /**
+     * Test that a service is only known as not browsable after several refused connections,
+     * and only for a limited time
+     */
+    @Test
+    public void testNotBrowsable_failureCountAndTtl() {
+        long[] now = {1000000L};
+        BrowsablePlayerCache cache = new BrowsablePlayerCache(mMockContext) {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+
+        for (int i = 1; i < BrowsablePlayerCache.NOT_BROWSABLE_FAILURES; i++) {
+            cache.putNotBrowsable("package0", "service");
+            Assert.assertNull(cache.get("package0", "service"));
+        }
+        cache.putNotBrowsable("package0", "service");
+        Assert.assertFalse(cache.get("package0", "service").mBrowsable);
+
+        now[0] += BrowsablePlayerCache.NOT_BROWSABLE_TTL_MS;
+        Assert.assertNull(cache.get("package0", "service"));
+
+        // A success resets the refusals
+        cache.putBrowsable("package0", "service", "root");
+        cache.putNotBrowsable("package0", "service");
+        Assert.assertNull(cache.get("package0", "service"));
+    }
+
+    // Run a discovery of the fake players, returns the time it took to complete
+    private long discover() throws Exception {
+        List<ResolveInfo> players = new ArrayList<>();
+        for (int i = 0; i < NUM_FAKE_PLAYERS; i++) {
+            ResolveInfo info = new ResolveInfo();
+            info.serviceInfo = new ServiceInfo();
+            info.serviceInfo.packageName = "package" + i;
+            info.serviceInfo.name = "service";
+            players.add(info);
+        }
+
+        CountDownLatch done = new CountDownLatch(1);
+        long start = SystemClock.elapsedRealtime();
+        BrowsablePlayerConnector.connectToPlayers(mMockContext, mThread.getLooper(), players,
+                (List<BrowsedPlayerWrapper> result) -> {
+                    mResult = result;
+                    done.countDown();
+                });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        return SystemClock.elapsedRealtime() - start;
+    }
+}
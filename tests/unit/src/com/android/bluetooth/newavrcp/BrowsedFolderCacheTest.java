@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BrowsedFolderCacheTest {
+    private static final int FOLDER_SIZE = 20;
+
+    private int mFolderBytes;
+
+    @Before
+    public void setUp() {
+        mFolderBytes = BrowsedFolderCache.estimateBytes("f0", makeFolder());
+    }
+
+    @Test
+    public void testGet() {
+        BrowsedFolderCache cache = new BrowsedFolderCache();
+        List<ListItem> folder = makeFolder();
+        cache.put("f0", folder, false);
+
+        Assert.assertSame(folder, cache.get("f0"));
+        Assert.assertNull(cache.get("f1"));
+    }
+
+    @Test
+    public void testPut_evictsLeastRecentlyUsedWithinBudget() {
+        BrowsedFolderCache cache = new BrowsedFolderCache(mFolderBytes * 3);
+        cache.put("f0", makeFolder(), false);
+        cache.put("f1", makeFolder(), false);
+        cache.put("f2", makeFolder(), false);
+        // Touch f0 so that f1 is the least recently used
+        Assert.assertNotNull(cache.get("f0"));
+
+        cache.put("f3", makeFolder(), false);
+        Assert.assertTrue(cache.contains("f0"));
+        Assert.assertFalse(cache.contains("f1"));
+        Assert.assertTrue(cache.contains("f2"));
+        Assert.assertTrue(cache.contains("f3"));
+        Assert.assertTrue(cache.getTotalBytes() <= mFolderBytes * 3);
+    }
+
+    @Test
+    public void testPut_keepsFolderLargerThanBudget() {
+        BrowsedFolderCache cache = new BrowsedFolderCache(mFolderBytes / 2);
+        cache.put("f0", makeFolder(), false);
+        Assert.assertTrue(cache.contains("f0"));
+
+        cache.put("f1", makeFolder(), false);
+        Assert.assertFalse(cache.contains("f0"));
+        Assert.assertTrue(cache.contains("f1"));
+        Assert.assertEquals(mFolderBytes, cache.getTotalBytes());
+    }
+
+    @Test
+    public void testIsWalking() {
+        BrowsedFolderCache cache = new BrowsedFolderCache();
+        cache.put("f0", makeFolder(), false);
+        for (int i = 1; i < BrowsedFolderCache.WALK_REQUESTS; i++) {
+            cache.get("f0");
+            Assert.assertFalse(cache.isWalking("f0"));
+        }
+        cache.get("f0");
+        Assert.assertTrue(cache.isWalking("f0"));
+
+        cache.get("f1");
+        Assert.assertFalse(cache.isWalking("f0"));
+    }
+
+    @Test
+    public void testToString_reportsStatistics() {
+        BrowsedFolderCache cache = new BrowsedFolderCache();
+        cache.get("f0");
+        cache.put("f0", makeFolder(), false);
+        cache.get("f0");
+        cache.get("f0");
+        cache.onPrefetchStarted();
+        cache.put("f1", makeFolder(), true);
+        cache.get("f1");
+
+        String dump = cache.toString();
+        Assert.assertTrue(dump, dump.contains("hit rate 75% (3/4)"));
+        Assert.assertTrue(dump, dump.contains("Subscriptions saved: 3, prefetches: 1 (1 used)"));
+    }
+
+    private static List<ListItem> makeFolder() {
+        List<ListItem> folder = new ArrayList<ListItem>();
+        for (int i = 0; i < FOLDER_SIZE; i++) {
+            Metadata song = new Metadata();
+            song.mediaId = "song" + i;
+            song.title = "Title " + i;
+            song.artist = "Artist";
+            folder.add(new ListItem(song));
+        }
+        return folder;
+    }
+}
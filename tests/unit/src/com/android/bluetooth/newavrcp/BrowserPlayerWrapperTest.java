@@ -79,6 +79,7 @@ public class BrowserPlayerWrapperTest {
         browserConnCb.onConnectionFailed();
 
         verify(mConnCb).run(eq(BrowsedPlayerWrapper.STATUS_CONN_ERROR), eq(wrapper));
+        Assert.assertFalse(wrapper.hasEmptyRoot());
 
         wrapper.connect(mConnCb);
         verify(mMockBrowser, times(2)).connect();
@@ -102,6 +103,7 @@ public class BrowserPlayerWrapperTest {
 
         browserConnCb.onConnected();
         verify(mConnCb).run(eq(BrowsedPlayerWrapper.STATUS_CONN_ERROR), eq(wrapper));
+        Assert.assertTrue(wrapper.hasEmptyRoot());
         verify(mMockBrowser, times(1)).disconnect();
     }
 
@@ -182,4 +184,84 @@ public class BrowserPlayerWrapperTest {
 
         verify(mMockBrowser).disconnect();
     }
+
+    @Test
+    public void testGetFolderItems_walkPrefetchesNextFolder() {
+        BrowsedPlayerWrapper wrapper = BrowsedPlayerWrapper.wrap(null, "test", "test");
+        verify(mMockBrowser).testInit(any(), any(), mBrowserConnCb.capture(), any());
+        MediaBrowser.ConnectionCallback browserConnCb = mBrowserConnCb.getValue();
+
+        wrapper.getFolderItems("test_folder", mBrowseCb);
+        browserConnCb.onConnected();
+        verify(mMockBrowser).subscribe(eq("test_folder"), mSubscriptionCb.capture());
+
+        ArrayList<MediaItem> items = new ArrayList<MediaItem>();
+        MediaDescription.Builder bob = new MediaDescription.Builder();
+        bob.setTitle("test_subfolder");
+        bob.setMediaId("tsf");
+        items.add(new MediaItem(bob.build(), MediaItem.FLAG_BROWSABLE));
+        bob.setTitle("test_song1");
+        bob.setMediaId("ts1");
+        items.add(new MediaItem(bob.build(), 0));
+        mSubscriptionCb.getValue().onChildrenLoaded("test_folder", items);
+        verify(mMockBrowser, times(1)).connect();
+
+        // The remote walks the folder one item at a time, served from the cache
+        for (int i = 1; i < BrowsedFolderCache.WALK_REQUESTS; i++) {
+            wrapper.getFolderItems("test_folder", mBrowseCb);
+        }
+        verify(mMockBrowser, times(2)).connect();
+        browserConnCb.onConnected();
+        verify(mMockBrowser).subscribe(eq("tsf"), mSubscriptionCb.capture());
+
+        mSubscriptionCb.getValue().onChildrenLoaded("tsf", new ArrayList<MediaItem>());
+        verify(mMockBrowser, times(2)).connect();
+
+        // The prefetched folder is served without connecting again
+        BrowsedPlayerWrapper.BrowseCallback subfolderCb =
+                mock(BrowsedPlayerWrapper.BrowseCallback.class);
+        wrapper.getFolderItems("tsf", subfolderCb);
+        verify(subfolderCb).run(eq(BrowsedPlayerWrapper.STATUS_SUCCESS), eq("tsf"), any());
+        verify(mMockBrowser, times(2)).connect();
+        Assert.assertTrue(wrapper.toString().contains("prefetches: 1 (1 used)"));
+    }
+
+    @Test
+    public void testGetFolderItems_requestCancelsPrefetch() {
+        BrowsedPlayerWrapper wrapper = BrowsedPlayerWrapper.wrap(null, "test", "test");
+        verify(mMockBrowser).testInit(any(), any(), mBrowserConnCb.capture(), any());
+        MediaBrowser.ConnectionCallback browserConnCb = mBrowserConnCb.getValue();
+
+        wrapper.getFolderItems("test_folder", mBrowseCb);
+        browserConnCb.onConnected();
+        verify(mMockBrowser).subscribe(eq("test_folder"), mSubscriptionCb.capture());
+
+        ArrayList<MediaItem> items = new ArrayList<MediaItem>();
+        MediaDescription.Builder bob = new MediaDescription.Builder();
+        bob.setTitle("test_subfolder");
+        bob.setMediaId("tsf");
+        items.add(new MediaItem(bob.build(), MediaItem.FLAG_BROWSABLE));
+        mSubscriptionCb.getValue().onChildrenLoaded("test_folder", items);
+        for (int i = 1; i < BrowsedFolderCache.WALK_REQUESTS; i++) {
+            wrapper.getFolderItems("test_folder", mBrowseCb);
+        }
+        browserConnCb.onConnected();
+        verify(mMockBrowser).subscribe(eq("tsf"), mSubscriptionCb.capture());
+        MediaBrowser.SubscriptionCallback prefetchCb = mSubscriptionCb.getValue();
+
+        // The player never answers the prefetch, a remote request doesn't wait for it
+        BrowsedPlayerWrapper.BrowseCallback otherCb =
+                mock(BrowsedPlayerWrapper.BrowseCallback.class);
+        wrapper.getFolderItems("other_folder", otherCb);
+        verify(mMockBrowser).unsubscribe(eq("tsf"));
+        verify(mMockBrowser, times(3)).connect();
+        browserConnCb.onConnected();
+        verify(mMockBrowser).subscribe(eq("other_folder"), mSubscriptionCb.capture());
+        mSubscriptionCb.getValue().onChildrenLoaded("other_folder", new ArrayList<MediaItem>());
+        verify(otherCb).run(eq(BrowsedPlayerWrapper.STATUS_SUCCESS), eq("other_folder"), any());
+
+        // A late answer to the cancelled prefetch is ignored
+        prefetchCb.onChildrenLoaded("tsf", new ArrayList<MediaItem>());
+        Assert.assertFalse(wrapper.mCachedFolders.contains("tsf"));
+    }
 }
@@ -22,6 +22,7 @@ import android.media.MediaDescription;
 import android.media.MediaMetadata;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
+import android.os.Bundle;
 import android.os.HandlerThread;
 import android.os.TestLooperManager;
 import android.util.Log;
@@ -391,6 +392,113 @@ public class MediaPlayerWrapperTest {
         verify(mMockController, times(2)).getQueue();
     }
 
+    /*
+     * Test that an update that only changes the playback state sends the queue that was
+     * already converted instead of converting it again, and that a queue callback with the
+     * same items in a new list doesn't trigger an update.
+     */
+    @Test
+    public void testQueueReusedOnPlaybackStateUpdates() {
+        // Create the wrapper object and register the looper with the timeout handler
+        TestLooperManager looperManager = new TestLooperManager(mThread.getLooper());
+        MediaPlayerWrapper wrapper =
+                MediaPlayerWrapperFactory.wrap(mMockController, mThread.getLooper());
+        wrapper.registerCallback(mTestCbs);
+        List<Metadata> queue = wrapper.getCurrentQueue();
+
+        // Grab the callbacks the wrapper registered with the controller
+        verify(mMockController).registerCallback(mControllerCbs.capture(), any());
+        MediaController.Callback controllerCallbacks = mControllerCbs.getValue();
+
+        // A new list with the same items isn't a queue change
+        doReturn(getQueueFromDescriptions(mTestQueue)).when(mMockController).getQueue();
+        controllerCallbacks.onQueueChanged(getQueueFromDescriptions(mTestQueue));
+        verify(mTestCbs, never()).mediaUpdatedCallback(any());
+
+        // Update PlaybackState returned by controller
+        mTestState.setState(PlaybackState.STATE_PLAYING, 1000, 1.0f);
+        doReturn(mTestState.build()).when(mMockController).getPlaybackState();
+        controllerCallbacks.onPlaybackStateChanged(mTestState.build());
+
+        // Assert that the update carries the queue that was already sent
+        verify(mTestCbs, times(1)).mediaUpdatedCallback(mMediaUpdateData.capture());
+        MediaData data = mMediaUpdateData.getValue();
+        Assert.assertSame("Queue was converted again", queue, data.queue);
+        Assert.assertSame(queue, wrapper.getCurrentQueue());
+
+        // Verify that there are no timeout messages pending and there were no timeouts
+        Assert.assertFalse(wrapper.getTimeoutHandler().hasMessages(MSG_TIMEOUT));
+        verify(mFailHandler, never()).onTerribleFailure(any(), any(), anyBoolean());
+    }
+
+    /*
+     * Test the comparison used to detect queue changes
+     */
+    @Test
+    public void testQueueItemsEqual() {
+        List<MediaSession.QueueItem> queue = getQueueFromDescriptions(mTestQueue);
+        Assert.assertTrue(MediaPlayerWrapper.queueItemsEqual(null, new ArrayList<>()));
+        Assert.assertTrue(MediaPlayerWrapper.queueItemsEqual(
+                queue, getQueueFromDescriptions(mTestQueue)));
+        Assert.assertFalse(MediaPlayerWrapper.queueItemsEqual(queue, null));
+        Assert.assertFalse(MediaPlayerWrapper.queueItemsEqual(queue, queue.subList(0, 2)));
+
+        mTestQueue.get(1).setTitle("BT Test Song Renamed");
+        Assert.assertFalse(MediaPlayerWrapper.queueItemsEqual(
+                queue, getQueueFromDescriptions(mTestQueue)));
+    }
+
+    /*
+     * Test that a queue item whose extras override its title isn't the same item anymore
+     */
+    @Test
+    public void testQueueItemsEqual_extras() {
+        Bundle extras = new Bundle();
+        extras.putString(MediaMetadata.METADATA_KEY_TITLE, "BT Test Song Override");
+        mTestQueue.get(1).setExtras(extras);
+        List<MediaSession.QueueItem> queue = getQueueFromDescriptions(mTestQueue);
+        Assert.assertTrue(MediaPlayerWrapper.queueItemsEqual(
+                queue, getQueueFromDescriptions(mTestQueue)));
+
+        extras = new Bundle();
+        extras.putString(MediaMetadata.METADATA_KEY_TITLE, "BT Test Song Override 2");
+        mTestQueue.get(1).setExtras(extras);
+        Assert.assertFalse(MediaPlayerWrapper.queueItemsEqual(
+                queue, getQueueFromDescriptions(mTestQueue)));
+
+        mTestQueue.get(1).setExtras(null);
+        Assert.assertFalse(MediaPlayerWrapper.queueItemsEqual(
+                queue, getQueueFromDescriptions(mTestQueue)));
+    }
+
+    /*
+     * Test that queue items carrying GPM metadata in their extras are compared by the fields
+     * AVRCP reads from it, not by the identity of the metadata objects
+     */
+    @Test
+    public void testQueueItemsEqual_gpmExtras() {
+        for (MediaDescription.Builder item : mTestQueue) {
+            Bundle extras = new Bundle();
+            extras.putParcelable(Util.GPM_KEY, new MediaMetadata.Builder()
+                    .putString(MediaMetadata.METADATA_KEY_GENRE, "BT Test Genre")
+                    .putLong(MediaMetadata.METADATA_KEY_DURATION, 1000)
+                    .build());
+            item.setExtras(extras);
+        }
+        List<MediaSession.QueueItem> queue = getQueueFromDescriptions(mTestQueue);
+        Assert.assertTrue(MediaPlayerWrapper.queueItemsEqual(
+                queue, getQueueFromDescriptions(mTestQueue)));
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(Util.GPM_KEY, new MediaMetadata.Builder()
+                .putString(MediaMetadata.METADATA_KEY_GENRE, "BT Test Genre")
+                .putLong(MediaMetadata.METADATA_KEY_DURATION, 2000)
+                .build());
+        mTestQueue.get(1).setExtras(extras);
+        Assert.assertFalse(MediaPlayerWrapper.queueItemsEqual(
+                queue, getQueueFromDescriptions(mTestQueue)));
+    }
+
     /*
      * This test sends repeated Playback State updates that only have a short
      * position update change to see if they get debounced.
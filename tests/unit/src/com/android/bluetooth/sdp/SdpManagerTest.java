@@ -0,0 +1,199 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.sdp;
+
+import static org.mockito.Mockito.*;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothUuid;
+import android.bluetooth.SdpMasRecord;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.Utils;
+import com.android.bluetooth.btservice.AbstractionLayer;
+import com.android.bluetooth.btservice.AdapterService;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class SdpManagerTest {
+    private static final String TAG = "SdpManagerTest";
+    private static final String TEST_BT_ADDR = "11:22:33:44:55:66";
+    private static final int SIMULATED_SEARCH_LATENCY_MS = 200;
+    private static final int RESULT_TIMEOUT_MS = 2000;
+
+    private SdpManager mSdpManager;
+    private BluetoothDevice mTestDevice;
+    private HandlerThread mNativeThread;
+    private FakeSearchNative mFakeNative;
+    private volatile CountDownLatch mIntentLatch;
+
+    @Mock private AdapterService mAdapterService;
+
+    /* Answers every search after a fixed delay, as the stack would after an SDP round trip */
+    private class FakeSearchNative implements SdpManager.SearchNative {
+        private final Handler mHandler;
+        volatile int mSearchCount;
+
+        FakeSearchNative(Looper looper) {
+            mHandler = new Handler(looper);
+        }
+
+        @Override
+        public boolean sdpSearch(byte[] address, byte[] uuid) {
+            mSearchCount++;
+            mHandler.postDelayed(() -> mSdpManager.sdpMasRecordFoundCallback(
+                    AbstractionLayer.BT_STATUS_SUCCESS, address, uuid, 0, -1, 26, 0x0102, 0x7f,
+                    0x1f, "SMS/MMS", false), SIMULATED_SEARCH_LATENCY_MS);
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        doAnswer(invocation -> {
+            mIntentLatch.countDown();
+            return null;
+        }).when(mAdapterService).sendBroadcast(any(Intent.class), anyString());
+
+        mTestDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(TEST_BT_ADDR);
+        mNativeThread = new HandlerThread("SdpManagerTestNativeThread");
+        mNativeThread.start();
+        mFakeNative = new FakeSearchNative(mNativeThread.getLooper());
+
+        mSdpManager = SdpManager.init(mAdapterService);
+        mSdpManager.setSearchNativeForTesting(mFakeNative);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSdpManager.cleanup();
+        mNativeThread.quitSafely();
+    }
+
+    /**
+     * Test that a repeated search is served from the cache without a new native search
+     */
+    @Test
+    public void testRepeatedSearch_servedFromCache() throws Exception {
+        long uncachedMs = timeSearch(BluetoothUuid.MAS);
+        Assert.assertEquals(1, mFakeNative.mSearchCount);
+
+        long cachedMs = timeSearch(BluetoothUuid.MAS);
+        Assert.assertEquals(1, mFakeNative.mSearchCount);
+        Log.i(TAG, "connect setup SDP latency: uncached " + uncachedMs + " ms, cached "
+                + cachedMs + " ms");
+    }
+
+    /**
+     * Test that concurrent requests for the same device and UUID share one search
+     */
+    @Test
+    public void testConcurrentSearches_coalesced() throws Exception {
+        mIntentLatch = new CountDownLatch(1);
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.MAS);
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.MAS);
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.MAS);
+        Assert.assertTrue(mIntentLatch.await(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(1, mFakeNative.mSearchCount);
+    }
+
+    /**
+     * Test that invalidating a device forces the next search to reach the remote
+     */
+    @Test
+    public void testInvalidateCache_searchesAgain() throws Exception {
+        timeSearch(BluetoothUuid.MAS);
+        mSdpManager.invalidateCache(mTestDevice);
+        timeSearch(BluetoothUuid.MAS);
+
+        Assert.assertEquals(2, mFakeNative.mSearchCount);
+    }
+
+    /**
+     * Test that cached entries expire once their time to live has passed
+     */
+    @Test
+    public void testRecordCache_expiresAfterTtl() {
+        long[] now = {0};
+        SdpRecordCache cache = new SdpRecordCache(() -> now[0], 1000);
+        List<Parcelable> records = Collections.singletonList(
+                new SdpMasRecord(0, -1, 26, 0x0102, 0x7f, 0x1f, "SMS/MMS"));
+        cache.put(TEST_BT_ADDR, BluetoothUuid.MAS, records);
+
+        now[0] = 1000;
+        Assert.assertEquals(records, cache.get(TEST_BT_ADDR, BluetoothUuid.MAS));
+        Assert.assertNull(cache.get(TEST_BT_ADDR, BluetoothUuid.PBAP_PSE));
+
+        now[0] = 1001;
+        Assert.assertNull(cache.get(TEST_BT_ADDR, BluetoothUuid.MAS));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    /**
+     * Test that the cache drops the least recently searched device when full
+     */
+    @Test
+    public void testRecordCache_boundedByDeviceCount() {
+        SdpRecordCache cache = new SdpRecordCache();
+        List<Parcelable> records = new ArrayList<>();
+        for (int i = 0; i <= SdpRecordCache.MAX_CACHED_DEVICES; i++) {
+            cache.put(Utils.getAddressStringFromByte(new byte[] {0, 0, 0, 0, 0, (byte) i}),
+                    BluetoothUuid.MAS, records);
+        }
+
+        Assert.assertEquals(SdpRecordCache.MAX_CACHED_DEVICES, cache.size());
+        Assert.assertNull(cache.get("00:00:00:00:00:00", BluetoothUuid.MAS));
+    }
+
+    private long timeSearch(ParcelUuid uuid) throws Exception {
+        mIntentLatch = new CountDownLatch(1);
+        long start = SystemClock.elapsedRealtime();
+        mSdpManager.sdpSearch(mTestDevice, uuid);
+        Assert.assertTrue(mIntentLatch.await(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return SystemClock.elapsedRealtime() - start;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class InteropTest {
+    private static final String TAG = "InteropTest";
+    private static final int BENCHMARK_ENTRIES = 5000;
+    private static final int BENCHMARK_LOOKUPS = 100000;
+
+    private File mConfigFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mConfigFile = new File(context.getCacheDir(), "interop_database_test.conf");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConfigFile.delete();
+        Interop.invalidate();
+    }
+
+    /**
+     * Test that built-in entries match by address prefix, case insensitively
+     */
+    @Test
+    public void testMatchByAddress_builtInEntries() {
+        Interop.loadDatabase(mConfigFile);
+        Assert.assertTrue(Interop.matchByAddress(Interop.INTEROP_MAP_ASCIIONLY,
+                "00:26:E8:12:34:56"));
+        Assert.assertTrue(Interop.matchByAddress(Interop.INTEROP_MAP_ASCIIONLY,
+                "00:26:e8:12:34:56"));
+        Assert.assertFalse(Interop.matchByAddress(Interop.INTEROP_MAP_ASCIIONLY,
+                "00:26:E9:12:34:56"));
+        Assert.assertFalse(Interop.matchByAddress(Interop.INTEROP_MAP_STRIP_CR,
+                "00:26:E8:12:34:56"));
+        Assert.assertFalse(Interop.matchByAddress(Interop.INTEROP_MAP_ASCIIONLY, "00:26:E8"));
+        Assert.assertFalse(Interop.matchByAddress(Interop.INTEROP_MAP_ASCIIONLY, null));
+    }
+
+    /**
+     * Test that config file entries are added to the built-in ones on reload
+     */
+    @Test
+    public void testLoadDatabase_configEntries() throws IOException {
+        writeConfig("format_version = 1\n"
+                + "db_version = 7\n"
+                + "# Test carkits\n"
+                + "[INTEROP_MAP_STRIP_CR]\n"
+                + "AA:BB:CC:DD = Address_Based\n"
+                + "Carkit X = Name_Based\n"
+                + "[INTEROP_UNKNOWN]\n"
+                + "11:22:33 = Address_Based\n");
+        Interop.loadDatabase(mConfigFile);
+
+        Assert.assertEquals(7, Interop.getDatabaseVersion());
+        Assert.assertTrue(Interop.matchByAddress(Interop.INTEROP_MAP_STRIP_CR,
+                "AA:BB:CC:DD:00:01"));
+        Assert.assertFalse(Interop.matchByAddress(Interop.INTEROP_MAP_STRIP_CR,
+                "AA:BB:CC:DE:00:01"));
+        Assert.assertTrue(Interop.matchByAddress(Interop.INTEROP_MAP_ASCIIONLY,
+                "00:26:E8:12:34:56"));
+        Assert.assertTrue(Interop.matchByName(Interop.INTEROP_MAP_STRIP_CR, "Carkit X 2019"));
+        Assert.assertFalse(Interop.matchByName(Interop.INTEROP_MAP_STRIP_CR, "Carkit"));
+        Assert.assertFalse(Interop.matchByName(Interop.INTEROP_MAP_STRIP_LF, "Carkit X 2019"));
+        Assert.assertTrue(Interop.match(Interop.INTEROP_MAP_STRIP_CR, "11:22:33:44:55:66",
+                "Carkit X"));
+        Assert.assertTrue(Interop.match(Interop.INTEROP_MAP_STRIP_CR, "AA:BB:CC:DD:00:01",
+                null));
+        Assert.assertFalse(Interop.match(Interop.INTEROP_MAP_STRIP_CR, "11:22:33:44:55:66",
+                "Other"));
+    }
+
+    /**
+     * Test that a config file with an unsupported format is ignored
+     */
+    @Test
+    public void testLoadDatabase_unsupportedFormatIgnored() throws IOException {
+        writeConfig("format_version = 2\n"
+                + "db_version = 8\n"
+                + "[INTEROP_MAP_STRIP_CR]\n"
+                + "AA:BB:CC = Address_Based\n");
+        Interop.loadDatabase(mConfigFile);
+
+        Assert.assertEquals(0, Interop.getDatabaseVersion());
+        Assert.assertFalse(Interop.matchByAddress(Interop.INTEROP_MAP_STRIP_CR,
+                "AA:BB:CC:DD:00:01"));
+        Assert.assertTrue(Interop.matchByAddress(Interop.INTEROP_MAP_ASCIIONLY,
+                "00:26:E8:12:34:56"));
+    }
+
+    /**
+     * Benchmark indexed lookups against a linear prefix scan over 5k entries
+     */
+    @Test
+    public void testMatchByAddress_benchmark() throws IOException {
+        ArrayList<String> prefixes = new ArrayList<>();
+        StringBuilder config = new StringBuilder("format_version = 1\n[INTEROP_MAP_STRIP_CR]\n");
+        for (int i = 0; i < BENCHMARK_ENTRIES; i++) {
+            String prefix = (i % 2 == 0)
+                    ? String.format(Locale.US, "%02X:%02X:%02X", i >> 8, i & 0xff, 0x5a)
+                    : String.format(Locale.US, "%02X:%02X:%02X:%02X", i >> 8, i & 0xff, 0x5a,
+                            0xa5);
+            prefixes.add(prefix);
+            config.append(prefix).append(" = Address_Based\n");
+        }
+        writeConfig(config.toString());
+        Interop.loadDatabase(mConfigFile);
+
+        String[] addresses = new String[64];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = String.format(Locale.US, "%02X:%02X:5A:A5:00:%02X",
+                    (i * 37) >> 8, (i * 37) & 0xff, i);
+        }
+
+        int indexedMatches = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_LOOKUPS; i++) {
+            if (Interop.matchByAddress(Interop.INTEROP_MAP_STRIP_CR,
+                    addresses[i % addresses.length])) {
+                indexedMatches++;
+            }
+        }
+        long indexedNs = SystemClock.elapsedRealtimeNanos() - start;
+
+        int linearMatches = 0;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_LOOKUPS / 100; i++) {
+            String address = addresses[i % addresses.length].toLowerCase();
+            for (String prefix : prefixes) {
+                if (address.startsWith(prefix.toLowerCase())) {
+                    linearMatches++;
+                    break;
+                }
+            }
+        }
+        long linearNs = (SystemClock.elapsedRealtimeNanos() - start) * 100;
+
+        Log.i(TAG, "matchByAddress over " + BENCHMARK_ENTRIES + " entries: indexed "
+                + (indexedNs / BENCHMARK_LOOKUPS) + " ns/lookup, linear scan "
+                + (linearNs / BENCHMARK_LOOKUPS) + " ns/lookup");
+        Assert.assertEquals(BENCHMARK_LOOKUPS, indexedMatches);
+        Assert.assertEquals(BENCHMARK_LOOKUPS / 100, linearMatches);
+        Assert.assertTrue(indexedNs < linearNs);
+    }
+
+    private void writeConfig(String content) throws IOException {
+        try (FileWriter writer = new FileWriter(mConfigFile)) {
+            writer.write(content);
+        }
+    }
+}